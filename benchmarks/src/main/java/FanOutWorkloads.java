@@ -0,0 +1,86 @@
+import java.io.*; // For ByteArrayInputStream, IOException, UncheckedIOException
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For Channels, WritableByteChannel
+import java.util.*; // For Random
+import java.util.concurrent.*; // For TimeUnit
+import java.util.function.*; // For LongSupplier
+
+// FanOutBenchmark's broadcasts, without sockets: each recipient is an OutboundQueue, as in BroadcastServer, whose
+// "writer" drains it into a discarding stream right after the broadcast. Half the recipients speak binary-v1, so
+// both encodings are made once per frame, as with a real mix of clients.
+public final class FanOutWorkloads {
+    static final int QUEUE_CAPACITY = 1024;
+    static final int FILE_WINDOW = 4 << 20; // Room for a couple of 1 MB chunks per recipient
+
+    private FanOutWorkloads() {}
+
+    public static LongSupplier create(String operation, int recipients) throws IOException {
+        OutboundQueue[] queues = new OutboundQueue[recipients];
+        for (int i = 0; i < recipients; i++) {
+            queues[i] = new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.Policy.DROP_OLDEST, 0, FILE_WINDOW);
+        }
+        BroadcastBenchmark.NullOutputStream sink = new BroadcastBenchmark.NullOutputStream();
+        switch (operation) {
+            case "message": { // broadcastMessage: one Frame for everyone
+                String body = CompressionBenchmark.chatText(new Random(1), 100);
+                return () -> {
+                    Frame frame = Frame.chat(7, "alice", body);
+                    try {
+                        for (OutboundQueue queue : queues) queue.offer(frame);
+                        return drain(queues, sink, null);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                };
+            }
+            case "file": { // FileRelay.forward: one FILE_CHUNK frame pointing into the spool, written to each with transferTo
+                byte[] data = new byte[FileRelay.RELAY_CHUNK];
+                new Random(1).nextBytes(data);
+                Spool spool = Spool.create(System.getProperty("java.io.tmpdir"));
+                spool.append(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+                WritableByteChannel discard = new WritableByteChannel() {
+                    public int write(ByteBuffer src) {
+                        int n = src.remaining();
+                        src.position(src.limit());
+                        return n;
+                    }
+
+                    public boolean isOpen() {
+                        return true;
+                    }
+
+                    public void close() {}
+                };
+                return () -> {
+                    Frame chunk = Frame.spooledChunk(1, spool, 0, data.length);
+                    try {
+                        for (OutboundQueue queue : queues) {
+                            spool.retain(); // Given back by written()
+                            queue.offerChunk(chunk, 1000);
+                        }
+                        return drain(queues, sink, discard);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException(operation);
+        }
+    }
+
+    // What each recipient's writeLoop does with the frame
+    static long drain(OutboundQueue[] queues, BroadcastBenchmark.NullOutputStream sink, WritableByteChannel channel) throws IOException, InterruptedException {
+        long before = sink.written;
+        for (int i = 0; i < queues.length; i++) {
+            Frame frame = queues[i].poll(0, TimeUnit.NANOSECONDS);
+            frame.writeTo(sink, channel, i % 2 == 1);
+            queues[i].written(frame);
+        }
+        return sink.written - before;
+    }
+}
@@ -0,0 +1,37 @@
+import java.io.*; // For IOException, UncheckedIOException
+import java.util.function.*; // For LongSupplier
+
+// PresenceBenchmark's operations with 'users' online, each of whom is told about the change: one user leaves and a
+// new one joins, then either the whole USER_LIST (legacy encoding, as older clients get it) or the PRESENCE_DELTA
+// for that window (binary, as presence clients get it) is written to every user.
+public final class PresenceWorkloads {
+    private PresenceWorkloads() {}
+
+    public static LongSupplier create(String operation, int users) {
+        Presence presence = new Presence();
+        for (int id = 1; id <= users; id++) {
+            presence.join(id, "user" + id);
+        }
+        presence.flush();
+        int[] next = {users + 1}; // Id of the next user to join; the oldest one leaves
+        boolean fullList = operation.equals("user-list");
+        if (!fullList && !operation.equals("delta")) throw new IllegalArgumentException(operation);
+        BroadcastBenchmark.NullOutputStream sink = new BroadcastBenchmark.NullOutputStream();
+        return () -> {
+            int id = next[0]++;
+            presence.leave(id - users);
+            presence.join(id, "user" + id);
+            Frame delta = presence.flush(); // Clears the window in both cases
+            Frame frame = fullList ? presence.userList() : delta;
+            long before = sink.written;
+            try {
+                for (int i = 0; i < users; i++) {
+                    frame.writeTo(sink, null, !fullList);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sink.written - before;
+        };
+    }
+}
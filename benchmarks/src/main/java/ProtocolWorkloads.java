@@ -0,0 +1,81 @@
+import java.io.*; // For ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, IOException, UncheckedIOException
+import java.util.*; // For Random
+import java.util.function.*; // For LongSupplier
+import java.util.zip.*; // For Inflater
+
+// ProtocolBenchmark's operations on one chat message of 'length' characters. Encoding builds a new Frame each time,
+// as every broadcast does; decoding reads the frame the way SimpleChatClient's reader thread does.
+public final class ProtocolWorkloads {
+    private ProtocolWorkloads() {}
+
+    public static LongSupplier create(String operation, int length) throws IOException {
+        String body = CompressionBenchmark.chatText(new Random(1), length);
+        byte[] legacy = bytes(Frame.chat(7, "alice", body), false);
+        byte[] binary = bytes(Frame.chat(7, "alice", body), true);
+        Compression compression = new Compression(0, 6); // Every size, so short messages are measured too
+        switch (operation) {
+            case "encode-legacy":
+                return () -> Frame.chat(7, "alice", body).wireSize(false);
+            case "encode-binary":
+                return () -> Frame.chat(7, "alice", body).wireSize(true);
+            case "decode-legacy": {
+                ByteArrayInputStream bytes = new ByteArrayInputStream(legacy);
+                DataInputStream in = new DataInputStream(bytes);
+                return () -> {
+                    bytes.reset();
+                    try {
+                        return in.readUTF().length();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                };
+            }
+            case "decode-binary": {
+                ByteArrayInputStream bytes = new ByteArrayInputStream(binary);
+                DataInputStream in = new DataInputStream(bytes);
+                BinaryProtocol.Reader payload = new BinaryProtocol.Reader();
+                return () -> {
+                    bytes.reset();
+                    try {
+                        int opcode = in.readUnsignedByte();
+                        payload.fill(in, (int) BinaryProtocol.readVarint(in));
+                        return opcode + payload.varint() + payload.string().length();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                };
+            }
+            case "compress":
+                return () -> {
+                    byte[] packed = compression.pack(binary);
+                    return packed != null ? packed.length : 0;
+                };
+            case "decompress": {
+                byte[] packed = compression.pack(binary);
+                if (packed == null) packed = compression.pack(bytes(Frame.chat(7, "alice", "a".repeat(length)), true)); // Did not shrink; compressible text of the same length
+                ByteArrayInputStream bytes = new ByteArrayInputStream(packed);
+                DataInputStream in = new DataInputStream(bytes);
+                BinaryProtocol.Reader payload = new BinaryProtocol.Reader();
+                Inflater inflater = new Inflater(true);
+                return () -> {
+                    bytes.reset();
+                    try {
+                        in.readUnsignedByte(); // COMPRESSED
+                        payload.fill(in, (int) BinaryProtocol.readVarint(in));
+                        return Compression.unpack(inflater, payload, BinaryProtocol.MAX_PAYLOAD).length;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException(operation);
+        }
+    }
+
+    static byte[] bytes(Frame frame, boolean binaryProtocol) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out, null, binaryProtocol);
+        return out.toByteArray();
+    }
+}
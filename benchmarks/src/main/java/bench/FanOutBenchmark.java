@@ -0,0 +1,36 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*; // For Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, Warmup
+import java.util.concurrent.*; // For TimeUnit
+import java.util.function.*; // For LongSupplier
+
+// One broadcast through the server's fan-out path, per number of recipients: broadcastMessage (a chat frame queued
+// for every recipient, then written by each one's writer) and the file relay (a 1 MB spooled FILE_CHUNK likewise)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+    @Param({"1", "100", "1000"})
+    int recipients;
+
+    LongSupplier message, file;
+
+    @Setup
+    public void setup() {
+        message = Workloads.create("FanOutWorkloads", "message", recipients);
+        file = Workloads.create("FanOutWorkloads", "file", recipients);
+    }
+
+    @Benchmark
+    public long broadcastMessage() {
+        return message.getAsLong();
+    }
+
+    @Benchmark
+    public long broadcastFile() {
+        return file.getAsLong();
+    }
+}
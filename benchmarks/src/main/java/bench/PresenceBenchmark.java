@@ -0,0 +1,36 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*; // For Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, Warmup
+import java.util.concurrent.*; // For TimeUnit
+import java.util.function.*; // For LongSupplier
+
+// Telling every online user that one user left and another joined: a full USER_LIST to everyone, as the server
+// does for older clients (the old broadcastClientList), against one PRESENCE_DELTA shared by everyone
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PresenceBenchmark {
+    @Param({"100", "1000", "10000"})
+    int users;
+
+    LongSupplier userList, presenceDelta;
+
+    @Setup
+    public void setup() {
+        userList = Workloads.create("PresenceWorkloads", "user-list", users);
+        presenceDelta = Workloads.create("PresenceWorkloads", "delta", users);
+    }
+
+    @Benchmark
+    public long userList() {
+        return userList.getAsLong();
+    }
+
+    @Benchmark
+    public long presenceDelta() {
+        return presenceDelta.getAsLong();
+    }
+}
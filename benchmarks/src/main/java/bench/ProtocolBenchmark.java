@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*; // For Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, Setup, State, Warmup
+import java.util.concurrent.*; // For TimeUnit
+import java.util.function.*; // For LongSupplier
+
+// Encoding and decoding one chat message in each wire protocol, and compressing it for "deflate" clients
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    @Param({"40", "2000"})
+    int messageLength;
+
+    LongSupplier encodeLegacy, encodeBinary, decodeLegacy, decodeBinary, compress, decompress;
+
+    @Setup
+    public void setup() {
+        encodeLegacy = Workloads.create("ProtocolWorkloads", "encode-legacy", messageLength);
+        encodeBinary = Workloads.create("ProtocolWorkloads", "encode-binary", messageLength);
+        decodeLegacy = Workloads.create("ProtocolWorkloads", "decode-legacy", messageLength);
+        decodeBinary = Workloads.create("ProtocolWorkloads", "decode-binary", messageLength);
+        compress = Workloads.create("ProtocolWorkloads", "compress", messageLength);
+        decompress = Workloads.create("ProtocolWorkloads", "decompress", messageLength);
+    }
+
+    @Benchmark
+    public long encodeLegacy() {
+        return encodeLegacy.getAsLong();
+    }
+
+    @Benchmark
+    public long encodeBinary() {
+        return encodeBinary.getAsLong();
+    }
+
+    @Benchmark
+    public long decodeLegacy() {
+        return decodeLegacy.getAsLong();
+    }
+
+    @Benchmark
+    public long decodeBinary() {
+        return decodeBinary.getAsLong();
+    }
+
+    @Benchmark
+    public long compress() {
+        return compress.getAsLong();
+    }
+
+    @Benchmark
+    public long decompress() {
+        return decompress.getAsLong();
+    }
+}
@@ -0,0 +1,19 @@
+package bench;
+
+import java.util.function.*; // For LongSupplier
+
+// JMH will not generate code for benchmarks in the default package, and a named package cannot see the chat classes,
+// which all live in the default package. So each benchmark asks a workload class in the default package (see
+// ProtocolWorkloads, FanOutWorkloads, PresenceWorkloads) for its operation once, in @Setup, and then calls it
+// through LongSupplier; the result goes to JMH so the work cannot be optimized away.
+final class Workloads {
+    private Workloads() {}
+
+    static LongSupplier create(String workloadClass, String operation, int size) {
+        try {
+            return (LongSupplier) Class.forName(workloadClass).getMethod("create", String.class, int.class).invoke(null, operation, size);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No workload " + workloadClass + " " + operation, e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.*; // For BufferedWriter, FileOutputStream, IOException, OutputStreamWriter, Writer
+import java.nio.charset.*; // For Charset
+import java.util.*; // For ArrayList, List
+import java.util.concurrent.*; // For ArrayBlockingQueue, TimeUnit
+import java.util.concurrent.atomic.*; // For LongAdder
+import java.util.logging.*; // For ErrorManager, Handler, Level, LogRecord, SimpleFormatter
+import java.util.logging.Formatter; // java.util also has a Formatter
+
+// java.util.logging Handler for SimpleChatClient's log file that never makes the logging thread wait, like ServerLog
+// does for the server: publish() puts the record into a bounded ring buffer and returns, and one background thread
+// formats whatever has queued up and writes it with a single flush. A FileHandler wrote and flushed every record on
+// the calling thread, so the reader thread paid a disk write for each message it received.
+// When the buffer is full records are dropped and counted instead of queueing up; close() (LogManager calls it at
+// exit) writes out everything still queued.
+final class AsyncLogHandler extends Handler {
+    private static final int BATCH = 512; // Records written per flush at most
+    private static final LogRecord CLOSE = new LogRecord(Level.OFF, ""); // Tells the writer to finish
+
+    private final ArrayBlockingQueue<LogRecord> pending;
+    private final Writer out;
+    private final Thread writer;
+    final LongAdder dropped = new LongAdder();
+
+    AsyncLogHandler(String fileName, int bufferRecords) throws IOException {
+        this.pending = new ArrayBlockingQueue<>(bufferRecords);
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), Charset.defaultCharset()), 64 * 1024);
+        setFormatter(new SimpleFormatter());
+        writer = new Thread(this::drain, "client-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (!isLoggable(record)) return;
+        // The caller is normally found by walking this thread's stack when the record is formatted, which would be
+        // the writer's stack by then. Naming the logger instead costs nothing here; the method name is left out.
+        record.setSourceClassName(record.getLoggerName());
+        if (!pending.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    private void drain() {
+        List<LogRecord> batch = new ArrayList<>(BATCH);
+        long reportedDrops = 0;
+        boolean closing = false;
+        while (!closing) {
+            try {
+                LogRecord first = pending.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, BATCH - 1);
+                }
+                long drops = dropped.sum();
+                if (drops > reportedDrops) { // Said once per batch, not once per lost record
+                    out.write("(" + (drops - reportedDrops) + " log records dropped, the log could not keep up)" + System.lineSeparator());
+                    reportedDrops = drops;
+                } else if (batch.isEmpty()) {
+                    continue;
+                }
+                Formatter formatter = getFormatter();
+                for (LogRecord record : batch) {
+                    if (record == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    out.write(formatter.format(record));
+                }
+                out.flush();
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                batch.clear();
+                reportError("Cannot write the log", e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            reportError("Cannot close the log", e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    // Records are flushed by the writer as soon as it gets to them
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {
+        if (!writer.isAlive()) return;
+        try {
+            pending.put(CLOSE); // Behind everything already queued
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.lang.reflect.*; // For InvocationHandler, Proxy
+import java.sql.*; // For Connection, DriverManager, PreparedStatement, ResultSet, SQLException
+import java.util.*; // For Map
+import java.util.concurrent.*; // For ConcurrentHashMap, CountDownLatch, ThreadLocalRandom
+import java.util.concurrent.atomic.*; // For AtomicInteger, LongAdder
+
+// Logins per second during a login storm, with a fresh connection per call (as LoginClient used to do)
+// and with AuthService on a ConnectionPool.
+// Usage: java AuthBenchmark [threads] [seconds] [connectMs] [jdbcUrl user password]
+// Without a JDBC url it runs against an in-memory stub database whose connect takes connectMs (default 20 ms,
+// roughly a TCP connect plus MySQL handshake on a LAN); with one, the users table needs rows user0..user999/secret.
+// The pooled run hashes with a single PBKDF2 iteration so that it measures the database path, not the hash.
+public class AuthBenchmark {
+    static final int USERS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int connectMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        ConnectionPool.ConnectionFactory factory = args.length > 5
+                ? () -> DriverManager.getConnection(args[3], args[4], args[5])
+                : new StubDatabase(connectMillis);
+        String target = args.length > 5 ? args[3] : "stub(connect=" + connectMillis + "ms)";
+
+        run("per-call", target, threads, seconds, (user, password) -> perCallAuthenticate(factory, user, password));
+        try (ConnectionPool pool = new ConnectionPool(factory, 8, 5_000)) {
+            AuthService auth = new AuthService(pool, new PasswordHasher(1)); // One iteration: measures the database path, not the hash
+            run("pooled", target, threads, seconds, auth::authenticate);
+        }
+        System.exit(0);
+    }
+
+    interface Login {
+        boolean authenticate(String user, String password) throws SQLException;
+    }
+
+    // What LoginClient.authenticate() used to do on every click
+    static boolean perCallAuthenticate(ConnectionPool.ConnectionFactory factory, String user, String password) throws SQLException {
+        try (Connection conn = factory.open();
+             PreparedStatement pst = conn.prepareStatement("SELECT * FROM users WHERE username = ? AND password = ?")) {
+            pst.setString(1, user);
+            pst.setString(2, password);
+            try (ResultSet rs = pst.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    static void run(String label, String target, int threads, int seconds, Login login) throws InterruptedException {
+        LongAdder ok = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    String user = "user" + ThreadLocalRandom.current().nextInt(USERS);
+                    try {
+                        if (login.authenticate(user, "secret")) ok.increment(); else failed.increment();
+                    } catch (SQLException e) {
+                        failed.increment();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        System.out.printf("variant=%s db=%s threads=%d logins=%d failed=%d logins_per_s=%.0f%n",
+                label, target, threads, ok.sum(), failed.sum(), ok.sum() / (double) seconds);
+    }
+
+    // In-memory stand-in for MySQL: opening a connection costs connectMillis, statements answer from a map.
+    // Only understands the users queries used by LoginClient and AuthService.
+    static final class StubDatabase implements ConnectionPool.ConnectionFactory {
+        private final int connectMillis;
+        final Map<String, String> users = new ConcurrentHashMap<>();
+        final AtomicInteger opened = new AtomicInteger();
+
+        StubDatabase(int connectMillis) {
+            this.connectMillis = connectMillis;
+            for (int i = 0; i < USERS; i++) users.put("user" + i, "secret");
+        }
+
+        @Override
+        public Connection open() throws SQLException {
+            try {
+                Thread.sleep(connectMillis); // Connect and authenticate
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            opened.incrementAndGet();
+            return proxy(Connection.class, (p, m, a) -> {
+                switch (m.getName()) {
+                    case "prepareStatement": return statement((String) a[0]);
+                    case "isValid": return true;
+                    case "close": return null;
+                    default: throw new SQLFeatureNotSupportedException(m.getName());
+                }
+            });
+        }
+
+        private PreparedStatement statement(String sql) {
+            String[] params = new String[3];
+            return proxy(PreparedStatement.class, (p, m, a) -> {
+                switch (m.getName()) {
+                    case "setString": params[(int) a[0] - 1] = (String) a[1]; return null;
+                    case "executeQuery":
+                        if (sql.startsWith("SELECT password")) return result(users.get(params[0]));
+                        if (sql.contains("password = ?")) return result(params[1].equals(users.get(params[0])) ? "" : null);
+                        return result(users.containsKey(params[0]) ? "" : null);
+                    case "executeUpdate":
+                        if (sql.startsWith("UPDATE")) return users.replace(params[1], params[2], params[0]) ? 1 : 0;
+                        return users.putIfAbsent(params[0], params[1]) == null ? 1 : 0;
+                    case "close": return null;
+                    default: throw new SQLFeatureNotSupportedException(m.getName());
+                }
+            });
+        }
+
+        // A result with one single-column row holding 'value', or no rows if it is null
+        private ResultSet result(String value) {
+            boolean[] consumed = {false};
+            return proxy(ResultSet.class, (p, m, a) -> {
+                switch (m.getName()) {
+                    case "next": return value != null && !consumed[0] && (consumed[0] = true);
+                    case "getString": return value;
+                    case "close": return null;
+                    default: throw new SQLFeatureNotSupportedException(m.getName());
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(AuthBenchmark.class.getClassLoader(), new Class<?>[] {type}, handler);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.sql.*; // For PreparedStatement, ResultSet, SQLException, SQLIntegrityConstraintViolationException
+
+// Login and registration against the users table, on top of a ConnectionPool.
+// Every call borrows a pooled connection and uses its cached PreparedStatement, so a login is one round trip
+// to the database instead of a connect, a handshake, a prepare and a query.
+// Passwords are stored as PasswordHasher hashes. Hashing is slow on purpose and runs while no connection is held;
+// callers that must stay responsive (the server's handshake) run these methods on their own bounded executor.
+class AuthService {
+    enum Registration { CREATED, EXISTS }
+
+    static final String EXISTS_SQL = "SELECT 1 FROM users WHERE username = ?";
+    static final String PASSWORD_SQL = "SELECT password FROM users WHERE username = ?";
+    static final String REHASH_SQL = "UPDATE users SET password = ? WHERE username = ? AND password = ?";
+    // Existence check and insert in one statement: inserts nothing (0 rows) when the name is taken
+    static final String REGISTER_SQL = "INSERT INTO users (username, password) SELECT ?, ? FROM DUAL "
+            + "WHERE NOT EXISTS (SELECT 1 FROM users WHERE username = ?)";
+
+    private final ConnectionPool pool;
+    private final PasswordHasher hasher;
+
+    AuthService(ConnectionPool pool, PasswordHasher hasher) {
+        this.pool = pool;
+        this.hasher = hasher;
+    }
+
+    private interface Work<T> {
+        T run(ConnectionPool.Pooled c) throws SQLException;
+    }
+
+    // Runs one unit of work on a pooled connection; a connection that threw is closed instead of reused
+    private <T> T withConnection(Work<T> work) throws SQLException {
+        ConnectionPool.Pooled c = pool.borrow();
+        boolean broken = true;
+        try {
+            T result = work.run(c);
+            broken = false;
+            return result;
+        } finally {
+            pool.release(c, broken);
+        }
+    }
+
+    boolean userExists(String username) throws SQLException {
+        return withConnection(c -> {
+            PreparedStatement pst = c.prepare(EXISTS_SQL);
+            pst.setString(1, username);
+            try (ResultSet rs = pst.executeQuery()) {
+                return rs.next();
+            }
+        });
+    }
+
+    // Fetches the stored hash, then verifies it with the connection already back in the pool
+    boolean authenticate(String username, String password) throws SQLException {
+        String stored = withConnection(c -> {
+            PreparedStatement pst = c.prepare(PASSWORD_SQL);
+            pst.setString(1, username);
+            try (ResultSet rs = pst.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        });
+        if (!hasher.verify(password, stored)) return false;
+        if (hasher.needsRehash(stored)) {
+            String upgraded = hasher.hash(password); // Plain-text row from before hashing, or too few iterations
+            withConnection(c -> {
+                PreparedStatement pst = c.prepare(REHASH_SQL);
+                pst.setString(1, upgraded);
+                pst.setString(2, username);
+                pst.setString(3, stored); // Unless the password was changed meanwhile
+                return pst.executeUpdate();
+            });
+        }
+        return true;
+    }
+
+    Registration register(String username, String password) throws SQLException {
+        String hash = hasher.hash(password);
+        return withConnection(c -> {
+            PreparedStatement pst = c.prepare(REGISTER_SQL);
+            pst.setString(1, username);
+            pst.setString(2, hash);
+            pst.setString(3, username);
+            try {
+                return pst.executeUpdate() > 0 ? Registration.CREATED : Registration.EXISTS;
+            } catch (SQLIntegrityConstraintViolationException e) {
+                return Registration.EXISTS; // Lost a race with another registration of the same name (unique key)
+            }
+        });
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.*; // For ByteArrayOutputStream, DataOutputStream, IOException
+import java.sql.*; // For SQLException
+import java.util.concurrent.*; // For ArrayBlockingQueue, CompletableFuture, RejectedExecutionException, ThreadPoolExecutor
+import java.util.concurrent.atomic.*; // For AtomicInteger, LongAdder
+
+// Checks the login a client sends as the first thing on a new connection:
+//   writeUTF("AUTH/1"), writeUTF(name), writeUTF("password" or "token"), writeUTF(password or token)
+// and is answered with writeUTF("AUTH_OK"), writeUTF(sessionToken) or writeUTF("AUTH_FAILED"), writeUTF(reason).
+// Older clients send just their name; they are only let in with --auth=off.
+// Password checks (a database lookup and a deliberately slow hash) run on a small bounded executor, never on the
+// accept or event-loop threads; when its queue is full new logins are turned away at once instead of piling up.
+// A session token from an earlier login is checked against the SessionCache, which is a map lookup.
+final class Authenticator {
+    static final String HANDSHAKE = "AUTH/1"; // Cannot be a user name: "/" separates names in USER_LIST
+    static final String PASSWORD = "password";
+    static final String TOKEN = "token";
+
+    // Why a login was refused; the message is sent to the client as-is
+    static final class LoginException extends Exception {
+        LoginException(String message) {
+            super(message, null, false, false); // No stack trace: refused logins are routine, and can come in bursts
+        }
+    }
+
+    final boolean required; // False with --auth=off: every name is accepted, as before logins existed
+    private final AuthService auth; // Null when not required
+    private final SessionCache sessions;
+    private final ThreadPoolExecutor hashExecutor;
+
+    final LongAdder passwordLogins = new LongAdder(); // Verified with a hash
+    final LongAdder tokenLogins = new LongAdder(); // Verified from the session cache
+    final LongAdder failedLogins = new LongAdder();
+    final LongAdder busyRejections = new LongAdder(); // Turned away because the hash executor's queue was full
+
+    Authenticator(ServerConfig config) {
+        this.required = config.auth.equals("required");
+        this.auth = required
+                ? new AuthService(ConnectionPool.forUrl(config.authDbUrl, config.authDbUser, config.authDbPassword, config.authThreads), new PasswordHasher())
+                : null;
+        this.sessions = new SessionCache(config.sessionCacheSize, config.sessionTtlSeconds * 1000L);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.hashExecutor = new ThreadPoolExecutor(config.authThreads, config.authThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.authQueue), r -> {
+                    Thread t = new Thread(r, "auth-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }); // The default AbortPolicy throws when the queue is full; login() turns that into "busy"
+    }
+
+    // Completes with the session token to hand back (empty with --auth=off), or with a LoginException.
+    // May complete on the calling thread (token logins) or on a hash thread (password logins).
+    CompletableFuture<String> login(String name, String method, String secret) {
+        if (!required) {
+            return CompletableFuture.completedFuture("");
+        }
+        if (method.equals(TOKEN)) {
+            if (sessions.validate(secret, name)) {
+                tokenLogins.increment();
+                return CompletableFuture.completedFuture(secret);
+            }
+            return refuse("Your session is no longer valid, please log in again.");
+        }
+        if (!method.equals(PASSWORD)) {
+            return refuse("Unknown login method: " + method);
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        try {
+            hashExecutor.execute(() -> {
+                try {
+                    if (auth.authenticate(name, secret)) {
+                        passwordLogins.increment();
+                        result.complete(sessions.issue(name));
+                    } else {
+                        failedLogins.increment();
+                        result.completeExceptionally(new LoginException("Invalid username or password."));
+                    }
+                } catch (SQLException e) {
+                    failedLogins.increment();
+                    result.completeExceptionally(new LoginException("Login is unavailable right now, please try again."));
+                } catch (RuntimeException e) { // The executor would swallow it and the client would wait for its deadline
+                    failedLogins.increment();
+                    result.completeExceptionally(e); // Answered as "Login failed." (see reason())
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            busyRejections.increment();
+            result.completeExceptionally(new LoginException("The server is busy, please try again."));
+        }
+        return result;
+    }
+
+    private CompletableFuture<String> refuse(String reason) {
+        failedLogins.increment();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        result.completeExceptionally(new LoginException(reason));
+        return result;
+    }
+
+    int pendingLogins() {
+        return hashExecutor.getQueue().size() + hashExecutor.getActiveCount();
+    }
+
+    // The reply to a handshake, already encoded: AUTH_OK + token, or AUTH_FAILED + reason
+    static byte[] reply(boolean ok, String text) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeUTF(ok ? "AUTH_OK" : "AUTH_FAILED");
+            out.writeUTF(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream never throws
+        }
+        return buf.toByteArray();
+    }
+
+    // The reason a login future failed, for the AUTH_FAILED reply
+    static String reason(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof LoginException ? cause.getMessage() : "Login failed.";
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.*; // For ByteArrayOutputStream, DataInput, DataOutput, EOFException, IOException
+import java.nio.charset.*; // For StandardCharsets
+import java.util.zip.*; // For Inflater
+
+// Version 1 of the binary wire format, negotiated with "CAPS ...,binary-v1" during the handshake.
+// Every frame is:  [opcode: 1 byte][payload length: varint][payload]
+// Integers in the payload are unsigned LEB128 varints, strings are a varint byte length followed by UTF-8.
+// User ids are assigned by the server and announced in USER_LIST; 0 means "everyone" as a recipient.
+// A private message or file may also name its recipient: if the id is not online (they left, or came back under a new
+// id), the server goes by the name and stores it in their mailbox if they are offline.
+//
+//   opcode        client -> server                          server -> client
+//   TEXT          body                                      senderId, body[, seq]
+//   PRIVATE       recipientId, body[, recipientName]        senderId, body[, seq]
+//   NOTICE        -                                         text (messages from the server itself)
+//   USER_LIST     -                                         count, then count x (id, name)
+//   FILE_BEGIN    uploadId, recipientId, name, size         transferId, senderId, name, size
+//                   [, recipientName]
+//   FILE_CHUNK    uploadId, data (rest of payload)          transferId, data (rest of payload)
+//   FILE_END      uploadId                                  transferId
+//   FILE_ABORT    uploadId                                  transferId
+//   FILE_REJECT   -                                         uploadId, reason
+//   PRESENCE_SNAPSHOT  (empty: resync request)              version, count, then count x (id, name)
+//   PRESENCE_DELTA     -                                    fromVersion, toVersion, joinCount x (id, name), leaveCount x id
+//   ROOM_JOIN     room                                      -
+//   ROOM_LEAVE    room                                      -
+//   ROOM_TEXT     room, body                                senderId, room, body[, seq]
+//   RESUME        last seq seen (send what came after it)   newest seq when the connection started
+//   REPLAY        -                                         seq, kind, senderName, room, body
+//   COMPRESSED    size, deflated frame                      size, deflated frame
+//   PING          token                                     token
+//   PONG          token of the PING it answers              token of the PING it answers
+// Presence frames are only sent to clients that also announced "presence"; others keep getting USER_LIST.
+// A delta holds the net changes from fromVersion to toVersion. A client at version v applies it if
+// fromVersion <= v < toVersion (joins are added, leaves removed; someone who joined and left in between is
+// only listed as a leave, so re-applying part of a delta is harmless),
+// ignores it if v >= toVersion, and asks for a snapshot if v < fromVersion (it missed a delta).
+// Rooms (capability "rooms"): ROOM_TEXT only reaches the room's members, and only members may send to a room.
+// The server answers joins and leaves with a NOTICE; membership ends with the connection.
+// Resume (capability "resume"): the server numbers chat, private and room messages in its message log and appends
+// that seq to them; right after the CAPS reply it sends RESUME with the newest seq, where the client's count starts.
+// After a reconnect (and rejoining its rooms) the client sends RESUME with the last seq it saw, and the server
+// answers with a REPLAY for each message since then that the client would have received, by sender name since
+// the ids may be gone. Live messages can overlap the replay by a few seqs, so clients drop seqs they already have.
+// Compression (capability "deflate"): either side may wrap any frame in COMPRESSED, whose payload is the wrapped
+// frame's size followed by the whole frame (opcode, length, payload) as raw DEFLATE data. Every COMPRESSED frame
+// stands alone, with no dictionary shared between frames. The server never wraps a COMPRESSED frame again and
+// does not accept FILE_CHUNK uploads inside one, since those are spooled straight from the socket.
+// Heartbeat (capability "heartbeat"): the server PINGs a client it has not heard from for a while and disconnects it
+// if nothing at all arrives before the idle timeout, so a half-open connection does not linger. Either side may
+// PING; the other answers with a PONG carrying the same token. Legacy-protocol clients get "PING" and answer "PONG",
+// each followed by the token as a long.
+final class BinaryProtocol {
+    static final String VERSION = "binary-v1"; // Capability name; a new incompatible format gets a new name
+
+    static final int TEXT = 1;
+    static final int PRIVATE = 2;
+    static final int NOTICE = 3;
+    static final int USER_LIST = 4;
+    static final int FILE_BEGIN = 5;
+    static final int FILE_CHUNK = 6;
+    static final int FILE_END = 7;
+    static final int FILE_ABORT = 8;
+    static final int FILE_REJECT = 9;
+    static final int PRESENCE_SNAPSHOT = 10;
+    static final int PRESENCE_DELTA = 11;
+    static final int ROOM_JOIN = 12;
+    static final int ROOM_LEAVE = 13;
+    static final int ROOM_TEXT = 14;
+    static final int RESUME = 15;
+    static final int REPLAY = 16;
+    static final int COMPRESSED = 17;
+    static final int PING = 18;
+    static final int PONG = 19;
+
+    static final int MAX_PAYLOAD = 1024 * 1024; // Largest non-file frame accepted; text is no longer capped at 64 KB
+
+    private BinaryProtocol() {}
+
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Builds one frame: the payload is collected first so the length prefix can be written in front of it
+    static final class Builder {
+        private final int opcode;
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        private final DataOutputStream data = new DataOutputStream(payload);
+
+        Builder(int opcode) {
+            this.opcode = opcode;
+        }
+
+        Builder varint(long value) {
+            try {
+                writeVarint(data, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // ByteArrayOutputStream never throws
+            }
+            return this;
+        }
+
+        Builder string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            payload.write(utf8, 0, utf8.length);
+            return this;
+        }
+
+        byte[] toBytes() {
+            return toBytes(0);
+        }
+
+        // trailingBytes: data that will be written right after these bytes but is not part of them (a spooled file chunk)
+        byte[] toBytes(long trailingBytes) {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 10);
+            DataOutputStream out = new DataOutputStream(frame);
+            try {
+                out.writeByte(opcode);
+                writeVarint(out, payload.size() + trailingBytes);
+                payload.writeTo(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return frame.toByteArray();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(toBytes());
+        }
+    }
+
+    // Parses a payload that has been read into a byte array; one instance is reused for every frame of a connection
+    static final class Reader {
+        private byte[] buf = new byte[256];
+        private int pos;
+        private int limit;
+
+        // Reads the next 'length' payload bytes from the stream into the reused buffer
+        Reader fill(DataInput in, int length) throws IOException {
+            if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Invalid frame length " + length);
+            if (buf.length < length) buf = new byte[Math.max(length, buf.length * 2)];
+            in.readFully(buf, 0, length);
+            pos = 0;
+            limit = length;
+            return this;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) throw new EOFException("Truncated frame");
+                int b = buf[pos++] & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        // False once every field has been read; lets newer fields be added at the end of a payload
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        // Hands the rest of the payload to an Inflater (COMPRESSED frames); the bytes must stay put until it is done
+        void feed(Inflater inflater) {
+            inflater.setInput(buf, pos, limit - pos);
+            pos = limit;
+        }
+
+        String string() throws IOException {
+            long length = varint();
+            if (length < 0) throw new IOException("Invalid string length " + length); // A varint with its top bit set
+            if (length > limit - pos) throw new EOFException("Truncated frame");
+            String value = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.*; // For DataOutputStream, IOException, OutputStream
+import java.lang.management.*; // For ManagementFactory
+
+// Measures the cost of one broadcast to 1, 100 and 1000 recipients, before and after encode-once frames.
+// "before" re-encodes the message with writeUTF for every recipient, as broadcastMessage() used to;
+// "after" encodes one Frame and writes the same bytes to every recipient.
+// Recipients are in-memory sinks, so only encoding and copying is measured, not the network.
+// Usage: java BroadcastBenchmark [messageLength]
+public class BroadcastBenchmark {
+    static final int[] RECIPIENTS = {1, 100, 1000};
+
+    // Stand-in for a client socket that discards what it is given
+    static final class NullOutputStream extends OutputStream {
+        long written;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+
+    interface Broadcast {
+        void run(String message, OutputStream[] recipients) throws IOException;
+    }
+
+    static void before(String message, OutputStream[] recipients) throws IOException {
+        for (OutputStream recipient : recipients) {
+            new DataOutputStream(recipient).writeUTF(message); // Encoded again for each recipient
+        }
+    }
+
+    static void after(String message, OutputStream[] recipients) throws IOException {
+        Frame frame = Frame.notice(message); // Encoded once
+        for (OutputStream recipient : recipients) {
+            frame.writeTo(recipient);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int length = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        String message = "x".repeat(length);
+        for (int n : RECIPIENTS) {
+            OutputStream[] recipients = new OutputStream[n];
+            for (int i = 0; i < n; i++) recipients[i] = new NullOutputStream();
+            measure("before", n, message, recipients, BroadcastBenchmark::before);
+            measure("after", n, message, recipients, BroadcastBenchmark::after);
+        }
+    }
+
+    static void measure(String label, int n, String message, OutputStream[] recipients, Broadcast broadcast) throws IOException {
+        int ops = Math.max(200, 200_000 / n);
+        for (int i = 0; i < ops; i++) broadcast.run(message, recipients); // Warm-up so the JIT has compiled both paths
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocStart = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) broadcast.run(message, recipients);
+        long nanos = System.nanoTime() - start;
+        long alloc = threads.getThreadAllocatedBytes(thread) - allocStart;
+
+        System.out.printf("variant=%s recipients=%d message_bytes=%d ns_per_broadcast=%d alloc_bytes_per_broadcast=%d%n",
+                label, n, message.length(), nanos / ops, alloc / ops);
+    }
+}
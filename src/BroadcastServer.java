@@ -1,205 +1,1187 @@
-import javax.swing.*; // For JFrame, JPanel, JTextArea, JList, JScrollPane, DefaultListModel, SwingUtilities
-import java.awt.*; // For BorderLayout, Dimension, Font
-import java.io.*; // For DataInputStream, DataOutputStream, IOException
-import java.net.*; // For ServerSocket and Socket
-import java.util.*; // For Map and ConcurrentHashMap
-import java.util.concurrent.*; // For ConcurrentHashMap
-
-public class BroadcastServer extends JFrame {
-    ServerSocket serverSocket;//    
-    static final int PORT = 7500;
-    final Map<String, ClientHandler> clients = new ConcurrentHashMap<>(); // Thread-safe map to store client handlers
-    // This map helps the server track who is connected and manage their communication safely.
-    DefaultListModel<String> clientListModel; // Model for the JList of connected clients
-    JTextArea logArea; // Text area to display server logs
-
-    public BroadcastServer() {
-        setupGUI();
-        new Thread(()->startServer()).start(); // Start the server in a separate thread to avoid blocking the GUI
-    }
-
-    private void setupGUI() {
-        setTitle("Broadcast Server");
-        setSize(600, 500);
-        setLayout(new BorderLayout());
-        setResizable(false);
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-
-        clientListModel = new DefaultListModel<>(); // Model to hold the list of connected clients
-        JList<String> clientList = new JList<>(clientListModel); // JList to display connected clients
-        JScrollPane clientScroll = new JScrollPane(clientList);
-        clientScroll.setBorder(BorderFactory.createTitledBorder("Connected Clients"));
-        clientScroll.setPreferredSize(new Dimension(200, 0));
-        add(clientScroll, BorderLayout.WEST);
-
-        logArea = new JTextArea();
-        logArea.setEditable(false);
-        logArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        JScrollPane logScroll = new JScrollPane(logArea);
-        logScroll.setBorder(BorderFactory.createTitledBorder("Server Log"));
-        add(logScroll, BorderLayout.CENTER);
-
-        setVisible(true);
-    }
-
-    private void startServer() {
-        try {
-            serverSocket = new ServerSocket(PORT);
-            appendLog("Server started on port " + PORT);
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept(); // Accept incoming client connections
-                DataInputStream tempIn = new DataInputStream(clientSocket.getInputStream());
-                String clientName = tempIn.readUTF(); // Read the client's name from the input stream
-                // It writes a String to the output stream in modified UTF-8 format.
-                appendLog("Client connected: " + clientName);
-                ClientHandler handler = new ClientHandler(clientSocket, clientName); // Create a new ClientHandler for the connected client
-                clients.put(clientName, handler); // Add the client handler to the map
-
-                SwingUtilities.invokeLater(() -> { // Update the GUI on the Event Dispatch Thread
-                    clientListModel.addElement(clientName); // Add the client's name to the list model
-                    broadcastClientList(); // Broadcast the updated client list to all connected clients
-                });
-
-                new Thread(handler).start();
-            }
-        } catch (IOException e) {
-            appendLog("Error starting server: " + e.getMessage());
-        }
-    }
-
-    private void broadcastClientList() { // Working of broadcastClientList method
-        StringBuilder sb = new StringBuilder("USER_LIST");//USER_LIST/Mukesh/Arun/Anamika
-        for (String name : clients.keySet()) {
-            sb.append("/").append(name);
-        }
-
-        for (ClientHandler c : clients.values()) {
-            try {
-                c.sendText(sb.toString()); // Send the updated user list to each client
-            } catch (IOException e) {
-                appendLog("Failed to send user list to " + c.clientName);
-            }
-        }
-    }
-
-    private void appendLog(String message) {
-        SwingUtilities.invokeLater(() -> {
-            logArea.append(message + "\n"); // Append the message to the log area
-            logArea.setCaretPosition(logArea.getDocument().getLength()); // Scroll to the bottom of the log area
-        });
-    }
-
-    class ClientHandler implements Runnable { // Handles communication with a connected client
-        private final Socket socket;
-        private final String clientName;
-        private DataInputStream in;
-        private DataOutputStream out;
-
-        public ClientHandler(Socket socket, String clientName) {
-            this.socket = socket;
-            this.clientName = clientName;
-            try {
-                in = new DataInputStream(socket.getInputStream()); // Initialize input stream to read data from the client
-                out = new DataOutputStream(socket.getOutputStream()); // Initialize output stream to send data to the client
-            } catch (IOException e) {
-                appendLog("Error setting up streams for " + clientName);
-            }
-        }
-
-        public void run() {
-            try {
-                while (true) {
-                    String type = in.readUTF();
-
-                    if (type.equals("File")) { // If the message type is "File", it indicates a file transfer
-                        String fileName = in.readUTF();
-                        int size = in.readInt();
-                        byte[] fileData = new byte[size];
-                        in.readFully(fileData);
-
-                        appendLog(clientName + " sent file: " + fileName); // Log the file transfer
-                        broadcastFile(fileName, fileData, this);
-                    } else if (type.equals("PRIVATE_FILE")) { // If the message type is "PRIVATE_FILE", it indicates a private file transfer
-                        String receiver = in.readUTF();
-                        String fileName = in.readUTF();
-                        int size = in.readInt();
-                        byte[] fileData = new byte[size];
-                        in.readFully(fileData);
-
-                        ClientHandler target = clients.get(receiver);
-                        if (target != null) {
-                            appendLog("[Private File] " + clientName + " -> " + receiver + ": " + fileName);
-                            target.sendFile(fileName, fileData);
-                        } else {
-                            sendText("User '" + receiver + "' not found.");
-                        }
-                    } else if (type.equals("PRIVATE")) {
-                        String receiver = in.readUTF();
-                        String message = in.readUTF();
-                        ClientHandler target = clients.get(receiver);
-                        if (target != null) {
-                            target.sendText("[Private] " + clientName + ": " + message);
-                        }
-                    } else {
-                        appendLog(clientName + ": " + type);
-                        broadcastMessage(clientName + ": " + type, this);
-                    }
-                }
-            } catch (IOException e) {
-                appendLog("Client disconnected: " + clientName);
-            } finally {
-                clients.remove(clientName); // Remove the client from the map when they disconnect
-                SwingUtilities.invokeLater(() -> {
-                    clientListModel.removeElement(clientName);
-                    broadcastClientList();
-                });
-                try {
-                    socket.close();
-                } catch (IOException e) {}
-            }
-        }
-
-        public void sendText(String msg) throws IOException {
-            out.writeUTF(msg);
-            out.flush();
-        }
-
-        public void sendFile(String filename, byte[] data) throws IOException {
-            out.writeUTF("File");
-            out.writeUTF(filename); // Send the file name
-            out.writeInt(data.length); // Send the file size
-            out.write(data);
-            out.flush();
-        }
-    }
-
-    private void broadcastMessage(String message, ClientHandler sender) {
-        for (ClientHandler client : clients.values()) {
-            if (client != sender) { // Don't send the message back to the sender
-                try {
-                    client.sendText(message);
-                } catch (IOException e) {
-                    appendLog("Failed to send message to " + client.clientName);
-                }
-            }
-        }
-    }
-
-    private void broadcastFile(String fileName, byte[] data, ClientHandler sender) {
-        for (ClientHandler client : clients.values()) {
-            if (client != sender) {
-                try {
-                    client.sendFile(fileName, data);
-                } catch (IOException e) {
-                    appendLog("Failed to send file to " + client.clientName);
-                }
-            }
-        }
-    }
-
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(()->new BroadcastServer()); // Launch the server GUI on the Event Dispatch Thread
-    }
-}
-
+import java.awt.*; // For EventQueue, GraphicsEnvironment
+import java.io.*; // For BufferedOutputStream, ByteArrayInputStream, DataInputStream, DataOutputStream, FilterOutputStream, IOException, OutputStream
+import java.net.*; // For ServerSocket and Socket
+import java.nio.channels.*; // For ServerSocketChannel and SocketChannel
+import java.nio.file.*; // For NoSuchFileException, Paths (the message log and mailbox directories)
+import java.util.*; // For Map, List, ArrayList, ArrayDeque, HashMap
+import java.util.List; // java.awt also has a List
+import java.util.concurrent.*; // For ConcurrentHashMap, ExecutorService, Semaphore, TimeUnit
+import java.util.concurrent.atomic.*; // For AtomicBoolean, AtomicInteger
+import java.util.zip.*; // For Inflater
+
+// Blocking-mode server: one reader and one writer per client. It has no GUI of its own; logs go to stdout through
+// ServerLog, and ServerConsole can watch it in a window.
+public class BroadcastServer {
+    ServerSocket serverSocket;//    
+    static final int PORT = 7500;
+    static final int WHEEL_SLOTS = 1024; // At 100 ms ticks one turn of the timing wheel is 102 s, longer than the usual timeouts
+    static final int MAIL_WAIT_MILLIS = 1000; // Stored mail waits this long for a client's CAPS, which says how it takes files
+    final ServerConfig config;
+    final ExecutorService executor; // Runs the accept loop and every ClientHandler, on platform or virtual threads
+    final Authenticator authenticator; // Checks logins on its own bounded threads
+    final HandshakeMetrics handshakes = new HandshakeMetrics();
+    final RateLimits limits; // Per-client message and byte rates, and the server-wide cap on concurrent uploads
+    final ServerMetrics metrics; // Traffic counters and latency histograms, served over JMX and GET /metrics
+    private final Semaphore handshakeSlots; // Admission control: connections accepted but not yet through their handshake
+    // Handshake deadlines and every client's heartbeat, on one thread: O(1) per timer, however many connections
+    final TimingWheel timers;
+    final Map<String, ClientHandler> clients = new ConcurrentHashMap<>(); // Thread-safe map to store client handlers
+    // This map helps the server track who is connected and manage their communication safely.
+    // Its put/remove only hold a bin lock for a few instructions and never around I/O, so virtual threads are not pinned.
+    final Map<Integer, ClientHandler> clientsById = new ConcurrentHashMap<>(); // Same handlers by user id, for binary-v1 recipients
+    private final AtomicInteger nextUserId = new AtomicInteger(); // User ids are never reused while the server runs
+    final Presence presence = new Presence(); // Who is online; changes go out every --presence-coalesce-ms
+    final Rooms<ClientHandler> rooms = new Rooms<>(); // Room messages go to members only; private messages still use 'clients'
+    final ServerLog log; // Asynchronous; appendLog() never waits for stdout or the console
+    final MessageLog messageLog; // Every chat, private and room message, replayed to clients that reconnect; null if off
+    final Mailbox mailbox; // Private messages and files for users who are offline, delivered when they log in; null if off
+    final Cluster cluster; // Links to the other nodes, which also see our users; null when this server runs alone
+    final Compression compression; // Deflater pool and counters for "deflate" clients; null with --compress-min-bytes=0
+
+    public BroadcastServer(ServerConfig config) {
+        this.config = config;
+        this.log = new ServerLog(config.logBufferLines, config.logTailLines, System.out);
+        this.executor = newExecutor(config.threads);
+        this.authenticator = new Authenticator(config);
+        this.handshakeSlots = new Semaphore(config.maxPendingHandshakes);
+        this.limits = new RateLimits(config);
+        this.metrics = new ServerMetrics(config.metrics, handshakes, limits, this::pendingHandshakes);
+        appendLog(metrics.start(config.metricsPort));
+        this.messageLog = openMessageLog(config);
+        this.mailbox = openMailbox(config);
+        this.cluster = openCluster(config);
+        this.compression = config.compressMinBytes > 0 ? new Compression(config.compressMinBytes, config.compressLevel) : null;
+        this.timers = new TimingWheel("timers", config.timerTickMillis, WHEEL_SLOTS, t -> appendLog("Timer task failed: " + t));
+        executor.execute(() -> startServer()); // The accept loop runs on its own thread; the constructor returns at once
+        Thread presenceFlusher = new Thread(this::flushPresence, "presence");
+        presenceFlusher.setDaemon(true);
+        presenceFlusher.start();
+        if (config.queueStatsSeconds > 0) {
+            Thread stats = new Thread(this::logQueueStats, "server-stats");
+            stats.setDaemon(true);
+            stats.start();
+        }
+    }
+
+    private MessageLog openMessageLog(ServerConfig config) {
+        if (config.messageLog.equalsIgnoreCase("off")) return null;
+        try {
+            MessageLog messageLog = new MessageLog(Paths.get(config.messageLog), config.messageLogSegmentMb * 1024 * 1024,
+                    config.messageLogRollMinutes * 60_000L, config.messageLogRetentionHours * 3_600_000L, config.messageLogQueue, this::appendLog);
+            Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close, "message-log-shutdown")); // Writes what is still queued
+            appendLog("Message log in " + config.messageLog + ", last seq " + messageLog.lastSeq());
+            return messageLog;
+        } catch (IOException e) {
+            appendLog("Message log unavailable, reconnects will not be replayed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Mailbox openMailbox(ServerConfig config) {
+        if (config.mailbox.equalsIgnoreCase("off")) return null;
+        try {
+            Mailbox mailbox = new Mailbox(Paths.get(config.mailbox), config.mailboxMaxMessages, config.mailboxMaxBytes,
+                    config.mailboxExpiryHours * 3_600_000L, config.mailboxIndex, this::appendLog);
+            appendLog("Mailboxes in " + config.mailbox);
+            return mailbox;
+        } catch (IOException e) {
+            appendLog("Mailboxes unavailable, messages for offline users will be dropped: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // After something was stored for 'recipient': if they have logged in meanwhile, it goes out now
+    void mailStored(String recipient) {
+        ClientHandler online = clients.get(recipient);
+        if (online != null) online.deliverMail();
+    }
+
+    private Cluster openCluster(ServerConfig config) {
+        if (config.clusterPort == 0) return null;
+        try {
+            return new Cluster(this, config);
+        } catch (IOException e) {
+            appendLog("Cannot open cluster port " + config.clusterPort + ", running alone: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Numbers the message in the message log; 0 when there is no log
+    long logMessage(int kind, String sender, String target, String text) {
+        return messageLog != null ? messageLog.append(kind, sender, target, text) : 0;
+    }
+
+    // Virtual threads need JDK 21+; looked up reflectively so the server still compiles and runs on older JDKs
+    private static ExecutorService newExecutor(String threads) {
+        if (threads.equals("virtual")) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JDK, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool(); // One platform thread per task, as before
+    }
+
+    private void startServer() {
+        ServerSocketChannel serverChannel;
+        try {
+            serverChannel = ServerSocketChannel.open(); // Channel-backed sockets let FileChannel.transferTo write straight to them
+            config.configure(serverChannel);
+            serverChannel.bind(new InetSocketAddress(config.port), config.acceptBacklog);
+            serverSocket = serverChannel.socket();
+        } catch (IOException e) {
+            appendLog("Error starting server: " + e.getMessage());
+            return;
+        }
+        appendLog("Server started on port " + config.port + " (" + config.threads + " threads, auth " + config.auth + ")");
+
+        // This thread only accepts; every handshake runs as its own task, so a client that connects and never
+        // sends its name holds up nobody but itself, and only until its deadline
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel accepted = serverChannel.accept(); // Accept incoming client connections
+                config.configure(accepted); // TCP_NODELAY and buffer sizes
+                Socket clientSocket = accepted.socket();
+                handshakes.accepted.increment();
+                if (!handshakeSlots.tryAcquire()) { // Too many half-open connections; shed this one instead of queueing it
+                    handshakes.rejected.increment();
+                    clientSocket.close();
+                    continue;
+                }
+                executor.execute(new Handshake(clientSocket));
+            } catch (IOException e) {
+                appendLog("Accept failed: " + e.getMessage()); // e.g. out of file descriptors; keep accepting
+            }
+        }
+    }
+
+    // Reads a new connection's login (or an older client's name) and admits it. Finishes exactly once: admitted,
+    // refused, or closed at the deadline, whichever comes first; that is also when its handshake slot is freed.
+    private class Handshake implements Runnable {
+        private final Socket socket;
+        private final long acceptedAt = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final TimingWheel.Timeout deadline; // Closes the socket if the handshake runs past --handshake-timeout-ms
+
+        Handshake(Socket socket) {
+            this.socket = socket;
+            this.deadline = timers.schedule(this::expire, config.handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(metrics.meter(socket.getInputStream())); // Handed on to the ClientHandler
+                String first = in.readUTF(); // A login handshake, or the name of an older client
+                if (first.equals(Authenticator.HANDSHAKE)) {
+                    String clientName = in.readUTF();
+                    String method = in.readUTF();
+                    String secret = in.readUTF();
+                    // The password check runs on the authenticator's threads; this task ends here
+                    authenticator.login(clientName, method, secret)
+                            .whenComplete((token, error) -> finishLogin(in, clientName, token, error));
+                } else if (authenticator.required) {
+                    if (finish()) refuse(socket, first, "This server requires a login. Please update your chat client.");
+                } else if (finish()) {
+                    admit(socket, in, first);
+                }
+            } catch (IOException e) {
+                if (finish()) { // Otherwise the deadline closed the socket and already counted it
+                    handshakes.failed.increment();
+                    closeQuietly();
+                }
+            }
+        }
+
+        // Sends the handshake reply; the reply is a few bytes on a fresh socket, so the write does not block
+        private void finishLogin(DataInputStream in, String clientName, String token, Throwable error) {
+            if (!finish()) return; // Too late, the deadline has closed the socket
+            try {
+                if (error != null) {
+                    handshakes.failed.increment();
+                    socket.getOutputStream().write(Authenticator.reply(false, Authenticator.reason(error)));
+                    appendLog("Login refused for " + clientName + ": " + Authenticator.reason(error));
+                    socket.close();
+                    return;
+                }
+                socket.getOutputStream().write(Authenticator.reply(true, token));
+                admit(socket, in, clientName);
+            } catch (IOException e) {
+                appendLog("Client left during login: " + clientName);
+                closeQuietly();
+            }
+        }
+
+        private void expire() {
+            if (finish()) {
+                handshakes.timedOut.increment();
+                closeQuietly(); // Also ends the blocked readUTF() in run()
+            }
+        }
+
+        // True for the first caller only; frees the slot and stops the deadline
+        private boolean finish() {
+            if (!finished.compareAndSet(false, true)) return false;
+            deadline.cancel();
+            handshakeSlots.release();
+            return true;
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+
+        private void admit(Socket clientSocket, DataInputStream in, String clientName) {
+            handshakes.completed(System.nanoTime() - acceptedAt);
+            BroadcastServer.this.admit(clientSocket, in, clientName);
+        }
+    }
+
+    // An old client without a login; it shows the notice as a chat message
+    private void refuse(Socket clientSocket, String clientName, String notice) {
+        try {
+            new DataOutputStream(clientSocket.getOutputStream()).writeUTF(notice);
+            clientSocket.close();
+        } catch (IOException e) {
+            // Gone already
+        }
+        appendLog("Refused client without login: " + clientName);
+    }
+
+    private void admit(Socket clientSocket, DataInputStream in, String clientName) {
+        appendLog("Client connected: " + clientName);
+        ClientHandler handler = new ClientHandler(clientSocket, in, clientName); // Create a new ClientHandler for the connected client
+        clients.put(clientName, handler); // Add the client handler to the map
+        clientsById.put(handler.userId, handler);
+        if (cluster != null) cluster.localChanged();
+        presence.join(handler.userId, clientName); // Everyone else hears about it with the next presence flush
+        try {
+            handler.send(presence.userList()); // The newcomer's one full list; presence clients get a versioned snapshot after CAPS
+        } catch (IOException e) {
+            // Closed already; its reader cleans up
+        }
+
+        executor.execute(handler);
+    }
+
+    // Sends the joins and leaves of the last window: one delta shared by every presence client, and (only if some
+    // client still needs it) one full USER_LIST shared by the rest. Runs on its own thread, so deltas go out in order.
+    private void flushPresence() {
+        while (true) {
+            try {
+                Thread.sleep(config.presenceCoalesceMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Frame delta = presence.flush();
+            if (delta == null) continue;
+            Frame fullList = null; // Built on first use; with only presence clients it is never needed
+            for (ClientHandler c : clients.values()) {
+                try {
+                    if (c.presenceDeltas) {
+                        c.send(delta);
+                    } else {
+                        if (fullList == null) fullList = presence.userList();
+                        c.send(fullList);
+                    }
+                } catch (IOException e) {
+                    appendLog("Failed to send user list to " + c.clientName);
+                }
+            }
+        }
+    }
+
+    // Periodically reports the handshake stage and every client whose outbound queue is backed up or has dropped frames
+    private void logQueueStats() {
+        while (true) {
+            try {
+                Thread.sleep(config.queueStatsSeconds * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            appendLog(handshakes.report(pendingHandshakes(), config.maxPendingHandshakes));
+            if (metrics.enabled) appendLog(metrics.report());
+            appendLog(limits.report());
+            appendLog(String.format("Heartbeat: %d timers, %d pings sent, %d dead connections reaped",
+                    timers.size(), metrics.pingsSent.sum(), metrics.connectionsReaped.sum()));
+            if (messageLog != null) appendLog(messageLog.report());
+            if (mailbox != null) appendLog(mailbox.report());
+            if (cluster != null) appendLog(cluster.report());
+            if (compression != null && compression.packed.sum() + compression.skipped.sum() > 0) appendLog(compression.report());
+            for (ClientHandler c : clients.values()) {
+                if (c.queueDepth() > 0 || c.outbound.dropped.sum() > 0) {
+                    appendLog("Queue " + c.clientName + ": depth " + c.queueDepth() + "/" + c.outbound.capacity()
+                            + ", max " + c.outbound.highWater.get() + ", dropped " + c.outbound.dropped.sum());
+                }
+            }
+        }
+    }
+
+    int pendingHandshakes() {
+        return config.maxPendingHandshakes - handshakeSlots.availablePermits();
+    }
+
+    void appendLog(String message) {
+        log.log(message);
+    }
+
+    class ClientHandler implements Runnable { // Handles communication with a connected client
+        private final Socket socket;
+        private final SocketChannel channel; // Same connection as 'socket'; used for zero-copy file transfer
+        final int userId = nextUserId.incrementAndGet(); // Names clients in binary-v1 frames instead of their name strings
+        final String clientName;
+        private DataInputStream in; // Counted by 'limiter', so every message is charged the bytes it took
+        private final DataInputStream raw; // The same stream uncounted; file data is read or skipped through it, charged by length
+        private final RateLimits.Limiter limiter = limits.new Limiter(); // This client's token buckets (reader thread only)
+        private boolean charged; // The frame just read was file data, already charged by fileData(); reader thread only
+        private DataOutputStream out;
+        // Other handlers only enqueue frames here; this client's own writer thread does the socket writes,
+        // so a client with a full TCP window cannot stall a broadcast or the sender's read loop
+        final OutboundQueue outbound = new OutboundQueue(config.queueCapacity, config.backpressure, config.blockTimeoutMillis, config.fileWindowBytes);
+        private volatile boolean closed;
+        volatile boolean chunkedFiles; // Client announced "chunked-files" and can receive FILE_BEGIN/FILE_CHUNK/FILE_END
+        private boolean binaryOffered; // We answered its CAPS with binary-v1; reader thread only
+        private boolean binaryIn; // Client sent its "BINARY" marker; everything it sends from then on is binary-v1
+        private boolean pastFirst; // A message after the name has been read, so "CAPS" is chat text from now on; reader thread only
+        volatile boolean presenceDeltas; // Client announced "presence": gets PRESENCE_DELTA instead of full USER_LISTs
+        private boolean roomsOffered; // Client announced "rooms", so legacy JOIN/LEAVE/ROOM are commands; reader thread only
+        private boolean resumeOffered; // Client announced "resume" and may ask for a replay of what it missed; reader thread only
+        volatile boolean deflate; // Client announced "deflate": frames over --compress-min-bytes go out as COMPRESSED
+        private volatile boolean heartbeat; // Client announced "heartbeat": it answers PING, so silence means it is gone
+        private volatile long lastHeard = System.nanoTime(); // When the reader last got anything from the client
+        private final AtomicBoolean mailOpen = new AtomicBoolean(); // Stored mail may go out: CAPS was handled or MAIL_WAIT_MILLIS passed
+        private volatile long writeProgress; // When the writer took its frame or last got a piece of it out; 0 while it waits for the queue
+        private volatile TimingWheel.Timeout heartbeatTimer;
+        private Inflater inflater; // For COMPRESSED frames from the client; created on the first one (reader thread only)
+        private final BinaryProtocol.Reader payload = new BinaryProtocol.Reader(); // Reused for every binary frame
+        private final Map<Long, FileRelay> uploads = new HashMap<>(); // This client's chunked uploads in progress; reader thread only
+
+        // 'in' is the stream the handshake was read from; it is unbuffered, so nothing the client sent after it is lost
+        public ClientHandler(Socket socket, DataInputStream in, String clientName) {
+            this.socket = socket;
+            this.channel = socket.getChannel();
+            this.clientName = clientName;
+            this.raw = in;
+            this.in = new DataInputStream(limiter.count(in)); // Both unbuffered, so they can be used in turn
+            try {
+                // Buffered: the writer puts every queued frame into the buffer and flushes once per batch (see writeLoop)
+                out = new DataOutputStream(new BufferedOutputStream(new ProgressOutputStream(metrics.meter(socket.getOutputStream())),
+                        Math.max(8192, config.writeBatchBytes)));
+            } catch (IOException e) {
+                appendLog("Error setting up streams for " + clientName);
+            }
+        }
+
+        public void run() {
+            metrics.connectionsOpened.increment();
+            executor.execute(this::writeLoop); // Drains the outbound queue for as long as this client is connected
+            if (config.idleTimeoutMillis > 0) heartbeatTimer = timers.schedule(this::checkAlive, heartbeatMillis(), TimeUnit.MILLISECONDS);
+            if (mailbox != null) timers.schedule(this::openMail, MAIL_WAIT_MILLIS, TimeUnit.MILLISECONDS); // For clients without CAPS
+            try {
+                while (!binaryIn) {
+                    readLegacyMessage();
+                    lastHeard = System.nanoTime();
+                    checkRate();
+                }
+                while (true) {
+                    readBinaryFrame();
+                    lastHeard = System.nanoTime();
+                    checkRate();
+                }
+            } catch (IOException e) {
+                appendLog("Client disconnected: " + clientName);
+            } finally {
+                TimingWheel.Timeout timer = heartbeatTimer;
+                if (timer != null) timer.cancel(); // One that is being rescheduled right now finds the client closed
+                for (FileRelay relay : uploads.values()) {
+                    relay.abort(); // Receivers throw away the partial files
+                    limits.uploadSlots.release();
+                }
+                if (inflater != null) inflater.end();
+                clients.remove(clientName, this); // Remove the client from the map when they disconnect (unless a newer login replaced it)
+                clientsById.remove(userId);
+                if (cluster != null) cluster.localChanged();
+                presence.leave(userId); // The console, if any, picks this up on its next frame
+                rooms.leaveAll(this);
+                close();
+                metrics.connectionsClosed.increment();
+            }
+        }
+
+        // Runs on the timer thread every heartbeatMillis() for as long as the client is connected. A half-open connection
+        // never raises an IOException by itself, so this is what finds it: a "heartbeat" client that has said nothing
+        // for --idle-timeout-ms, even after a PING, is gone; so is any client whose writer has got no bytes out for
+        // that long (its socket buffer is full and nothing is being acknowledged). A slow peer downloading a large
+        // file is not stuck: every Spool.PROGRESS_BYTES that leaves counts as progress. Closing the socket ends the reader,
+        // which removes the client from 'clients', presence (and so the console's list) and its rooms as usual.
+        private void checkAlive() {
+            if (closed) return;
+            long now = System.nanoTime();
+            long idleTimeout = TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMillis);
+            long silent = now - lastHeard;
+            long writing = writeProgress;
+            if ((heartbeat && silent > idleTimeout) || (writing != 0 && now - writing > idleTimeout)) {
+                metrics.connectionsReaped.increment();
+                appendLog("Reaping dead connection: " + clientName + (heartbeat && silent > idleTimeout
+                        ? " (silent for " + TimeUnit.NANOSECONDS.toSeconds(silent) + " s)" : " (writes stuck)"));
+                close();
+                return;
+            }
+            if (heartbeat && config.pingIntervalMillis > 0 && silent >= TimeUnit.MILLISECONDS.toNanos(config.pingIntervalMillis)
+                    && outbound.offerNow(Frame.ping(now))) { // Never waits: a full queue is the backpressure policy's business
+                metrics.pingsSent.increment();
+            }
+            heartbeatTimer = timers.schedule(this::checkAlive, heartbeatMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        // How often checkAlive() runs: often enough to ping on time and to reap within a third over the timeout
+        private long heartbeatMillis() {
+            long interval = config.pingIntervalMillis > 0 ? config.pingIntervalMillis : config.idleTimeoutMillis;
+            return Math.max(config.timerTickMillis, Math.min(interval, config.idleTimeoutMillis / 3));
+        }
+
+        // Charges the message just read to this client's limits; while it is over them this sleeps, which stops
+        // reading from its socket so that TCP holds its sends back. A client that keeps flooding is disconnected.
+        private void checkRate() throws IOException {
+            if (charged) { // A file chunk; charged by its size before the data was read
+                charged = false;
+                return;
+            }
+            try {
+                if (limiter.message()) return;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttling " + clientName);
+            }
+            appendLog("Disconnecting flooding client: " + clientName);
+            try {
+                sendText("Disconnected for sending too many messages.");
+            } catch (IOException e) {
+                // Closed already
+            }
+            throw new IOException("Flooding");
+        }
+
+        // One message of the original writeUTF protocol, dispatched on its type string
+        private void readLegacyMessage() throws IOException {
+            String type = in.readUTF();
+            boolean first = !pastFirst; // Newer clients send CAPS right after their name; older ones may type "CAPS"
+            pastFirst = true;
+
+            if (type.equals("File") || type.equals("PRIVATE_FILE")) { // Upload from an older client: one frame with an int size
+                String receiver = type.equals("PRIVATE_FILE") ? in.readUTF() : null;
+                String fileName = in.readUTF();
+                int size = in.readInt();
+                List<ClientHandler> recipients = new ArrayList<>();
+                String problem = chooseRecipients(receiver, true, fileName, size, recipients);
+                boolean slot = problem == null && awaitUploadSlot(); // No way to refuse it: the data is on its way already
+                if (problem == null && !slot) {
+                    problem = "The server is relaying too many files right now; " + fileName + " was not sent.";
+                    recipients.clear(); // Its bytes are skipped
+                }
+                if (problem != null) {
+                    sendText(problem);
+                }
+                String mailTo = problem == null && receiver != null && recipients.isEmpty() ? receiver : null; // Offline: to their mailbox
+                try {
+                    relayLegacyUpload(new FileRelay(BroadcastServer.this, userId, clientName, recipients, mailTo, fileName, size), size);
+                } finally {
+                    if (slot) limits.uploadSlots.release();
+                }
+            } else if (chunkedFiles && type.equals("FILE_BEGIN")) { // Chunked upload; the data follows as FILE_CHUNK messages
+                long uploadId = in.readLong(); // Chosen by the client, only unique per connection
+                String receiver = in.readUTF(); // Empty for a broadcast
+                String fileName = in.readUTF();
+                long size = in.readLong();
+                beginUpload(uploadId, receiver.isEmpty() ? null : receiver, true, fileName, size);
+            } else if (chunkedFiles && type.equals("FILE_CHUNK")) { // Older clients never announced chunked-files, so for them these stay chat text
+                long uploadId = in.readLong();
+                receiveChunk(uploadId, in.readInt());
+            } else if (chunkedFiles && type.equals("FILE_END")) {
+                endUpload(in.readLong());
+            } else if (chunkedFiles && type.equals("FILE_ABORT")) {
+                abortUpload(in.readLong());
+            } else if (first && type.equals("CAPS")) { // Sent by newer clients right after their name
+                List<String> caps = Arrays.asList(in.readUTF().split(","));
+                binaryOffered = caps.contains(BinaryProtocol.VERSION); // binary-v1 includes chunked file transfer
+                chunkedFiles = binaryOffered || caps.contains("chunked-files");
+                boolean presenceOffered = binaryOffered && caps.contains("presence"); // Deltas are binary-only
+                roomsOffered = caps.contains("rooms");
+                resumeOffered = binaryOffered && messageLog != null && caps.contains("resume"); // Seqs only travel in binary frames
+                boolean deflateOffered = binaryOffered && compression != null && caps.contains(Compression.CAPABILITY);
+                boolean heartbeatOffered = config.idleTimeoutMillis > 0 && caps.contains("heartbeat");
+                List<String> reply = new ArrayList<>(); // What we support out of what the client offered
+                if (chunkedFiles) reply.add("chunked-files");
+                if (binaryOffered) reply.add(BinaryProtocol.VERSION);
+                if (presenceOffered) reply.add("presence");
+                if (roomsOffered) reply.add("rooms");
+                if (resumeOffered) reply.add("resume");
+                if (deflateOffered) reply.add(Compression.CAPABILITY);
+                if (heartbeatOffered) reply.add("heartbeat");
+                deflate = deflateOffered; // The writer only compresses once it writes binary, i.e. after the CAPS reply
+                if (!reply.isEmpty()) {
+                    send(Frame.caps(String.join(",", reply)));
+                }
+                heartbeat = heartbeatOffered; // After the CAPS reply, so the client never gets a PING it was not told about
+                if (presenceOffered) {
+                    presenceDeltas = true; // Only after the CAPS reply is queued: deltas must be written in binary
+                    send(presence.snapshot());
+                }
+                if (resumeOffered) {
+                    send(Frame.resumePoint(messageLog.lastSeq())); // We are in 'clients' already, so everything after it reaches us live
+                }
+                openMail(); // Behind the CAPS reply, so stored files go out in a form the client announced
+            } else if (type.equals("BINARY") && binaryOffered) { // Client saw our binary-v1 and switches its side over
+                binaryIn = true;
+            } else if (type.equals("PRIVATE")) {
+                String receiver = in.readUTF();
+                sendPrivate(clients.get(receiver), receiver, in.readUTF());
+            } else if (heartbeat && type.equals("PING")) { // Older clients never announced heartbeat, so for them these stay chat text
+                send(Frame.pong(in.readLong()));
+            } else if (heartbeat && type.equals("PONG")) {
+                in.readLong(); // Hearing it was the point
+            } else if (roomsOffered && type.equals("JOIN")) { // Older clients never announced rooms, so for them these stay chat text
+                joinRoom(in.readUTF());
+            } else if (roomsOffered && type.equals("LEAVE")) {
+                leaveRoom(in.readUTF());
+            } else if (roomsOffered && type.equals("ROOM")) {
+                String room = in.readUTF();
+                sendToRoom(room, in.readUTF());
+            } else {
+                broadcastChat(type);
+            }
+        }
+
+        // One binary-v1 frame: opcode byte, varint payload length, payload (see BinaryProtocol)
+        private void readBinaryFrame() throws IOException {
+            readBinaryFrame(in);
+        }
+
+        // 'from' is the socket, or an inflated COMPRESSED frame
+        private void readBinaryFrame(DataInputStream from) throws IOException {
+            int opcode = from.readUnsignedByte();
+            long length = BinaryProtocol.readVarint(from);
+            if (from != in && (opcode == BinaryProtocol.FILE_CHUNK || opcode == BinaryProtocol.COMPRESSED)) {
+                throw new IOException("Frame " + opcode + " from " + clientName + " cannot be compressed");
+            }
+            switch (opcode) {
+                case BinaryProtocol.COMPRESSED: {
+                    payload.fill(in, checkedLength(length));
+                    if (inflater == null) inflater = new Inflater(true);
+                    byte[] frame = Compression.unpack(inflater, payload, BinaryProtocol.MAX_PAYLOAD + 16);
+                    readBinaryFrame(new DataInputStream(new ByteArrayInputStream(frame))); // Refills payload from the inflated bytes
+                    return;
+                }
+                case BinaryProtocol.FILE_CHUNK: { // The chunk data goes straight from the socket to the spool, not through payload
+                    long uploadId = BinaryProtocol.readVarint(in);
+                    long dataLength = length - BinaryProtocol.varintSize(uploadId);
+                    receiveChunk(uploadId, dataLength < 0 || dataLength > Integer.MAX_VALUE ? -1 : (int) dataLength);
+                    return;
+                }
+                case BinaryProtocol.TEXT:
+                    payload.fill(from, checkedLength(length));
+                    broadcastChat(payload.string());
+                    return;
+                case BinaryProtocol.PRIVATE: {
+                    payload.fill(from, checkedLength(length));
+                    int recipientId = (int) payload.varint();
+                    String body = payload.string();
+                    String named = payload.hasMore() ? payload.string() : null; // Newer clients add the name, for when the id is gone
+                    ClientHandler target = clientsById.get(recipientId);
+                    if (target == null && named != null) target = clients.get(named); // Back under a new id
+                    String receiver = named != null ? named : target == null && cluster != null ? cluster.remoteName(recipientId) : null;
+                    sendPrivate(target, receiver, body);
+                    return;
+                }
+                case BinaryProtocol.FILE_BEGIN: {
+                    payload.fill(from, checkedLength(length));
+                    long uploadId = payload.varint();
+                    int recipientId = (int) payload.varint(); // 0 for a broadcast
+                    String fileName = payload.string();
+                    long size = payload.varint();
+                    String named = payload.hasMore() ? payload.string() : null; // As for PRIVATE
+                    ClientHandler target = clientsById.get(recipientId);
+                    String receiver = recipientId == 0 ? null : target != null ? target.clientName : named != null ? named : "#" + recipientId;
+                    beginUpload(uploadId, receiver, named != null, fileName, size);
+                    return;
+                }
+                case BinaryProtocol.FILE_END:
+                    payload.fill(from, checkedLength(length));
+                    endUpload(payload.varint());
+                    return;
+                case BinaryProtocol.FILE_ABORT:
+                    payload.fill(from, checkedLength(length));
+                    abortUpload(payload.varint());
+                    return;
+                case BinaryProtocol.ROOM_JOIN:
+                    payload.fill(from, checkedLength(length));
+                    joinRoom(payload.string());
+                    return;
+                case BinaryProtocol.ROOM_LEAVE:
+                    payload.fill(from, checkedLength(length));
+                    leaveRoom(payload.string());
+                    return;
+                case BinaryProtocol.ROOM_TEXT: {
+                    payload.fill(from, checkedLength(length));
+                    String room = payload.string();
+                    sendToRoom(room, payload.string());
+                    return;
+                }
+                case BinaryProtocol.RESUME:
+                    payload.fill(from, checkedLength(length));
+                    resume(payload.varint());
+                    return;
+                case BinaryProtocol.PING:
+                    payload.fill(from, checkedLength(length));
+                    send(Frame.pong(payload.varint()));
+                    return;
+                case BinaryProtocol.PONG: // Hearing it was the point
+                    FileRelay.skipFully(from, length);
+                    return;
+                case BinaryProtocol.PRESENCE_SNAPSHOT: // The client missed a delta and asks to start over
+                    FileRelay.skipFully(from, length);
+                    if (presenceDeltas) send(presence.snapshot());
+                    return;
+                default: // Opcodes this server does not know are skipped, so clients can add optional frames
+                    FileRelay.skipFully(from, length);
+            }
+        }
+
+        private int checkedLength(long length) throws IOException {
+            if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD) { // Negative: a varint with its top bit set
+                throw new IOException("Invalid frame length " + length + " from " + clientName);
+            }
+            return (int) length;
+        }
+
+        private void broadcastChat(String message) {
+            metrics.messagesIn.increment();
+            appendLog(clientName + ": " + message);
+            long seq = logMessage(BinaryProtocol.TEXT, clientName, "", message);
+            broadcastMessage(Frame.chat(userId, clientName, message, seq), this);
+            if (cluster != null) cluster.broadcast(clientName, message);
+        }
+
+        private void joinRoom(String requested) throws IOException {
+            String room = Rooms.normalize(requested);
+            if (room == null) {
+                sendText("Room names are 1 to " + Rooms.MAX_NAME + " characters.");
+            } else if (rooms.join(room, this)) {
+                sendText("You joined #" + room + " (" + Rooms.countText(rooms.members(room).size()) + ").");
+            }
+        }
+
+        private void leaveRoom(String requested) throws IOException {
+            String room = Rooms.normalize(requested);
+            if (room != null && rooms.leave(room, this)) {
+                sendText("You left #" + room + ".");
+            }
+        }
+
+        private void sendToRoom(String requested, String message) throws IOException {
+            String room = Rooms.normalize(requested);
+            if (room == null || !rooms.isMember(room, this)) {
+                sendText("Join #" + requested + " before sending to it.");
+                return;
+            }
+            metrics.messagesIn.increment();
+            appendLog("[#" + room + "] " + clientName + ": " + message);
+            long seq = logMessage(BinaryProtocol.ROOM_TEXT, clientName, room, message);
+            broadcastToRoom(room, Frame.roomText(userId, clientName, room, message, seq), this);
+            if (cluster != null) cluster.room(clientName, room, message);
+        }
+
+        // 'target' is the recipient's handler if they are on this node; otherwise 'receiver' may name them on another
+        // one, or offline (null for a binary client that only gave an id that is gone)
+        private void sendPrivate(ClientHandler target, String receiver, String message) throws IOException {
+            metrics.messagesIn.increment();
+            if (target != null) {
+                long seq = logMessage(BinaryProtocol.PRIVATE, clientName, target.clientName, message);
+                target.send(Frame.privateMessage(userId, clientName, message, seq));
+            } else if (cluster != null && receiver != null && cluster.sendPrivate(clientName, receiver, message)) {
+                // Logged by the recipient's node
+            } else if (mailbox != null && receiver != null) { // Offline
+                String problem = mailbox.deposit(receiver, clientName, message);
+                sendText(problem != null ? problem : receiver + " is offline and will get your message when they log in.");
+                if (problem == null) mailStored(receiver);
+            } else {
+                sendText(receiver != null ? "User '" + receiver + "' not found." : "User not found; they may have left.");
+            }
+        }
+
+        // Lets stored mail go out, once: after the CAPS reply, or from the timer for a client that sends none
+        private void openMail() {
+            if (mailbox != null && mailOpen.compareAndSet(false, true)) deliverMail();
+        }
+
+        // Streams this user's mailbox on an executor thread, so neither the handshake nor this client's reader waits
+        // for the disk. Also called when mail is stored for a user who has just connected; the mailbox runs one
+        // delivery per user at a time, and a running one picks up what was added meanwhile.
+        void deliverMail() {
+            if (!mailOpen.get() || closed) return;
+            executor.execute(() -> mailbox.deliver(clientName, this::deliverStored));
+        }
+
+        // Queues one batch from the mailbox, waiting while the outbound queue is half full so live traffic keeps
+        // moving, each entry followed by a Frame.marker(); then waits for the writer to flush them. Returns how many
+        // entries are on the wire: the rest stay stored if the connection went away, and so does everything after a
+        // frame that DROP_OLDEST threw away meanwhile, which may have been one of ours.
+        private int deliverStored(List<Mailbox.Entry> batch) {
+            long drops = outbound.dropped.sum();
+            AtomicInteger written = new AtomicInteger(); // Entries whose marker the writer has flushed, in order
+            Runnable marker = () -> {
+                if (outbound.dropped.sum() == drops) written.incrementAndGet();
+            };
+            int queued = 0;
+            try {
+                for (Mailbox.Entry entry : batch) {
+                    while (outbound.depth() > config.queueCapacity / 2 && !closed) {
+                        Thread.sleep(5);
+                    }
+                    if (closed) break;
+                    if (entry.kind == BinaryProtocol.FILE_BEGIN) {
+                        sendStoredFile(entry);
+                    } else {
+                        send(Frame.notice(entry.notice()));
+                    }
+                    send(Frame.marker(marker));
+                    queued++;
+                }
+                while (written.get() < queued && !closed && outbound.dropped.sum() == drops) {
+                    Thread.sleep(5);
+                }
+            } catch (IOException e) {
+                // Gone; what was not written stays in the mailbox
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int taken = written.get();
+            if (taken > 0) appendLog("Delivered " + taken + " stored messages to " + clientName);
+            return taken;
+        }
+
+        // A stored file goes out like a relayed one, from a Spool over the mailbox's copy
+        private void sendStoredFile(Mailbox.Entry entry) throws IOException {
+            Spool spool;
+            try {
+                spool = Spool.open(entry.attachment, entry.size);
+            } catch (NoSuchFileException e) {
+                appendLog("Stored file " + entry.attachment + " for " + clientName + " is missing");
+                return;
+            }
+            try {
+                sendText(entry.sender + " sent you " + entry.text + " (" + entry.size + " bytes) while you were away.");
+                ClientHandler sender = clients.get(entry.sender);
+                int senderId = sender != null ? sender.userId : 0; // Binary clients show an offline sender by the notice above
+                if (chunkedFiles) {
+                    long id = FileRelay.newId();
+                    send(Frame.fileBegin(id, senderId, entry.sender, entry.text, entry.size));
+                    for (long offset = 0; offset < entry.size; offset += FileRelay.RELAY_CHUNK) {
+                        spool.retain(); // Held by the queued chunk until it is written
+                        if (!sendChunk(Frame.spooledChunk(id, spool, offset, (int) Math.min(FileRelay.RELAY_CHUNK, entry.size - offset)))) {
+                            spool.release();
+                            throw new IOException("Stalled");
+                        }
+                    }
+                    send(Frame.fileEnd(id));
+                } else if (entry.size <= Integer.MAX_VALUE) {
+                    spool.retain();
+                    try {
+                        send(Frame.spooledFile(entry.text, spool, (int) entry.size));
+                    } catch (IOException e) {
+                        spool.release();
+                        throw e;
+                    }
+                } else {
+                    sendText(entry.text + " needs a newer client to receive.");
+                }
+            } finally {
+                spool.release(); // Our own reference; the mailbox deletes the file once the marker after it is flushed
+            }
+        }
+
+        // Sends the logged messages after 'lastSeen' that this client would have received, as REPLAY frames.
+        // Runs on this client's reader thread, so it only holds up this client; it waits for room in the outbound
+        // queue rather than filling it, and the client has rejoined its rooms by now (it sends RESUME after the joins).
+        private void resume(long lastSeen) throws IOException {
+            if (!resumeOffered || lastSeen <= 0) return;
+            long upTo = messageLog.lastSeq();
+            ArrayDeque<MessageLog.Entry> missed = new ArrayDeque<>();
+            int[] matched = new int[1];
+            try {
+                messageLog.replay(lastSeen, upTo, entry -> {
+                    if (!missedBy(entry)) return;
+                    matched[0]++;
+                    missed.add(entry);
+                    if (missed.size() > config.replayMax) missed.poll(); // Keep the newest --replay-max
+                });
+                for (MessageLog.Entry entry : missed) {
+                    while (outbound.depth() > config.queueCapacity / 2 && !closed) {
+                        Thread.sleep(5);
+                    }
+                    send(Frame.replay(entry));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying for " + clientName);
+            }
+            if (messageLog.firstSeq() > lastSeen + 1) {
+                sendText("Messages from before the oldest kept log segment are no longer available.");
+            }
+            if (matched[0] > missed.size()) {
+                sendText((matched[0] - missed.size()) + " older missed messages were not replayed.");
+            }
+            if (!missed.isEmpty()) {
+                appendLog("Replayed " + missed.size() + " messages to " + clientName + " (after seq " + lastSeen + ")");
+            }
+        }
+
+        // Whether this connection would have been sent the message had it been online
+        private boolean missedBy(MessageLog.Entry entry) {
+            switch (entry.kind) {
+                case BinaryProtocol.TEXT:
+                    return !entry.sender.equals(clientName);
+                case BinaryProtocol.PRIVATE:
+                    return entry.target.equals(clientName);
+                case BinaryProtocol.ROOM_TEXT:
+                    return !entry.sender.equals(clientName) && rooms.isMember(entry.target, this);
+                default:
+                    return false;
+            }
+        }
+
+        // 'byName': the receiver was named by the client, so an offline one may get the file in their mailbox
+        private void beginUpload(long uploadId, String receiver, boolean byName, String fileName, long size) throws IOException {
+            List<ClientHandler> recipients = new ArrayList<>();
+            String problem = chooseRecipients(receiver, byName, fileName, size, recipients);
+            if (problem == null && !limits.uploadSlots.tryAcquire()) {
+                limits.uploadsRefused.increment();
+                problem = "The server is relaying too many files right now; try " + fileName + " again in a moment.";
+            }
+            if (problem != null) {
+                send(Frame.fileReject(uploadId, problem)); // Chunks already on their way are skipped below
+            } else {
+                String mailTo = receiver != null && recipients.isEmpty() ? receiver : null;
+                FileRelay relay = new FileRelay(BroadcastServer.this, userId, clientName, recipients, mailTo, fileName, size);
+                relay.begin();
+                uploads.put(uploadId, relay);
+            }
+        }
+
+        private void receiveChunk(long uploadId, int length) throws IOException {
+            if (length < 0 || length > FileRelay.CHUNK_SIZE) {
+                throw new IOException("Invalid chunk length " + length + " from " + clientName);
+            }
+            payFileData(length);
+            charged = true;
+            FileRelay relay = uploads.get(uploadId);
+            if (relay != null) {
+                relay.receive(raw, channel, length); // Socket straight to the spool file
+            } else {
+                FileRelay.skipFully(raw, length); // Unknown ids belong to rejected uploads
+            }
+        }
+
+        private void endUpload(long uploadId) throws IOException {
+            FileRelay relay = uploads.remove(uploadId);
+            if (relay != null) {
+                try {
+                    relay.end();
+                } finally {
+                    limits.uploadSlots.release();
+                }
+                reportStored(relay);
+            }
+        }
+
+        // Tells the uploader what became of a file for an offline user
+        private void reportStored(FileRelay relay) throws IOException {
+            if (relay.mailTo == null) return;
+            if (relay.mailProblem != null) {
+                sendText(relay.mailProblem);
+            } else {
+                sendText(relay.mailTo + " is offline and will get " + relay.fileName + " when they log in.");
+                mailStored(relay.mailTo);
+            }
+        }
+
+        private void abortUpload(long uploadId) {
+            FileRelay relay = uploads.remove(uploadId);
+            if (relay != null) {
+                relay.abort();
+                limits.uploadSlots.release();
+            }
+        }
+
+        // Sleeps while file data would put this client over its byte rate, before the data is read
+        private void payFileData(long length) throws IOException {
+            try {
+                limiter.fileData(length);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttling " + clientName);
+            }
+        }
+
+        // Legacy uploads cannot be refused, so they wait for a slot with the reader paused, up to --file-stall-ms
+        private boolean awaitUploadSlot() throws IOException {
+            try {
+                if (limits.uploadSlots.tryAcquire(config.fileStallMillis, TimeUnit.MILLISECONDS)) return true;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for an upload slot");
+            }
+            limits.uploadsRefused.increment();
+            return false;
+        }
+
+        // Works out who receives an upload; returns the reason it cannot be delivered, or null if it can. No recipients
+        // for a named receiver means they are offline and the file goes to their mailbox.
+        private String chooseRecipients(String receiver, boolean byName, String fileName, long size, List<ClientHandler> recipients) {
+            if (size < 0 || size > config.maxFileBytes) {
+                return "File '" + fileName + "' is larger than the server limit of " + config.maxFileBytes + " bytes.";
+            }
+            if (receiver == null) {
+                for (ClientHandler client : clients.values()) {
+                    if (client != this) recipients.add(client);
+                }
+                appendLog(clientName + " sent file: " + fileName); // Log the file transfer
+            } else {
+                ClientHandler target = clients.get(receiver);
+                if (target != null) {
+                    recipients.add(target);
+                    appendLog("[Private File] " + clientName + " -> " + receiver + ": " + fileName);
+                } else if (byName && mailbox != null && (cluster == null || !cluster.hasUser(receiver))) {
+                    String problem = mailbox.accepts(receiver, size);
+                    if (problem != null) return problem;
+                    appendLog("[Private File] " + clientName + " -> " + receiver + " (offline, stored): " + fileName);
+                } else {
+                    return "User '" + receiver + "' not found.";
+                }
+            }
+            return null;
+        }
+
+        // Legacy uploads announce the whole size up front; they are spooled in pieces just like chunked ones
+        private void relayLegacyUpload(FileRelay relay, int size) throws IOException {
+            try {
+                relay.begin();
+                long remaining = size;
+                while (remaining > 0) {
+                    int n = (int) Math.min(FileRelay.RELAY_CHUNK, remaining);
+                    payFileData(n);
+                    relay.receive(raw, channel, n);
+                    remaining -= n;
+                }
+                relay.end();
+                reportStored(relay);
+            } catch (IOException e) {
+                relay.abort(); // Frees the spool
+                throw e;
+            }
+        }
+
+        // Frames that are queued back to back go out in one socket write: the writer only flushes when the queue runs
+        // empty (after waiting --write-coalesce-us for more) or --write-batch-bytes have piled up. A lone frame at low
+        // load is flushed at once, so batching only happens when there is something to batch.
+        private void writeLoop() {
+            boolean binaryOut = false; // Switches after the CAPS reply that offers binary-v1 has been written
+            long unflushed = 0; // Bytes written into 'out' since its last flush
+            List<Runnable> markers = new ArrayList<>(); // Frame.marker()s taken since the last flush; told after the next one
+            Compression packer = null; // Set once this client may get COMPRESSED frames
+            try {
+                while (!closed) {
+                    writeProgress = 0;
+                    boolean pending = unflushed > 0 || !markers.isEmpty();
+                    Frame frame = !pending
+                            ? outbound.poll(1, TimeUnit.SECONDS) // Wake up now and then to notice a closed connection
+                            : outbound.poll(config.writeCoalesceMicros, TimeUnit.MICROSECONDS); // 0 = only what is queued already
+                    writeProgress = System.nanoTime(); // For checkAlive(): a write that stops moving means a dead peer
+                    if (frame == null) {
+                        if (pending) {
+                            flush(markers); // Queue ran empty: send the batch
+                            unflushed = 0;
+                        }
+                        continue;
+                    }
+                    if (frame.isMarker()) {
+                        markers.add(frame.onFlushed);
+                        outbound.written(frame);
+                        continue;
+                    }
+                    long bytes = frame.writeTo(out, channel, binaryOut, packer, this::wroteSome); // Spooled file data goes out with transferTo, after a flush
+                    unflushed += bytes;
+                    if (unflushed >= config.writeBatchBytes || frame.spool != null) {
+                        flush(markers);
+                        unflushed = 0;
+                    }
+                    outbound.written(frame);
+                    metrics.written(frame, bytes); // Delivery time ends in the buffer; the flush follows within one batch
+                    if (frame.switchesToBinary()) {
+                        binaryOut = true;
+                        if (deflate) packer = compression;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                close(); // The reader sees the closed socket and does the cleanup
+            }
+        }
+
+        private void flush(List<Runnable> markers) throws IOException {
+            out.flush();
+            for (Runnable marker : markers) marker.run();
+            markers.clear();
+        }
+
+        private void wroteSome() {
+            writeProgress = System.nanoTime();
+        }
+
+        // Under the writer's buffer: a large frame bypasses the buffer in one write, so split it and note the progress
+        // between the pieces, as Spool.transferTo does for file data
+        private final class ProgressOutputStream extends FilterOutputStream {
+            ProgressOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                for (int done = 0; done < len; ) {
+                    int n = Math.min(len - done, Spool.PROGRESS_BYTES);
+                    out.write(buf, off + done, n); // FilterOutputStream would write it a byte at a time
+                    done += n;
+                    wroteSome();
+                }
+            }
+        }
+
+        // Closing the socket also ends the reader's readUTF(), which removes this client
+        void close() {
+            closed = true;
+            outbound.clear();
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+
+        int queueDepth() {
+            return outbound.depth();
+        }
+
+        // Text from the server itself, e.g. why a request failed
+        public void sendText(String msg) throws IOException {
+            metrics.noticesOut.increment();
+            send(Frame.notice(msg));
+        }
+
+        // Queues one chunk of a file transfer; never dropped, waits for file window space instead.
+        // Returns false if the client stayed stalled too long, in which case it has been disconnected.
+        boolean sendChunk(Frame chunk) {
+            if (closed) return false;
+            try {
+                if (outbound.offerChunk(chunk, config.fileStallMillis)) {
+                    if (closed) outbound.clear(); // Closed meanwhile; release what the writer will never send
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            appendLog("Disconnecting stalled file receiver: " + clientName);
+            close();
+            return false;
+        }
+
+        // Queues an already encoded frame; broadcasts pass the same Frame to every recipient
+        void send(Frame frame) throws IOException {
+            if (closed) throw new IOException("Connection closed");
+            try {
+                if (!outbound.offer(frame)) { // Queue is full and the policy says this client is too slow
+                    appendLog("Disconnecting slow client: " + clientName + " (" + config.backpressure + ")");
+                    close();
+                    throw new IOException("Outbound queue full");
+                }
+                if (closed) outbound.clear(); // Closed meanwhile; release what the writer will never send
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing for " + clientName);
+            }
+        }
+    }
+
+    // Messages from users on other cluster nodes. Each arrives once per node and fans out here like a local one;
+    // senderId is the id this node gave the remote user.
+    void deliverRemoteChat(int senderId, String sender, String body) {
+        long seq = logMessage(BinaryProtocol.TEXT, sender, "", body);
+        broadcastMessage(Frame.chat(senderId, sender, body, seq), null);
+    }
+
+    void deliverRemotePrivate(int senderId, String sender, String recipient, String body) {
+        ClientHandler target = clients.get(recipient);
+        if (target == null) { // Left meanwhile
+            if (mailbox != null && mailbox.deposit(recipient, sender, body) == null) mailStored(recipient);
+            return;
+        }
+        long seq = logMessage(BinaryProtocol.PRIVATE, sender, recipient, body);
+        try {
+            target.send(Frame.privateMessage(senderId, sender, body, seq));
+        } catch (IOException e) {
+            appendLog("Failed to send message to " + recipient);
+        }
+    }
+
+    void deliverRemoteRoom(int senderId, String sender, String room, String body) {
+        if (rooms.members(room).isEmpty()) return; // Nobody here is in it
+        long seq = logMessage(BinaryProtocol.ROOM_TEXT, sender, room, body);
+        broadcastToRoom(room, Frame.roomText(senderId, sender, room, body, seq), null);
+    }
+
+    int newUserId() {
+        return nextUserId.incrementAndGet();
+    }
+
+    // The frame is encoded once per protocol, not once per recipient
+    private void broadcastMessage(Frame frame, ClientHandler sender) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ClientHandler client : clients.values()) {
+            if (client != sender) { // Don't send the message back to the sender
+                try {
+                    client.send(frame);
+                    recipients++;
+                } catch (IOException e) {
+                    appendLog("Failed to send message to " + client.clientName);
+                }
+            }
+        }
+        metrics.broadcast(start, recipients);
+    }
+
+    // Like broadcastMessage, but only the room's members; the cost follows the room's size, not the number online
+    private void broadcastToRoom(String room, Frame frame, ClientHandler sender) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        for (ClientHandler member : rooms.members(room)) {
+            if (member != sender) {
+                try {
+                    member.send(frame);
+                    recipients++;
+                } catch (IOException e) {
+                    appendLog("Failed to send message to " + member.clientName);
+                }
+            }
+        }
+        metrics.broadcast(start, recipients);
+    }
+
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.parse(args); // e.g. --mode=nio --port=7500
+        if (config.mode.equals("nio")) {
+            new NioBroadcastServer(config).start(); // Headless selector-based server, runs on the main thread
+            return;
+        }
+        BroadcastServer server = new BroadcastServer(config);
+        if (config.console.equals("swing") && !GraphicsEnvironment.isHeadless()) {
+            EventQueue.invokeLater(() -> new ServerConsole(server)); // Optional window on the Event Dispatch Thread
+        }
+    }
+}
+
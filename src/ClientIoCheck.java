@@ -0,0 +1,124 @@
+import java.io.*; // For EOFException, IOException
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For FileChannel, Pipe
+import java.nio.file.*; // For Files, Path, StandardCopyOption, StandardOpenOption
+import java.security.*; // For MessageDigest
+import java.util.*; // For Arrays, Random
+import java.util.logging.*; // For FileHandler, Handler, Logger, SimpleFormatter
+
+// Checks SimpleChatClient's I/O paths off the calling thread:
+//  1. Logging: a thread logs chat messages at a steady rate, as the reader thread does for every message it
+//     receives, once through a FileHandler and once through AsyncLogHandler; prints how long each logger.info()
+//     call took and how many records reached the file.
+//  2. Downloads: a file arrives in chunks through a pipe standing in for the socket; the reader copies it with
+//     FileChannel.transferFrom as before, then through TransferManager's buffers and disk thread. Prints the time
+//     the reader spent per MB and checks that both files match what was sent.
+// Prints PASS or FAIL.
+// Usage: java ClientIoCheck [recordsPerSecond] [seconds] [fileMB]
+public class ClientIoCheck {
+    static final int CHUNK = TransferManager.BUFFER_SIZE;
+
+    static boolean lostNone = true; // Every record logged is in the file or counted as dropped
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int fileMB = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        Path dir = Files.createTempDirectory("client-io-check");
+
+        System.out.println("handler,records,call_p50_us,call_p99_us,call_max_us,records_in_file,dropped");
+        FileHandler fileHandler = new FileHandler(dir.resolve("sync.log").toString(), true);
+        fileHandler.setFormatter(new SimpleFormatter());
+        long syncP99 = logging("file-handler", fileHandler, dir.resolve("sync.log"), rate, seconds);
+        AsyncLogHandler asyncHandler = new AsyncLogHandler(dir.resolve("async.log").toString(), SimpleChatClient.LOG_BUFFER);
+        long asyncP99 = logging("async-handler", asyncHandler, dir.resolve("async.log"), rate, seconds);
+
+        System.out.println("receive,mb,reader_ms_per_mb,file_matches");
+        byte[] data = new byte[fileMB << 20];
+        new Random(1).nextBytes(data);
+        boolean directOk = receive("transfer-from", data, dir.resolve("direct.bin"));
+        boolean bufferedOk = receive("transfer-manager", data, dir.resolve("buffered.bin"));
+
+        boolean pass = lostNone && asyncP99 < syncP99 && directOk && bufferedOk;
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+
+    static long logging(String name, Handler handler, Path file, int rate, int seconds) throws Exception {
+        Logger logger = Logger.getLogger("ClientIoCheck." + name);
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        Histogram calls = new Histogram();
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        long records = (long) rate * seconds;
+        for (long i = 0; i < records; i++) {
+            long due = start + i * 1_000_000_000L / rate;
+            while (System.nanoTime() < due) Thread.onSpinWait();
+            String message = "Message received: user" + random.nextInt(100) + ": " + CompressionBenchmark.chatText(random, 20 + random.nextInt(100));
+            long before = System.nanoTime();
+            logger.info(message);
+            calls.record(System.nanoTime() - before);
+        }
+        handler.close(); // The async handler writes out what is still queued
+        long lines = Files.lines(file).filter(line -> line.startsWith("INFO: ")).count();
+        long dropped = handler instanceof AsyncLogHandler ? ((AsyncLogHandler) handler).dropped.sum() : 0;
+        if (lines + dropped != records) lostNone = false;
+        System.out.printf("%s,%d,%.1f,%.1f,%.1f,%d,%d%n", name, records, calls.percentile(0.5) / 1e3,
+                calls.percentile(0.99) / 1e3, calls.max() / 1e3, lines, dropped);
+        return calls.percentile(0.99);
+    }
+
+    // A sender thread writes 'data' into a pipe; this thread reads it in CHUNK pieces like receiveChunk does
+    static boolean receive(String kind, byte[] data, Path target) throws Exception {
+        Pipe pipe = Pipe.open();
+        Thread sender = new Thread(() -> {
+            try {
+                ByteBuffer out = ByteBuffer.wrap(data);
+                while (out.hasRemaining()) pipe.sink().write(out);
+                pipe.sink().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+        long readerNanos;
+        if (kind.equals("transfer-from")) {
+            try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long start = System.nanoTime();
+                for (long position = 0; position < data.length; ) {
+                    long n = file.transferFrom(pipe.source(), position, Math.min(CHUNK, data.length - position));
+                    if (n <= 0) throw new EOFException();
+                    position += n;
+                }
+                readerNanos = System.nanoTime() - start;
+            }
+        } else {
+            TransferManager transfers = new TransferManager(1, 2);
+            TransferManager.Download download = transfers.download("client-io-check.bin", data.length);
+            long start = System.nanoTime();
+            for (long position = 0; position < data.length; position += CHUNK) {
+                download.receive(pipe.source(), Math.min(CHUNK, data.length - position));
+            }
+            readerNanos = System.nanoTime() - start;
+            Object done = new Object();
+            synchronized (done) {
+                download.finish(true, () -> {
+                    synchronized (done) {
+                        done.notify();
+                    }
+                });
+                done.wait();
+            }
+            Files.move(download.path, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        sender.join();
+        boolean matches = Arrays.equals(digest(Files.readAllBytes(target)), digest(data));
+        System.out.printf("%s,%d,%.2f,%s%n", kind, data.length >> 20, readerNanos / 1e6 / (data.length >> 20), matches);
+        return matches;
+    }
+
+    static byte[] digest(byte[] bytes) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.*; // For BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, IOException
+import java.net.*; // For InetSocketAddress, ServerSocket, Socket
+import java.util.*; // For ArrayList, Collections, HashMap, Iterator, LinkedHashSet, List, Map, Set
+import java.util.concurrent.*; // For ConcurrentHashMap, LinkedBlockingQueue, ThreadLocalRandom
+import java.util.concurrent.atomic.*; // For AtomicLong, LongAdder
+
+// Joins several BroadcastServer nodes into one chat (blocking mode, --cluster-port). Users stay connected to one node;
+// what they send to users elsewhere crosses a link between the two nodes:
+//   - a broadcast or room message goes to every other live node once, and each node fans it out to its own users
+//   - a private message goes only to the node the recipient is on
+// Each node keeps one outgoing link per peer, with its own queue and writer thread. The writer sends everything that
+// has queued up as one batched frame, so under load the cost per node is a write per batch, not per message or user.
+//
+// Who is on which node spreads by gossip. Every --gossip-ms a node bumps its heartbeat and sends a DIGEST
+// (node, address, heartbeat, users version for every node it knows) to a few random peers. A peer that holds an older
+// users version for a node PULLs its STATE (the full user list), and sends back the STATEs the digest was behind on.
+// A node whose heartbeat has not moved for --node-timeout-ms is taken as down: its users leave the user lists and it
+// drops out of the HashRing. Heartbeats and versions start at the clock time, so a restarted node is newer than the
+// state others still hold of its last run. Users on other nodes get a local user id, so binary-v1 clients see them
+// in the user list and can address them like anyone else.
+//
+// Link format: writeUTF(HELLO), writeUTF(node id), then batches of [varint message count][messages];
+// each message is framed like a BinaryProtocol frame: [type: 1 byte][varint payload length][payload]
+//   CHAT     sender, body
+//   PRIVATE  sender, recipient, body
+//   ROOM     sender, room, body
+//   DIGEST   from address, count x (node, address, heartbeat, users version)
+//   PULL     from address, count x node
+//   STATE    node, address, heartbeat, users version, count x name
+final class Cluster {
+    static final String HELLO = "CLUSTER/1";
+    static final int CHAT = 1;
+    static final int PRIVATE = 2;
+    static final int ROOM = 3;
+    static final int DIGEST = 4;
+    static final int PULL = 5;
+    static final int STATE = 6;
+    static final int GOSSIP_FANOUT = 2; // Live peers each digest goes to per round
+    static final int LINK_QUEUE = 65_536; // Messages waiting for one peer; beyond this they are dropped (and counted)
+    static final int MAX_BATCH = 1024; // Most messages in one batched frame
+    static final long RETRY_MILLIS = 500; // Between attempts to connect a link
+
+    final String nodeId;
+    final String address; // host:port other nodes reach our cluster port at
+    private final BroadcastServer server;
+    private final long gossipMillis;
+    private final long timeoutNanos;
+    private final List<String> seeds; // --cluster-peers; also where a down node is looked for again
+    private final ServerSocket listener;
+    private final Map<String, Link> links = new ConcurrentHashMap<>(); // Outgoing links by peer address
+    private final Map<String, NodeState> nodes = new ConcurrentHashMap<>(); // Every node heard of by id, this one included
+    private final Map<Integer, RemoteUser> remoteById = new ConcurrentHashMap<>(); // Users on other nodes by their local id
+    private final NodeState self;
+    private final AtomicLong localVersion = new AtomicLong(); // Bumped by every local join and leave
+    private long gossipedVersion; // localVersion when self.users was last taken; gossip thread only
+    private volatile HashRing<String> ring; // Live nodes
+    private volatile List<NodeState> peers = Collections.emptyList(); // Live nodes other than this one
+
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder batchesOut = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder dropped = new LongAdder(); // Queue full, or the peer was unreachable
+
+    private static final class NodeState {
+        final String id;
+        volatile String address;
+        volatile long heartbeat = -1;
+        volatile long usersVersion = -1; // -1: user list not known (never received, or the node went down)
+        volatile List<String> users = Collections.emptyList(); // This node's own: what the last digest announced
+        final Map<String, Integer> userIds = new ConcurrentHashMap<>(); // Its users' local ids; changed under the Cluster lock
+        volatile long lastHeard; // System.nanoTime() when the heartbeat last moved
+        volatile boolean alive;
+
+        NodeState(String id) {
+            this.id = id;
+        }
+    }
+
+    static final class RemoteUser {
+        final String name;
+        final String node;
+
+        RemoteUser(String name, String node) {
+            this.name = name;
+            this.node = node;
+        }
+    }
+
+    Cluster(BroadcastServer server, ServerConfig config) throws IOException {
+        this.server = server;
+        this.nodeId = config.nodeId.isEmpty() ? "node-" + config.clusterPort : config.nodeId;
+        this.address = config.clusterAdvertise.isEmpty() ? "localhost:" + config.clusterPort : config.clusterAdvertise;
+        this.gossipMillis = config.gossipMillis;
+        this.timeoutNanos = config.nodeTimeoutMillis * 1_000_000L;
+        this.seeds = new ArrayList<>();
+        for (String seed : config.clusterPeers.split(",")) {
+            if (!seed.trim().isEmpty() && !seed.trim().equals(address)) seeds.add(seed.trim());
+        }
+        this.listener = new ServerSocket(config.clusterPort);
+        self = new NodeState(nodeId);
+        self.address = address;
+        self.heartbeat = System.currentTimeMillis();
+        self.usersVersion = self.heartbeat;
+        self.alive = true;
+        nodes.put(nodeId, self);
+        ring = new HashRing<>(Collections.singletonList(nodeId));
+        start("cluster-accept", this::acceptLoop);
+        start("cluster-gossip", this::gossipLoop);
+    }
+
+    private static void start(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Called by the server whenever one of its own users joins or leaves; the next gossip round picks it up
+    void localChanged() {
+        localVersion.incrementAndGet();
+    }
+
+    // A chat message from a local user, for every other live node
+    void broadcast(String sender, String body) {
+        byte[] message = new BinaryProtocol.Builder(CHAT).string(sender).string(body).toBytes();
+        for (NodeState node : peers) {
+            link(node.address).send(message);
+        }
+    }
+
+    // Room membership is per node, so every live node gets the message and fans it out to its own members
+    void room(String sender, String room, String body) {
+        byte[] message = new BinaryProtocol.Builder(ROOM).string(sender).string(room).string(body).toBytes();
+        for (NodeState node : peers) {
+            link(node.address).send(message);
+        }
+    }
+
+    // Returns false if the recipient is not online on any other node
+    boolean sendPrivate(String sender, String recipient, String body) {
+        NodeState node = nodeOf(recipient);
+        if (node == null) return false;
+        link(node.address).send(new BinaryProtocol.Builder(PRIVATE).string(sender).string(recipient).string(body).toBytes());
+        return true;
+    }
+
+    // Whether the user is online on another node
+    boolean hasUser(String name) {
+        return nodeOf(name) != null;
+    }
+
+    // The live node a user is on. A name briefly listed on two nodes (a user who just failed over, before the old
+    // node is known to be down) goes to the first of them in the user's ring order, the same order clients connect in.
+    private NodeState nodeOf(String name) {
+        for (String id : ring.owners(name)) {
+            NodeState node = nodes.get(id);
+            if (node != self && node != null && node.alive && node.userIds.containsKey(name)) return node;
+        }
+        return null;
+    }
+
+    // Name of a user on another node, by the local id they were given here; null if there is no such user
+    String remoteName(int userId) {
+        RemoteUser user = remoteById.get(userId);
+        return user != null ? user.name : null;
+    }
+
+    // Local id for a user on another node; a message can arrive before the gossip that lists its sender
+    private int remoteId(String nodeId, String name) {
+        NodeState node = nodes.get(nodeId);
+        if (node != null) {
+            Integer id = node.userIds.get(name);
+            if (id != null) return id;
+        }
+        synchronized (this) {
+            node = nodes.computeIfAbsent(nodeId, NodeState::new);
+            Integer id = node.userIds.get(name);
+            return id != null ? id : addRemote(node, name);
+        }
+    }
+
+    private Link link(String address) {
+        return links.computeIfAbsent(address, a -> {
+            Link link = new Link(a);
+            start("cluster-link-" + a, link);
+            return link;
+        });
+    }
+
+    // Outgoing connection to one peer; reconnects until the process ends
+    private final class Link implements Runnable {
+        final String address;
+        final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_QUEUE);
+
+        Link(String address) {
+            this.address = address;
+        }
+
+        void send(byte[] message) {
+            if (!queue.offer(message)) dropped.increment();
+        }
+
+        // What is queued for an unreachable peer is thrown away; chat does not wait for a node to come back
+        void discard() {
+            int n = queue.size();
+            queue.clear();
+            dropped.add(n);
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    int colon = address.lastIndexOf(':');
+                    socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), 1000);
+                    socket.setTcpNoDelay(true); // Batches are already as large as the traffic allows
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    out.writeUTF(HELLO);
+                    out.writeUTF(nodeId);
+                    out.flush();
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1); // Whatever queued up while the last batch was written
+                        BinaryProtocol.writeVarint(out, batch.size());
+                        for (byte[] message : batch) {
+                            out.write(message);
+                        }
+                        out.flush(); // One socket write for the batch (more only if it is over 64 KB)
+                        messagesOut.add(batch.size());
+                        batchesOut.increment();
+                        batch.clear();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    dropped.add(batch.size());
+                    batch.clear();
+                    discard();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                start("cluster-in", () -> serve(socket));
+            } catch (IOException e) {
+                server.appendLog("Cluster accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Reads batches from one peer's outgoing link
+    private void serve(Socket socket) {
+        String peer = socket.getRemoteSocketAddress().toString();
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            if (!in.readUTF().equals(HELLO)) return;
+            peer = in.readUTF();
+            BinaryProtocol.Reader payload = new BinaryProtocol.Reader();
+            while (true) {
+                for (long n = BinaryProtocol.readVarint(in); n > 0; n--) {
+                    int type = in.readUnsignedByte();
+                    long length = BinaryProtocol.readVarint(in);
+                    if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD + 1024) throw new IOException("Cluster message of " + length + " bytes");
+                    payload.fill(in, (int) length);
+                    receive(peer, type, payload);
+                    messagesIn.increment();
+                }
+            }
+        } catch (IOException e) {
+            server.appendLog("Cluster link from " + peer + " closed: " + e.getMessage());
+        }
+    }
+
+    private void receive(String peer, int type, BinaryProtocol.Reader p) throws IOException {
+        switch (type) {
+            case CHAT: {
+                String sender = p.string();
+                server.deliverRemoteChat(remoteId(peer, sender), sender, p.string());
+                return;
+            }
+            case PRIVATE: {
+                String sender = p.string();
+                String recipient = p.string();
+                server.deliverRemotePrivate(remoteId(peer, sender), sender, recipient, p.string());
+                return;
+            }
+            case ROOM: {
+                String sender = p.string();
+                String room = p.string();
+                server.deliverRemoteRoom(remoteId(peer, sender), sender, room, p.string());
+                return;
+            }
+            case DIGEST:
+                receiveDigest(p);
+                return;
+            case PULL: {
+                Link back = link(p.string());
+                for (long n = p.varint(); n > 0; n--) {
+                    NodeState node = nodes.get(p.string());
+                    if (node != null && node.alive && node.usersVersion >= 0) back.send(stateMessage(node));
+                }
+                return;
+            }
+            case STATE:
+                receiveState(p);
+                return;
+            default: // Newer node; message types we do not know are skipped
+        }
+    }
+
+    private synchronized void receiveDigest(BinaryProtocol.Reader p) throws IOException {
+        Link back = link(p.string());
+        Map<String, Long> theirVersions = new HashMap<>();
+        List<String> pull = new ArrayList<>();
+        for (long n = p.varint(); n > 0; n--) {
+            String id = p.string();
+            String nodeAddress = p.string();
+            long heartbeat = p.varint();
+            long usersVersion = p.varint() - 1; // Sent +1 so that -1 fits a varint
+            theirVersions.put(id, usersVersion);
+            if (id.equals(nodeId)) continue;
+            NodeState node = nodes.computeIfAbsent(id, NodeState::new);
+            node.address = nodeAddress;
+            heard(node, heartbeat);
+            if (node.alive && usersVersion > node.usersVersion) pull.add(id);
+        }
+        if (!pull.isEmpty()) {
+            BinaryProtocol.Builder request = new BinaryProtocol.Builder(PULL).string(address).varint(pull.size());
+            for (String id : pull) {
+                request.string(id);
+            }
+            back.send(request.toBytes());
+        }
+        for (NodeState node : nodes.values()) { // Push what the sender is behind on
+            Long theirs = theirVersions.get(node.id);
+            if (node.alive && node.usersVersion >= 0 && (theirs == null || theirs < node.usersVersion)) {
+                back.send(stateMessage(node));
+            }
+        }
+    }
+
+    private synchronized void receiveState(BinaryProtocol.Reader p) throws IOException {
+        String id = p.string();
+        String nodeAddress = p.string();
+        long heartbeat = p.varint();
+        long usersVersion = p.varint() - 1;
+        List<String> users = new ArrayList<>();
+        for (long n = p.varint(); n > 0; n--) {
+            users.add(p.string());
+        }
+        if (id.equals(nodeId)) return;
+        NodeState node = nodes.computeIfAbsent(id, NodeState::new);
+        node.address = nodeAddress;
+        heard(node, heartbeat);
+        if (node.alive && usersVersion > node.usersVersion) {
+            node.usersVersion = usersVersion;
+            setUsers(node, users);
+        }
+    }
+
+    // A newer heartbeat means the node is alive now
+    private void heard(NodeState node, long heartbeat) {
+        if (heartbeat <= node.heartbeat) return;
+        node.heartbeat = heartbeat;
+        node.lastHeard = System.nanoTime();
+        link(node.address);
+        if (!node.alive) {
+            node.alive = true;
+            membershipChanged();
+            server.appendLog("Cluster node " + node.id + " is up at " + node.address);
+        }
+    }
+
+    // Brings the node's users in this server's presence in line with 'users'
+    private void setUsers(NodeState node, List<String> users) {
+        Set<String> next = new LinkedHashSet<>(users);
+        for (Iterator<Map.Entry<String, Integer>> it = node.userIds.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Integer> e = it.next();
+            if (!next.contains(e.getKey())) {
+                it.remove();
+                remoteById.remove(e.getValue());
+                server.presence.leave(e.getValue());
+            }
+        }
+        for (String name : next) {
+            if (!node.userIds.containsKey(name)) addRemote(node, name);
+        }
+    }
+
+    private int addRemote(NodeState node, String name) {
+        int id = server.newUserId();
+        node.userIds.put(name, id);
+        remoteById.put(id, new RemoteUser(name, node.id));
+        server.presence.join(id, name);
+        return id;
+    }
+
+    private void membershipChanged() {
+        List<String> live = new ArrayList<>();
+        List<NodeState> others = new ArrayList<>();
+        for (NodeState node : nodes.values()) {
+            if (!node.alive) continue;
+            live.add(node.id);
+            if (node != self) others.add(node);
+        }
+        ring = new HashRing<>(live);
+        peers = others;
+    }
+
+    private void gossipLoop() {
+        server.appendLog("Cluster node " + nodeId + " at " + address + (seeds.isEmpty() ? "" : ", peers " + seeds));
+        while (true) {
+            try {
+                Thread.sleep(gossipMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            self.heartbeat++;
+            long version = localVersion.get();
+            if (version != gossipedVersion) {
+                gossipedVersion = version;
+                self.users = new ArrayList<>(server.clients.keySet());
+                self.usersVersion++;
+            }
+            checkFailures();
+            byte[] digest = digestMessage();
+            List<NodeState> live = new ArrayList<>(peers);
+            Collections.shuffle(live, ThreadLocalRandom.current());
+            for (int i = 0; i < Math.min(GOSSIP_FANOUT, live.size()); i++) {
+                link(live.get(i).address).send(digest);
+            }
+            List<String> elsewhere = new ArrayList<>(seeds); // Also one node that is not known to be up, to find it again
+            for (NodeState node : nodes.values()) {
+                if (!node.alive && node.address != null && !elsewhere.contains(node.address)) elsewhere.add(node.address);
+            }
+            for (NodeState node : live) {
+                elsewhere.remove(node.address);
+            }
+            if (!elsewhere.isEmpty()) {
+                link(elsewhere.get(ThreadLocalRandom.current().nextInt(elsewhere.size()))).send(digest);
+            }
+        }
+    }
+
+    private synchronized void checkFailures() {
+        long now = System.nanoTime();
+        for (NodeState node : nodes.values()) {
+            if (node == self || !node.alive || now - node.lastHeard < timeoutNanos) continue;
+            node.alive = false;
+            node.usersVersion = -1; // Pulled again in full if it comes back
+            setUsers(node, Collections.emptyList());
+            membershipChanged();
+            if (node.address != null) link(node.address).discard();
+            server.appendLog("Cluster node " + node.id + " is down (no heartbeat for " + timeoutNanos / 1_000_000 + " ms)");
+        }
+    }
+
+    private byte[] digestMessage() {
+        BinaryProtocol.Builder digest = new BinaryProtocol.Builder(DIGEST).string(address);
+        List<NodeState> known = new ArrayList<>();
+        for (NodeState node : nodes.values()) {
+            if (node.address != null && node.heartbeat >= 0) known.add(node);
+        }
+        digest.varint(known.size());
+        for (NodeState node : known) {
+            digest.string(node.id).string(node.address).varint(node.heartbeat).varint(node.alive ? node.usersVersion + 1 : 0);
+        }
+        return digest.toBytes();
+    }
+
+    private byte[] stateMessage(NodeState node) {
+        List<String> users = node == self ? self.users : new ArrayList<>(node.userIds.keySet()); // A copy: the count must match
+        BinaryProtocol.Builder state = new BinaryProtocol.Builder(STATE).string(node.id).string(node.address)
+                .varint(node.heartbeat).varint(node.usersVersion + 1).varint(users.size());
+        for (String name : users) {
+            state.string(name);
+        }
+        return state.toBytes();
+    }
+
+    // One line for the periodic stats log
+    String report() {
+        List<String> up = new ArrayList<>();
+        for (NodeState node : peers) {
+            up.add(node.id);
+        }
+        long batches = batchesOut.sum();
+        return String.format("Cluster %s: peers up %s, %d remote users, %d messages out in %d batches (%.1f per batch), %d in, %d dropped",
+                nodeId, up, remoteById.size(), messagesOut.sum(), batches, batches == 0 ? 0.0 : messagesOut.sum() / (double) batches,
+                messagesIn.sum(), dropped.sum());
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.*; // For DataInputStream, DataOutputStream, File, IOException
+import java.net.*; // For InetSocketAddress, Socket
+import java.util.*; // For ArrayList, Arrays, LinkedHashMap, List, Map
+import java.util.function.*; // For BooleanSupplier
+import java.util.concurrent.*; // For LinkedBlockingQueue, TimeUnit
+
+// Starts a cluster of BroadcastServer nodes on localhost as separate processes, connects users to their HashRing
+// node (the way SimpleChatClient does), and checks that:
+//   1. every user sees every other user in the user list (gossip), and broadcasts and private messages cross nodes
+//   2. after one node is killed (kill -9, no goodbye), the others drop its users within --node-timeout-ms
+//   3. its users reconnect to the next node along their ring, and can chat and be messaged again
+// Prints the time each stage took, then PASS or FAIL.
+// Usage: java ClusterFailoverCheck [nodes] [usersPerNode] [firstPort]   (client ports firstPort.., cluster ports firstPort+100..)
+public class ClusterFailoverCheck {
+    static final long TIMEOUT_MILLIS = 15_000; // Per stage
+
+    public static void main(String[] args) throws Exception {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int usersPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int firstPort = args.length > 2 ? Integer.parseInt(args[2]) : 7700;
+
+        List<String> servers = new ArrayList<>();
+        String seeds = "";
+        for (int i = 0; i < nodeCount; i++) {
+            servers.add("localhost:" + (firstPort + i));
+            seeds += (i == 0 ? "" : ",") + "localhost:" + (firstPort + 100 + i);
+        }
+        List<Process> nodes = new ArrayList<>();
+        boolean ok = false;
+        try {
+            for (int i = 0; i < nodeCount; i++) {
+                nodes.add(startNode(i, firstPort, seeds));
+            }
+            for (String server : servers) {
+                waitForPort(server);
+            }
+
+            // Names spread by the ring until every node has usersPerNode of them
+            HashRing<String> ring = new HashRing<>(servers);
+            Map<String, List<User>> byNode = new LinkedHashMap<>();
+            for (String server : servers) byNode.put(server, new ArrayList<>());
+            List<User> users = new ArrayList<>();
+            for (int n = 0; users.size() < nodeCount * usersPerNode; n++) {
+                String name = "user" + n;
+                List<User> home = byNode.get(ring.owner(name));
+                if (home.size() == usersPerNode) continue;
+                User user = new User(name, ring.owners(name));
+                user.connect();
+                home.add(user);
+                users.add(user);
+            }
+            List<String> names = new ArrayList<>();
+            for (User user : users) names.add(user.name);
+
+            long start = System.nanoTime();
+            boolean converged = waitUntil(() -> users.stream().allMatch(u -> u.users.containsAll(names)));
+            System.out.printf("gossip: %d users on %d nodes see each other after %d ms: %s%n", users.size(), nodeCount, elapsed(start), converged);
+
+            User speaker = byNode.get(servers.get(0)).get(0);
+            String victimNode = servers.get(nodeCount - 1);
+            User far = byNode.get(victimNode).get(0);
+            boolean crossNode = chatReachesEveryone(speaker, users, "hello before the failure")
+                    && privateArrives(speaker, far, "psst before the failure");
+            System.out.println("cross-node broadcast and private message: " + crossNode);
+
+            int victim = nodeCount - 1;
+            nodes.get(victim).destroyForcibly().waitFor();
+            start = System.nanoTime();
+            List<User> moved = byNode.get(victimNode);
+            List<String> movedNames = new ArrayList<>();
+            for (User user : moved) movedNames.add(user.name);
+            boolean detected = waitUntil(() -> speaker.users.stream().noneMatch(movedNames::contains));
+            System.out.printf("failure detection: %s's users gone from the user lists after %d ms: %s%n", victimNode, elapsed(start), detected);
+
+            start = System.nanoTime();
+            for (User user : moved) {
+                user.connect(); // Its ring order now skips the dead node
+            }
+            boolean back = waitUntil(() -> speaker.users.containsAll(movedNames));
+            System.out.printf("failover: %d users reconnected (to %s) and are listed again after %d ms: %s%n",
+                    moved.size(), moved.get(0).connectedTo, elapsed(start), back);
+            List<User> survivors = new ArrayList<>(users);
+            boolean afterwards = chatReachesEveryone(speaker, survivors, "hello after the failure")
+                    && privateArrives(speaker, far, "psst after the failure");
+            System.out.println("cross-node broadcast and private message after failover: " + afterwards);
+            ok = converged && crossNode && detected && back && afterwards;
+        } finally {
+            for (Process node : nodes) node.destroyForcibly();
+        }
+        System.out.println(ok ? "PASS" : "FAIL");
+        System.exit(ok ? 0 : 1);
+    }
+
+    static Process startNode(int i, int firstPort, String seeds) throws IOException {
+        List<String> command = Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"),
+                "BroadcastServer", "--headless", "--auth=off", "--metrics=off", "--message-log=off", "--queue-stats-seconds=0",
+                "--port=" + (firstPort + i), "--cluster-port=" + (firstPort + 100 + i), "--node=n" + i,
+                "--cluster-peers=" + seeds, "--gossip-ms=100", "--node-timeout-ms=1000", "--presence-coalesce-ms=50");
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "cluster-node-" + i + ".log")).start();
+    }
+
+    static void waitForPort(String server) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(address(server), 200);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    static InetSocketAddress address(String server) {
+        int colon = server.lastIndexOf(':');
+        return new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+    }
+
+    static boolean chatReachesEveryone(User speaker, List<User> users, String text) throws Exception {
+        speaker.send(text);
+        for (User user : users) {
+            if (user != speaker && !user.await(speaker.name + ": " + text)) return false;
+        }
+        return true;
+    }
+
+    static boolean privateArrives(User from, User to, String text) throws Exception {
+        from.sendPrivate(to.name, text);
+        return to.await("[Private] " + from.name + ": " + text);
+    }
+
+    static boolean waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    static long elapsed(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    // A legacy-protocol user (name only, --auth=off) with a thread that collects what it receives
+    static final class User {
+        final String name;
+        final List<String> ringOrder; // Servers in this user's ring order
+        volatile List<String> users = new ArrayList<>(); // Latest USER_LIST
+        final LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        volatile String connectedTo;
+        private DataOutputStream out;
+
+        User(String name, List<String> ringOrder) {
+            this.name = name;
+            this.ringOrder = ringOrder;
+        }
+
+        void connect() throws IOException {
+            for (String server : ringOrder) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(address(server), 500);
+                } catch (IOException e) {
+                    socket.close();
+                    continue; // Down; next node along the ring
+                }
+                connectedTo = server;
+                out = new DataOutputStream(socket.getOutputStream());
+                out.writeUTF(name);
+                out.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (true) {
+                            String message = in.readUTF();
+                            if (message.startsWith("USER_LIST")) {
+                                users = Arrays.asList(message.split("/"));
+                            } else {
+                                messages.add(message);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Node gone
+                    }
+                });
+                reader.setDaemon(true);
+                reader.start();
+                return;
+            }
+            throw new IOException("No node is up for " + name);
+        }
+
+        void send(String text) throws IOException {
+            out.writeUTF(text);
+            out.flush();
+        }
+
+        void sendPrivate(String receiver, String text) throws IOException {
+            out.writeUTF("PRIVATE");
+            out.writeUTF(receiver);
+            out.writeUTF(text);
+            out.flush();
+        }
+
+        boolean await(String expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            for (long left = TIMEOUT_MILLIS; left > 0; left = deadline - System.currentTimeMillis()) {
+                String message = messages.poll(left, TimeUnit.MILLISECONDS);
+                if (expected.equals(message)) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.*; // For ByteArrayOutputStream, DataOutputStream, IOException
+import java.util.concurrent.*; // For ConcurrentLinkedQueue
+import java.util.concurrent.atomic.*; // For AtomicInteger, LongAdder
+import java.util.zip.*; // For DataFormatException, Deflater, Inflater
+
+// Per-message DEFLATE for binary-v1 connections where both sides announced "deflate" (see BinaryProtocol.COMPRESSED).
+// Each frame is compressed on its own, with no dictionary carried over from earlier frames, so the result does not
+// depend on the connection: a broadcast is compressed once and the same bytes go to every deflate recipient
+// (Frame caches them next to its other encodings). That costs some ratio on short messages compared with a
+// per-connection stream, which is why frames below minBytes are sent as they are.
+// A Deflater holds a few hundred KB of native memory, so they are pooled here instead of one per connection or
+// per writer thread; receivers keep one Inflater per connection, which is small.
+final class Compression {
+    static final String CAPABILITY = "deflate";
+    static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors(); // Idle Deflaters kept; more are created under load and ended after
+    static final int SAMPLE_BYTES = 4096; // Large frames are tried on their first 4 KB before the whole frame is compressed
+
+    final int minBytes; // Frames smaller than this are not worth the CPU
+    final int level; // Deflater level, 1 (fastest) to 9 (smallest)
+    private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    final LongAdder packed = new LongAdder(); // Frames sent compressed (counted once, however many recipients)
+    final LongAdder skipped = new LongAdder(); // Frames tried that did not shrink enough (already compressed data)
+    final LongAdder rawBytes = new LongAdder(); // Size of the packed frames before...
+    final LongAdder packedBytes = new LongAdder(); // ...and after compression
+    final LongAdder nanos = new LongAdder(); // Time spent compressing, skipped frames included
+
+    Compression(int minBytes, int level) {
+        this.minBytes = minBytes;
+        this.level = level;
+    }
+
+    // A COMPRESSED frame holding 'frame' (one whole binary-v1 frame), or null if the frame is below minBytes or does
+    // not shrink by at least an eighth; the caller then sends it as it is
+    byte[] pack(byte[] frame) {
+        if (frame.length < minBytes) return null;
+        long start = System.nanoTime();
+        Deflater deflater = take();
+        try {
+            if (frame.length >= 4 * SAMPLE_BYTES && deflate(deflater, frame, SAMPLE_BYTES, SAMPLE_BYTES - SAMPLE_BYTES / 10) < 0) {
+                skipped.increment(); // JPEG, zip and the like; not worth compressing the rest
+                return null;
+            }
+            byte[] out = new byte[frame.length];
+            int length = deflate(deflater, frame, frame.length, out, frame.length - frame.length / 8);
+            if (length < 0) {
+                skipped.increment();
+                return null;
+            }
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(length + 16);
+            DataOutputStream data = new DataOutputStream(buf);
+            data.writeByte(BinaryProtocol.COMPRESSED);
+            BinaryProtocol.writeVarint(data, BinaryProtocol.varintSize(frame.length) + length);
+            BinaryProtocol.writeVarint(data, frame.length);
+            data.write(out, 0, length);
+            packed.increment();
+            rawBytes.add(frame.length);
+            packedBytes.add(buf.size());
+            return buf.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream never throws
+        } finally {
+            give(deflater);
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    // Compresses the first 'count' bytes of 'in' into a scratch buffer; returns -1 if the output is over 'limit'
+    private static int deflate(Deflater deflater, byte[] in, int count, int limit) {
+        return deflate(deflater, in, count, new byte[limit], limit);
+    }
+
+    private static int deflate(Deflater deflater, byte[] in, int count, byte[] out, int limit) {
+        deflater.reset();
+        deflater.setInput(in, 0, count);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length >= Math.min(limit, out.length)) return -1;
+            length += deflater.deflate(out, length, Math.min(limit, out.length) - length);
+        }
+        return length <= limit ? length : -1;
+    }
+
+    private Deflater take() {
+        Deflater deflater = pool.poll();
+        if (deflater == null) return new Deflater(level, true); // Raw deflate: no zlib header or checksum per frame
+        pooled.decrementAndGet();
+        return deflater;
+    }
+
+    private void give(Deflater deflater) {
+        if (pooled.incrementAndGet() <= POOL_SIZE) {
+            pool.offer(deflater);
+        } else {
+            pooled.decrementAndGet();
+            deflater.end(); // Frees its native memory now rather than at some later GC
+        }
+    }
+
+    // Inflates the COMPRESSED payload in 'payload' back into the binary-v1 frame it holds; 'inflater' belongs to the
+    // connection (created with nowrap = true). Refuses frames that would inflate past maxBytes.
+    static byte[] unpack(Inflater inflater, BinaryProtocol.Reader payload, int maxBytes) throws IOException {
+        long size = payload.varint();
+        if (size < 0 || size > maxBytes) throw new IOException("Invalid compressed frame size " + size); // Negative: top bit set
+        byte[] frame = new byte[(int) size];
+        inflater.reset();
+        payload.feed(inflater);
+        try {
+            int length = 0;
+            while (length < frame.length) {
+                int n = inflater.inflate(frame, length, frame.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed frame is shorter than announced");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        }
+        return frame;
+    }
+
+    // One line for the periodic stats log
+    String report() {
+        long raw = rawBytes.sum();
+        return String.format("Compression: %d frames packed, %d skipped, %d KB -> %d KB (%.0f%% saved per copy), %.1f ms CPU",
+                packed.sum(), skipped.sum(), raw / 1024, packedBytes.sum() / 1024,
+                raw > 0 ? 100.0 * (raw - packedBytes.sum()) / raw : 0, nanos.sum() / 1e6);
+    }
+}
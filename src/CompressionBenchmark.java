@@ -0,0 +1,113 @@
+import java.io.*; // For ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, IOException
+import java.util.*; // For Arrays, LinkedHashMap, Map, Random
+import java.util.zip.*; // For Inflater
+
+// Bandwidth saved against CPU spent by the "deflate" capability, for chat-like and binary payloads at each
+// Deflater level, and what sharing one compressed copy per broadcast saves over compressing per connection.
+// In-process, no sockets: every payload is encoded as the binary-v1 frame the server would send, then packed by
+// Compression and unpacked again the way a client does.
+// Usage: java CompressionBenchmark [milliseconds per case] [recipients]
+public class CompressionBenchmark {
+    static final String[] WORDS = ("hi hello ok yes no thanks see you later meeting lunch today tomorrow the a to is it "
+            + "project deadline review code bug fix deploy server client chat message file please can we could I "
+            + "think that this was will be on at for with about sounds good great sure why what when where").split(" ");
+
+    public static void main(String[] args) throws Exception {
+        int millis = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Random random = new Random(1);
+
+        Map<String, byte[]> payloads = new LinkedHashMap<>();
+        for (int size : new int[] {80, 512, 4096}) {
+            payloads.put("chat text " + size + " B", binary(Frame.chat(1, "alice", chatText(random, size))));
+        }
+        String[] names = new String[1000];
+        int[] ids = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "user" + random.nextInt(1_000_000);
+            ids[i] = i + 1;
+        }
+        payloads.put("user list 1000", binary(Frame.userList(ids, names)));
+        payloads.put("text file chunk 1 MB", chunk(chatText(random, 1 << 20).getBytes("UTF-8")));
+        byte[] noise = new byte[1 << 20];
+        random.nextBytes(noise);
+        payloads.put("random chunk 1 MB (jpeg/zip-like)", chunk(noise));
+
+        System.out.println("payload,level,raw_bytes,wire_bytes,saved_pct,pack_us,unpack_us,us_per_kb_saved");
+        for (Map.Entry<String, byte[]> e : payloads.entrySet()) {
+            for (int level : new int[] {1, 6, 9}) {
+                measure(e.getKey(), e.getValue(), new Compression(1, level), millis);
+            }
+        }
+
+        // One broadcast of a 4 KB message to every recipient: compressed once and shared, or once per connection
+        Compression shared = new Compression(512, 1);
+        byte[] frame = payloads.get("chat text 4096 B");
+        long perFrame = timePack(shared, frame, millis);
+        System.out.printf("broadcast of a 4 KB message to %d deflate recipients: shared copy %.1f us of CPU, per connection %.1f ms%n",
+                recipients, perFrame / 1e3, perFrame * (double) recipients / 1e6);
+        System.exit(0);
+    }
+
+    static void measure(String label, byte[] frame, Compression compression, int millis) throws IOException {
+        byte[] packed = compression.pack(frame);
+        long packNanos = timePack(compression, frame, millis);
+        long unpackNanos = 0;
+        int wire = frame.length;
+        if (packed != null) {
+            wire = packed.length;
+            Inflater inflater = new Inflater(true);
+            BinaryProtocol.Reader payload = new BinaryProtocol.Reader();
+            long count = 0;
+            long start = System.nanoTime();
+            long deadline = start + millis * 1_000_000L;
+            while (System.nanoTime() < deadline) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+                in.readUnsignedByte();
+                payload.fill(in, (int) BinaryProtocol.readVarint(in));
+                if (!Arrays.equals(Compression.unpack(inflater, payload, frame.length), frame)) throw new IllegalStateException("Round trip failed");
+                count++;
+            }
+            unpackNanos = (System.nanoTime() - start) / count;
+            inflater.end();
+        }
+        long saved = frame.length - wire;
+        System.out.printf("%s,%d,%d,%d,%.1f,%.1f,%.1f,%s%n", label, compression.level, frame.length, wire,
+                100.0 * saved / frame.length, packNanos / 1e3, unpackNanos / 1e3,
+                saved > 0 ? String.format("%.2f", packNanos / 1e3 / (saved / 1024.0)) : "-");
+    }
+
+    // Average time of one pack() of the frame, skipped ones included
+    static long timePack(Compression compression, byte[] frame, int millis) {
+        long count = 0;
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000L;
+        while (System.nanoTime() < deadline) {
+            compression.pack(frame);
+            count++;
+        }
+        return (System.nanoTime() - start) / count;
+    }
+
+    static String chatText(Random random, int bytes) {
+        StringBuilder sb = new StringBuilder(bytes + 16);
+        while (sb.length() < bytes) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ". " : " ");
+        }
+        return sb.substring(0, bytes);
+    }
+
+    static byte[] binary(Frame frame) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame.writeTo(out, null, true);
+        return out.toByteArray();
+    }
+
+    // A FILE_CHUNK frame as the server sends it: header, then the data
+    static byte[] chunk(byte[] data) {
+        byte[] header = new BinaryProtocol.Builder(BinaryProtocol.FILE_CHUNK).varint(1).toBytes(data.length);
+        byte[] frame = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, frame, header.length, data.length);
+        return frame;
+    }
+}
@@ -0,0 +1,104 @@
+import java.sql.*; // For Connection, DriverManager, PreparedStatement, SQLException, SQLTransientConnectionException
+import java.util.*; // For HashMap, Map
+import java.util.concurrent.*; // For ArrayBlockingQueue, BlockingQueue, Semaphore, TimeUnit
+
+// Small bounded JDBC connection pool, so a login does not pay for a TCP connect and MySQL handshake every time.
+// At most maxSize connections are ever open; they are opened on demand and reused after that.
+// Every pooled connection keeps its PreparedStatements, so the same SQL is only prepared once per connection.
+final class ConnectionPool implements AutoCloseable {
+    interface ConnectionFactory { // Where new connections come from; a stub in tests and benchmarks
+        Connection open() throws SQLException;
+    }
+
+    static final long VALIDATE_AFTER_MILLIS = 30_000; // Connections idle longer than this are checked before reuse (MySQL drops idle ones)
+
+    private final ConnectionFactory factory;
+    private final BlockingQueue<Pooled> idle;
+    private final Semaphore permits; // One per connection that may be in use; bounds the pool
+    private final long borrowTimeoutMillis;
+    private volatile boolean closed;
+
+    ConnectionPool(ConnectionFactory factory, int maxSize, long borrowTimeoutMillis) {
+        this.factory = factory;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+        this.permits = new Semaphore(maxSize, true); // Fair, so a burst of logins is served in arrival order
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    static ConnectionPool forUrl(String url, String user, String password, int maxSize) {
+        return new ConnectionPool(() -> DriverManager.getConnection(url, user, password), maxSize, 5_000);
+    }
+
+    // Waits up to borrowTimeoutMillis for a free connection; every borrow must be matched by release()
+    Pooled borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("No database connection free after " + borrowTimeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a database connection");
+        }
+        try {
+            Pooled c;
+            while ((c = idle.poll()) != null) {
+                if (System.currentTimeMillis() - c.releasedAt < VALIDATE_AFTER_MILLIS || c.connection.isValid(1)) {
+                    return c;
+                }
+                c.close(); // Dropped by the server while idle; try the next one or open a new one
+            }
+            return new Pooled(factory.open());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // broken: the connection failed during use and must not be handed out again
+    void release(Pooled c, boolean broken) {
+        if (broken || closed) {
+            c.close();
+        } else {
+            c.releasedAt = System.currentTimeMillis();
+            idle.offer(c); // Never full: there are at most maxSize connections
+        }
+        permits.release();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Pooled c;
+        while ((c = idle.poll()) != null) {
+            c.close();
+        }
+    }
+
+    // A pooled connection and its statement cache; used by one thread at a time, between borrow() and release()
+    static final class Pooled {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long releasedAt = System.currentTimeMillis();
+
+        Pooled(Connection connection) {
+            this.connection = connection;
+        }
+
+        // Prepared once per connection; callers must not close the returned statement
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pst = statements.get(sql);
+            if (pst == null) {
+                pst = connection.prepareStatement(sql);
+                statements.put(sql, pst);
+            }
+            return pst;
+        }
+
+        void close() {
+            try {
+                connection.close(); // Also closes its statements
+            } catch (SQLException e) {}
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.*; // For DataInputStream, EOFException, IOException
+import java.nio.channels.*; // For ReadableByteChannel
+import java.util.*; // For ArrayList, Collection, Iterator, List
+import java.util.concurrent.atomic.*; // For AtomicLong
+
+// Relays one uploaded file to its recipients without keeping it in the Java heap.
+// The upload is spooled to a temp file once (socket -> file with transferFrom) and every recipient is served
+// from that file with transferTo, so the data is neither copied per recipient nor held in memory.
+// Clients that announced "chunked-files" get FILE_BEGIN / FILE_CHUNK / FILE_END frames while the upload is running.
+// Older clients only understand a single "File" frame; they get it once the whole file is spooled.
+// A private file for a user who is offline is spooled all the same and stored in their Mailbox at the end.
+class FileRelay {
+    static final int CHUNK_SIZE = 64 * 1024; // Largest FILE_CHUNK the server accepts from a client
+    static final int RELAY_CHUNK = 1024 * 1024; // Spooled data is forwarded to recipients in FILE_CHUNKs of up to this size
+    private static final AtomicLong nextId = new AtomicLong(); // Server-wide transfer ids, so chunks from different senders never mix
+
+    final long id = newId();
+    final int senderId;
+    final String sender;
+    final String fileName;
+    final long size; // Announced size; long, so files are not capped at 2 GB
+    final String mailTo; // Offline recipient whose mailbox gets the file once it is complete; null otherwise
+    String mailProblem; // Set by end() if the file could not be stored for mailTo
+    private long received; // Bytes spooled so far
+    private long forwarded; // Bytes already handed to the streaming recipients
+    private boolean finished; // Set by end() or abort(), so the spool reference is only given back once
+
+    private final BroadcastServer server;
+    private final Spool spool; // Null when nobody will receive the upload; its bytes are then skipped
+    private final List<BroadcastServer.ClientHandler> streaming = new ArrayList<>(); // Recipients that speak chunked-files
+    private final List<BroadcastServer.ClientHandler> legacy = new ArrayList<>(); // Recipients that need one "File" frame
+
+    FileRelay(BroadcastServer server, int senderId, String sender, Collection<BroadcastServer.ClientHandler> recipients,
+              String mailTo, String fileName, long size) throws IOException {
+        this.server = server;
+        this.senderId = senderId;
+        this.sender = sender;
+        this.mailTo = mailTo;
+        this.fileName = fileName;
+        this.size = size;
+        for (BroadcastServer.ClientHandler r : recipients) {
+            (r.chunkedFiles ? streaming : legacy).add(r);
+        }
+        this.spool = recipients.isEmpty() && mailTo == null ? null : Spool.create(server.config.spoolDir);
+    }
+
+    static long newId() {
+        return nextId.incrementAndGet();
+    }
+
+    void begin() {
+        if (streaming.isEmpty()) return;
+        sendToStreaming(Frame.fileBegin(id, senderId, sender, fileName, size));
+    }
+
+    // Called on the uploader's reader thread with the next 'length' bytes of the upload waiting on the socket
+    void receive(DataInputStream in, ReadableByteChannel channel, int length) throws IOException {
+        if (received + length > size) {
+            throw new IOException("Upload of " + fileName + " is larger than announced");
+        }
+        received += length;
+        if (spool == null) {
+            skipFully(in, length);
+            return;
+        }
+        spool.append(channel, length);
+        server.metrics.bytesIn.add(length); // Read from the channel, so the metered stream does not see it
+        if (received - forwarded >= RELAY_CHUNK) {
+            forward();
+        }
+    }
+
+    void end() throws IOException {
+        if (finished) return;
+        if (received != size) {
+            abort();
+            throw new IOException("Upload of " + fileName + " ended after " + received + " of " + size + " bytes");
+        }
+        if (!streaming.isEmpty()) {
+            forward();
+            sendToStreaming(Frame.fileEnd(id));
+        }
+        if (!legacy.isEmpty()) {
+            Frame frame = size <= Integer.MAX_VALUE
+                    ? Frame.spooledFile(fileName, spool, (int) size)
+                    : Frame.notice(sender + " sent the file " + fileName + " (" + size + " bytes), which needs a newer client to receive.");
+            for (BroadcastServer.ClientHandler r : legacy) {
+                if (frame.spool != null) spool.retain(); // Held by the queued frame until it is written
+                try {
+                    r.send(frame);
+                } catch (IOException e) {
+                    if (frame.spool != null) spool.release();
+                    server.appendLog("Failed to send file to " + r.clientName);
+                }
+            }
+        }
+        if (mailTo != null) {
+            mailProblem = server.mailbox.depositFile(mailTo, sender, fileName, spool, size);
+        }
+        finished = true;
+        server.metrics.fileRelayed(size);
+        if (spool != null) spool.release(); // The relay's own reference; the file goes once the queued frames are written
+    }
+
+    // The uploader cancelled or disconnected; receivers discard what they have so far
+    void abort() {
+        if (finished) return;
+        finished = true;
+        if (!streaming.isEmpty()) {
+            sendToStreaming(Frame.fileAbort(id));
+        }
+        if (spool != null) spool.release();
+    }
+
+    // Hands everything spooled since the last call to the streaming recipients as one FILE_CHUNK.
+    // Waits while a recipient is a whole file window behind, which stops reading from the uploader.
+    private void forward() throws IOException {
+        int length = (int) (received - forwarded);
+        if (length == 0 || streaming.isEmpty()) return;
+        Frame chunk = Frame.spooledChunk(id, spool, forwarded, length); // One frame shared by every recipient
+        forwarded = received;
+        Iterator<BroadcastServer.ClientHandler> it = streaming.iterator();
+        while (it.hasNext()) {
+            spool.retain();
+            if (!it.next().sendChunk(chunk)) {
+                spool.release();
+                it.remove(); // Stalled or gone; it has been disconnected, the others carry on
+            }
+        }
+    }
+
+    private void sendToStreaming(Frame frame) {
+        for (BroadcastServer.ClientHandler r : streaming) {
+            try {
+                r.send(frame);
+            } catch (IOException e) {
+                server.appendLog("Failed to send file to " + r.clientName);
+            }
+        }
+    }
+
+    static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            int n = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (n <= 0) {
+                if (in.read() < 0) throw new EOFException("Connection closed during file upload");
+                n = 1;
+            }
+            count -= n;
+        }
+    }
+}
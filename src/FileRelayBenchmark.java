@@ -0,0 +1,127 @@
+import java.io.*; // For DataInputStream, DataOutputStream, File, IOException, RandomAccessFile
+import java.net.*; // For InetSocketAddress
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For FileChannel, SocketChannel
+import java.nio.file.*; // For StandardOpenOption
+import java.util.concurrent.*; // For CountDownLatch, TimeUnit
+
+// Throughput of the spooled file relay: one client uploads a file that N receivers download at the same time.
+// Usage: java FileRelayBenchmark [host] [port] [sizeMB] [receivers]
+// Defaults are a 1 GB file and 50 receivers; the server needs that much free space in its --spool-dir.
+public class FileRelayBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : BroadcastServer.PORT;
+        long size = (args.length > 2 ? Long.parseLong(args[2]) : 1024) * 1024 * 1024;
+        int receivers = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        File source = File.createTempFile("relay-bench-", ".bin");
+        source.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            raf.setLength(size); // Contents do not matter, only the byte count
+        }
+
+        CountDownLatch ready = new CountDownLatch(receivers);
+        CountDownLatch done = new CountDownLatch(receivers);
+        long[] finishedAt = new long[receivers];
+        for (int i = 0; i < receivers; i++) {
+            int index = i;
+            Thread t = new Thread(() -> receive(host, port, "recv" + index, ready, done, finishedAt, index), "receiver-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        ready.await();
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+        DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+        out.writeUTF("uploader");
+        out.writeUTF("CAPS");
+        out.writeUTF("chunked-files");
+        out.flush();
+        while (!in.readUTF().equals("CAPS")) {
+            // Skip the USER_LIST updates until the server confirms chunked-files
+        }
+        in.readUTF();
+        Thread.sleep(500); // Let the last USER_LIST reach the receivers
+
+        long start = System.nanoTime();
+        try (FileChannel file = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            out.writeUTF("FILE_BEGIN");
+            out.writeLong(1);
+            out.writeUTF("");
+            out.writeUTF("bench.bin");
+            out.writeLong(size);
+            for (long position = 0; position < size; ) {
+                int length = (int) Math.min(FileRelay.CHUNK_SIZE, size - position);
+                out.writeUTF("FILE_CHUNK");
+                out.writeLong(1);
+                out.writeInt(length);
+                out.flush();
+                for (long sent = 0; sent < length; ) {
+                    sent += file.transferTo(position + sent, length - sent, channel);
+                }
+                position += length;
+            }
+            out.writeUTF("FILE_END");
+            out.writeLong(1);
+            out.flush();
+        }
+        double uploadSeconds = (System.nanoTime() - start) / 1e9;
+
+        boolean finished = done.await(30, TimeUnit.MINUTES);
+        long last = 0;
+        for (long t : finishedAt) last = Math.max(last, t);
+        double totalSeconds = (last - start) / 1e9;
+        System.out.printf("file_mb=%d receivers=%d completed=%b upload_s=%.2f all_received_s=%.2f per_receiver_mb_s=%.1f aggregate_mb_s=%.1f%n",
+                size >> 20, receivers, finished, uploadSeconds, totalSeconds,
+                (size >> 20) / totalSeconds, (size >> 20) * (double) receivers / totalSeconds);
+        System.exit(0);
+    }
+
+    // Receiver that understands just enough of the protocol to discard a chunked file and time its arrival
+    private static void receive(String host, int port, String name, CountDownLatch ready, CountDownLatch done, long[] finishedAt, int index) {
+        try {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+            DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+            out.writeUTF(name);
+            out.writeUTF("CAPS");
+            out.writeUTF("chunked-files");
+            out.flush();
+            ready.countDown();
+
+            ByteBuffer sink = ByteBuffer.allocateDirect(256 * 1024);
+            while (true) {
+                String type = in.readUTF();
+                if (type.equals("CAPS")) {
+                    in.readUTF();
+                } else if (type.equals("FILE_BEGIN")) {
+                    in.readLong();
+                    in.readUTF();
+                    in.readUTF();
+                    in.readLong();
+                } else if (type.equals("FILE_CHUNK")) {
+                    in.readLong();
+                    long remaining = in.readInt();
+                    while (remaining > 0) {
+                        sink.clear();
+                        sink.limit((int) Math.min(sink.capacity(), remaining));
+                        int n = channel.read(sink);
+                        if (n < 0) throw new EOFException();
+                        remaining -= n;
+                    }
+                } else if (type.equals("FILE_END")) {
+                    in.readLong();
+                    finishedAt[index] = System.nanoTime();
+                    done.countDown();
+                    return;
+                }
+                // Anything else (USER_LIST, text) is a single string and already consumed
+            }
+        } catch (IOException e) {
+            System.err.println(name + " failed: " + e.getMessage());
+        }
+    }
+}
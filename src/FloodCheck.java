@@ -0,0 +1,272 @@
+import java.io.*; // For BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, IOException, InputStream, InterruptedIOException
+import java.net.*; // For InetSocketAddress, Socket
+import java.util.*; // For ArrayList, Arrays, List
+import java.util.concurrent.atomic.*; // For AtomicLong
+
+// Shows that one client flooding the server cannot raise the latency everyone else sees beyond what the limits
+// allow anyway. Starts a BroadcastServer process, connects legacy receivers and a probe that sends 40 timestamped
+// messages a second, and measures the probe's fan-out latency on the receivers:
+//   baseline        - the probe plus a client sending 1 KB messages at --max-messages-per-s and another uploading
+//                     files at --max-bytes-per-s, the most load the limits let clients keep up
+//   flood           - the same two clients sending as fast as they can instead
+//   flood,no-limits - the flood against a server started with the limits off, for comparison
+// Latency counts from WARMUP_SECONDS, once the flooder has spent its burst, until DISCONNECT_SECONDS, while it is
+// still connected; there the flood p99 may exceed the baseline p99 by LATENCY_MARGIN_NANOS only. Comparing against
+// the probe alone would charge the flood for load the limits permit; on a small machine that alone adds several
+// milliseconds.
+// In the flood phase the message flooder must get through at about --max-messages-per-s and then be disconnected
+// after --flood-disconnect-s, and the file flooder must be held to about --max-bytes-per-s. Prints PASS or FAIL.
+// Usage: java FloodCheck [receivers] [seconds] [firstPort]
+public class FloodCheck {
+    static final int MESSAGES_PER_SECOND = 50;
+    static final int MESSAGE_BURST = 100;
+    static final int BYTES_PER_SECOND = 1024 * 1024;
+    static final int DISCONNECT_SECONDS = 10; // Long enough that the p99 is not set by one or two scheduling hiccups
+    static final int WARMUP_SECONDS = 1;
+    static final int FILE_BYTES = 4 * 1024 * 1024; // Per upload; the file flooder sends one after another
+    static final long LATENCY_MARGIN_NANOS = 2_000_000; // Flood p99 may exceed the baseline p99 by this much, scheduling noise
+    static final String[] LIMITS = {"--max-messages-per-s=" + MESSAGES_PER_SECOND, "--message-burst=" + MESSAGE_BURST,
+            "--max-bytes-per-s=" + BYTES_PER_SECOND, "--byte-burst=" + BYTES_PER_SECOND, "--flood-disconnect-s=" + DISCONNECT_SECONDS};
+    static final String[] NO_LIMITS = {"--max-messages-per-s=0", "--max-bytes-per-s=0"};
+
+    static volatile Histogram latency = new Histogram(); // Probe messages only; swapped for every phase
+    static volatile long measureFrom; // Probe messages sent in [measureFrom, measureUntil) are recorded
+    static volatile long measureUntil;
+    static final AtomicLong floodDelivered = new AtomicLong(); // Flooder messages seen by the first receiver
+
+    public static void main(String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DISCONNECT_SECONDS + 2;
+        int firstPort = args.length > 2 ? Integer.parseInt(args[2]) : 7900;
+
+        Phase baseline = run("baseline", firstPort, LIMITS, receivers, seconds, false);
+        boolean steady = baseline.disconnectMillis < 0;
+        Phase flood = run("flood", firstPort + 1, LIMITS, receivers, seconds, true);
+        Phase unlimited = run("flood,no-limits", firstPort + 2, NO_LIMITS, receivers, seconds, true);
+
+        double allowedRate = 1.5 * MESSAGES_PER_SECOND + MESSAGE_BURST / (double) DISCONNECT_SECONDS;
+        boolean latencyOk = flood.p99 <= baseline.p99 + LATENCY_MARGIN_NANOS;
+        boolean throttled = flood.floodRate <= allowedRate;
+        boolean disconnected = flood.disconnectMillis > 0 && flood.disconnectMillis <= (DISCONNECT_SECONDS + 2) * 1000L;
+        boolean paced = flood.fileRate <= 1.5 * BYTES_PER_SECOND;
+        boolean pass = latencyOk && throttled && disconnected && paced && steady;
+        System.out.printf("p99 under flood %.2f ms vs %.2f ms alone, allowed +%.0f ms (%.2f ms without limits): %s%n",
+                flood.p99 / 1e6, baseline.p99 / 1e6, LATENCY_MARGIN_NANOS / 1e6, unlimited.p99 / 1e6, latencyOk ? "ok" : "too high");
+        System.out.printf("flooder delivered %.0f messages/s (limit %d, %.0f without limits): %s%n",
+                flood.floodRate, MESSAGES_PER_SECOND, unlimited.floodRate, throttled ? "ok" : "not throttled");
+        System.out.printf("client at the limit stayed connected: %s%n", steady ? "ok" : "disconnected");
+        System.out.printf("flooder disconnected after %d ms (--flood-disconnect-s=%d): %s%n",
+                flood.disconnectMillis, DISCONNECT_SECONDS, disconnected ? "ok" : "not disconnected");
+        System.out.printf("file flooder relayed %.0f KB/s (limit %d KB/s, %.0f KB/s without limits): %s%n",
+                flood.fileRate / 1024, BYTES_PER_SECOND / 1024, unlimited.fileRate / 1024, paced ? "ok" : "not paced");
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+
+    static final class Phase {
+        double p99; // Probe latency, nanoseconds
+        double floodRate; // Flooder messages per second that reached a receiver
+        long disconnectMillis = -1; // When the server dropped the message flooder, from the start of the flood
+        double fileRate; // File bytes per second that reached the file flooder's recipient
+    }
+
+    // 'flood' has the two clients send as fast as they can, otherwise they pace themselves at the limits
+    static Phase run(String name, int port, String[] limits, int receivers, int seconds, boolean flood) throws Exception {
+        Process server = startServer(port, limits);
+        try {
+            ClusterFailoverCheck.waitForPort("localhost:" + port);
+            for (int r = 0; r < receivers; r++) {
+                new Receiver(port, "receiver" + r, r == 0);
+            }
+            Sink sink = new Sink(port, "sink");
+            DataOutputStream probe = new DataOutputStream(new BufferedOutputStream(new Sink(port, "probe").socket.getOutputStream()));
+
+            latency = new Histogram();
+            floodDelivered.set(0);
+            Phase phase = new Phase();
+            long start = System.nanoTime() + 1_000_000_000L; // Joins settle, and the two clients connect outside the measurement
+            long end = start + seconds * 1_000_000_000L;
+            measureFrom = start + WARMUP_SECONDS * 1_000_000_000L;
+            measureUntil = start + DISCONNECT_SECONDS * 1_000_000_000L;
+            List<Thread> flooders = new ArrayList<>();
+            flooders.add(floodMessages(port, start, end, phase, flood ? 0 : MESSAGES_PER_SECOND));
+            flooders.add(floodFiles(port, start, end, flood ? 0 : BYTES_PER_SECOND));
+            pace(start);
+            for (long next = start; next < end; next += 25_000_000) { // 40 per second, under the message limit
+                Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+                probe.writeUTF(Long.toString(System.nanoTime()));
+                probe.flush();
+            }
+            for (Thread t : flooders) t.join();
+            Thread.sleep(500); // Let the last probe messages arrive
+
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            Histogram h = latency;
+            phase.p99 = h.percentile(0.99);
+            phase.floodRate = floodDelivered.get() / elapsed;
+            phase.fileRate = sink.bytes.get() / elapsed;
+            System.out.printf("phase=%s probe_messages=%d p50_us=%.0f p99_us=%.0f max_us=%.0f flood_delivered_per_s=%.0f file_kb_per_s=%.0f%n",
+                    name, h.count(), h.percentile(0.5) / 1e3, phase.p99 / 1e3, h.max() / 1e3, phase.floodRate, phase.fileRate / 1024);
+            return phase;
+        } finally {
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    // Sends 1 KB messages from 'start' until 'end', 'perSecond' of them or as fast as the server takes them if 0,
+    // noting when the server hangs up on it. Paced, it never dips into the burst: a client sending exactly as its
+    // tokens refill is throttled by a hair on every message, and would be disconnected.
+    static Thread floodMessages(int port, long start, long end, Phase phase, int perSecond) throws IOException {
+        Socket socket = connect(port, "flooder");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Thread reader = new Thread(() -> {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) in.readUTF();
+            } catch (IOException e) {
+                if (System.nanoTime() < end) phase.disconnectMillis = (System.nanoTime() - start) / 1_000_000;
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        char[] text = new char[1024];
+        Arrays.fill(text, 'x');
+        String message = new String(text);
+        Thread writer = new Thread(() -> {
+            try {
+                pace(start);
+                for (long sent = 0; System.nanoTime() < end; sent++) {
+                    if (perSecond > 0) {
+                        pace(start + sent * 1_000_000_000L / perSecond);
+                        if (System.nanoTime() >= end) break;
+                    }
+                    out.writeUTF(message);
+                    if (perSecond > 0) out.flush();
+                }
+            } catch (IOException e) {
+                // Disconnected
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    // Uploads FILE_BYTES files to the sink, one after another, from 'start' until 'end', at 'perSecond' bytes or as
+    // fast as the server takes them if 0
+    static Thread floodFiles(int port, long start, long end, int perSecond) throws IOException {
+        Socket socket = connect(port, "file-flooder");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        Thread writer = new Thread(() -> {
+            byte[] data = new byte[64 * 1024];
+            try {
+                long total = 0;
+                pace(start);
+                while (System.nanoTime() < end) {
+                    out.writeUTF("PRIVATE_FILE");
+                    out.writeUTF("sink");
+                    out.writeUTF("flood.bin");
+                    out.writeInt(FILE_BYTES);
+                    for (int sent = 0; sent < FILE_BYTES && System.nanoTime() < end; sent += data.length) {
+                        if (perSecond > 0) pace(start + total * 1_000_000_000L / perSecond);
+                        out.write(data);
+                        total += data.length;
+                        if (perSecond > 0) out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // Disconnected
+            } finally {
+                try {
+                    socket.close(); // May cut the last upload short; the server aborts it
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    static void pace(long until) throws IOException {
+        long wait = until - System.nanoTime();
+        if (wait <= 0) return;
+        try {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    static Process startServer(int port, String[] limits) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"),
+                "BroadcastServer", "--headless", "--auth=off", "--message-log=off", "--queue-stats-seconds=0", "--port=" + port));
+        command.addAll(Arrays.asList(limits));
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "flood-check-server.log")).start();
+    }
+
+    // Connects as an older client, which only sends its name
+    static Socket connect(int port, String name) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress("localhost", port));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(name);
+        out.flush();
+        return socket;
+    }
+
+    // Records the latency of the probe's messages, and counts the flooder's on one receiver
+    static final class Receiver {
+        Receiver(int port, String name, boolean countFlood) throws IOException {
+            Socket socket = connect(port, name);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        String message = in.readUTF();
+                        if (message.startsWith("probe: ")) {
+                            long sent = Long.parseLong(message.substring(7));
+                            if (sent >= measureFrom && sent < measureUntil) latency.record(System.nanoTime() - sent);
+                        } else if (countFlood && message.startsWith("flooder: ")) {
+                            floodDelivered.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Server gone
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    // Counts what arrives without parsing it: the file flooder's recipient, and the probe's reader (a client that
+    // stops reading is dropped as a slow consumer)
+    static final class Sink {
+        final Socket socket;
+        final AtomicLong bytes = new AtomicLong();
+
+        Sink(int port, String name) throws IOException {
+            socket = connect(port, name);
+            InputStream in = socket.getInputStream();
+            Thread reader = new Thread(() -> {
+                byte[] buf = new byte[64 * 1024];
+                try {
+                    for (int n; (n = in.read(buf)) > 0; ) bytes.addAndGet(n);
+                } catch (IOException e) {
+                    // Server gone
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.*; // For ByteArrayOutputStream, DataOutputStream, IOException, OutputStream
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For WritableByteChannel
+import java.util.*; // For Arrays
+
+// One outgoing message, encoded at most once per wire protocol.
+// A broadcast builds one Frame and hands it to every recipient; the legacy (writeUTF) and binary encodings
+// are each produced on first use and then shared, so encoding cost and garbage do not grow with the recipients.
+// The same goes for the COMPRESSED form sent to clients that negotiated "deflate": compressed once, sent to all of them.
+// File frames may also point at a region of a Spool; that part is sent with FileChannel.transferTo after the header.
+final class Frame {
+    static final int DIRECT_LIMIT = 64 * 1024; // Bigger frames stay on the heap instead of using scarce direct memory
+    private static final int CAPS = 100; // Legacy-only kinds; the others reuse the BinaryProtocol opcodes
+    private static final int FILE = 101;
+    private static final int MARKER = 102; // Never written; see marker()
+    private static final byte[] NOT_PACKED = new byte[0]; // Cached "compression does not pay off for this frame"
+
+    private final int kind; // A BinaryProtocol opcode, CAPS or FILE
+    private final int senderId; // Server-assigned id of the user the message is from, 0 for the server
+    private final String sender;
+    private final String text; // Message body, notice, capability list, file name or reject reason
+    private final String room; // ROOM_TEXT and REPLAY only
+    private final long id; // Transfer or upload id; for PRESENCE_DELTA the version it starts from; for chat and RESUME a message log seq (0 = not logged)
+    private final long size; // Announced file size; for presence frames the version they bring the client to; for REPLAY the original kind
+    private final int[] userIds; // USER_LIST and PRESENCE_SNAPSHOT: every user; PRESENCE_DELTA: users who joined
+    private final String[] userNames;
+    private final int[] leaveIds; // PRESENCE_DELTA: users who left
+    private final byte[] data; // In-memory "File" payload (NioBroadcastServer)
+
+    final int windowBytes; // File data bytes this frame holds against the recipient's file window (0 for other frames)
+    final boolean reliable; // Part of a chunked file transfer; dropping it would corrupt the file
+    final Spool spool; // Where the file data after the header lives, or null for frames that are all in memory
+    final long createdAt = System.nanoTime(); // For the delivery latency in ServerMetrics
+    final Runnable onFlushed; // MARKER only: what the writer runs once everything queued before it is flushed
+    private final long spoolOffset;
+    private final long spoolLength;
+
+    private volatile byte[] legacy; // Cached encodings; immutable once set, so the frame can be shared between threads
+    private volatile byte[] binary;
+    private volatile byte[] packed; // COMPRESSED encoding of 'binary' (and spooled data), shared by every deflate recipient
+    private volatile ByteBuffer direct; // Created on first channel write, then shared by every channel recipient
+
+    private Frame(int kind, int senderId, String sender, String text, String room, long id, long size, int[] userIds, String[] userNames,
+                  int[] leaveIds, byte[] data, boolean reliable, Spool spool, long spoolOffset, long spoolLength) {
+        this(kind, senderId, sender, text, room, id, size, userIds, userNames, leaveIds, data, reliable, spool, spoolOffset, spoolLength, null);
+    }
+
+    private Frame(int kind, int senderId, String sender, String text, String room, long id, long size, int[] userIds, String[] userNames,
+                  int[] leaveIds, byte[] data, boolean reliable, Spool spool, long spoolOffset, long spoolLength, Runnable onFlushed) {
+        this.kind = kind;
+        this.senderId = senderId;
+        this.sender = sender;
+        this.text = text;
+        this.room = room;
+        this.id = id;
+        this.size = size;
+        this.userIds = userIds;
+        this.userNames = userNames;
+        this.leaveIds = leaveIds;
+        this.data = data;
+        this.reliable = reliable;
+        this.windowBytes = kind == BinaryProtocol.FILE_CHUNK ? (int) spoolLength : 0;
+        this.spool = spool;
+        this.spoolOffset = spoolOffset;
+        this.spoolLength = spoolLength;
+        this.onFlushed = onFlushed;
+    }
+
+    private static Frame simple(int kind, int senderId, String sender, String text) {
+        return new Frame(kind, senderId, sender, text, null, 0, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    // A chat message to everyone; legacy clients see "sender: body"
+    static Frame chat(int senderId, String sender, String body) {
+        return chat(senderId, sender, body, 0);
+    }
+
+    // seq: the message's number in the MessageLog, which binary clients keep for RESUME (0 = not logged)
+    static Frame chat(int senderId, String sender, String body, long seq) {
+        return new Frame(BinaryProtocol.TEXT, senderId, sender, body, null, seq, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    // A private message; legacy clients see "[Private] sender: body"
+    static Frame privateMessage(int senderId, String sender, String body) {
+        return privateMessage(senderId, sender, body, 0);
+    }
+
+    static Frame privateMessage(int senderId, String sender, String body, long seq) {
+        return new Frame(BinaryProtocol.PRIVATE, senderId, sender, body, null, seq, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    // A message to the members of a room; legacy clients see "[#room] sender: body"
+    static Frame roomText(int senderId, String sender, String room, String body) {
+        return roomText(senderId, sender, room, body, 0);
+    }
+
+    static Frame roomText(int senderId, String sender, String room, String body, long seq) {
+        return new Frame(BinaryProtocol.ROOM_TEXT, senderId, sender, body, room, seq, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    // Where a resume client's message count starts: the newest seq in the MessageLog (binary-v1 only)
+    static Frame resumePoint(long seq) {
+        return new Frame(BinaryProtocol.RESUME, 0, null, null, null, seq, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    // A logged message the client missed while it was away; by sender name, since the sender's id may be gone
+    static Frame replay(MessageLog.Entry entry) {
+        String room = entry.kind == BinaryProtocol.ROOM_TEXT ? entry.target : "";
+        return new Frame(BinaryProtocol.REPLAY, 0, entry.sender, entry.text, room, entry.seq, entry.kind, null, null, null, null, false, null, 0, 0);
+    }
+
+    // Heartbeat (capability "heartbeat"); the token comes back in the PONG
+    static Frame ping(long token) {
+        return new Frame(BinaryProtocol.PING, 0, null, null, null, token, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    static Frame pong(long token) {
+        return new Frame(BinaryProtocol.PONG, 0, null, null, null, token, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    // Text from the server itself, shown as-is
+    static Frame notice(String text) {
+        return simple(BinaryProtocol.NOTICE, 0, null, text);
+    }
+
+    static Frame userList(int[] ids, String[] names) {
+        return new Frame(BinaryProtocol.USER_LIST, 0, null, null, null, 0, 0, ids, names, null, null, false, null, 0, 0);
+    }
+
+    // Everyone online at 'version'; sent when a presence client switches to binary-v1 or asks for a resync.
+    // Only sent to clients that announced "presence", which always speak binary-v1 by then.
+    static Frame presenceSnapshot(long version, int[] ids, String[] names) {
+        return new Frame(BinaryProtocol.PRESENCE_SNAPSHOT, 0, null, null, null, 0, version, ids, names, null, null, false, null, 0, 0);
+    }
+
+    // Net changes between two presence versions; a user who joined and left in between appears in neither list
+    static Frame presenceDelta(long fromVersion, long toVersion, int[] joinIds, String[] joinNames, int[] leaveIds) {
+        return new Frame(BinaryProtocol.PRESENCE_DELTA, 0, null, null, null, fromVersion, toVersion, joinIds, joinNames, leaveIds, null, false, null, 0, 0);
+    }
+
+    // Reply to a client's CAPS message with the capabilities this server supports, e.g. "chunked-files,binary-v1".
+    // Always sent in the legacy format; when it includes binary-v1 everything after it is binary.
+    static Frame caps(String capabilities) {
+        return simple(CAPS, 0, null, capabilities);
+    }
+
+    // Whole file as one legacy "File" frame (NioBroadcastServer, which does not spool)
+    static Frame file(String fileName, byte[] data) {
+        return new Frame(FILE, 0, null, fileName, null, 0, data.length, null, null, null, data, false, null, 0, 0);
+    }
+
+    // Legacy "File" frame whose payload is the whole spooled upload
+    static Frame spooledFile(String fileName, Spool spool, int size) {
+        return new Frame(FILE, 0, null, fileName, null, 0, size, null, null, null, null, false, spool, 0, size);
+    }
+
+    // Tells an uploading client that the server refused its transfer (client-chosen id), so it stops sending
+    static Frame fileReject(long uploadId, String reason) {
+        return new Frame(BinaryProtocol.FILE_REJECT, 0, null, reason, null, uploadId, 0, null, null, null, null, false, null, 0, 0);
+    }
+
+    // Chunked file transfer, see FileRelay. Every frame carries the server-assigned transfer id.
+    static Frame fileBegin(long id, int senderId, String sender, String fileName, long size) {
+        return new Frame(BinaryProtocol.FILE_BEGIN, senderId, sender, fileName, null, id, size, null, null, null, null, true, null, 0, 0);
+    }
+
+    // FILE_CHUNK header; the chunk data itself is read from the spool when the frame is written
+    static Frame spooledChunk(long id, Spool spool, long offset, int length) {
+        return new Frame(BinaryProtocol.FILE_CHUNK, 0, null, null, null, id, 0, null, null, null, null, true, spool, offset, length);
+    }
+
+    static Frame fileEnd(long id) {
+        return new Frame(BinaryProtocol.FILE_END, 0, null, null, null, id, 0, null, null, null, null, true, null, 0, 0);
+    }
+
+    static Frame fileAbort(long id) {
+        return new Frame(BinaryProtocol.FILE_ABORT, 0, null, null, null, id, 0, null, null, null, null, true, null, 0, 0);
+    }
+
+    // Puts nothing on the wire: BroadcastServer's writer runs 'onFlushed' after the flush that follows it, so whoever
+    // queued it learns that the frames queued before it have been written. A marker discarded with the queue never
+    // runs it. Per recipient, never shared.
+    static Frame marker(Runnable onFlushed) {
+        return new Frame(MARKER, 0, null, null, null, 0, 0, null, null, null, null, false, null, 0, 0, onFlushed);
+    }
+
+    boolean isMarker() {
+        return kind == MARKER;
+    }
+
+    // True for the CAPS reply that moves the connection to the binary protocol
+    boolean switchesToBinary() {
+        return kind == CAPS && text.contains(BinaryProtocol.VERSION);
+    }
+
+    // For stream based recipients; writes the shared array without copying it
+    void writeTo(OutputStream out) throws IOException {
+        writeTo(out, null, false);
+    }
+
+    // BroadcastServer's writer threads pass the socket's channel too, so spooled data goes out with transferTo
+    void writeTo(OutputStream out, WritableByteChannel channel, boolean binaryProtocol) throws IOException {
+        writeTo(out, channel, binaryProtocol, (Runnable) null);
+    }
+
+    // As above; 'progress' (may be null) runs after every Spool.PROGRESS_BYTES of spooled data sent
+    void writeTo(OutputStream out, WritableByteChannel channel, boolean binaryProtocol, Runnable progress) throws IOException {
+        out.write(binaryProtocol ? binaryBytes() : legacyBytes());
+        if (spool != null) {
+            out.flush(); // The header must be on the wire before the spooled bytes
+            spool.transferTo(spoolOffset, spoolLength, channel, progress);
+        }
+    }
+
+    // As above for a binary-v1 connection that negotiated "deflate" (compression != null); returns the bytes written.
+    // The frame is compressed once, by the first writer that needs it, and the result is shared like the encodings.
+    long writeTo(OutputStream out, WritableByteChannel channel, boolean binaryProtocol, Compression compression,
+            Runnable progress) throws IOException {
+        if (binaryProtocol && compression != null) {
+            byte[] bytes = packedBytes(compression);
+            if (bytes != NOT_PACKED) {
+                out.write(bytes);
+                return bytes.length;
+            }
+        }
+        writeTo(out, channel, binaryProtocol, progress);
+        return wireSize(binaryProtocol);
+    }
+
+    // Bytes writeTo puts on the wire for this protocol, spooled file data included; encodes on first use
+    long wireSize(boolean binaryProtocol) {
+        return (binaryProtocol ? binaryBytes() : legacyBytes()).length + (spool != null ? spoolLength : 0);
+    }
+
+    // For channel based recipients (NioBroadcastServer, legacy protocol only); each call returns an independent
+    // read-only view of the same bytes. NioBroadcastServer never relays spooled files, so only in-memory frames get here.
+    ByteBuffer buffer() {
+        byte[] bytes = legacyBytes();
+        if (bytes.length > DIRECT_LIMIT) {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        ByteBuffer shared = direct;
+        if (shared == null) { // Two threads may race to create it; either copy is correct and one simply wins
+            ByteBuffer copy = ByteBuffer.allocateDirect(bytes.length);
+            copy.put(bytes).flip();
+            direct = shared = copy.asReadOnlyBuffer();
+        }
+        return shared.duplicate();
+    }
+
+    private byte[] legacyBytes() {
+        byte[] bytes = legacy;
+        if (bytes == null) { // A race only means encoding twice; both results are identical
+            legacy = bytes = encodeLegacy();
+        }
+        return bytes;
+    }
+
+    private byte[] binaryBytes() {
+        byte[] bytes = binary;
+        if (bytes == null) {
+            binary = bytes = encodeBinary();
+        }
+        return bytes;
+    }
+
+    private byte[] packedBytes(Compression compression) throws IOException {
+        byte[] bytes = packed;
+        if (bytes != null) return bytes;
+        if (kind >= CAPS || kind == BinaryProtocol.COMPRESSED || binaryBytes().length + spoolLength < compression.minBytes) {
+            return packed = NOT_PACKED; // Legacy-only kinds, or too small to bother
+        }
+        synchronized (this) { // Unlike encoding, compressing a big chunk is worth not doing twice when writers race
+            bytes = packed;
+            if (bytes == null) {
+                byte[] frame = binaryBytes();
+                if (spool != null) { // FILE_CHUNK header followed by its data
+                    byte[] data = spool.read(spoolOffset, (int) spoolLength);
+                    byte[] whole = Arrays.copyOf(frame, frame.length + data.length);
+                    System.arraycopy(data, 0, whole, frame.length, data.length);
+                    frame = whole;
+                }
+                bytes = compression.pack(frame);
+                packed = bytes = bytes != null ? bytes : NOT_PACKED;
+            }
+        }
+        return bytes;
+    }
+
+    private byte[] encodeLegacy() {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64 + (data != null ? data.length : 0));
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            switch (kind) {
+                case BinaryProtocol.TEXT:
+                    out.writeUTF(fitUTF(sender + ": " + text));
+                    break;
+                case BinaryProtocol.PRIVATE:
+                    out.writeUTF(fitUTF("[Private] " + sender + ": " + text));
+                    break;
+                case BinaryProtocol.NOTICE:
+                    out.writeUTF(fitUTF(text));
+                    break;
+                case BinaryProtocol.ROOM_TEXT:
+                    out.writeUTF(fitUTF("[#" + room + "] " + sender + ": " + text));
+                    break;
+                case BinaryProtocol.USER_LIST:
+                    StringBuilder sb = new StringBuilder("USER_LIST"); // USER_LIST/Mukesh/Arun/Anamika
+                    for (String name : userNames) {
+                        sb.append("/").append(name);
+                    }
+                    out.writeUTF(fitUTF(sb.toString()));
+                    break;
+                case BinaryProtocol.PRESENCE_SNAPSHOT:
+                case BinaryProtocol.PRESENCE_DELTA:
+                case BinaryProtocol.RESUME:
+                case BinaryProtocol.REPLAY:
+                    throw new IllegalStateException("Presence and resume frames are only sent to binary-v1 clients");
+                case CAPS:
+                    out.writeUTF("CAPS");
+                    out.writeUTF(text);
+                    break;
+                case FILE:
+                    out.writeUTF("File");
+                    out.writeUTF(fitUTF(text)); // File name
+                    out.writeInt((int) size); // File size
+                    if (data != null) out.write(data);
+                    break;
+                case BinaryProtocol.FILE_BEGIN: // FILE_BEGIN id sender name size
+                    out.writeUTF("FILE_BEGIN");
+                    out.writeLong(id);
+                    out.writeUTF(sender);
+                    out.writeUTF(fitUTF(text));
+                    out.writeLong(size);
+                    break;
+                case BinaryProtocol.FILE_CHUNK: // FILE_CHUNK id length bytes
+                    out.writeUTF("FILE_CHUNK");
+                    out.writeLong(id);
+                    out.writeInt((int) spoolLength);
+                    break;
+                case BinaryProtocol.PING:
+                case BinaryProtocol.PONG:
+                    out.writeUTF(kind == BinaryProtocol.PING ? "PING" : "PONG");
+                    out.writeLong(id);
+                    break;
+                case BinaryProtocol.FILE_END:
+                    out.writeUTF("FILE_END");
+                    out.writeLong(id);
+                    break;
+                case BinaryProtocol.FILE_ABORT:
+                    out.writeUTF("FILE_ABORT");
+                    out.writeLong(id);
+                    break;
+                case BinaryProtocol.FILE_REJECT:
+                    out.writeUTF("FILE_REJECT");
+                    out.writeLong(id);
+                    out.writeUTF(fitUTF(text));
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown frame kind " + kind);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream never throws and fitUTF keeps strings in range
+        }
+        return buf.toByteArray();
+    }
+
+    private byte[] encodeBinary() {
+        switch (kind) {
+            case BinaryProtocol.TEXT:
+            case BinaryProtocol.PRIVATE:
+                return withSeq(new BinaryProtocol.Builder(kind).varint(senderId).string(text)).toBytes();
+            case BinaryProtocol.NOTICE:
+                return new BinaryProtocol.Builder(kind).string(text).toBytes();
+            case BinaryProtocol.ROOM_TEXT:
+                return withSeq(new BinaryProtocol.Builder(kind).varint(senderId).string(room).string(text)).toBytes();
+            case BinaryProtocol.RESUME:
+            case BinaryProtocol.PING:
+            case BinaryProtocol.PONG:
+                return new BinaryProtocol.Builder(kind).varint(id).toBytes();
+            case BinaryProtocol.REPLAY:
+                return new BinaryProtocol.Builder(kind).varint(id).varint(size).string(sender).string(room).string(text).toBytes();
+            case BinaryProtocol.USER_LIST:
+                BinaryProtocol.Builder list = new BinaryProtocol.Builder(kind).varint(userIds.length);
+                for (int i = 0; i < userIds.length; i++) {
+                    list.varint(userIds[i]).string(userNames[i]);
+                }
+                return list.toBytes();
+            case BinaryProtocol.PRESENCE_SNAPSHOT:
+                BinaryProtocol.Builder snapshot = new BinaryProtocol.Builder(kind).varint(size).varint(userIds.length);
+                for (int i = 0; i < userIds.length; i++) {
+                    snapshot.varint(userIds[i]).string(userNames[i]);
+                }
+                return snapshot.toBytes();
+            case BinaryProtocol.PRESENCE_DELTA:
+                BinaryProtocol.Builder delta = new BinaryProtocol.Builder(kind).varint(id).varint(size).varint(userIds.length);
+                for (int i = 0; i < userIds.length; i++) {
+                    delta.varint(userIds[i]).string(userNames[i]);
+                }
+                delta.varint(leaveIds.length);
+                for (int leaveId : leaveIds) {
+                    delta.varint(leaveId);
+                }
+                return delta.toBytes();
+            case BinaryProtocol.FILE_BEGIN:
+                return new BinaryProtocol.Builder(kind).varint(id).varint(senderId).string(text).varint(size).toBytes();
+            case BinaryProtocol.FILE_CHUNK:
+                return new BinaryProtocol.Builder(kind).varint(id).toBytes(spoolLength); // Spooled data follows
+            case BinaryProtocol.FILE_END:
+            case BinaryProtocol.FILE_ABORT:
+                return new BinaryProtocol.Builder(kind).varint(id).toBytes();
+            case BinaryProtocol.FILE_REJECT:
+                return new BinaryProtocol.Builder(kind).varint(id).string(text).toBytes();
+            default: // CAPS and FILE only exist in the legacy protocol
+                return legacyBytes();
+        }
+    }
+
+    // Logged messages end with their seq; clients that read fields in order never notice the extra varint
+    private BinaryProtocol.Builder withSeq(BinaryProtocol.Builder builder) {
+        return id > 0 ? builder.varint(id) : builder;
+    }
+
+    // writeUTF cannot encode more than 65535 bytes; legacy clients get long text cut short instead of a broken stream
+    static String fitUTF(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            bytes += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3); // Modified UTF-8 sizes
+            if (bytes > 65535 - 3) {
+                if (i > 0 && Character.isHighSurrogate(s.charAt(i - 1))) i--; // Do not split a surrogate pair
+                return s.substring(0, i) + "\u2026";
+            }
+        }
+        return s;
+    }
+}
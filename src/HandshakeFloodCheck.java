@@ -0,0 +1,45 @@
+import java.io.*; // For DataInputStream, DataOutputStream, IOException
+import java.net.*; // For Socket
+import java.util.*; // For ArrayList, List
+
+// Shows that connections which never finish their handshake do not hold up anyone else.
+// Times a normal client's connect (until its first USER_LIST arrives), opens N silent sockets that send nothing,
+// then times the normal client again while they are all still open. Needs a server started with --auth=off.
+// Usage: java HandshakeFloodCheck [host] [port] [silentSockets]
+public class HandshakeFloodCheck {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : BroadcastServer.PORT;
+        int silentCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        long baseline = timeConnect(host, port, "flood-check-before");
+
+        List<Socket> silent = new ArrayList<>();
+        for (int i = 0; i < silentCount; i++) {
+            silent.add(new Socket(host, port)); // Connected and accepted, but never sends a name
+        }
+        Thread.sleep(200); // Let the server accept them all
+
+        long during = timeConnect(host, port, "flood-check-during");
+        for (Socket s : silent) s.close();
+
+        boolean pass = during < Math.max(10 * baseline, 250_000_000L); // Generous: a stalled accept loop would never finish
+        System.out.printf("silent_sockets=%d connect_ms_before=%.2f connect_ms_during=%.2f result=%s%n",
+                silentCount, baseline / 1e6, during / 1e6, pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+
+    // Connects as an older client (name only) and waits for the server's first message, which is the USER_LIST
+    static long timeConnect(String host, int port, String name) throws IOException {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(host, port)) {
+            socket.setSoTimeout(30_000); // Fail instead of hanging if the server is stuck
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(name);
+            out.flush();
+            new DataInputStream(socket.getInputStream()).readUTF();
+            return System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.concurrent.atomic.*; // For AtomicLong, LongAdder
+
+// Counters for the connection handshake stage in BroadcastServer, reported with the queue stats.
+// LongAdder: every accept and handshake updates them, often from many threads at once.
+final class HandshakeMetrics {
+    final LongAdder accepted = new LongAdder(); // Connections taken off the accept queue
+    final LongAdder completed = new LongAdder(); // Handshakes that ended with the client admitted
+    final LongAdder rejected = new LongAdder(); // Closed at once because too many handshakes were pending
+    final LongAdder timedOut = new LongAdder(); // Closed because the handshake was not finished before the deadline
+    final LongAdder failed = new LongAdder(); // Login refused, or the client left during the handshake
+    private final LongAdder latencyNanos = new LongAdder(); // Accept to admitted, summed over 'completed'
+    private final AtomicLong maxLatencyNanos = new AtomicLong(); // Since the last report
+
+    private long lastReportAt = System.nanoTime();
+    private long lastAccepted;
+    private long lastCompleted;
+    private long lastLatencyNanos;
+
+    void completed(long nanos) {
+        completed.increment();
+        latencyNanos.add(nanos);
+        maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // Rates and latency since the previous call; only the stats thread calls this
+    String report(int pending, int maxPending) {
+        long now = System.nanoTime();
+        long accepts = accepted.sum();
+        long completes = completed.sum();
+        long latency = latencyNanos.sum();
+        double seconds = Math.max(1e-9, (now - lastReportAt) / 1e9);
+        long newCompletes = completes - lastCompleted;
+        String line = String.format("Handshakes: %.0f accepts/s, %.0f logins/s, avg %.1f ms, max %.1f ms, pending %d/%d, rejected %d, timed out %d, failed %d",
+                (accepts - lastAccepted) / seconds, newCompletes / seconds,
+                newCompletes == 0 ? 0.0 : (latency - lastLatencyNanos) / 1e6 / newCompletes,
+                maxLatencyNanos.getAndSet(0) / 1e6, pending, maxPending, rejected.sum(), timedOut.sum(), failed.sum());
+        lastReportAt = now;
+        lastAccepted = accepts;
+        lastCompleted = completes;
+        lastLatencyNanos = latency;
+        return line;
+    }
+}
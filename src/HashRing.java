@@ -0,0 +1,66 @@
+import java.nio.charset.*; // For StandardCharsets
+import java.util.*; // For ArrayList, Collection, List, Map, TreeMap
+
+// Consistent hashing: every node is placed on a ring of 64-bit hashes at VIRTUAL_NODES points, and a key belongs to
+// the first node at or after the key's own hash. Removing a node only moves the keys that were on it (to the next
+// node along the ring); everyone else stays where they were, which is what failover wants.
+// Immutable; a membership change builds a new ring (a few hundred points, so that is cheap).
+// Clients use it to pick the node a user belongs on (and the next one if that is down); the servers use the same
+// order to settle which node a name is routed to while it is briefly listed on two.
+final class HashRing<N> {
+    static final int VIRTUAL_NODES = 128; // Points per node; more spreads the keys more evenly
+
+    private final TreeMap<Long, N> ring = new TreeMap<>();
+    private final int nodes;
+
+    HashRing(Collection<N> members) {
+        for (N node : members) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+        nodes = members.size();
+    }
+
+    // The node the key belongs to, or null for an empty ring
+    N owner(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, N> e = ring.ceilingEntry(hash(key));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    // Every node, in the order a key falls over to them: the owner first, then the next distinct nodes along the ring
+    List<N> owners(String key) {
+        List<N> order = new ArrayList<>(nodes);
+        if (ring.isEmpty()) return order;
+        long h = hash(key);
+        for (N node : ring.tailMap(h).values()) {
+            if (order.size() == nodes) return order;
+            if (!order.contains(node)) order.add(node);
+        }
+        for (N node : ring.headMap(h).values()) { // Wrapped around
+            if (order.size() == nodes) return order;
+            if (!order.contains(node)) order.add(node);
+        }
+        return order;
+    }
+
+    int size() {
+        return nodes;
+    }
+
+    // FNV-1a over the UTF-8 bytes, then the MurmurHash3 finalizer so that similar names land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ec6c3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
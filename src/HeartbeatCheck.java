@@ -0,0 +1,258 @@
+import java.io.*; // For BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, IOException, InputStream
+import java.lang.management.*; // For ManagementFactory, ThreadMXBean
+import java.net.*; // For InetSocketAddress, Socket
+import java.util.*; // For ArrayList, Arrays, List, Set
+import java.util.concurrent.*; // For ConcurrentHashMap, ScheduledThreadPoolExecutor, TimeUnit
+
+// Two parts:
+//  1. Timer cost: N connections' worth of heartbeats (each reschedules itself every interval, like the server's
+//     checkAlive) on a TimingWheel and on a ScheduledThreadPoolExecutor; prints the CPU the timer thread uses, the
+//     cost of scheduling and how late the timers fire.
+//  2. Reaping: starts a BroadcastServer process with short heartbeat settings and connects
+//       live  - "heartbeat" clients that answer every PING
+//       dead  - "heartbeat" clients that go silent and stop reading, as a half-open connection looks to the server
+//       stuck - older clients that stop reading while large messages are broadcast, so their writer blocks
+//     and checks that dead and stuck ones vanish from the user list within the idle timeout while live ones stay.
+//     Then an older client downloads a SLOW_FILE_BYTES file at SLOW_BYTES_PER_SECOND: one frame that keeps its writer
+//     busy for several idle timeouts, but moving, so it must stay and get the whole file.
+// Prints PASS or FAIL.
+// Usage: java HeartbeatCheck [timers] [seconds] [port]
+public class HeartbeatCheck {
+    static final int PING_MILLIS = 300;
+    static final int IDLE_MILLIS = 1000;
+    static final int CLIENTS = 5; // Of each kind
+    static final int SLOW_FILE_BYTES = 12 * 1024 * 1024;
+    static final int SLOW_BYTES_PER_SECOND = 2 * 1024 * 1024; // A Spool.PROGRESS_BYTES piece every half idle timeout
+
+    public static void main(String[] args) throws Exception {
+        int timers = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 7950;
+
+        System.out.println("timer,timers,schedule_ns,timer_thread_cpu_pct,late_p50_ms,late_p99_ms,late_max_ms");
+        timerCost("timing-wheel", timers, seconds);
+        timerCost("scheduled-executor", timers, seconds);
+        boolean pass = reaping(port);
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+
+    // Every timer fires once a second, spread evenly, and schedules its next run from inside its task
+    static void timerCost(String kind, int count, int seconds) throws Exception {
+        Histogram[] late = {new Histogram()}; // Swapped once the first round is over
+        long interval = TimeUnit.SECONDS.toNanos(1);
+        Set<Long> timerThreads = ConcurrentHashMap.newKeySet();
+        TimingWheel wheel = kind.equals("timing-wheel") ? new TimingWheel("bench-wheel", 100, 1024, Throwable::printStackTrace) : null;
+        ScheduledThreadPoolExecutor executor = wheel == null ? new ScheduledThreadPoolExecutor(1) : null;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        class Beat implements Runnable {
+            long due;
+
+            public void run() {
+                long now = System.nanoTime();
+                timerThreads.add(Thread.currentThread().getId());
+                late[0].record(now - due);
+                if (now > end) return;
+                due = now + interval;
+                if (wheel != null) {
+                    wheel.schedule(this, interval, TimeUnit.NANOSECONDS);
+                } else {
+                    executor.schedule(this, interval, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Beat beat = new Beat();
+            long delay = interval * i / count;
+            beat.due = System.nanoTime() + delay;
+            if (wheel != null) {
+                wheel.schedule(beat, delay, TimeUnit.NANOSECONDS);
+            } else {
+                executor.schedule(beat, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+        long scheduleNanos = (System.nanoTime() - start) / count;
+        Thread.sleep(1500); // The first round, whose lateness includes the scheduling above, then measure
+        late[0] = new Histogram();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long id = timerThreads.iterator().next();
+        long cpuBefore = threads.getThreadCpuTime(id);
+        long wallBefore = System.nanoTime();
+        Thread.sleep(Math.max(0, (end - System.nanoTime()) / 1_000_000));
+        double cpuPct = 100.0 * (threads.getThreadCpuTime(id) - cpuBefore) / (System.nanoTime() - wallBefore);
+        System.out.printf("%s,%d,%d,%.1f,%.1f,%.1f,%.1f%n", kind, count, scheduleNanos, cpuPct,
+                late[0].percentile(0.5) / 1e6, late[0].percentile(0.99) / 1e6, late[0].max() / 1e6);
+        if (executor != null) executor.shutdownNow();
+        Thread.sleep(1200); // Let the wheel's timers run out
+    }
+
+    static boolean reaping(int port) throws Exception {
+        Process server = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "BroadcastServer", "--headless", "--auth=off",
+                "--message-log=off", "--queue-stats-seconds=0", "--metrics-port=0", "--port=" + port,
+                "--ping-interval-ms=" + PING_MILLIS, "--idle-timeout-ms=" + IDLE_MILLIS, "--timer-tick-ms=20",
+                "--backpressure=drop-oldest", "--max-messages-per-s=0", "--max-bytes-per-s=0", "--socket-send-buffer=65536")
+                .redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "heartbeat-check-server.log")).start();
+        try {
+            ClusterFailoverCheck.waitForPort("localhost:" + port);
+            Client watcher = new Client(port, "watcher", true);
+            List<Client> live = new ArrayList<>();
+            List<Client> dead = new ArrayList<>();
+            List<Client> stuck = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                live.add(new Client(port, "live" + i, true));
+                dead.add(new Client(port, "dead" + i, true));
+                stuck.add(new Client(port, "stuck" + i, false));
+            }
+            List<String> everyone = new ArrayList<>();
+            for (List<Client> kind : Arrays.asList(live, dead, stuck)) {
+                for (Client c : kind) everyone.add(c.name);
+            }
+            boolean joined = ClusterFailoverCheck.waitUntil(() -> watcher.users.containsAll(everyone));
+
+            long start = System.nanoTime();
+            for (Client c : dead) c.goSilent();
+            for (Client c : stuck) c.goSilent();
+            char[] big = new char[60_000];
+            Arrays.fill(big, 'x');
+            String message = new String(big);
+            for (int i = 0; i < 200; i++) { // 12 MB each, far more than the stuck clients' socket buffers take
+                watcher.send(message);
+            }
+            boolean deadGone = ClusterFailoverCheck.waitUntil(() -> dead.stream().noneMatch(c -> watcher.users.contains(c.name)));
+            long deadMillis = (System.nanoTime() - start) / 1_000_000;
+            boolean stuckGone = ClusterFailoverCheck.waitUntil(() -> stuck.stream().noneMatch(c -> watcher.users.contains(c.name)));
+            long stuckMillis = (System.nanoTime() - start) / 1_000_000;
+            Thread.sleep(3L * IDLE_MILLIS); // Idle live clients must survive several timeouts by answering PINGs
+            boolean liveStay = live.stream().allMatch(c -> watcher.users.contains(c.name) && c.pings > 0 && !c.closed);
+
+            SlowReader slow = new SlowReader(port, "slow");
+            boolean slowJoined = ClusterFailoverCheck.waitUntil(() -> watcher.users.contains("slow"));
+            long slowStart = System.nanoTime();
+            watcher.sendFile("slow", SLOW_FILE_BYTES);
+            ClusterFailoverCheck.waitUntil(() -> slow.bytes >= SLOW_FILE_BYTES || slow.closed);
+            long slowMillis = (System.nanoTime() - slowStart) / 1_000_000;
+            boolean slowStay = slowJoined && slow.bytes >= SLOW_FILE_BYTES && !slow.closed && watcher.users.contains("slow");
+
+            System.out.printf("joined=%s dead_reaped=%s after %d ms, stuck_reaped=%s after %d ms (idle timeout %d ms)%n",
+                    joined, deadGone, deadMillis, stuckGone, stuckMillis, IDLE_MILLIS);
+            System.out.printf("live clients still listed after %d ms idle, answering %d PINGs each: %s%n",
+                    3 * IDLE_MILLIS, live.get(0).pings, liveStay);
+            System.out.printf("slow client got %d of %d bytes in %d ms and is still listed: %s%n",
+                    slow.bytes, SLOW_FILE_BYTES, slowMillis, slowStay);
+            boolean inTime = deadMillis < 3L * IDLE_MILLIS && stuckMillis < 3L * IDLE_MILLIS + 2000;
+            return joined && deadGone && stuckGone && liveStay && slowStay && inTime;
+        } finally {
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    // A writeUTF-protocol client; with 'heartbeat' it announces the capability and answers PINGs
+    static final class Client {
+        final String name;
+        final Set<String> users = ConcurrentHashMap.newKeySet();
+        private final Socket socket;
+        private final DataOutputStream out;
+        private volatile boolean silent; // Stops reading and answering, like a peer that vanished
+        volatile int pings;
+        volatile boolean closed;
+
+        Client(int port, String name, boolean heartbeat) throws IOException {
+            this.name = name;
+            socket = new Socket();
+            socket.setReceiveBufferSize(64 * 1024); // Keeps how much a stuck client soaks up small
+            socket.connect(new InetSocketAddress("localhost", port));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(name);
+            if (heartbeat) {
+                out.writeUTF("CAPS");
+                out.writeUTF("heartbeat");
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        String type = in.readUTF();
+                        if (silent) break;
+                        if (type.equals("PING")) {
+                            long token = in.readLong();
+                            pings++;
+                            synchronized (this) {
+                                out.writeUTF("PONG");
+                                out.writeLong(token);
+                                out.flush();
+                            }
+                        } else if (type.equals("CAPS")) {
+                            in.readUTF();
+                        } else if (type.startsWith("USER_LIST")) {
+                            List<String> names = Arrays.asList(type.split("/"));
+                            users.retainAll(names);
+                            users.addAll(names.subList(1, names.size()));
+                        }
+                    }
+                } catch (IOException e) {
+                    closed = true;
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void goSilent() {
+            silent = true; // The reader stops at the next message, unanswered; the socket stays open
+        }
+
+        synchronized void send(String text) throws IOException {
+            out.writeUTF(text);
+            out.flush();
+        }
+
+        // A private file the older way: one frame with an int size
+        synchronized void sendFile(String to, int size) throws IOException {
+            out.writeUTF("PRIVATE_FILE");
+            out.writeUTF(to);
+            out.writeUTF("slow.bin");
+            out.writeInt(size);
+            byte[] data = new byte[64 * 1024];
+            for (int sent = 0; sent < size; sent += data.length) {
+                out.write(data, 0, Math.min(data.length, size - sent));
+            }
+            out.flush();
+        }
+    }
+
+    // An older client on a slow link: reads everything at SLOW_BYTES_PER_SECOND without parsing it
+    static final class SlowReader {
+        volatile long bytes;
+        volatile boolean closed;
+
+        SlowReader(int port, String name) throws IOException {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(64 * 1024);
+            socket.connect(new InetSocketAddress("localhost", port));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(name);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            Thread reader = new Thread(() -> {
+                byte[] buf = new byte[16 * 1024];
+                long start = System.nanoTime();
+                try {
+                    for (int n; (n = in.read(buf)) > 0; ) {
+                        bytes += n;
+                        long due = start + bytes * 1_000_000_000L / SLOW_BYTES_PER_SECOND;
+                        Thread.sleep(Math.max(0, (due - System.nanoTime()) / 1_000_000));
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Closed below
+                }
+                closed = true;
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.concurrent.atomic.*; // For AtomicLong, AtomicLongArray, LongAdder
+
+// Lock-free latency/size histogram in the style of HdrHistogram: each power of two is split into 32 linear
+// sub-buckets, so any recorded value is reported to within about 3% while the whole range of a long fits in
+// under 2000 counters. record() is a few shifts and one atomic increment; reading is for the metrics endpoint.
+final class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS; // 32 sub-buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT; // Values below 64 each get their own bucket
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max); // Usually no write at all
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    // Largest value that falls into bucket i
+    static long upperBound(int i) {
+        if (i < 2 * SUB_COUNT) return i;
+        int shift = i / SUB_COUNT - 1;
+        return ((long) (SUB_COUNT + i % SUB_COUNT + 1) << shift) - 1;
+    }
+
+    // The value below which the fraction q of the recordings fall, e.g. percentile(0.99)
+    long percentile(double q) {
+        long total = count.sum();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get(); // Recordings still in flight while we were counting
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.*; // For BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, IOException
+import java.net.*; // For Socket
+import java.util.*; // For ArrayList, Arrays, HashMap, LinkedHashMap, List, Map, Random, StringJoiner
+import java.util.concurrent.*; // For TimeUnit
+import java.util.concurrent.atomic.*; // For LongAdder
+import java.util.concurrent.locks.*; // For LockSupport
+
+// End-to-end load generator: N users log in over the SimpleChatClient legacy protocol (name, then CAPS chunked-files)
+// and send a steady mix of broadcasts, private messages and private files for a fixed time, open loop: every send has
+// an intended time on a fixed schedule, and latency is measured from that time to the receiver, so a server that
+// falls behind shows up as latency instead of slowing the generator down. A warmup period is sent but not counted.
+// Prints one row per kind of message with throughput and latency percentiles, as CSV (default) or JSON, so that runs
+// can be compared by a script.
+// Usage: java LoadGenerator [--host=localhost] [--port=5000] [--users=100] [--seconds=30] [--warmup-seconds=5]
+//            [--rate=2] [--mix=broadcast:80,private:15,file:5] [--file-kb=256] [--senders=8] [--label=run] [--format=csv|json]
+// --rate is messages per second per user. The server needs --auth=off, and --max-messages-per-s=0 (and
+// --max-bytes-per-s=0 for large files) once a user sends faster than its limits.
+public class LoadGenerator {
+    static final String BROADCAST = "broadcast";
+    static final String PRIVATE = "private";
+    static final String FILE = "file";
+    static final String[] KINDS = {BROADCAST, PRIVATE, FILE};
+    static final int CHUNK_SIZE = SimpleChatClient.CHUNK_SIZE;
+    static final String STAMP = "gen:"; // Message text is "gen:<b|p>:<intended nanos>"; file names "gen-<intended nanos>.bin"
+
+    final String host;
+    final int port;
+    final int users;
+    final int seconds;
+    final int warmupSeconds;
+    final double rate;
+    final int[] mix = new int[KINDS.length]; // Weight of each kind, in KINDS order
+    final int fileBytes;
+    final int senderThreads;
+    final byte[] fileData;
+
+    final List<User> connected = new ArrayList<>();
+    final LongAdder failedConnections = new LongAdder();
+    final LongAdder rejectedFiles = new LongAdder(); // FILE_REJECT from the server, e.g. every upload slot taken
+    final Map<String, Kind> kinds = new LinkedHashMap<>();
+    volatile long measureStart; // Sends intended in [measureStart, measureEnd) are counted
+    volatile long measureEnd = Long.MAX_VALUE;
+
+    // What was sent and received of one kind during the measured period
+    static final class Kind {
+        final LongAdder sent = new LongAdder();
+        final LongAdder expected = new LongAdder(); // Deliveries the sends should cause
+        final LongAdder delivered = new LongAdder();
+        final Histogram latency = new Histogram(); // Nanoseconds from intended send to delivery
+    }
+
+    // One connection
+    final class User {
+        final String name;
+        final Socket socket;
+        final DataOutputStream out; // Only used by the sender thread that owns this user
+        long nextUploadId;
+
+        User(String name) throws IOException {
+            this.name = name;
+            this.socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 64));
+            out.writeUTF(name);
+            out.writeUTF("CAPS");
+            out.writeUTF("chunked-files");
+            out.flush();
+        }
+    }
+
+    LoadGenerator(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", String.valueOf(BroadcastServer.PORT)));
+        this.users = Integer.parseInt(options.getOrDefault("users", "100"));
+        this.seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        this.warmupSeconds = Integer.parseInt(options.getOrDefault("warmup-seconds", "5"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "2"));
+        this.fileBytes = Integer.parseInt(options.getOrDefault("file-kb", "256")) * 1024;
+        this.senderThreads = Math.max(1, Math.min(users, Integer.parseInt(options.getOrDefault("senders", "8"))));
+        for (String part : options.getOrDefault("mix", "broadcast:80,private:15,file:5").split(",")) {
+            String[] kv = part.split(":");
+            int k = Arrays.asList(KINDS).indexOf(kv[0].trim());
+            if (k < 0 || kv.length != 2) throw new IllegalArgumentException("Bad --mix entry: " + part);
+            mix[k] = Integer.parseInt(kv[1].trim());
+        }
+        if (Arrays.stream(mix).sum() <= 0) throw new IllegalArgumentException("--mix has no weight");
+        this.fileData = new byte[fileBytes];
+        new Random(1).nextBytes(fileData);
+        for (String kind : KINDS) kinds.put(kind, new Kind());
+    }
+
+    void run(String label, String format) throws InterruptedException {
+        for (int i = 0; i < users; i++) {
+            try {
+                User user = new User("gen" + i);
+                connected.add(user);
+                Thread reader = new Thread(() -> readLoop(user), "gen-reader-" + user.name);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                failedConnections.increment();
+            }
+        }
+        Thread.sleep(1000); // Let the USER_LIST storm from the connect phase settle
+        if (connected.size() < 2) {
+            System.err.println("Fewer than two users connected to " + host + ":" + port);
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < senderThreads; t++) {
+            List<User> own = new ArrayList<>();
+            for (int i = t; i < connected.size(); i += senderThreads) own.add(connected.get(i));
+            Thread sender = new Thread(() -> sendLoop(own, start), "gen-sender-" + senders.size());
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) sender.join();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); // Wait for the server to drain, but not forever
+        while (System.nanoTime() < deadline && kinds.values().stream().anyMatch(k -> k.delivered.sum() < k.expected.sum())) {
+            Thread.sleep(50);
+        }
+        for (User user : connected) {
+            try {
+                user.socket.close();
+            } catch (IOException e) {}
+        }
+        report(label, format);
+    }
+
+    // Sends for 'own' users on one schedule at their combined rate, taking the users in turn, until measureEnd
+    void sendLoop(List<User> own, long start) {
+        double interval = 1e9 / (rate * own.size()); // Nanoseconds between sends on this thread
+        int total = Arrays.stream(mix).sum();
+        Random random = new Random(start ^ own.get(0).name.hashCode());
+        for (long n = 0; ; n++) {
+            long intended = start + (long) (n * interval);
+            if (intended >= measureEnd) return;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait); // Behind schedule: send at once, the latency will show it
+            User user = own.get((int) (n % own.size()));
+            int pick = random.nextInt(total);
+            int k = 0;
+            while (pick >= mix[k]) pick -= mix[k++];
+            User receiver = user;
+            while (receiver == user) receiver = connected.get(random.nextInt(connected.size()));
+            boolean counted = intended >= measureStart;
+            try {
+                switch (KINDS[k]) {
+                    case BROADCAST:
+                        user.out.writeUTF(STAMP + "b:" + intended);
+                        break;
+                    case PRIVATE:
+                        user.out.writeUTF("PRIVATE");
+                        user.out.writeUTF(receiver.name);
+                        user.out.writeUTF(STAMP + "p:" + intended);
+                        break;
+                    default:
+                        sendFile(user, receiver.name, "gen-" + intended + ".bin");
+                }
+                user.out.flush();
+            } catch (IOException e) {
+                continue; // The reader counts the dropped connection
+            }
+            if (counted) {
+                Kind kind = kinds.get(KINDS[k]);
+                kind.sent.increment();
+                kind.expected.add(KINDS[k].equals(BROADCAST) ? connected.size() - 1 : 1); // Everyone but the sender
+            }
+        }
+    }
+
+    // FILE_BEGIN, the data in CHUNK_SIZE pieces, FILE_END, as SimpleChatClient.sendFileChunked does
+    void sendFile(User user, String receiver, String fileName) throws IOException {
+        long id = ++user.nextUploadId;
+        user.out.writeUTF("FILE_BEGIN");
+        user.out.writeLong(id);
+        user.out.writeUTF(receiver);
+        user.out.writeUTF(fileName);
+        user.out.writeLong(fileData.length);
+        for (int offset = 0; offset < fileData.length; offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, fileData.length - offset);
+            user.out.writeUTF("FILE_CHUNK");
+            user.out.writeLong(id);
+            user.out.writeInt(length);
+            user.out.write(fileData, offset, length);
+        }
+        user.out.writeUTF("FILE_END");
+        user.out.writeLong(id);
+    }
+
+    // Reads everything the server sends this user, like SimpleChatClient.readLegacyMessage, and records a latency for
+    // each message and each completed file of the measured period
+    void readLoop(User user) {
+        Map<Long, Long> files = new HashMap<>(); // Download id -> intended send time, for files from LoadGenerator
+        byte[] skip = new byte[CHUNK_SIZE];
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(user.socket.getInputStream(), CHUNK_SIZE));
+            while (true) {
+                String type = in.readUTF();
+                long now = System.nanoTime();
+                switch (type) {
+                    case "FILE_BEGIN": {
+                        long id = in.readLong();
+                        in.readUTF(); // Sender
+                        String fileName = in.readUTF();
+                        in.readLong(); // Size
+                        if (fileName.startsWith("gen-") && fileName.endsWith(".bin")) {
+                            files.put(id, Long.parseLong(fileName.substring(4, fileName.length() - 4)));
+                        }
+                        break;
+                    }
+                    case "FILE_CHUNK": {
+                        in.readLong();
+                        for (int length = in.readInt(); length > 0; ) {
+                            int n = Math.min(length, skip.length);
+                            in.readFully(skip, 0, n);
+                            length -= n;
+                        }
+                        break;
+                    }
+                    case "FILE_END": {
+                        Long intended = files.remove(in.readLong());
+                        if (intended != null) delivered(FILE, intended, now);
+                        break;
+                    }
+                    case "FILE_ABORT":
+                        files.remove(in.readLong());
+                        break;
+                    case "FILE_REJECT":
+                        in.readLong();
+                        in.readUTF(); // Reason
+                        rejectedFiles.increment();
+                        break;
+                    case "CAPS":
+                        in.readUTF();
+                        break;
+                    default: { // Chat text: "sender: gen:b:<nanos>" or "[Private] sender: gen:p:<nanos>"; also USER_LIST and notices
+                        int stamp = type.indexOf(": " + STAMP);
+                        if (stamp < 0) break;
+                        int at = stamp + 2 + STAMP.length();
+                        delivered(type.charAt(at) == 'p' ? PRIVATE : BROADCAST, Long.parseLong(type.substring(at + 2)), now);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            if (!user.socket.isClosed()) failedConnections.increment(); // Dropped before the end of the run
+        }
+    }
+
+    void delivered(String kind, long intended, long now) {
+        if (intended < measureStart || intended >= measureEnd) return; // Warmup
+        Kind k = kinds.get(kind);
+        k.delivered.increment();
+        k.latency.record(now - intended);
+    }
+
+    void report(String label, String format) {
+        String[] columns = {"label", "kind", "users", "seconds", "sent", "expected", "delivered", "sent_per_s", "delivered_per_s",
+                "p50_ms", "p90_ms", "p99_ms", "p999_ms", "max_ms", "failed_connections", "rejected_files"};
+        List<Object[]> rows = new ArrayList<>();
+        for (Map.Entry<String, Kind> e : kinds.entrySet()) {
+            Kind k = e.getValue();
+            if (k.sent.sum() == 0) continue;
+            Histogram h = k.latency;
+            rows.add(new Object[]{label, e.getKey(), connected.size(), seconds, k.sent.sum(), k.expected.sum(), k.delivered.sum(),
+                    round(k.sent.sum() / (double) seconds), round(k.delivered.sum() / (double) seconds),
+                    millis(h.percentile(0.5)), millis(h.percentile(0.9)), millis(h.percentile(0.99)), millis(h.percentile(0.999)),
+                    millis(h.max()), failedConnections.sum(), rejectedFiles.sum()});
+        }
+        if (format.equals("json")) {
+            StringBuilder sb = new StringBuilder("[");
+            for (Object[] row : rows) {
+                sb.append(sb.length() > 1 ? ",\n {" : "{");
+                for (int c = 0; c < columns.length; c++) {
+                    if (c > 0) sb.append(", ");
+                    sb.append('"').append(columns[c]).append("\": ");
+                    sb.append(row[c] instanceof String ? "\"" + ((String) row[c]).replace("\\", "\\\\").replace("\"", "\\\"") + "\"" : row[c]);
+                }
+                sb.append('}');
+            }
+            System.out.println(sb.append(']'));
+        } else {
+            System.out.println(String.join(",", columns));
+            for (Object[] row : rows) {
+                StringJoiner line = new StringJoiner(",");
+                for (Object value : row) line.add(String.valueOf(value));
+                System.out.println(line);
+            }
+        }
+    }
+
+    static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+
+    static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Unknown argument " + arg + "; options are --name=value");
+                System.exit(2);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        String format = options.getOrDefault("format", "csv");
+        if (!format.equals("csv") && !format.equals("json")) {
+            System.err.println("--format is csv or json");
+            System.exit(2);
+        }
+        new LoadGenerator(options).run(options.getOrDefault("label", "run"), format);
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*; // For DataInputStream, DataOutputStream, IOException
+import java.net.*; // For Socket
+import java.util.*; // For List, ArrayList
+import java.util.concurrent.*; // For CountDownLatch, ExecutorService
+import java.util.concurrent.atomic.*; // For AtomicLongArray, LongAdder
+
+// Headless load generator that speaks the SimpleChatClient wire protocol.
+// Opens N connections, lets every client broadcast M messages and reports connection rate, message rates and latency.
+// Usage: java LoadTestClient [host] [port] [clients] [messagesPerClient] [label]
+// Run it once against "java BroadcastServer" and once against "java BroadcastServer --mode=nio" to compare the modes.
+public class LoadTestClient {
+    final String host;
+    final int port;
+    final int clientCount;
+    final int messagesPerClient;
+
+    final LongAdder delivered = new LongAdder(); // Broadcast messages received by all load clients together
+    final LongAdder failed = new LongAdder(); // Connections that could not be opened or dropped during the run
+    final AtomicLongArray latencyBuckets = new AtomicLongArray(64); // Bucket i counts deliveries that took [2^i, 2^(i+1)) microseconds
+
+    LoadTestClient(String host, int port, int clientCount, int messagesPerClient) {
+        this.host = host;
+        this.port = port;
+        this.clientCount = clientCount;
+        this.messagesPerClient = messagesPerClient;
+    }
+
+    void run(String label) throws InterruptedException {
+        List<Socket> sockets = new ArrayList<>();
+        List<DataOutputStream> outs = new ArrayList<>();
+
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            try {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeUTF("load" + i);
+                out.flush();
+                sockets.add(socket);
+                outs.add(out);
+                Thread reader = new Thread(() -> readLoop(socket), "load-reader-" + i);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                failed.increment();
+            }
+        }
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        Thread.sleep(1000); // Let the USER_LIST storm from the connect phase settle before measuring
+
+        int connected = sockets.size();
+        long expected = (long) connected * messagesPerClient * Math.max(0, connected - 1); // Every message reaches everyone but the sender
+        ExecutorService senders = Executors.newFixedThreadPool(Math.min(connected, 64));
+        CountDownLatch done = new CountDownLatch(connected);
+        long sendStart = System.nanoTime();
+        for (DataOutputStream out : outs) {
+            senders.execute(() -> {
+                try {
+                    for (int m = 0; m < messagesPerClient; m++) {
+                        out.writeUTF("load:" + System.nanoTime()); // The receiver derives latency from this timestamp
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    failed.increment();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        double sendSeconds = (System.nanoTime() - sendStart) / 1e9;
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30); // Wait for fan-out to drain, but not forever
+        while (delivered.sum() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        double totalSeconds = (System.nanoTime() - sendStart) / 1e9;
+        senders.shutdown();
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+
+        System.out.printf("label=%s connections=%d failed=%d connect_per_sec=%.0f sent_per_sec=%.0f delivered=%d/%d delivered_per_sec=%.0f p50_us=%d p99_us=%d%n",
+                label, connected, failed.sum(), connected / connectSeconds,
+                connected * (double) messagesPerClient / sendSeconds,
+                delivered.sum(), expected, delivered.sum() / totalSeconds,
+                percentile(0.50), percentile(0.99));
+    }
+
+    private void readLoop(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                String msg = in.readUTF();
+                int stamp = msg.indexOf(": load:"); // Broadcasts arrive as "<sender>: load:<nanos>"
+                if (stamp < 0) continue; // USER_LIST and other traffic
+                long sentAt = Long.parseLong(msg.substring(stamp + 7));
+                long micros = Math.max(1, (System.nanoTime() - sentAt) / 1000);
+                latencyBuckets.incrementAndGet(63 - Long.numberOfLeadingZeros(micros));
+                delivered.increment();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Socket closed at the end of the run
+        }
+    }
+
+    // Upper bound of the bucket holding the requested percentile, in microseconds
+    private long percentile(double p) {
+        long total = 0;
+        for (int i = 0; i < latencyBuckets.length(); i++) total += latencyBuckets.get(i);
+        long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < latencyBuckets.length(); i++) {
+            seen += latencyBuckets.get(i);
+            if (seen >= target && seen > 0) return 1L << (i + 1);
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : BroadcastServer.PORT;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        String label = args.length > 4 ? args[4] : "run";
+        new LoadTestClient(host, port, clients, messages).run(label);
+    }
+}
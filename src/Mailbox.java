@@ -0,0 +1,536 @@
+import java.io.*; // For BufferedInputStream, DataInputStream, EOFException, IOException
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For Channels, FileChannel
+import java.nio.charset.*; // For StandardCharsets
+import java.nio.file.*; // For DirectoryStream, Files, Path, StandardCopyOption, StandardOpenOption
+import java.time.*; // For Instant, ZoneId
+import java.time.format.*; // For DateTimeFormatter
+import java.util.*; // For ArrayList, LinkedHashMap, List, Map, Set
+import java.util.concurrent.*; // For ConcurrentHashMap, TimeUnit
+import java.util.concurrent.atomic.*; // For AtomicLong, LongAdder
+import java.util.concurrent.locks.*; // For ReentrantLock
+import java.util.function.*; // For Consumer
+import java.util.zip.*; // For CRC32
+
+// Store-and-forward for private messages and files sent to a user who is not online. Each recipient has a directory
+// (named after the UTF-8 bytes of their name in hex) holding an append-only mail.log and one file per stored
+// attachment. Record layout, as in MessageLog:  [body length: int][CRC32 of body: int][body]
+//   body = time millis: long, kind: byte (BinaryProtocol.PRIVATE or FILE_BEGIN), sender, text, size: long, attachment
+//   (strings are an int byte length and UTF-8; text is the file name for FILE_BEGIN, attachment its file or "")
+// A bad length or CRC is taken as a write torn by a crash and ends the log there.
+//
+// Nothing but counters is kept in memory: an index of at most --mailbox-index mailboxes (least recently used are
+// evicted and read back from disk when next needed) with how many entries and bytes each holds, for the quotas.
+// deliver() streams a mailbox to its owner BATCH entries at a time, so a backlog of any size costs one batch of heap;
+// an entry leaves the mailbox once the recipient's connection has written it out, so what was still queued when a
+// connection drops comes again at the next login. Written means handed to the socket: what sits in the socket buffers
+// when the connection dies is lost, as live messages are; the protocol has no acknowledgements.
+// Entries older than the expiry are dropped by a background sweep, and skipped if they are reached before it.
+// Records are written through the page cache without a force(): they survive a server restart, not a power cut.
+final class Mailbox {
+    static final int BATCH = 256; // Entries read from disk and handed to the recipient at a time
+    private static final int HEADER = 8; // Length and CRC in front of every body
+    private static final int MAX_BODY = BinaryProtocol.MAX_PAYLOAD + 64 * 1024; // Longest text plus the other fields
+    private static final int LOCK_STRIPES = 256;
+    private static final String LOG = "mail.log";
+    private static final DateTimeFormatter SENT_AT = DateTimeFormatter.ofPattern("MMM d HH:mm", Locale.ROOT);
+
+    // One stored message or file
+    static final class Entry {
+        final long time;
+        final int kind; // BinaryProtocol.PRIVATE or FILE_BEGIN
+        final String sender;
+        final String text; // Message, or file name
+        final long size; // File size; 0 for a message
+        final Path attachment; // The stored file; null for a message
+        final long start; // Offset of this record in mail.log
+        final long end; // ...and just past it
+
+        Entry(long time, int kind, String sender, String text, long size, Path attachment, long start, long end) {
+            this.time = time;
+            this.kind = kind;
+            this.sender = sender;
+            this.text = text;
+            this.size = size;
+            this.attachment = attachment;
+            this.start = start;
+            this.end = end;
+        }
+
+        // How the recipient is shown a stored message; notices carry the sender by name, who may be gone by now
+        String notice() {
+            return "[Private] " + sender + " (" + SENT_AT.format(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault())) + "): " + text;
+        }
+    }
+
+    // Takes what deliver() reads; returns how many of the batch, from the start, are on their way to the recipient
+    // (fewer once the connection is gone). Only those leave the mailbox, attachments included.
+    interface Recipient {
+        int accept(List<Entry> batch);
+    }
+
+    // What one mailbox holds, for the quotas and the expiry sweep
+    private static final class Box {
+        int count;
+        long bytes;
+        long oldest = Long.MAX_VALUE; // Time of the oldest entry
+    }
+
+    private final Path dir;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long expiryMillis;
+    private final Consumer<String> log; // Server log, for trouble with the disk
+    // Everything that touches a mailbox's files holds its stripe. Not monitors: a virtual thread blocked on disk I/O
+    // inside synchronized would pin its carrier thread.
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final Map<String, Box> index; // Access-ordered, bounded; guarded by itself
+    private final Set<String> delivering = ConcurrentHashMap.newKeySet(); // One delivery per mailbox at a time
+    private final AtomicLong nextAttachment = new AtomicLong(System.currentTimeMillis()); // Unique attachment file names
+    private final Thread sweeper;
+
+    final LongAdder stored = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    final LongAdder refused = new LongAdder(); // Over a quota, or the disk failed
+
+    Mailbox(Path dir, int maxMessages, long maxBytes, long expiryMillis, int indexEntries, Consumer<String> log) throws IOException {
+        this.dir = dir;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.expiryMillis = expiryMillis;
+        this.log = log;
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new ReentrantLock();
+        this.index = new LinkedHashMap<String, Box>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Box> eldest) {
+                return size() > indexEntries;
+            }
+        };
+        Files.createDirectories(dir);
+        if (expiryMillis > 0) {
+            sweeper = new Thread(this::sweepLoop, "mailbox-expiry");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        } else {
+            sweeper = null;
+        }
+    }
+
+    // Stores a private message; returns null, or why it was not stored (for the sender)
+    String deposit(String recipient, String sender, String text) {
+        ReentrantLock lock = lock(recipient);
+        lock.lock();
+        try {
+            Box box = box(recipient);
+            String problem = checkQuota(recipient, box, 1, 64 + sender.length() + text.length());
+            if (problem != null) return problem;
+            append(recipient, BinaryProtocol.PRIVATE, sender, text, 0, "");
+        } catch (IOException e) {
+            return failed(recipient, e);
+        } finally {
+            lock.unlock();
+        }
+        stored.increment();
+        return null;
+    }
+
+    // Whether a file of 'size' bytes would fit, asked before the upload starts; null, or why not
+    String accepts(String recipient, long size) {
+        ReentrantLock lock = lock(recipient);
+        lock.lock();
+        try {
+            return checkQuota(recipient, box(recipient), 1, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stores a finished upload: the spool is copied next to the mailboxes (outside the lock, it may be large), then
+    // moved into the recipient's and recorded. Returns null, or why it was not stored.
+    String depositFile(String recipient, String sender, String fileName, Spool spool, long size) {
+        String name = nextAttachment.incrementAndGet() + ".file";
+        Path incoming = dir.resolve("incoming-" + name); // Not a mailbox name, so the sweep leaves it alone
+        try {
+            try (FileChannel out = FileChannel.open(incoming, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                spool.transferTo(0, size, out, null);
+            }
+            ReentrantLock lock = lock(recipient);
+            lock.lock();
+            try {
+                Box box = box(recipient);
+                String problem = checkQuota(recipient, box, 1, size); // Others may have filled it meanwhile
+                if (problem != null) {
+                    Files.deleteIfExists(incoming);
+                    return problem;
+                }
+                Files.createDirectories(boxDir(recipient));
+                Files.move(incoming, boxDir(recipient).resolve(name));
+                append(recipient, BinaryProtocol.FILE_BEGIN, sender, fileName, size, name);
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(incoming);
+            } catch (IOException ignored) {}
+            return failed(recipient, e);
+        }
+        stored.increment();
+        return null;
+    }
+
+    // Hands everything stored for 'recipient' to 'to', BATCH entries at a time, including what arrives meanwhile.
+    // Runs on the caller's thread; returns at once if another delivery to the same name is running. What 'to' did not
+    // take stays for the next login.
+    void deliver(String recipient, Recipient to) {
+        if (!delivering.add(recipient)) return;
+        long cutoff = expiryMillis > 0 ? System.currentTimeMillis() - expiryMillis : Long.MIN_VALUE;
+        long position = 0; // Everything before it has been delivered or has expired
+        ReentrantLock lock = lock(recipient);
+        try {
+            FileChannel opened;
+            lock.lock();
+            try {
+                if (box(recipient).count == 0) return;
+                // Opened under the lock, after 'delivering' was set: the sweeper checks that under the lock too, so it
+                // cannot swap in a rewritten mail.log between this and the deleteBox() at its end
+                opened = FileChannel.open(boxDir(recipient).resolve(LOG), StandardOpenOption.READ);
+            } finally {
+                lock.unlock();
+            }
+            try (FileChannel file = opened) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file), 64 * 1024));
+                List<Entry> batch = new ArrayList<>(BATCH); // As read, expired ones included
+                List<Entry> live = new ArrayList<>(BATCH);
+                while (true) {
+                    long end;
+                    lock.lock();
+                    try {
+                        end = file.size(); // Deposits append whole records under the lock, so this is a record boundary
+                        if (position >= end) { // All of it, including late arrivals, has been taken
+                            deleteBox(recipient);
+                            return;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    long read = position;
+                    while (read < end && batch.size() < BATCH) {
+                        Entry entry = readEntry(in, recipient, read);
+                        if (entry == null) { // Torn tail; nothing after it can be trusted
+                            read = end;
+                            break;
+                        }
+                        batch.add(entry);
+                        if (entry.time >= cutoff) live.add(entry);
+                        read = entry.end;
+                    }
+                    int taken = live.isEmpty() ? 0 : to.accept(live);
+                    delivered.add(taken);
+                    for (Entry entry : live.subList(0, taken)) discard(entry); // Sent; the file is not needed again
+                    long done = taken < live.size() ? live.get(taken).start : read;
+                    for (Entry entry : batch) {
+                        if (entry.time < cutoff && entry.end <= done) {
+                            discard(entry);
+                            expired.increment();
+                        }
+                    }
+                    position = done;
+                    if (taken < live.size()) { // The connection is gone
+                        keepFrom(recipient, position, cutoff);
+                        return;
+                    }
+                    batch.clear();
+                    live.clear();
+                }
+            }
+        } catch (IOException e) {
+            log.accept("Mailbox of " + recipient + " could not be read: " + e.getMessage());
+            keepFrom(recipient, position, cutoff);
+        } finally {
+            delivering.remove(recipient);
+        }
+    }
+
+    // Drops expired entries from every mailbox; runs on the sweeper thread
+    void expire() {
+        long cutoff = System.currentTimeMillis() - expiryMillis;
+        try (DirectoryStream<Path> boxes = Files.newDirectoryStream(dir)) {
+            for (Path boxDir : boxes) {
+                if (boxDir.getFileName().toString().startsWith("incoming-")) { // Left by a crash during depositFile()
+                    if (Files.getLastModifiedTime(boxDir).toMillis() < cutoff) Files.deleteIfExists(boxDir);
+                    continue;
+                }
+                String recipient = nameOf(boxDir);
+                if (recipient == null) continue;
+                ReentrantLock lock = lock(recipient);
+                lock.lock();
+                try {
+                    // Checked under the lock, which deliver() holds while it opens mail.log; a running delivery
+                    // skips expired entries itself
+                    if (!delivering.contains(recipient) && box(recipient).oldest < cutoff) rewrite(recipient, 0, cutoff);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            log.accept("Mailbox expiry failed: " + e.getMessage());
+        }
+    }
+
+    void close() {
+        if (sweeper != null) sweeper.interrupt();
+    }
+
+    // One line for the periodic stats log
+    String report() {
+        int indexed;
+        synchronized (index) {
+            indexed = index.size();
+        }
+        return String.format("Mailbox: %d stored, %d delivered, %d expired, %d refused, %d mailboxes indexed",
+                stored.sum(), delivered.sum(), expired.sum(), refused.sum(), indexed);
+    }
+
+    private void sweepLoop() {
+        long period = Math.max(1000, Math.min(TimeUnit.MINUTES.toMillis(10), expiryMillis / 10));
+        while (true) {
+            try {
+                Thread.sleep(period);
+            } catch (InterruptedException e) {
+                return;
+            }
+            expire();
+        }
+    }
+
+    private String checkQuota(String recipient, Box box, int entries, long bytes) {
+        if (maxMessages > 0 && box.count + entries > maxMessages) {
+            refused.increment();
+            return recipient + "'s mailbox is full (" + maxMessages + " messages); it was not stored.";
+        }
+        if (maxBytes > 0 && box.bytes + bytes > maxBytes) {
+            refused.increment();
+            return recipient + "'s mailbox has no room for " + bytes + " more bytes; it was not stored.";
+        }
+        return null;
+    }
+
+    private String failed(String recipient, IOException e) {
+        refused.increment();
+        log.accept("Mailbox of " + recipient + " could not be written: " + e.getMessage());
+        return "The message for " + recipient + " could not be stored.";
+    }
+
+    // Under the recipient's lock
+    private void append(String recipient, int kind, String sender, String text, long size, String attachment) throws IOException {
+        byte[] s = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        byte[] a = attachment.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 1 + 4 + s.length + 4 + t.length + 8 + 4 + a.length;
+        if (length > MAX_BODY) throw new IOException("Message too long to store");
+        long now = System.currentTimeMillis();
+        ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+        record.position(HEADER);
+        record.putLong(now).put((byte) kind);
+        record.putInt(s.length).put(s);
+        record.putInt(t.length).put(t);
+        record.putLong(size);
+        record.putInt(a.length).put(a);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue()).rewind();
+        Path boxDir = boxDir(recipient);
+        Files.createDirectories(boxDir);
+        try (FileChannel file = FileChannel.open(boxDir.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) file.write(record);
+        }
+        Box box = box(recipient);
+        box.count++;
+        box.bytes += kind == BinaryProtocol.FILE_BEGIN ? size : length;
+        box.oldest = Math.min(box.oldest, now);
+    }
+
+    // The next record at 'position' of the stream, or null at a torn one
+    private Entry readEntry(DataInputStream in, String recipient, long position) throws IOException {
+        int length;
+        int crc;
+        byte[] body;
+        try {
+            length = in.readInt();
+            crc = in.readInt();
+            if (length < 8 || length > MAX_BODY) return null;
+            body = new byte[length];
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 check = new CRC32();
+        check.update(body);
+        if ((int) check.getValue() != crc) return null;
+        ByteBuffer buf = ByteBuffer.wrap(body);
+        long time = buf.getLong();
+        int kind = buf.get();
+        String sender = string(buf);
+        String text = string(buf);
+        long size = buf.getLong();
+        String attachment = string(buf);
+        return new Entry(time, kind, sender, text, size, attachment.isEmpty() ? null : boxDir(recipient).resolve(attachment),
+                position, position + HEADER + length);
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Keeps the mailbox from 'position' on, after a delivery that stopped early
+    private void keepFrom(String recipient, long position, long cutoff) {
+        ReentrantLock lock = lock(recipient);
+        lock.lock();
+        try {
+            rewrite(recipient, position, cutoff);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Under the recipient's lock: replaces mail.log with its records from 'from' on that are not older than
+    // 'cutoff', deletes the attachments of the rest, and recounts the mailbox
+    private void rewrite(String recipient, long from, long cutoff) {
+        Path boxDir = boxDir(recipient);
+        Path logFile = boxDir.resolve(LOG);
+        Path next = boxDir.resolve(LOG + ".new");
+        Box box = new Box();
+        try (FileChannel file = FileChannel.open(logFile, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file.position(from)), 64 * 1024));
+            long position = from;
+            long size = file.size();
+            while (position < size) {
+                Entry entry = readEntry(in, recipient, position);
+                if (entry == null) break;
+                if (entry.time < cutoff) {
+                    discard(entry);
+                    expired.increment();
+                } else {
+                    file.transferTo(position, entry.end - position, out);
+                    box.count++;
+                    box.bytes += entry.kind == BinaryProtocol.FILE_BEGIN ? entry.size : entry.end - position - HEADER;
+                    box.oldest = Math.min(box.oldest, entry.time);
+                }
+                position = entry.end;
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing stored
+        } catch (IOException e) {
+            log.accept("Mailbox of " + recipient + " could not be rewritten: " + e.getMessage());
+            return;
+        }
+        try {
+            if (box.count == 0) {
+                deleteBox(recipient);
+            } else {
+                Files.move(next, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                synchronized (index) {
+                    index.put(recipient, box);
+                }
+            }
+        } catch (IOException e) {
+            log.accept("Mailbox of " + recipient + " could not be rewritten: " + e.getMessage());
+        }
+    }
+
+    // Under the recipient's lock: removes the mailbox and what is left in it
+    private void deleteBox(String recipient) {
+        Path boxDir = boxDir(recipient);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(boxDir)) {
+            for (Path file : files) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    log.accept("Could not delete " + file + ": " + e.getMessage());
+                }
+            }
+            Files.deleteIfExists(boxDir);
+        } catch (NoSuchFileException e) {
+            // Never had mail
+        } catch (IOException e) {
+            log.accept("Mailbox of " + recipient + " could not be cleared: " + e.getMessage());
+        }
+        synchronized (index) {
+            index.put(recipient, new Box());
+        }
+    }
+
+    private void discard(Entry entry) {
+        if (entry.attachment == null) return;
+        try {
+            Files.deleteIfExists(entry.attachment);
+        } catch (IOException e) {
+            log.accept("Could not delete attachment " + entry.attachment + ": " + e.getMessage());
+        }
+    }
+
+    // Under the recipient's lock: the counters, read back from disk if the index has evicted them
+    private Box box(String recipient) {
+        Box box;
+        synchronized (index) {
+            box = index.get(recipient);
+        }
+        if (box != null) return box;
+        box = new Box();
+        Path logFile = boxDir(recipient).resolve(LOG);
+        try (FileChannel file = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(file), 64 * 1024));
+            long position = 0;
+            long size = file.size();
+            while (position < size) {
+                Entry entry = readEntry(in, recipient, position);
+                if (entry == null) {
+                    file.truncate(position); // A torn tail; later appends must not land behind it
+                    break;
+                }
+                box.count++;
+                box.bytes += entry.kind == BinaryProtocol.FILE_BEGIN ? entry.size : entry.end - position - HEADER;
+                box.oldest = Math.min(box.oldest, entry.time);
+                position = entry.end;
+            }
+        } catch (NoSuchFileException e) {
+            // Empty mailbox
+        } catch (IOException e) {
+            log.accept("Mailbox of " + recipient + " could not be read: " + e.getMessage());
+        }
+        synchronized (index) {
+            index.put(recipient, box);
+        }
+        return box;
+    }
+
+    private ReentrantLock lock(String recipient) {
+        return locks[(recipient.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    private Path boxDir(String recipient) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : recipient.getBytes(StandardCharsets.UTF_8)) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return dir.resolve(hex.toString());
+    }
+
+    private static String nameOf(Path boxDir) {
+        String hex = boxDir.getFileName().toString();
+        if (hex.isEmpty() || hex.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) return null;
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
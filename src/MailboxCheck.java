@@ -0,0 +1,328 @@
+import java.io.*; // For BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, IOException
+import java.net.*; // For InetSocketAddress, Socket, SocketTimeoutException
+import java.nio.file.*; // For Files, Path, StandardOpenOption
+import java.security.*; // For MessageDigest
+import java.util.*; // For ArrayList, Arrays, Collections, List, Random
+import java.util.concurrent.atomic.*; // For AtomicInteger, AtomicLong
+
+// Two parts:
+//  1. Mailbox on its own: quota refusals, counts read back after a restart, a torn record at the end, expiry, and a
+//     10k-message backlog read back in order in batches of at most Mailbox.BATCH, including a delivery that stops
+//     half way and continues at the next login.
+//  2. Through a BroadcastServer process: "dave", a binary client, sends bob a private message by name (binary
+//     clients address users by id, and bob has none while offline) and one to an id nobody has, which must be
+//     refused rather than dropped. "alice" sends private messages and a file to "bob", who is offline; bob
+//     then logs in and must get his user list at once (the handshake does not wait for the mailbox), then every
+//     message in order, and hangs up half way through the file. The file must still be stored: his next login gets
+//     it intact. Prints how long the backlog took.
+// Prints PASS or FAIL.
+// Usage: java MailboxCheck [messages] [fileMB] [port]
+public class MailboxCheck {
+    static boolean pass = true;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int fileMB = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 7960;
+        Path dir = Files.createTempDirectory("mailbox-check");
+
+        mailboxAlone(dir.resolve("alone"), messages);
+        throughServer(dir.resolve("server"), messages, fileMB, port);
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+
+    static void check(boolean ok, String what) {
+        System.out.println((ok ? "ok   " : "FAIL ") + what);
+        if (!ok) pass = false;
+    }
+
+    static void mailboxAlone(Path dir, int messages) throws Exception {
+        Mailbox quota = new Mailbox(dir.resolve("quota"), 100, 0, 0, 16, System.out::println);
+        int refused = 0;
+        for (int i = 0; i < 110; i++) {
+            if (quota.deposit("carol", "alice", "message " + i) != null) refused++;
+        }
+        check(refused == 10, "quota of 100 messages refuses the last 10 (" + refused + ")");
+        Mailbox restarted = new Mailbox(dir.resolve("quota"), 100, 0, 0, 16, System.out::println);
+        check(restarted.deposit("carol", "alice", "one more") != null, "quota still full after a restart");
+
+        Mailbox torn = new Mailbox(dir.resolve("torn"), 0, 0, 0, 16, System.out::println);
+        for (int i = 0; i < 5; i++) torn.deposit("dave", "alice", "message " + i);
+        Path log = dir.resolve("torn").resolve(hex("dave")).resolve("mail.log");
+        Files.write(log, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND); // A record cut short by a crash
+        torn = new Mailbox(dir.resolve("torn"), 0, 0, 0, 16, System.out::println);
+        torn.deposit("dave", "alice", "message 5"); // Must land where the torn record was
+        List<String> got = new ArrayList<>();
+        torn.deliver("dave", batch -> {
+            for (Mailbox.Entry e : batch) got.add(e.text);
+            return batch.size();
+        });
+        check(got.equals(Arrays.asList("message 0", "message 1", "message 2", "message 3", "message 4", "message 5")),
+                "torn record dropped, later deposit kept (" + got.size() + " read back)");
+        check(!Files.exists(log.getParent()), "delivered mailbox removed from disk");
+
+        Mailbox expiring = new Mailbox(dir.resolve("expiry"), 0, 0, 300, 16, System.out::println);
+        for (int i = 0; i < 5; i++) expiring.deposit("erin", "alice", "old " + i);
+        Thread.sleep(400);
+        for (int i = 0; i < 3; i++) expiring.deposit("erin", "alice", "new " + i);
+        expiring.expire();
+        got.clear();
+        expiring.deliver("erin", batch -> {
+            for (Mailbox.Entry e : batch) got.add(e.text);
+            return batch.size();
+        });
+        check(got.equals(Arrays.asList("new 0", "new 1", "new 2")) && expiring.expired.sum() == 5,
+                "expired entries dropped (" + expiring.expired.sum() + " expired, " + got.size() + " delivered)");
+
+        Mailbox backlog = new Mailbox(dir.resolve("backlog"), 0, 0, 0, 16, System.out::println);
+        String padding = CompressionBenchmark.chatText(new Random(1), 200);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) backlog.deposit("frank", "alice", i + " " + padding);
+        double depositMicros = (System.nanoTime() - start) / 1e3 / messages;
+        int half = messages / 2;
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger largestBatch = new AtomicInteger();
+        boolean[] inOrder = {true};
+        backlog.deliver("frank", batch -> {
+            largestBatch.accumulateAndGet(batch.size(), Math::max);
+            int taken = 0;
+            for (Mailbox.Entry e : batch) {
+                if (next.get() == half) return taken; // The connection drops after the first half
+                if (!e.text.startsWith(next.get() + " ")) inOrder[0] = false;
+                next.incrementAndGet();
+                taken++;
+            }
+            return taken;
+        });
+        int firstLogin = next.get();
+        start = System.nanoTime();
+        backlog.deliver("frank", batch -> {
+            largestBatch.accumulateAndGet(batch.size(), Math::max);
+            for (Mailbox.Entry e : batch) {
+                if (!e.text.startsWith(next.get() + " ")) inOrder[0] = false;
+                next.incrementAndGet();
+            }
+            return batch.size();
+        });
+        double deliverMillis = (System.nanoTime() - start) / 1e6;
+        check(firstLogin == half && next.get() == messages && inOrder[0],
+                "backlog of " + messages + " delivered in order over two logins (" + firstLogin + " + " + (next.get() - firstLogin) + ")");
+        check(largestBatch.get() <= Mailbox.BATCH, "read in batches of at most " + Mailbox.BATCH + " (largest " + largestBatch.get() + ")");
+        System.out.printf("deposit %.1f us/message, second half read back in %.0f ms%n", depositMicros, deliverMillis);
+    }
+
+    static void throughServer(Path dir, int messages, int fileMB, int port) throws Exception {
+        Process server = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "BroadcastServer", "--headless", "--auth=off",
+                "--message-log=off", "--queue-stats-seconds=0", "--metrics-port=0", "--port=" + port,
+                "--mailbox=" + dir, "--mailbox-max-messages=" + (messages + 2), "--max-messages-per-s=0", "--max-bytes-per-s=0",
+                "--socket-send-buffer=65536") // With bob's small receive buffer: most of the file is still unsent when he hangs up
+                .redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "mailbox-check-server.log")).start();
+        try {
+            ClusterFailoverCheck.waitForPort("localhost:" + port);
+            byte[] file = new byte[fileMB << 20];
+            new Random(1).nextBytes(file);
+
+            List<String> daveGot = Collections.synchronizedList(new ArrayList<>());
+            Socket dave = connectBinary(port, "dave", daveGot::add);
+            DataOutputStream daveOut = new DataOutputStream(dave.getOutputStream());
+            new BinaryProtocol.Builder(BinaryProtocol.PRIVATE).varint(-1).string("by name").string("bob").writeTo(daveOut);
+            new BinaryProtocol.Builder(BinaryProtocol.PRIVATE).varint(-1).string("to nobody").writeTo(daveOut);
+            daveOut.flush();
+            check(ClusterFailoverCheck.waitUntil(() -> daveGot.size() >= 2)
+                    && daveGot.get(0).startsWith("bob is offline and will get "), "binary message to offline bob by name stored " + daveGot);
+            check(daveGot.size() >= 2 && daveGot.get(1).startsWith("User not found"), "binary message to an unknown id refused");
+
+            Socket alice = connect(port, "alice");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(alice.getOutputStream(), 1 << 16));
+            AtomicLong stored = new AtomicLong();
+            Thread aliceReader = reader(alice, text -> {
+                if (text.contains(" is offline and will get ")) stored.incrementAndGet();
+            });
+            for (int i = 0; i < messages; i++) {
+                out.writeUTF("PRIVATE");
+                out.writeUTF("bob");
+                out.writeUTF("offline " + i);
+            }
+            out.writeUTF("FILE_BEGIN");
+            out.writeLong(1);
+            out.writeUTF("bob");
+            out.writeUTF("photo.bin");
+            out.writeLong(file.length);
+            for (int offset = 0; offset < file.length; offset += FileRelay.CHUNK_SIZE) {
+                int length = Math.min(FileRelay.CHUNK_SIZE, file.length - offset);
+                out.writeUTF("FILE_CHUNK");
+                out.writeLong(1);
+                out.writeInt(length);
+                out.write(file, offset, length);
+            }
+            out.writeUTF("FILE_END");
+            out.writeLong(1);
+            out.flush();
+            check(ClusterFailoverCheck.waitUntil(() -> stored.get() == messages + 1), "alice told that " + stored.get() + " of " + (messages + 1) + " were stored for bob");
+
+            long start = System.nanoTime();
+            Login first = readMail(port, messages, file.length / 2);
+            long backlogMillis = (System.nanoTime() - start) / 1_000_000;
+            check(first.userListMillis >= 0 && first.userListMillis < 1000, "bob's login answered at once (user list after " + first.userListMillis + " ms)");
+            check(first.next == messages && first.inOrder, "bob got all " + messages + " stored messages in order");
+            check(first.fromDave.equals(Arrays.asList("by name")), "bob got dave's message " + first.fromDave);
+            System.out.printf("backlog of %d messages and %d of %d MB delivered in %d ms, then bob hung up%n",
+                    messages, first.at >> 20, fileMB, backlogMillis);
+            Login second = readMail(port, 0, -1);
+            check(Arrays.equals(digest(second.file), digest(file)), "bob's next login got the " + fileMB + " MB file intact");
+            alice.close();
+            dave.close();
+            aliceReader.join(1000);
+            check(ClusterFailoverCheck.waitUntil(() -> isEmpty(dir)), "mailbox directory empty after delivery"); // Emptied once the writer confirms
+        } finally {
+            server.destroy();
+        }
+    }
+
+    // What one of bob's logins got
+    static final class Login {
+        long userListMillis = -1;
+        int next; // Stored messages read, which must have come in order
+        boolean inOrder = true;
+        List<String> fromDave = new ArrayList<>();
+        byte[] file; // Null until FILE_BEGIN
+        int at; // File bytes read
+        boolean ended; // FILE_END read
+    }
+
+    // Logs in as bob and reads until he has 'messages' stored messages and 'fileBytes' of the file (-1 = all of it,
+    // through FILE_END), then hangs up at once (a reset, so nothing more is read)
+    static Login readMail(int port, int messages, int fileBytes) throws IOException {
+        long start = System.nanoTime();
+        Login login = new Login();
+        Socket bob = connect(port, "bob");
+        bob.setSoTimeout(30_000); // A lost message fails the check instead of hanging it
+        DataInputStream in = new DataInputStream(new BufferedInputStream(bob.getInputStream(), 1 << 16));
+        try {
+            readMail(in, login, messages, fileBytes, start);
+        } catch (SocketTimeoutException e) {
+            // Something never came; the checks on what did say what
+        }
+        bob.setSoLinger(true, 0);
+        bob.close();
+        return login;
+    }
+
+    static void readMail(DataInputStream in, Login login, int messages, int fileBytes, long start) throws IOException {
+        while (login.next < messages || (fileBytes < 0 ? !login.ended : login.at < fileBytes)) {
+            String type = in.readUTF();
+            if (type.startsWith("USER_LIST")) {
+                if (login.userListMillis < 0) login.userListMillis = (System.nanoTime() - start) / 1_000_000;
+            } else if (type.equals("FILE_BEGIN")) {
+                in.readLong();
+                in.readUTF();
+                in.readUTF();
+                login.file = new byte[(int) in.readLong()];
+            } else if (type.equals("FILE_CHUNK")) {
+                in.readLong();
+                int length = in.readInt();
+                in.readFully(login.file, login.at, length);
+                login.at += length;
+            } else if (type.equals("FILE_END")) {
+                in.readLong();
+                login.ended = true;
+            } else if (type.equals("CAPS")) {
+                in.readUTF();
+            } else if (type.startsWith("[Private] alice (")) {
+                if (!type.endsWith("): offline " + login.next)) login.inOrder = false;
+                login.next++;
+            } else if (type.startsWith("[Private] dave (")) {
+                login.fromDave.add(type.substring(type.indexOf("): ") + 3));
+            }
+        }
+    }
+
+    // A legacy client that takes chunked files
+    static Socket connect(int port, String name) throws IOException {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(64 * 1024); // What is in the socket buffers when a connection drops is lost
+        socket.connect(new InetSocketAddress("localhost", port));
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(name);
+        out.writeUTF("CAPS");
+        out.writeUTF("chunked-files");
+        out.flush();
+        return socket;
+    }
+
+    // A binary-v1 client; NOTICE texts go to 'notices' from a reader thread
+    static Socket connectBinary(int port, String name, TextHandler notices) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeUTF(name);
+        out.writeUTF("CAPS");
+        out.writeUTF(BinaryProtocol.VERSION);
+        out.flush();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        while (!in.readUTF().equals("CAPS")) {
+            // User lists, until the CAPS reply; the server writes binary after it
+        }
+        in.readUTF();
+        out.writeUTF("BINARY");
+        out.flush();
+        Thread t = new Thread(() -> {
+            BinaryProtocol.Reader payload = new BinaryProtocol.Reader();
+            try {
+                while (true) {
+                    int opcode = in.readUnsignedByte();
+                    payload.fill(in, (int) BinaryProtocol.readVarint(in));
+                    if (opcode == BinaryProtocol.NOTICE) notices.text(payload.string());
+                }
+            } catch (IOException e) {
+                // Closed at the end
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return socket;
+    }
+
+    interface TextHandler {
+        void text(String text);
+    }
+
+    // Reads alice's side: only notices matter, the rest is user lists and the CAPS reply
+    static Thread reader(Socket socket, TextHandler handler) {
+        Thread t = new Thread(() -> {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                while (true) {
+                    String type = in.readUTF();
+                    if (type.equals("CAPS")) in.readUTF();
+                    else handler.text(type);
+                }
+            } catch (IOException e) {
+                // Closed at the end
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    static boolean isEmpty(Path dir) {
+        try (DirectoryStream<Path> left = Files.newDirectoryStream(dir)) {
+            return !left.iterator().hasNext();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static String hex(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : name.getBytes(java.nio.charset.StandardCharsets.UTF_8)) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    static byte[] digest(byte[] bytes) throws NoSuchAlgorithmException {
+        return bytes == null ? new byte[0] : MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+}
@@ -0,0 +1,75 @@
+import javax.swing.*; // For JComponent, JList, JViewport, ListCellRenderer
+import java.awt.*; // For Color, Component, Container, Dimension, Font, FontMetrics, Graphics, Graphics2D, Rectangle, Toolkit
+import java.util.*; // For Map
+
+// Draws one chat bubble per row of the message JList: sent messages on the right in green, received ones on the
+// left in grey, as the old one-JTextArea-per-message panel did. It is a single component reused for every row, and
+// it paints the wrapped lines cached in the Message instead of holding a text Document, so giving it a row and
+// asking its height is cheap; JList does that for every row whenever the model changes.
+final class MessageCellRenderer extends JComponent implements ListCellRenderer<MessageListModel.Message> {
+    static final Font FONT = new Font("Arial", Font.PLAIN, 14);
+    static final Color SENT = new Color(220, 248, 198, 230);
+    static final Color RECEIVED = new Color(240, 240, 240, 200);
+    static final int PAD_X = 10; // Inside the bubble
+    static final int PAD_Y = 8;
+    static final int GAP = 5; // Around the bubble
+    static final int MAX_BUBBLE_PERCENT = 80; // Of the list's width; longer lines wrap
+
+    private final FontMetrics metrics = getFontMetrics(FONT);
+    private final Object textHints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints"); // Same antialiasing as other Swing text
+    private MessageListModel.Message message;
+    private int rowWidth;
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends MessageListModel.Message> list, MessageListModel.Message value,
+                                                  int index, boolean isSelected, boolean cellHasFocus) {
+        message = value;
+        Container parent = list.getParent();
+        rowWidth = parent instanceof JViewport ? parent.getWidth() : list.getWidth(); // The viewport's, so the scroll bar narrows the bubbles
+        int maxText = Math.max(40, rowWidth * MAX_BUBBLE_PERCENT / 100 - 2 * PAD_X);
+        value.wrap(metrics, maxText);
+        return this;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(rowWidth, message.lines.length * metrics.getHeight() + 2 * PAD_Y + 2 * GAP);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g;
+        if (textHints instanceof Map) g2.addRenderingHints((Map<?, ?>) textHints);
+        int bubbleWidth = message.width + 2 * PAD_X;
+        int bubbleHeight = message.lines.length * metrics.getHeight() + 2 * PAD_Y;
+        int x = message.sent ? getWidth() - GAP - bubbleWidth : GAP;
+        g2.setColor(message.sent ? SENT : RECEIVED);
+        g2.fillRect(x, GAP, bubbleWidth, bubbleHeight);
+        g2.setColor(Color.BLACK);
+        g2.setFont(FONT);
+        int y = GAP + PAD_Y + metrics.getAscent();
+        Rectangle clip = g2.getClipBounds();
+        for (String line : message.lines) {
+            if (clip == null || (y + metrics.getDescent() >= clip.y && y - metrics.getAscent() <= clip.y + clip.height)) {
+                g2.drawString(line, x + PAD_X, y);
+            }
+            y += metrics.getHeight();
+        }
+    }
+
+    // Cell renderers are painted through a CellRendererPane; these would only cost time for every row
+    @Override
+    public void invalidate() {}
+
+    @Override
+    public void validate() {}
+
+    @Override
+    public void revalidate() {}
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {}
+
+    @Override
+    protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {}
+}
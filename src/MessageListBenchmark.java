@@ -0,0 +1,174 @@
+import javax.swing.*; // For BorderFactory, BoxLayout, JList, JPanel, JTextArea, SwingUtilities
+import javax.swing.event.*; // For ListDataEvent, ListDataListener
+import java.awt.*; // For AWTEvent, Color, EventQueue, FlowLayout, Font, GradientPaint, Graphics, Graphics2D, Image, Toolkit
+import java.awt.image.*; // For BufferedImage
+import java.util.*; // For Random
+import java.util.concurrent.atomic.*; // For AtomicBoolean, AtomicLong
+
+// EDT time and heap of SimpleChatClient's message view at a steady rate of incoming messages, for the old view (a
+// JPanel and JTextArea per message in a BoxLayout panel, background image rescaled on every paint) and the
+// virtualized one (MessageListModel ring buffer, MessageCellRenderer, cached background). Runs headless: every
+// change is followed by the layout and one coalesced paint of a 480x500 viewport into an image, as Swing would do.
+// Usage: java MessageListBenchmark [seconds] [messagesPerSecond] [history]
+public class MessageListBenchmark {
+    static final int WIDTH = 480;
+    static final int HEIGHT = 500;
+
+    static final AtomicLong edtNanos = new AtomicLong(); // Time the EDT spent dispatching events
+    static final AtomicLong shown = new AtomicLong(); // Messages that have reached the view
+    static final AtomicBoolean paintQueued = new AtomicBoolean();
+    static volatile boolean discard; // Drops what an old view still has queued once its run is measured
+    static final BufferedImage screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    static final BufferedImage backgroundImage = new BufferedImage(1200, 900, BufferedImage.TYPE_INT_RGB); // A photo-sized background
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int history = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(new EventQueue() {
+            @Override
+            protected void dispatchEvent(AWTEvent event) {
+                long start = System.nanoTime();
+                super.dispatchEvent(event);
+                edtNanos.addAndGet(System.nanoTime() - start);
+            }
+        });
+        Graphics2D bg = backgroundImage.createGraphics();
+        bg.setPaint(new GradientPaint(0, 0, Color.PINK, 1200, 900, Color.CYAN));
+        bg.fillRect(0, 0, 1200, 900);
+        bg.dispose();
+
+        System.out.println("view,messages_per_s,posted,shown,edt_busy_pct,heap_mb_after_gc");
+        run("bubble-panels", new BubblePanels(), seconds, rate);
+        run("virtual-list", new VirtualList(history), seconds, rate);
+        System.exit(0);
+    }
+
+    interface View {
+        void post(String text, boolean sent); // Any thread
+        void paint(Graphics2D g); // EDT
+    }
+
+    static void run(String name, View view, int seconds, int rate) throws Exception {
+        shown.set(0);
+        Random random = new Random(1);
+        System.gc();
+        long edtBefore = edtNanos.get();
+        long start = System.nanoTime();
+        long posted = 0;
+        for (long end = start + seconds * 1_000_000_000L; System.nanoTime() < end; ) {
+            long due = (System.nanoTime() - start) * rate / 1_000_000_000L; // Paced in 1 ms steps
+            for (; posted < due; posted++) {
+                view.post(CompressionBenchmark.chatText(random, 20 + random.nextInt(180)), random.nextInt(5) == 0);
+            }
+            Thread.sleep(1);
+        }
+        double busy = 100.0 * (edtNanos.get() - edtBefore) / (System.nanoTime() - start);
+        for (int i = 0; i < 200 && shown.get() < posted; i++) Thread.sleep(10); // Give a backlog up to 2 s to drain
+        long shownNow = shown.get();
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        System.out.printf("%s,%d,%d,%d,%.1f,%.1f%n", name, rate, posted, shownNow, busy, (rt.totalMemory() - rt.freeMemory()) / 1048576.0);
+        discard = true;
+        SwingUtilities.invokeAndWait(() -> {}); // Behind everything still queued
+        discard = false;
+    }
+
+    // Like Swing's RepaintManager: any number of changes before the EDT gets to it cost one paint
+    static void schedulePaint(View view) {
+        if (paintQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                paintQueued.set(false);
+                Graphics2D g = screen.createGraphics();
+                view.paint(g);
+                g.dispose();
+            });
+        }
+    }
+
+    // How SimpleChatClient used to show messages: new components per message, kept forever
+    static final class BubblePanels implements View {
+        final JPanel panel = new JPanel();
+
+        BubblePanels() {
+            panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        }
+
+        public void post(String text, boolean sent) {
+            SwingUtilities.invokeLater(() -> {
+                if (discard) return;
+                JPanel wrapper = new JPanel(new FlowLayout(sent ? FlowLayout.RIGHT : FlowLayout.LEFT));
+                wrapper.setOpaque(false);
+                JTextArea bubble = new JTextArea(text);
+                bubble.setLineWrap(true);
+                bubble.setWrapStyleWord(true);
+                bubble.setEditable(false);
+                bubble.setFont(new Font("Arial", Font.PLAIN, 14));
+                bubble.setBackground(sent ? new Color(220, 248, 198, 230) : new Color(240, 240, 240, 200));
+                bubble.setBorder(BorderFactory.createEmptyBorder(8, 10, 8, 10));
+                bubble.setOpaque(true);
+                wrapper.add(bubble);
+                wrapper.setPreferredSize(wrapper.getPreferredSize()); // A displayed component caches this once valid; headless ones would not
+                panel.add(wrapper);
+                // revalidate(): BoxLayout asks every bubble for its size again and sets its bounds
+                panel.setSize(WIDTH, panel.getPreferredSize().height);
+                panel.doLayout();
+                shown.incrementAndGet();
+                schedulePaint(this);
+            });
+        }
+
+        public void paint(Graphics2D g) {
+            g.drawImage(backgroundImage, 0, 0, WIDTH, HEIGHT, null); // Rescaled on every paint
+            g.translate(0, HEIGHT - panel.getHeight()); // Scrolled to the bottom
+            g.setClip(0, panel.getHeight() - HEIGHT, WIDTH, HEIGHT);
+            panel.paint(g);
+        }
+    }
+
+    // How it shows them now
+    static final class VirtualList implements View {
+        final MessageListModel model;
+        final JList<MessageListModel.Message> list;
+        Image scaledBackground;
+
+        VirtualList(int history) {
+            model = new MessageListModel(history, this::batchAdded);
+            list = new JList<>(model);
+            list.setCellRenderer(new MessageCellRenderer());
+            list.setOpaque(false);
+            list.setSize(WIDTH, HEIGHT);
+            model.addListDataListener(new ListDataListener() {
+                public void intervalAdded(ListDataEvent e) {
+                    shown.addAndGet(e.getIndex1() - e.getIndex0() + 1);
+                }
+
+                public void intervalRemoved(ListDataEvent e) {}
+
+                public void contentsChanged(ListDataEvent e) {}
+            });
+        }
+
+        public void post(String text, boolean sent) {
+            model.post(text, sent);
+        }
+
+        void batchAdded() {
+            list.setSize(WIDTH, list.getPreferredSize().height); // What revalidate() does: JList measures every row
+            schedulePaint(this);
+        }
+
+        public void paint(Graphics2D g) {
+            if (scaledBackground == null) { // What ImageBackgroundPanel now does once per size
+                scaledBackground = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                Graphics sg = scaledBackground.getGraphics();
+                sg.drawImage(backgroundImage, 0, 0, WIDTH, HEIGHT, null);
+                sg.dispose();
+            }
+            g.drawImage(scaledBackground, 0, 0, null);
+            g.translate(0, HEIGHT - list.getHeight());
+            g.setClip(0, list.getHeight() - HEIGHT, WIDTH, HEIGHT);
+            list.paint(g);
+        }
+    }
+}
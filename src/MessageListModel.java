@@ -0,0 +1,133 @@
+import javax.swing.*; // For AbstractListModel, SwingUtilities, Timer
+import java.awt.*; // For FontMetrics
+import java.util.*; // For ArrayList, List
+import java.util.List; // java.awt also has a List
+import javax.swing.Timer; // java.util also has a Timer
+import java.util.concurrent.*; // For ConcurrentLinkedQueue
+import java.util.concurrent.atomic.*; // For AtomicBoolean
+
+// The chat history behind SimpleChatClient's message JList: the newest 'capacity' messages in a ring buffer, so
+// memory stays flat however long the client runs, and only the rows on screen are ever painted.
+// Messages may be posted from any thread. They wait in a queue and reach the model in batches: the first post after
+// a flush schedules one EDT task, and everything posted until it runs goes in with one pair of list events. Batches
+// are at least a frame apart, so 1k messages a second cost at most 60 list layouts a second, not 1k.
+final class MessageListModel extends AbstractListModel<MessageListModel.Message> {
+    static final int FRAME_MILLIS = 16; // Least time between batches
+    static final int MAX_CHARS = 8000; // Longer messages are cut for display; the wrapped layout of a huge one costs too much
+
+    // One row; the wrapped layout is cached here by MessageCellRenderer (EDT only)
+    static final class Message {
+        final String text;
+        final boolean sent; // Typed here (right, green) or received (left, grey)
+        String[] lines; // 'text' wrapped to fit 'wrapWidth'
+        int wrapWidth = -1;
+        int width; // Of the widest line
+
+        Message(String text, boolean sent) {
+            this.text = text.length() > MAX_CHARS ? text.substring(0, MAX_CHARS) + "\u2026" : text;
+            this.sent = sent;
+        }
+
+        // Greedy word wrap of every paragraph into lines no wider than maxWidth; computed once per width
+        String[] wrap(FontMetrics fm, int maxWidth) {
+            if (wrapWidth == maxWidth) return lines;
+            List<String> out = new ArrayList<>();
+            int widest = 0;
+            for (String paragraph : text.split("\n", -1)) {
+                int start = 0;
+                while (true) {
+                    int end = fitting(fm, paragraph, start, maxWidth);
+                    String line = paragraph.substring(start, end);
+                    out.add(line);
+                    widest = Math.max(widest, fm.stringWidth(line));
+                    start = end;
+                    while (start < paragraph.length() && paragraph.charAt(start) == ' ') start++; // The space a line broke at
+                    if (start >= paragraph.length()) break;
+                }
+            }
+            lines = out.toArray(new String[0]);
+            width = widest;
+            wrapWidth = maxWidth;
+            return lines;
+        }
+
+        // End of the longest run from 'start' that fits: up to the last space if there is one, otherwise mid-word
+        private static int fitting(FontMetrics fm, String s, int start, int maxWidth) {
+            if (fm.stringWidth(s.substring(start)) <= maxWidth) return s.length();
+            int end = start + 1;
+            int lastSpace = -1;
+            int x = fm.charWidth(s.charAt(start));
+            while (end < s.length()) {
+                char c = s.charAt(end);
+                x += fm.charWidth(c);
+                if (x > maxWidth) break;
+                if (c == ' ') lastSpace = end;
+                end++;
+            }
+            return lastSpace > start ? lastSpace : end;
+        }
+    }
+
+    private final Message[] ring;
+    private int head; // Index in 'ring' of row 0
+    private int size;
+    private final ConcurrentLinkedQueue<Message> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final Runnable afterBatch; // Runs on the EDT after each batch, e.g. to keep the newest row in view
+    private final Timer deferred = new Timer(FRAME_MILLIS, e -> flush()); // For a flush that came too soon after the last
+    private long lastFlush; // System.nanoTime() of the last batch; EDT only
+
+    MessageListModel(int capacity, Runnable afterBatch) {
+        this.ring = new Message[Math.max(1, capacity)];
+        this.afterBatch = afterBatch;
+        deferred.setRepeats(false);
+    }
+
+    // Any thread
+    void post(String text, boolean sent) {
+        incoming.add(new Message(text, sent));
+        if (flushQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    // EDT: moves everything posted so far into the ring, dropping the oldest rows to make room
+    private void flush() {
+        long wait = FRAME_MILLIS - (System.nanoTime() - lastFlush) / 1_000_000;
+        if (wait > 0) { // Posts keep landing in 'incoming' meanwhile; flushQueued stays set
+            deferred.setInitialDelay((int) wait);
+            deferred.restart();
+            return;
+        }
+        lastFlush = System.nanoTime();
+        flushQueued.set(false); // Posts from here on schedule the next flush
+        List<Message> batch = new ArrayList<>();
+        Message message;
+        while ((message = incoming.poll()) != null) {
+            batch.add(message);
+        }
+        if (batch.isEmpty()) return;
+        if (batch.size() > ring.length) batch = batch.subList(batch.size() - ring.length, batch.size()); // Would scroll out at once
+        int evicted = Math.max(0, size + batch.size() - ring.length);
+        head = (head + evicted) % ring.length;
+        size -= evicted;
+        if (evicted > 0) fireIntervalRemoved(this, 0, evicted - 1);
+        int first = size;
+        for (Message m : batch) {
+            ring[(head + size) % ring.length] = m;
+            size++;
+        }
+        fireIntervalAdded(this, first, size - 1);
+        if (afterBatch != null) afterBatch.run();
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Message getElementAt(int index) {
+        return ring[(head + index) % ring.length];
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.*; // For IOException
+import java.nio.*; // For ByteBuffer, MappedByteBuffer
+import java.nio.channels.*; // For FileChannel
+import java.nio.charset.*; // For StandardCharsets
+import java.nio.file.*; // For DirectoryStream, Files, Path, StandardOpenOption
+import java.util.*; // For ArrayList, List
+import java.util.concurrent.*; // For ArrayBlockingQueue, CopyOnWriteArrayList, TimeUnit
+import java.util.concurrent.atomic.*; // For LongAdder
+import java.util.function.*; // For Consumer
+import java.util.zip.*; // For CRC32
+
+// Append-only log of every chat, private and room message, so a client that reconnects can be sent what it missed.
+// The log is a directory of segment files, each named after the first sequence number in it and memory-mapped
+// while it is being written. Record layout:  [body length: int][CRC32 of body: int][body]
+//   body = seq: long, time millis: long, kind: byte (a BinaryProtocol opcode), sender, target, text
+//   (strings are an int byte length and UTF-8; target is the recipient's name for PRIVATE, the room for ROOM_TEXT)
+// A zero length ends a segment. On startup a bad length, CRC or sequence number is taken as a write torn by a crash
+// and ends the segment there too.
+//
+// append() only takes a sequence number and queues the record. The "message-log" thread writes whatever has queued
+// up and then forces it to disk once for the whole batch (group commit), so fan-out never waits for the disk; if the
+// disk falls so far behind that the queue fills, records are dropped and counted rather than slowing chat down.
+// Segments roll at a size or an age; closed segments are deleted once they are older than the retention.
+final class MessageLog {
+    static final int BATCH = 4096; // Most records written per force()
+    private static final int INDEX_INTERVAL = 256; // Every so many records a segment remembers (seq, position) for replay
+    private static final int HEADER = 8; // Length and CRC in front of every body
+
+    // One logged message
+    static final class Entry {
+        final long seq;
+        final long time;
+        final int kind; // BinaryProtocol.TEXT, PRIVATE or ROOM_TEXT
+        final String sender;
+        final String target; // Recipient name, room, or "" for TEXT
+        final String text;
+
+        Entry(long seq, long time, int kind, String sender, String target, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.kind = kind;
+            this.sender = sender;
+            this.target = target;
+            this.text = text;
+        }
+    }
+
+    private static final class Segment {
+        final long baseSeq; // First sequence number that may be in it (the file name)
+        final Path path;
+        volatile MappedByteBuffer map; // Only while this is the segment being written
+        volatile int end; // Bytes of complete, forced records; readers never look past this
+        volatile long lastSeq; // Newest record before 'end'
+        volatile long closedAt; // Millis; 0 while it is being written
+        final long openedAt;
+        private long[] indexSeq = new long[16];
+        private int[] indexPos = new int[16];
+        private int indexCount;
+
+        Segment(long baseSeq, Path path, long openedAt) {
+            this.baseSeq = baseSeq;
+            this.path = path;
+            this.openedAt = openedAt;
+            this.lastSeq = baseSeq - 1;
+        }
+
+        synchronized void index(long seq, int position) {
+            if (indexCount == indexSeq.length) {
+                indexSeq = Arrays.copyOf(indexSeq, indexCount * 2);
+                indexPos = Arrays.copyOf(indexPos, indexCount * 2);
+            }
+            indexSeq[indexCount] = seq;
+            indexPos[indexCount++] = position;
+        }
+
+        // Position of an indexed record at or before 'seq', so a replay can skip most of the segment
+        synchronized int positionFor(long seq) {
+            int i = Arrays.binarySearch(indexSeq, 0, indexCount, seq);
+            if (i < 0) i = -i - 2; // The last entry below seq
+            return i < 0 ? 0 : indexPos[i];
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long rollMillis;
+    private final long retentionMillis;
+    private final Consumer<String> log; // Server log, for trouble with the disk
+    private final ArrayBlockingQueue<Entry> pending;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>(); // Oldest first; the last one is being written
+    private final Object appendLock = new Object(); // Sequence numbers go into the queue in order
+    private final Object published = new Object(); // Notified when 'writtenSeq' moves on
+    private final CRC32 crc = new CRC32(); // Writer thread only
+    private final Thread writer;
+    private final FileChannel lockFile; // Held while open: two servers appending to one directory would corrupt it
+    private volatile long nextSeq; // Last sequence number handed out; only changed under appendLock
+    private volatile long writtenSeq; // Everything up to here is on disk or was dropped
+    private volatile boolean closing;
+    private Segment active; // Writer thread only
+    private FileChannel activeFile;
+    private int recordsInActive;
+
+    final LongAdder written = new LongAdder(); // Records on disk
+    final LongAdder dropped = new LongAdder(); // Records lost to a full queue or a failed write
+    final LongAdder batches = new LongAdder(); // force() calls
+    final Histogram syncNanos = new Histogram(); // Write plus force() per batch
+
+    MessageLog(Path dir, int segmentBytes, long rollMillis, long retentionMillis, int queueCapacity, Consumer<String> log) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.rollMillis = rollMillis;
+        this.retentionMillis = retentionMillis;
+        this.log = log;
+        this.pending = new ArrayBlockingQueue<>(queueCapacity);
+        Files.createDirectories(dir);
+        lockFile = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (lockFile.tryLock() == null) {
+            lockFile.close();
+            throw new IOException(dir + " is in use by another server");
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files); // Zero-padded names sort in sequence order
+        for (Path file : files) {
+            Segment segment = recover(file);
+            if (segment != null) segments.add(segment);
+        }
+        nextSeq = writtenSeq = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).lastSeq;
+        writer = new Thread(this::writeLoop, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Hands out the next sequence number and queues the record; never waits for the disk
+    long append(int kind, String sender, String target, String text) {
+        synchronized (appendLock) {
+            long seq = nextSeq + 1;
+            nextSeq = seq;
+            if (!pending.offer(new Entry(seq, System.currentTimeMillis(), kind, sender, target, text))) {
+                dropped.increment(); // The number is still used up, so replays simply have a gap
+            }
+            return seq;
+        }
+    }
+
+    // Sequence number of the newest message, logged or still queued
+    long lastSeq() {
+        return nextSeq;
+    }
+
+    // Oldest sequence number still kept; anything before it has been deleted by the retention
+    long firstSeq() {
+        for (Segment segment : segments) {
+            return segment.baseSeq;
+        }
+        return nextSeq + 1;
+    }
+
+    // Calls 'sink' for every kept record after 'afterSeq' up to 'toSeq', oldest first.
+    // Records still queued are waited for, up to a second; what is not on disk by then is left out.
+    void replay(long afterSeq, long toSeq, Consumer<Entry> sink) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        synchronized (published) {
+            long now;
+            while (writtenSeq < toSeq && (now = System.currentTimeMillis()) < deadline) {
+                published.wait(deadline - now);
+            }
+        }
+        for (Segment segment : segments) {
+            if (segment.lastSeq <= afterSeq) continue;
+            if (segment.baseSeq > toSeq) break;
+            ByteBuffer buf;
+            int end = segment.end;
+            MappedByteBuffer map = segment.map;
+            if (map != null) {
+                buf = map.duplicate(); // The segment being written; 'end' only covers records already forced
+            } else {
+                try (FileChannel file = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                    buf = file.map(FileChannel.MapMode.READ_ONLY, 0, end); // Stays valid after the channel is closed
+                } catch (IOException e) {
+                    continue; // Deleted by the retention meanwhile
+                }
+            }
+            int pos = segment.positionFor(afterSeq + 1);
+            while (pos < end) {
+                int length = buf.getInt(pos);
+                long seq = buf.getLong(pos + HEADER);
+                if (seq > toSeq) return;
+                if (seq > afterSeq) sink.accept(decode(buf, pos + HEADER, seq));
+                pos += HEADER + length;
+            }
+        }
+    }
+
+    // Writes what is still queued, then stops the writer; for the shutdown hook
+    void close() {
+        closing = true;
+        writer.interrupt();
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            lockFile.close(); // Releases the lock
+        } catch (IOException e) {}
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        long nextRetentionCheck = 0;
+        while (!closing || !pending.isEmpty()) {
+            try {
+                Entry first = closing ? pending.poll() : pending.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, BATCH - 1); // Everything that queued up during the last force()
+                }
+            } catch (InterruptedException e) {
+                closing = true; // Finish what is queued, then stop
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            try {
+                if (active != null && recordsInActive > 0 && now - active.openedAt >= rollMillis) {
+                    closeActive(); // Rolled by age; the batch below opens the next segment
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            } catch (IOException e) {
+                dropped.add(batch.size());
+                log.accept("Message log write failed, " + batch.size() + " messages lost: " + e.getMessage());
+                closeActive(); // The next batch starts a new segment
+            }
+            if (!batch.isEmpty()) {
+                publish(batch.get(batch.size() - 1).seq);
+                batch.clear();
+            }
+            if (now >= nextRetentionCheck) {
+                deleteExpired(now);
+                nextRetentionCheck = now + 60_000;
+            }
+        }
+        closeActive();
+    }
+
+    private void write(List<Entry> batch) throws IOException {
+        long start = System.nanoTime();
+        if (active == null) open(batch.get(0).seq);
+        MappedByteBuffer map = active.map;
+        int pos = active.end;
+        long lastSeq = active.lastSeq;
+        for (Entry entry : batch) {
+            byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+            byte[] target = entry.target.getBytes(StandardCharsets.UTF_8);
+            byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+            int length = 8 + 8 + 1 + 4 + sender.length + 4 + target.length + 4 + text.length;
+            if (pos + HEADER + length > segmentBytes) { // Full: finish this segment and continue in a new one
+                sync(map, pos, lastSeq);
+                closeActive();
+                open(entry.seq);
+                map = active.map;
+                pos = 0;
+            }
+            map.position(pos + HEADER);
+            map.putLong(entry.seq).putLong(entry.time).put((byte) entry.kind);
+            map.putInt(sender.length).put(sender);
+            map.putInt(target.length).put(target);
+            map.putInt(text.length).put(text);
+            ByteBuffer body = map.duplicate();
+            body.position(pos + HEADER).limit(pos + HEADER + length);
+            crc.reset();
+            crc.update(body);
+            map.putInt(pos, length);
+            map.putInt(pos + 4, (int) crc.getValue());
+            if (recordsInActive++ % INDEX_INTERVAL == 0) active.index(entry.seq, pos);
+            pos += HEADER + length;
+            lastSeq = entry.seq;
+        }
+        sync(map, pos, lastSeq);
+        written.add(batch.size());
+        syncNanos.record(System.nanoTime() - start);
+    }
+
+    // One force() for everything written since the last one, then readers may see it
+    private void sync(MappedByteBuffer map, int end, long lastSeq) {
+        map.force();
+        batches.increment();
+        active.lastSeq = lastSeq;
+        active.end = end;
+    }
+
+    private void publish(long seq) {
+        synchronized (published) {
+            writtenSeq = seq;
+            published.notifyAll();
+        }
+    }
+
+    private void open(long baseSeq) throws IOException {
+        Path path = dir.resolve(String.format("%020d.log", baseSeq));
+        activeFile = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(baseSeq, path, System.currentTimeMillis());
+        segment.map = activeFile.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes); // A new file reads as zeros: no end marker to write
+        recordsInActive = 0;
+        active = segment;
+        segments.add(segment);
+    }
+
+    // Trims the file to its records, so a closed segment takes no more disk than it needs
+    private void closeActive() {
+        if (active == null) return;
+        Segment segment = active;
+        active = null;
+        segment.closedAt = System.currentTimeMillis();
+        segment.map = null; // Unmapped once no replay holds a view of it any more
+        try {
+            activeFile.truncate(segment.end);
+        } catch (IOException e) {
+            // Not fatal: readers stop at 'end', and so does recover() at the zeros after it
+        }
+        try {
+            activeFile.close();
+        } catch (IOException e) {}
+        if (segment.end == 0) { // Nothing in it, e.g. a failed first write
+            segments.remove(segment);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {}
+        }
+    }
+
+    private void deleteExpired(long now) {
+        for (Segment segment : segments) {
+            if (segment.closedAt == 0 || now - segment.closedAt < retentionMillis) continue;
+            segments.remove(segment);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                log.accept("Could not delete message log segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Reads a segment left by an earlier run; returns null for files that are not segments or hold no records
+    private Segment recover(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long baseSeq;
+        try {
+            baseSeq = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        Segment segment = new Segment(baseSeq, path, Files.getLastModifiedTime(path).toMillis());
+        segment.closedAt = segment.openedAt;
+        int pos = 0;
+        int records = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = Math.min(file.size(), Integer.MAX_VALUE);
+            ByteBuffer buf = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 check = new CRC32();
+            while (pos + HEADER + 8 <= size) {
+                int length = buf.getInt(pos);
+                if (length < 8 || length > size - pos - HEADER) break; // End marker, or cut short
+                ByteBuffer body = buf.duplicate();
+                body.position(pos + HEADER).limit(pos + HEADER + length);
+                check.reset();
+                check.update(body);
+                long seq = buf.getLong(pos + HEADER);
+                if ((int) check.getValue() != buf.getInt(pos + 4) || seq <= segment.lastSeq) break; // Torn write
+                if (records++ % INDEX_INTERVAL == 0) segment.index(seq, pos);
+                segment.lastSeq = seq;
+                pos += HEADER + length;
+            }
+            if (pos < size) file.truncate(pos); // Drop the unused (or torn) tail
+        }
+        segment.end = pos;
+        if (records == 0) {
+            Files.deleteIfExists(path);
+            return null;
+        }
+        return segment;
+    }
+
+    private static Entry decode(ByteBuffer buf, int pos, long seq) {
+        ByteBuffer body = buf.duplicate();
+        body.position(pos + 8);
+        long time = body.getLong();
+        int kind = body.get();
+        String sender = string(body);
+        String target = string(body);
+        return new Entry(seq, time, kind, sender, target, string(body));
+    }
+
+    private static String string(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // One line for the periodic stats log
+    String report() {
+        return String.format("Message log: seq %d, %d written, %d dropped, %d queued, %d segments, %d syncs (p99 %.1f ms)",
+                nextSeq, written.sum(), dropped.sum(), pending.size(), segments.size(), batches.sum(),
+                syncNanos.percentile(0.99) / 1e6);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.*; // For IOException, OutputStream
+import java.nio.file.*; // For Files, Path
+import java.util.*; // For ArrayList, List
+import java.util.concurrent.*; // For CountDownLatch, TimeUnit
+import java.util.concurrent.atomic.*; // For LongAdder
+
+// Cost of the MessageLog on the broadcast hot path, with the log off and on, and a check that what it wrote
+// comes back complete and in order after a restart.
+// In-process, no sockets: sender threads log a message, build its Frame and queue it for every recipient's
+// OutboundQueue; one writer thread per recipient encodes each frame as writeLoop does. The log goes to a temporary
+// directory with small segments, so it rolls several times.
+// Usage: java MessageLogBenchmark [senders] [recipients] [seconds]
+public class MessageLogBenchmark {
+    static long expected; // Records the "on" rounds got onto disk
+
+    public static void main(String[] args) throws Exception {
+        int senders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Path dir = Files.createTempDirectory("chat-message-log-");
+        try {
+            run("warmup", null, senders, recipients, 2);
+            double off = 0, on = 0;
+            for (int round = 0; round < 3; round++) { // Alternating rounds, best of each: thread scheduling is noisy here
+                off = Math.max(off, run("off", null, senders, recipients, seconds));
+                MessageLog log = new MessageLog(dir, 8 * 1024 * 1024, 60_000, 3_600_000, 65_536, System.out::println);
+                on = Math.max(on, run("on", log, senders, recipients, seconds));
+                log.close();
+                expected += log.written.sum();
+            }
+            System.out.printf("message log overhead: %.1f%% of broadcast throughput (best of 3 rounds each)%n", (off - on) / off * 100);
+            verify(dir);
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+        System.exit(0);
+    }
+
+    // Returns broadcasts per second
+    static double run(String label, MessageLog log, int senders, int recipients, int seconds) throws InterruptedException {
+        List<OutboundQueue> queues = new ArrayList<>();
+        LongAdder written = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        OutputStream sink = OutputStream.nullOutputStream();
+        for (int r = 0; r < recipients; r++) {
+            OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.Policy.DROP_OLDEST, 0, 1);
+            queues.add(queue);
+            Thread writer = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        Frame frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (frame == null) continue;
+                        frame.writeTo(sink, null, true);
+                        queue.written(frame);
+                        written.increment();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Ends the writer
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        LongAdder broadcasts = new LongAdder();
+        CountDownLatch done = new CountDownLatch(senders);
+        for (int s = 0; s < senders; s++) {
+            int senderId = s + 1;
+            String sender = "sender" + senderId;
+            new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        String body = "hello from the message log benchmark";
+                        long seq = log != null ? log.append(BinaryProtocol.TEXT, sender, "", body) : 0;
+                        Frame frame = Frame.chat(senderId, sender, body, seq);
+                        for (OutboundQueue queue : queues) {
+                            queue.offer(frame); // DROP_OLDEST never blocks or refuses
+                        }
+                        broadcasts.increment();
+                    }
+                } catch (InterruptedException e) {
+                    // Ends the sender
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        double perSecond = broadcasts.sum() / (double) seconds;
+        System.out.printf("log=%s senders=%d recipients=%d broadcasts_per_s=%.0f frames_written_per_s=%.0f%n",
+                label, senders, recipients, perSecond, written.sum() / (double) seconds);
+        if (log != null) {
+            System.out.println("  " + log.report());
+        }
+        Thread.sleep(200); // Let the writers notice the deadline
+        return perSecond;
+    }
+
+    // Reopens the directory the way a restarted server would and reads everything back
+    static void verify(Path dir) throws Exception {
+        MessageLog log = new MessageLog(dir, 8 * 1024 * 1024, 60_000, 3_600_000, 1024, System.out::println);
+        long[] previous = {0};
+        long[] count = {0};
+        boolean[] ordered = {true};
+        log.replay(0, log.lastSeq(), entry -> {
+            if (entry.seq <= previous[0]) ordered[0] = false;
+            previous[0] = entry.seq;
+            count[0]++;
+        });
+        long segments;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            segments = 0;
+            for (Path file : files) segments++;
+        }
+        System.out.printf("replay after restart: %d of %d written records, last seq %d, %d segments, %s%n",
+                count[0], expected, log.lastSeq(), segments, ordered[0] ? "in order" : "OUT OF ORDER");
+        System.out.println(ordered[0] && count[0] == expected && expected > 0 ? "PASS" : "FAIL");
+        log.close();
+    }
+}
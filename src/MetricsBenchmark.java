@@ -0,0 +1,86 @@
+import java.io.*; // For IOException, OutputStream
+import java.util.*; // For ArrayList, List
+import java.util.concurrent.*; // For CountDownLatch, TimeUnit
+import java.util.concurrent.atomic.*; // For LongAdder
+
+// Cost of ServerMetrics on the broadcast hot path, with metrics off and on.
+// In-process, no sockets: sender threads build a Frame, queue it for every recipient's OutboundQueue and record the
+// broadcast; one writer thread per recipient encodes each frame (as writeLoop does) and records the write.
+// Usage: java MetricsBenchmark [senders] [recipients] [seconds]
+public class MetricsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int senders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int recipients = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        run("warmup", false, senders, recipients, 2);
+        double off = 0, on = 0;
+        for (int round = 0; round < 3; round++) { // Alternating rounds, best of each: thread scheduling is noisy here
+            off = Math.max(off, run("off", false, senders, recipients, seconds));
+            on = Math.max(on, run("on", true, senders, recipients, seconds));
+        }
+        System.out.printf("metrics overhead: %.1f%% of broadcast throughput (best of 3 rounds each)%n", (off - on) / off * 100);
+        System.exit(0);
+    }
+
+    // Returns broadcasts per second
+    static double run(String label, boolean enabled, int senders, int recipients, int seconds) throws InterruptedException {
+        ServerMetrics metrics = new ServerMetrics(enabled, new HandshakeMetrics(), new RateLimits(new ServerConfig()), () -> 0); // Not started: no JMX, no HTTP
+        List<OutboundQueue> queues = new ArrayList<>();
+        LongAdder written = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        OutputStream sink = OutputStream.nullOutputStream();
+        for (int r = 0; r < recipients; r++) {
+            OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.Policy.DROP_OLDEST, 0, 1);
+            queues.add(queue);
+            Thread writer = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        Frame frame = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (frame == null) continue;
+                        frame.writeTo(sink, null, true);
+                        queue.written(frame);
+                        metrics.written(frame, frame.wireSize(true));
+                        written.increment();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Ends the writer
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        LongAdder broadcasts = new LongAdder();
+        CountDownLatch done = new CountDownLatch(senders);
+        for (int s = 0; s < senders; s++) {
+            int senderId = s + 1;
+            new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        Frame frame = Frame.chat(senderId, "sender" + senderId, "hello from the metrics benchmark");
+                        metrics.messagesIn.increment();
+                        long start = System.nanoTime();
+                        for (OutboundQueue queue : queues) {
+                            queue.offer(frame); // DROP_OLDEST never blocks or refuses
+                        }
+                        metrics.broadcast(start, queues.size());
+                        broadcasts.increment();
+                    }
+                } catch (InterruptedException e) {
+                    // Ends the sender
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        double perSecond = broadcasts.sum() / (double) seconds;
+        System.out.printf("metrics=%s senders=%d recipients=%d broadcasts_per_s=%.0f frames_written_per_s=%.0f%s%n",
+                label, senders, recipients, perSecond, written.sum() / (double) seconds,
+                enabled ? String.format(" broadcast_p99_us=%.1f delivery_p99_us=%.1f", metrics.broadcastNanos.percentile(0.99) / 1e3,
+                        metrics.deliveryNanos.percentile(0.99) / 1e3) : "");
+        Thread.sleep(200); // Let the writers notice the deadline
+        return perSecond;
+    }
+}
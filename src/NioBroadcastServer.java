@@ -0,0 +1,396 @@
+import java.io.*; // For ByteArrayInputStream, DataInputStream, IOException
+import java.net.*; // For InetSocketAddress
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For Selector, SelectionKey, ServerSocketChannel, SocketChannel
+import java.util.*; // For Arrays, Iterator, Map
+import java.util.concurrent.*; // For ConcurrentHashMap, ConcurrentLinkedQueue
+import java.util.concurrent.atomic.*; // For AtomicBoolean, AtomicInteger
+
+// Headless server mode that multiplexes all clients over a few Selector threads instead of one thread per client.
+// It speaks the same writeUTF based wire format as BroadcastServer, so SimpleChatClient works unchanged.
+public class NioBroadcastServer {
+    final ServerConfig config;
+    final Map<String, NioConnection> clients = new ConcurrentHashMap<>(); // Same role as BroadcastServer.clients
+    final Rooms<NioConnection> rooms = new Rooms<>(); // Same role as BroadcastServer.rooms
+    final EventLoop[] loops;
+    final Authenticator authenticator; // Password checks run on its threads; the event loops only get the result
+    final ServerLog log; // Event loops hand lines off to it instead of writing stdout themselves
+    private final AtomicInteger nextLoop = new AtomicInteger(); // Round-robin index for spreading new connections over the loops
+    private final AtomicBoolean presenceChanged = new AtomicBoolean(); // Someone joined or left since the last USER_LIST broadcast
+
+    public NioBroadcastServer(ServerConfig config) {
+        this.config = config;
+        this.loops = new EventLoop[config.eventLoops];
+        this.authenticator = new Authenticator(config);
+        this.log = new ServerLog(config.logBufferLines, config.logTailLines, System.out);
+    }
+
+    public void start() {
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop();
+                Thread t = new Thread(loops[i], "nio-loop-" + i);
+                t.start();
+            }
+            Thread presenceFlusher = new Thread(this::flushPresence, "presence");
+            presenceFlusher.setDaemon(true);
+            presenceFlusher.start();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            config.configure(serverChannel);
+            serverChannel.bind(new InetSocketAddress(config.port));
+            log("NIO server started on port " + config.port + " with " + loops.length + " event loops (auth " + config.auth + ")");
+
+            while (true) { // The accept loop stays blocking; only accepted sockets are non-blocking
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                config.configure(channel); // TCP_NODELAY and buffer sizes; each flush is already one gathering write
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                loop.execute(() -> loop.register(channel));
+            }
+        } catch (IOException e) {
+            log("Error starting server: " + e.getMessage());
+        }
+    }
+
+    void log(String message) {
+        log.log(message);
+    }
+
+    private Frame clientList() {
+        StringBuilder sb = new StringBuilder("USER_LIST");
+        for (String name : clients.keySet()) {
+            sb.append("/").append(name);
+        }
+        return Frame.notice(sb.toString()); // Nio mode speaks only the legacy protocol and has no user ids
+    }
+
+    // Legacy clients only understand full lists, so joins and leaves are coalesced instead: at most one
+    // USER_LIST per --presence-coalesce-ms, encoded once and shared by every client, however many changes it covers
+    private void flushPresence() {
+        while (true) {
+            try {
+                Thread.sleep(config.presenceCoalesceMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!presenceChanged.getAndSet(false)) continue;
+            Frame frame = clientList();
+            for (NioConnection c : clients.values()) {
+                c.send(frame);
+            }
+        }
+    }
+
+    private void broadcast(Frame frame, NioConnection sender) {
+        for (NioConnection client : clients.values()) {
+            if (client != sender) {
+                client.send(frame);
+            }
+        }
+    }
+
+    // Reads one writeUTF string from the buffer, or returns null (leaving the position alone) if it has not fully arrived yet
+    static String readUTF(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 2) return null;
+        int length = buf.getShort(buf.position()) & 0xFFFF;
+        if (buf.remaining() < 2 + length) return null;
+        byte[] encoded = new byte[2 + length];
+        buf.get(encoded);
+        return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+    }
+
+    // One selector thread; owns every channel registered with it, so channel state is never touched concurrently
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work handed over from other threads
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup(); // Break out of select() so the task runs promptly
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                NioConnection conn = new NioConnection(channel, this);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                log("Failed to register connection: " + e.getMessage());
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (!key.isValid()) continue;
+                        try {
+                            if (key.isWritable()) conn.flush();
+                            if (key.isValid() && key.isReadable()) conn.onReadable();
+                        } catch (RuntimeException e) { // A bug or a malformed message must not take the other connections down with the loop
+                            log("Closing " + conn.clientName + " after " + e);
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    log("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Per-client state: a growing read buffer that is parsed incrementally, and a queue of frames waiting to be written
+    class NioConnection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        SelectionKey key;
+        String clientName; // Null until the client has sent its name (and logged in)
+        private boolean loggingIn; // Waiting for the authenticator; reading is paused meanwhile
+        private boolean roomsOffered; // Client announced "rooms", so JOIN/LEAVE/ROOM are commands, not chat text
+        private boolean pastFirst; // A whole message after the name has been decoded, so "CAPS" is chat text from now on
+        private ByteBuffer readBuf = ByteBuffer.allocate(8192);
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        NioConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // Safe to call from any thread; the actual write happens on this connection's loop
+        void send(Frame frame) {
+            send(frame.buffer()); // Each recipient gets its own position over the shared bytes
+        }
+
+        private void send(ByteBuffer buffer) {
+            outbound.add(buffer);
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        void flush() {
+            try {
+                while (true) {
+                    ByteBuffer head;
+                    while ((head = outbound.peek()) != null) {
+                        channel.write(head);
+                        if (head.hasRemaining()) { // Socket buffer is full; wait for OP_WRITE
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        outbound.poll();
+                    }
+                    if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    flushScheduled.set(false);
+                    // A frame may have been queued after the queue looked empty but before the flag was cleared
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) return;
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void onReadable() {
+            try {
+                if (channel.read(readBuf) < 0) {
+                    close();
+                    return;
+                }
+                decodeBuffered();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void decodeBuffered() throws IOException {
+            readBuf.flip();
+            while (readBuf.hasRemaining() && !loggingIn && decodeOne()) {
+                // Keep decoding until the buffer only holds a partial message
+            }
+            readBuf.compact();
+        }
+
+        // Decodes a single message; returns false (and rewinds) if more bytes are needed
+        private boolean decodeOne() throws IOException {
+            int start = readBuf.position();
+            if (clientName == null) {
+                String first = readUTF(readBuf); // A login handshake, or the name of an older client
+                if (first == null) return needMore(start, 2);
+                if (first.equals(Authenticator.HANDSHAKE)) {
+                    String name = readUTF(readBuf);
+                    String method = name == null ? null : readUTF(readBuf);
+                    String secret = method == null ? null : readUTF(readBuf);
+                    if (secret == null) return needMore(start, 2);
+                    loggingIn = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // Nothing more is read until the login is decided
+                    authenticator.login(name, method, secret)
+                            .whenComplete((token, error) -> loop.execute(() -> finishLogin(name, token, error)));
+                    return false;
+                }
+                if (authenticator.required) {
+                    replyAndClose(Frame.notice("This server requires a login. Please update your chat client.").buffer());
+                    return false;
+                }
+                admit(first);
+                return true;
+            }
+
+            String type = readUTF(readBuf);
+            if (type == null) return needMore(start, 2);
+            boolean first = !pastFirst; // Newer clients send CAPS right after their name; older ones may type "CAPS"
+
+            if (type.equals("File") || type.equals("PRIVATE_FILE")) {
+                String receiver = type.equals("PRIVATE_FILE") ? readUTF(readBuf) : null;
+                if (type.equals("PRIVATE_FILE") && receiver == null) return needMore(start, 2);
+                String fileName = readUTF(readBuf);
+                if (fileName == null || readBuf.remaining() < 4) return needMore(start, 4);
+                int size = readBuf.getInt();
+                long limit = Math.min(config.maxFileBytes, config.legacyFileBytes); // The whole file is held in memory here
+                if (size < 0 || size > limit) {
+                    replyAndClose(Frame.notice("File '" + fileName + "' is larger than the server limit of " + limit + " bytes.").buffer());
+                    return false;
+                }
+                if (readBuf.remaining() < size) return needMore(start, size);
+                byte[] fileData = new byte[size];
+                readBuf.get(fileData);
+
+                if (receiver == null) {
+                    log(clientName + " sent file: " + fileName);
+                    broadcast(Frame.file(fileName, fileData), this);
+                } else {
+                    NioConnection target = clients.get(receiver);
+                    if (target != null) {
+                        log("[Private File] " + clientName + " -> " + receiver + ": " + fileName);
+                        target.send(Frame.file(fileName, fileData));
+                    } else {
+                        send(Frame.notice("User '" + receiver + "' not found."));
+                    }
+                }
+            } else if (first && type.equals("CAPS")) {
+                // Chunked files and binary-v1 are not supported in nio mode; a reply without them keeps the client on the legacy protocol
+                String caps = readUTF(readBuf);
+                if (caps == null) return needMore(start, 2);
+                if (Arrays.asList(caps.split(",")).contains("rooms")) {
+                    roomsOffered = true;
+                    send(Frame.caps("rooms"));
+                }
+            } else if (roomsOffered && (type.equals("JOIN") || type.equals("LEAVE"))) {
+                String requested = readUTF(readBuf);
+                if (requested == null) return needMore(start, 2);
+                String room = Rooms.normalize(requested);
+                if (room == null) {
+                    send(Frame.notice("Room names are 1 to " + Rooms.MAX_NAME + " characters."));
+                } else if (type.equals("JOIN") && rooms.join(room, this)) {
+                    send(Frame.notice("You joined #" + room + " (" + Rooms.countText(rooms.members(room).size()) + ")."));
+                } else if (type.equals("LEAVE") && rooms.leave(room, this)) {
+                    send(Frame.notice("You left #" + room + "."));
+                }
+            } else if (roomsOffered && type.equals("ROOM")) {
+                String requested = readUTF(readBuf);
+                String message = requested == null ? null : readUTF(readBuf);
+                if (message == null) return needMore(start, 2);
+                String room = Rooms.normalize(requested);
+                if (room == null || !rooms.isMember(room, this)) {
+                    send(Frame.notice("Join #" + requested + " before sending to it."));
+                } else {
+                    log("[#" + room + "] " + clientName + ": " + message);
+                    Frame frame = Frame.roomText(0, clientName, room, message);
+                    for (NioConnection member : rooms.members(room)) {
+                        if (member != this) member.send(frame);
+                    }
+                }
+            } else if (type.equals("PRIVATE")) {
+                String receiver = readUTF(readBuf);
+                String message = receiver == null ? null : readUTF(readBuf);
+                if (message == null) return needMore(start, 2);
+                NioConnection target = clients.get(receiver);
+                if (target != null) {
+                    target.send(Frame.privateMessage(0, clientName, message));
+                }
+            } else {
+                log(clientName + ": " + type);
+                broadcast(Frame.chat(0, clientName, type), this);
+            }
+            pastFirst = true; // Only once the message was complete; a partial one is decoded again
+            return true;
+        }
+
+        // Rewinds to the start of the partial message and makes sure the buffer can hold at least 'needed' more bytes
+        private boolean needMore(int start, int needed) {
+            readBuf.position(start);
+            long required = (long) readBuf.remaining() + needed + 2;
+            if (readBuf.capacity() < required) { // Large files need a bigger buffer than the default 8 KB
+                ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, Math.max(required, readBuf.capacity() * 2L)));
+                bigger.put(readBuf);
+                bigger.flip();
+                readBuf = bigger;
+            }
+            return false;
+        }
+
+        // Runs on this connection's loop once the authenticator has decided
+        private void finishLogin(String name, String token, Throwable error) {
+            loggingIn = false;
+            if (!channel.isOpen()) return;
+            if (error != null) {
+                log("Login refused for " + name + ": " + Authenticator.reason(error));
+                replyAndClose(ByteBuffer.wrap(Authenticator.reply(false, Authenticator.reason(error))));
+                return;
+            }
+            send(ByteBuffer.wrap(Authenticator.reply(true, token)));
+            admit(name);
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                decodeBuffered(); // The client may have sent more right behind its login
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        private void admit(String name) {
+            clientName = name;
+            clients.put(clientName, this);
+            log("Client connected: " + clientName);
+            send(clientList()); // The newcomer gets the list at once; everyone else with the next flush
+            presenceChanged.set(true);
+        }
+
+        // Best effort: a short reply on a fresh socket fits in its send buffer
+        private void replyAndClose(ByteBuffer reply) {
+            try {
+                channel.write(reply);
+            } catch (IOException e) {}
+            close();
+        }
+
+        void close() {
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            rooms.leaveAll(this);
+            if (clientName != null && clients.remove(clientName, this)) {
+                log("Client disconnected: " + clientName);
+                presenceChanged.set(true);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.parse(args);
+        new NioBroadcastServer(config).start();
+    }
+}
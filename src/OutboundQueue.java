@@ -0,0 +1,113 @@
+import java.util.*; // For Locale
+import java.util.concurrent.*; // For ArrayBlockingQueue, TimeUnit
+import java.util.concurrent.atomic.*; // For AtomicInteger, LongAdder
+
+// Bounded queue of encoded frames between the threads that broadcast to a client and that client's writer thread.
+// When the client reads too slowly the queue fills up and the backpressure policy decides what happens.
+class OutboundQueue {
+    enum Policy {
+        DROP_OLDEST, // Throw away the oldest queued frame to make room for the new one
+        DISCONNECT, // Treat the client as dead and disconnect it
+        BLOCK; // Make the sending thread wait up to the block timeout, then disconnect
+
+        static Policy parse(String value) {
+            return valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_')); // "drop-oldest" -> DROP_OLDEST
+        }
+    }
+
+    private final ArrayBlockingQueue<Frame> frames;
+    private final Policy policy;
+    private final long blockTimeoutMillis;
+    private final Semaphore fileWindow; // Bytes of file chunks allowed to wait in this queue; how far a receiver may fall behind
+
+    final LongAdder enqueued = new LongAdder(); // Frames accepted into the queue
+    final LongAdder dropped = new LongAdder(); // Frames discarded by DROP_OLDEST
+    final AtomicInteger highWater = new AtomicInteger(); // Deepest the queue has been
+
+    OutboundQueue(int capacity, Policy policy, long blockTimeoutMillis, int fileWindowBytes) {
+        this.frames = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.fileWindow = new Semaphore(fileWindowBytes);
+    }
+
+    // Returns false if the client is too slow and should be disconnected
+    boolean offer(Frame frame) throws InterruptedException {
+        boolean accepted;
+        switch (policy) {
+            case DROP_OLDEST:
+                accepted = true;
+                while (!frames.offer(frame)) {
+                    Frame oldest = frames.peek();
+                    if (oldest != null && oldest.reliable) { // Dropping part of a file would corrupt it; treat as too slow instead
+                        accepted = false;
+                        break;
+                    }
+                    if (oldest != null && frames.remove(oldest)) {
+                        written(oldest); // Gives back what the frame was holding
+                        dropped.increment();
+                    }
+                }
+                break;
+            case BLOCK:
+                accepted = frames.offer(frame, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                break;
+            default:
+                accepted = frames.offer(frame);
+        }
+        if (accepted) {
+            enqueued.increment();
+            highWater.accumulateAndGet(frames.size(), Math::max);
+        }
+        return accepted;
+    }
+
+    // Queues the frame only if there is room right now, whatever the policy; for frames that may be skipped, like PINGs
+    boolean offerNow(Frame frame) {
+        if (!frames.offer(frame)) return false;
+        enqueued.increment();
+        highWater.accumulateAndGet(frames.size(), Math::max);
+        return true;
+    }
+
+    // File chunks are never dropped (that would corrupt the file); the sender waits for window space instead,
+    // which stops its reader and pushes back on the uploading client through TCP. Returns false on timeout.
+    boolean offerChunk(Frame chunk, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!fileWindow.tryAcquire(chunk.windowBytes, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        if (!frames.offer(chunk, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            fileWindow.release(chunk.windowBytes);
+            return false;
+        }
+        enqueued.increment();
+        highWater.accumulateAndGet(frames.size(), Math::max);
+        return true;
+    }
+
+    Frame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return frames.poll(timeout, unit);
+    }
+
+    // Called once a frame is on the wire or has been discarded; frees its file window bytes and spool reference
+    void written(Frame frame) {
+        if (frame.windowBytes > 0) fileWindow.release(frame.windowBytes);
+        if (frame.spool != null) frame.spool.release();
+    }
+
+    int depth() {
+        return frames.size();
+    }
+
+    int capacity() {
+        return frames.size() + frames.remainingCapacity();
+    }
+
+    void clear() {
+        Frame frame;
+        while ((frame = frames.poll()) != null) {
+            written(frame); // Wake up any sender still waiting on the file window
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.nio.charset.*; // For StandardCharsets
+import java.security.*; // For MessageDigest, NoSuchAlgorithmException, SecureRandom
+import java.security.spec.*; // For InvalidKeySpecException
+import java.util.*; // For Base64
+import javax.crypto.*; // For SecretKeyFactory
+import javax.crypto.spec.*; // For PBEKeySpec
+
+// Salted, deliberately slow password hashes (PBKDF2-HMAC-SHA256), stored in users.password as
+//   pbkdf2-sha256$<iterations>$<salt>$<hash>     (salt and hash are unpadded Base64)
+// The iteration count is stored with every hash, so it can be raised later without breaking existing rows.
+// Rows from before hashing hold the plain password; verify() still accepts those and needsRehash() reports them.
+final class PasswordHasher {
+    static final String PREFIX = "pbkdf2-sha256";
+    static final int DEFAULT_ITERATIONS = 210_000; // Roughly 100 ms per hash on one core; the cost is the point
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int iterations;
+    private final String unknownUser; // Checked against when there is no row, so a missing name costs a full hash too
+
+    PasswordHasher() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    PasswordHasher(int iterations) {
+        this.iterations = iterations;
+        this.unknownUser = hash(Long.toString(random.nextLong()));
+    }
+
+    String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + "$" + iterations + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    // Constant-time comparison, so the time taken does not reveal how much of the hash matched. A malformed hash
+    // (bad iteration count, bad Base64, empty salt) matches nothing. No row (stored == null) takes as long as a wrong
+    // password, so login times do not tell which names exist.
+    boolean verify(String password, String stored) {
+        if (stored == null) {
+            verify(password, unknownUser);
+            return false;
+        }
+        if (!isHash(stored)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) return false;
+        Base64.Decoder b64 = Base64.getDecoder();
+        try {
+            byte[] expected = b64.decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, b64.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) { // NumberFormatException too; PBEKeySpec also throws it for a bad count or salt
+            return false;
+        }
+    }
+
+    // Plain-text rows and hashes made with fewer iterations are replaced after the next successful login
+    boolean needsRehash(String stored) {
+        if (!isHash(stored)) return true;
+        try {
+            return Integer.parseInt(stored.split("\\$")[1]) < iterations;
+        } catch (RuntimeException e) { // Malformed; verify() never accepts it, so there is nothing to replace it with
+            return false;
+        }
+    }
+
+    static boolean isHash(String stored) {
+        return stored.startsWith(PREFIX + "$");
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e); // Part of every Java 8+ runtime
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
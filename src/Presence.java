@@ -0,0 +1,86 @@
+import java.util.*; // For ArrayList, LinkedHashMap, List, Map
+
+// Who is online, as a version number plus the changes since the last delta went out.
+// Every join or leave bumps the version; flush() turns everything since the previous flush into one
+// PRESENCE_DELTA, so a reconnect storm costs each client one small delta per coalescing window instead of
+// a full USER_LIST per connect and disconnect. Clients that missed a delta ask for a snapshot (see BinaryProtocol).
+final class Presence {
+    private final Map<Integer, String> members = new LinkedHashMap<>(); // Join order, as shown in the clients' user lists
+    private final Map<Integer, String> joined = new LinkedHashMap<>(); // Joined since the last flush and still online
+    private final List<Integer> left = new ArrayList<>(); // Left since the last flush
+    private long version;
+    private long flushedVersion; // Version the next delta starts from
+
+    synchronized void join(int id, String name) {
+        members.put(id, name);
+        joined.put(id, name);
+        version++;
+    }
+
+    // A user who joins and leaves within one window is only listed as a leave: ids are never reused, and a client
+    // that got a snapshot in between has to see them go
+    synchronized void leave(int id) {
+        if (members.remove(id) == null) return;
+        joined.remove(id);
+        left.add(id);
+        version++;
+    }
+
+    // The changes since the previous flush, or null if there were none
+    synchronized Frame flush() {
+        if (version == flushedVersion) return null;
+        int[] joinIds = new int[joined.size()];
+        String[] joinNames = new String[joined.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> e : joined.entrySet()) {
+            joinIds[i] = e.getKey();
+            joinNames[i++] = e.getValue();
+        }
+        int[] leaveIds = new int[left.size()];
+        for (i = 0; i < leaveIds.length; i++) {
+            leaveIds[i] = left.get(i);
+        }
+        Frame delta = Frame.presenceDelta(flushedVersion, version, joinIds, joinNames, leaveIds);
+        joined.clear();
+        left.clear();
+        flushedVersion = version;
+        return delta;
+    }
+
+    // Everyone online now, for a presence client that has just switched to binary-v1 or lost track
+    synchronized Frame snapshot() {
+        int[] ids = new int[members.size()];
+        String[] names = new String[members.size()];
+        copyMembers(ids, names);
+        return Frame.presenceSnapshot(version, ids, names);
+    }
+
+    // The same list for clients that only understand USER_LIST
+    synchronized Frame userList() {
+        int[] ids = new int[members.size()];
+        String[] names = new String[members.size()];
+        copyMembers(ids, names);
+        return Frame.userList(ids, names);
+    }
+
+    private void copyMembers(int[] ids, String[] names) {
+        int i = 0;
+        for (Map.Entry<Integer, String> e : members.entrySet()) {
+            ids[i] = e.getKey();
+            names[i++] = e.getValue();
+        }
+    }
+
+    // Names in join order, for the server console
+    synchronized List<String> names() {
+        return new ArrayList<>(members.values());
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    synchronized int size() {
+        return members.size();
+    }
+}
@@ -0,0 +1,113 @@
+import java.io.*; // For IOException, OutputStream
+import java.util.*; // For ArrayList, List
+
+// Presence traffic while every user reconnects once (e.g. after a deploy), with a full USER_LIST to everyone on each
+// join and leave (as BroadcastServer used to do) and with Presence: a snapshot for each newcomer plus one coalesced
+// PRESENCE_DELTA per window to everyone. Runs the same wave at half and at full size; per reconnect, the old scheme
+// grows with the square of the users online and Presence only linearly, so doubling the users should roughly double
+// its per-reconnect bytes. Byte counts are binary-v1 frame sizes; nothing goes over a socket.
+// Usage: java PresenceChurnCheck [users] [waveSeconds] [windowMs]
+public class PresenceChurnCheck {
+
+    public static void main(String[] args) throws IOException {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int waveMillis = (args.length > 1 ? Integer.parseInt(args[1]) : 30) * 1000;
+        int windowMillis = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+
+        double[] half = run(users / 2, waveMillis, windowMillis);
+        double[] full = run(users, waveMillis, windowMillis);
+        double growth = full[1] / half[1];
+        boolean pass = growth < 2.5;
+        System.out.printf("per-reconnect growth when users double: full_list=%.1fx presence=%.1fx result=%s%n",
+                full[0] / half[0], growth, pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+
+    // Returns {full-list bytes per reconnect, presence bytes per reconnect}
+    static double[] run(int users, int waveMillis, int windowMillis) throws IOException {
+        Presence presence = new Presence();
+        List<Integer> online = new ArrayList<>(); // Ids in join order
+        int nextId = 0;
+        for (int i = 0; i < users; i++) {
+            presence.join(++nextId, "user" + i);
+            online.add(nextId);
+        }
+        presence.flush(); // Start from a settled state
+        long listPayload = 0; // The (id, name) entries of a binary USER_LIST for everyone online, kept up to date
+        for (int i = 0; i < users; i++) listPayload += entrySize(online.get(i), "user" + i);
+
+        // User i drops at i * waveMillis / users and is back 100 ms later under a new id
+        long fullListBytes = 0;
+        long presenceBytes = 0;
+        long nextFlush = windowMillis;
+        int left = 0;
+        int joined = 0;
+        while (joined < users) {
+            long leaveAt = left < users ? (long) left * waveMillis / users : Long.MAX_VALUE;
+            long joinAt = (long) joined * waveMillis / users + 100;
+            long now = Math.min(Math.min(leaveAt, joinAt), nextFlush);
+            int connected = presence.size();
+            if (now == nextFlush) {
+                Frame delta = presence.flush();
+                if (delta != null) presenceBytes += size(delta) * connected;
+                nextFlush += windowMillis;
+            } else if (now == leaveAt) {
+                int id = online.get(left);
+                presence.leave(id);
+                listPayload -= entrySize(id, "user" + left);
+                fullListBytes += frameSize(listPayload, connected - 1) * (connected - 1);
+                left++;
+            } else {
+                int id = ++nextId;
+                presence.join(id, "user" + joined);
+                listPayload += entrySize(id, "user" + joined);
+                long listSize = frameSize(listPayload, connected + 1);
+                fullListBytes += listSize * (connected + 1);
+                presenceBytes += listSize + snapshotSize(listPayload, connected + 1, presence.version()); // Newcomer: USER_LIST on admit, snapshot after CAPS
+                joined++;
+            }
+        }
+        Frame last = presence.flush();
+        if (last != null) presenceBytes += size(last) * presence.size();
+        if (size(presence.userList()) != frameSize(listPayload, users)
+                || size(presence.snapshot()) != snapshotSize(listPayload, users, presence.version())) {
+            throw new IllegalStateException("List size model is off"); // The arithmetic must match the real encoding
+        }
+
+        double reconnects = users;
+        System.out.printf("users=%d wave_s=%d window_ms=%d full_list_bytes=%d presence_bytes=%d per_reconnect_full_list=%.0f per_reconnect_presence=%.0f%n",
+                users, waveMillis / 1000, windowMillis, fullListBytes, presenceBytes, fullListBytes / reconnects, presenceBytes / reconnects);
+        return new double[] {fullListBytes / reconnects, presenceBytes / reconnects};
+    }
+
+    // Full lists are sized from their layout instead of encoded: encoding one per reconnect would take minutes
+    static long entrySize(int id, String name) {
+        return BinaryProtocol.varintSize(id) + BinaryProtocol.varintSize(name.length()) + name.length(); // ASCII names
+    }
+
+    static long frameSize(long entries, int count) {
+        long payload = BinaryProtocol.varintSize(count) + entries;
+        return 1 + BinaryProtocol.varintSize(payload) + payload;
+    }
+
+    static long snapshotSize(long entries, int count, long version) {
+        long payload = BinaryProtocol.varintSize(version) + BinaryProtocol.varintSize(count) + entries;
+        return 1 + BinaryProtocol.varintSize(payload) + payload;
+    }
+
+    static long size(Frame frame) throws IOException {
+        long[] count = {0};
+        frame.writeTo(new OutputStream() {
+            @Override
+            public void write(int b) {
+                count[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                count[0] += len;
+            }
+        }, null, true);
+        return count[0];
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.*; // For FilterInputStream, IOException, InputStream
+import java.util.concurrent.*; // For Semaphore, TimeUnit
+import java.util.concurrent.atomic.*; // For LongAdder
+
+// Flood protection for BroadcastServer's client connections. Every connection has two TokenBuckets, messages per
+// second and bytes per second. A client over either limit is not told off or dropped at once. Its reader thread
+// just sleeps until the client is back within the limit. While the reader sleeps nothing is read from the socket,
+// so the client's sends back up in TCP and it slows down by itself. Other clients are not affected, because
+// nothing they need is held while the reader sleeps.
+// A client still over the message limit after --flood-disconnect-s of this is disconnected. File data is only
+// paced, never counted as flooding, because a large upload is meant to keep running at the byte limit.
+// On top of that, a server-wide semaphore caps how many file uploads are relayed at once.
+final class RateLimits {
+    final long messagesPerSecond; // 0 = no limit
+    final long messageBurst;
+    final long bytesPerSecond; // 0 = no limit
+    final long byteBurst;
+    final long floodDisconnectNanos; // 0 = never disconnect, only throttle
+    final Semaphore uploadSlots; // File uploads being relayed right now, server-wide
+
+    final LongAdder messageLimited = new LongAdder(); // Messages that found the sender over its message rate
+    final LongAdder byteLimited = new LongAdder(); // Reads (messages or file data) that found it over its byte rate
+    final LongAdder throttledNanos = new LongAdder(); // Time readers spent paused, summed over all clients
+    final LongAdder floodDisconnects = new LongAdder(); // Clients disconnected for staying over the message limit
+    final LongAdder uploadsRefused = new LongAdder(); // Uploads refused because every upload slot was taken
+
+    RateLimits(ServerConfig config) {
+        this.messagesPerSecond = config.maxMessagesPerSecond;
+        this.messageBurst = config.messageBurst;
+        this.bytesPerSecond = config.maxBytesPerSecond;
+        this.byteBurst = config.byteBurst;
+        this.floodDisconnectNanos = TimeUnit.SECONDS.toNanos(config.floodDisconnectSeconds);
+        this.uploadSlots = new Semaphore(config.maxUploads);
+    }
+
+    // One connection's buckets; only its reader thread uses it
+    final class Limiter {
+        private final TokenBucket messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messageBurst) : null;
+        private final TokenBucket bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, byteBurst) : null;
+        private long throttledSince; // When the current run of message throttling started; 0 = not throttled
+        private long bytesRead; // Through count(), since the last pace()
+
+        // Wraps the connection's input so pace() knows how many bytes each message took
+        InputStream count(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b >= 0) bytesRead++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buf, int off, int len) throws IOException {
+                    int n = in.read(buf, off, len);
+                    if (n > 0) bytesRead += n;
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = in.skip(n);
+                    if (skipped > 0) bytesRead += skipped;
+                    return skipped;
+                }
+            };
+        }
+
+        // Charges one message and the bytes read since the last call, and sleeps while the client is over a limit.
+        // Returns false if it has been over the message limit for longer than --flood-disconnect-s.
+        boolean message() throws InterruptedException {
+            long read = bytesRead;
+            bytesRead = 0;
+            long now = System.nanoTime();
+            long wait = 0;
+            if (messages != null) {
+                wait = messages.take(1, now);
+                if (wait > 0) messageLimited.increment();
+            }
+            if (wait == 0) {
+                throttledSince = 0; // The client let up
+            } else if (throttledSince == 0) {
+                throttledSince = now;
+            } else if (floodDisconnectNanos > 0 && now - throttledSince > floodDisconnectNanos) {
+                floodDisconnects.increment();
+                return false;
+            }
+            pause(Math.max(wait, takeBytes(read, now)));
+            return true;
+        }
+
+        // Called before 'length' bytes of file data are read from the socket (they bypass count())
+        void fileData(long length) throws InterruptedException {
+            pause(takeBytes(length, System.nanoTime()));
+        }
+
+        private long takeBytes(long length, long now) {
+            if (bytes == null || length == 0) return 0;
+            long wait = bytes.take(length, now);
+            if (wait > 0) byteLimited.increment();
+            return wait;
+        }
+
+        private void pause(long nanos) throws InterruptedException {
+            if (nanos <= 0) return;
+            throttledNanos.add(nanos);
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    // One line for the periodic stats log
+    String report() {
+        return String.format("Rate limits: %d messages and %d reads over the limit, readers paused %.1f s in total, %d flood disconnects, %d uploads refused (%d slots free)",
+                messageLimited.sum(), byteLimited.sum(), throttledNanos.sum() / 1e9, floodDisconnects.sum(),
+                uploadsRefused.sum(), uploadSlots.availablePermits());
+    }
+}
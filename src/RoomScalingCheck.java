@@ -0,0 +1,99 @@
+import java.util.*; // For ArrayList, Arrays, List, Random
+
+// Shows that a room message costs in proportion to the room's size, not to the number of users online.
+// Puts 50k users (each with a real OutboundQueue) into 1k rooms whose sizes follow a Zipf curve, so rooms range from
+// a handful of members to thousands, and times the same fan-out loop BroadcastServer.broadcastToRoom runs for rooms
+// of every size. Fits cost = a + b * size and reports how well that line explains the timings (R^2), plus the cost of
+// the old send-to-everyone loop and of everyone disconnecting (Rooms.leaveAll). In-process; no sockets.
+// Usage: java RoomScalingCheck [users] [rooms] [roomsPerUser]
+public class RoomScalingCheck {
+    static final int ROUNDS = 200; // Broadcasts per room per measurement; the median is used
+
+    static final class Member {
+        final OutboundQueue queue = new OutboundQueue(4, OutboundQueue.Policy.DROP_OLDEST, 0, 1); // Nobody drains it; old frames are dropped
+    }
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int roomCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int roomsPerUser = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        Rooms<Member> rooms = new Rooms<>();
+        List<Member> everyone = new ArrayList<>(users);
+        double[] zipf = new double[roomCount]; // Cumulative weights 1/1, 1/2, 1/3, ...
+        double total = 0;
+        for (int i = 0; i < roomCount; i++) {
+            total += 1.0 / (i + 1);
+            zipf[i] = total;
+        }
+        Random random = new Random(42);
+        long joinStart = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            Member m = new Member();
+            everyone.add(m);
+            while (rooms.roomsOf(m).size() < roomsPerUser) {
+                int index = Arrays.binarySearch(zipf, random.nextDouble() * total);
+                rooms.join("room" + (index < 0 ? -index - 1 : index), m);
+            }
+        }
+        double joinNanos = (System.nanoTime() - joinStart) / (double) (users * roomsPerUser);
+
+        Frame frame = Frame.chat(1, "sender", "hello room");
+        for (int warm = 0; warm < 3; warm++) { // Let the JIT compile the fan-out loop before measuring
+            for (int r = 0; r < roomCount; r += 7) time(rooms.members("room" + r), frame, 20);
+        }
+
+        List<long[]> samples = new ArrayList<>(); // {room size, median nanos}
+        for (int r = 0; r < roomCount; r++) {
+            Collection<Member> members = rooms.members("room" + r);
+            if (!members.isEmpty()) samples.add(new long[] {members.size(), time(members, frame, ROUNDS)});
+        }
+        long everyoneNanos = time(everyone, frame, 20); // What every non-private message cost before rooms
+
+        // Least squares fit of nanos = a + b * size
+        double n = samples.size(), sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (long[] s : samples) {
+            sx += s[0];
+            sy += s[1];
+            sxx += (double) s[0] * s[0];
+            sxy += (double) s[0] * s[1];
+        }
+        double b = (n * sxy - sx * sy) / (n * sxx - sx * sx);
+        double a = (sy - b * sx) / n;
+        double ssRes = 0, ssTot = 0, mean = sy / n;
+        for (long[] s : samples) {
+            double predicted = a + b * s[0];
+            ssRes += (s[1] - predicted) * (s[1] - predicted);
+            ssTot += (s[1] - mean) * (s[1] - mean);
+        }
+        double r2 = 1 - ssRes / ssTot;
+
+        samples.sort(Comparator.comparingLong(s -> s[0]));
+        for (int q : new int[] {0, samples.size() / 2, samples.size() * 9 / 10, samples.size() - 1}) {
+            long[] s = samples.get(q);
+            System.out.printf("room_size=%d broadcast_us=%.1f ns_per_member=%.1f%n", s[0], s[1] / 1e3, s[1] / (double) s[0]);
+        }
+        long leaveStart = System.nanoTime();
+        for (Member m : everyone) rooms.leaveAll(m);
+        double leaveNanos = (System.nanoTime() - leaveStart) / (double) users;
+
+        boolean pass = r2 >= 0.9 && rooms.roomCount() == 0;
+        System.out.printf("users=%d rooms=%d rooms_per_user=%d join_ns=%.0f fit: %.0f ns + %.1f ns/member r2=%.3f everyone_broadcast_us=%.1f leave_all_ns_per_user=%.0f result=%s%n",
+                users, samples.size(), roomsPerUser, joinNanos, a, b, r2, everyoneNanos / 1e3, leaveNanos, pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+
+    // Median time of the room fan-out loop over 'members', as in BroadcastServer.broadcastToRoom
+    static long time(Collection<Member> members, Frame frame, int rounds) throws InterruptedException {
+        long[] nanos = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            for (Member m : members) {
+                m.queue.offer(frame);
+            }
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[rounds / 2];
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.*; // For Collection, Collections, Set
+import java.util.concurrent.*; // For ConcurrentHashMap
+
+// Named rooms, indexed both ways: room -> members for fan-out, member -> rooms for cleaning up on disconnect.
+// Sending to a room touches only its members, and a disconnect only the rooms the member was in, so neither
+// depends on how many users are online in total. Empty rooms are removed; a room exists while someone is in it.
+// Generic so that both servers (and RoomScalingCheck) can use it with their own connection type.
+// Calls for one member must not overlap (both servers make them from the member's own reader thread or event loop);
+// calls for different members, and fan-out over members(), can run concurrently.
+final class Rooms<M> {
+    static final int MAX_NAME = 64;
+
+    private final Map<String, Set<M>> members = new ConcurrentHashMap<>();
+    private final Map<M, Set<String>> roomsOf = new ConcurrentHashMap<>();
+
+    // A usable room name, or null: 1 to MAX_NAME characters after trimming, none of them control characters
+    static String normalize(String room) {
+        String name = room.trim();
+        if (name.isEmpty() || name.length() > MAX_NAME) return null;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) return null;
+        }
+        return name;
+    }
+
+    // "1 member", "5 members"; for the join notices
+    static String countText(int members) {
+        return members + (members == 1 ? " member" : " members");
+    }
+
+    // Returns false if the member was in the room already
+    boolean join(String room, M member) {
+        boolean[] added = {false};
+        members.compute(room, (name, set) -> { // Per-room atomic, so a join never lands in a room being removed
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            added[0] = set.add(member);
+            return set;
+        });
+        if (added[0]) roomsOf.computeIfAbsent(member, m -> ConcurrentHashMap.newKeySet()).add(room);
+        return added[0];
+    }
+
+    // Returns false if the member was not in the room
+    boolean leave(String room, M member) {
+        boolean[] removed = {false};
+        members.computeIfPresent(room, (name, set) -> {
+            removed[0] = set.remove(member);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            roomsOf.computeIfPresent(member, (m, rooms) -> {
+                rooms.remove(room);
+                return rooms.isEmpty() ? null : rooms;
+            });
+        }
+        return removed[0];
+    }
+
+    // On disconnect; costs the number of rooms the member was in
+    void leaveAll(M member) {
+        Set<String> rooms = roomsOf.remove(member);
+        if (rooms == null) return;
+        for (String room : rooms) {
+            members.computeIfPresent(room, (name, set) -> {
+                set.remove(member);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    // Live, weakly consistent view for fan-out: members joining or leaving meanwhile may or may not be included
+    Collection<M> members(String room) {
+        Set<M> set = members.get(room);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    boolean isMember(String room, M member) {
+        return members(room).contains(member);
+    }
+
+    Set<String> roomsOf(M member) {
+        Set<String> rooms = roomsOf.get(member);
+        return rooms != null ? Collections.unmodifiableSet(rooms) : Collections.emptySet();
+    }
+
+    int roomCount() {
+        return members.size();
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.*; // For IOException
+import java.net.*; // For StandardSocketOptions
+import java.nio.channels.*; // For SocketChannel
+import java.util.*; // For Locale
+import jdk.net.*; // For ExtendedSocketOptions
+
+// Startup options for BroadcastServer, given on the command line as --key=value
+// Example: java BroadcastServer --mode=nio --port=7500 --event-loops=4
+//          java BroadcastServer --threads=virtual --backpressure=drop-oldest --queue-capacity=256
+//          java BroadcastServer --auth=off   (accept any name, for load tests and old clients)
+//          java BroadcastServer --headless   (no window; logs only go to stdout)
+//          java BroadcastServer --message-log=/var/lib/chat/log --message-log-retention-hours=48
+//          java BroadcastServer --mailbox=/var/lib/chat/mail --mailbox-max-mb=64 --mailbox-expiry-hours=72
+//          java BroadcastServer --max-messages-per-s=20 --max-bytes-per-s=1048576 --max-uploads=4
+//          java BroadcastServer --write-coalesce-us=100 --socket-send-buffer=1048576
+//          java BroadcastServer --port=7501 --cluster-port=7601 --node=b --cluster-peers=localhost:7600
+class ServerConfig {
+    String mode = "blocking"; // "blocking" = one thread per client, "nio" = selector event loops
+    String console = "swing"; // Blocking mode only: "swing" = ServerConsole window, "none" = headless
+    int port = BroadcastServer.PORT;
+    int eventLoops = Runtime.getRuntime().availableProcessors(); // Number of selector threads in nio mode (one per core)
+    String threads = "platform"; // Blocking mode only: "platform" or "virtual" threads for the accept loop and ClientHandlers
+    int queueCapacity = 1024; // Frames that may wait in each client's outbound queue
+    OutboundQueue.Policy backpressure = OutboundQueue.Policy.BLOCK; // What to do when a client's queue is full
+    long blockTimeoutMillis = 500; // How long the BLOCK policy waits before disconnecting the slow client
+    int queueStatsSeconds = 10; // How often handshake stats and non-empty outbound queues are logged; 0 turns it off
+    long maxFileBytes = 4L * 1024 * 1024 * 1024; // Largest upload the server relays (4 GB)
+    long legacyFileBytes = 64L * 1024 * 1024; // Nio mode: largest upload, which it still holds in memory whole (64 MB)
+    int fileWindowBytes = 256 * 1024 * 1024; // How far (in spooled bytes) a receiver may fall behind before the uploader is slowed down
+    long fileStallMillis = 30_000; // A receiver whose file window stays full this long is disconnected
+    String spoolDir = System.getProperty("java.io.tmpdir"); // Where uploads are spooled while they are relayed
+    int acceptBacklog = 1024; // Connections the OS may queue before accept() (capped by the OS, e.g. net.core.somaxconn)
+    int maxPendingHandshakes = 4096; // Accepted connections still in their handshake; beyond this new ones are closed at once
+    long handshakeTimeoutMillis = 10_000; // A connection that has not finished its handshake by then is closed
+    String auth = "required"; // "required" = clients must log in (AUTH/1 handshake), "off" = any name is accepted
+    String authDbUrl = "jdbc:mysql://localhost:3306/data"; // Same users table as LoginClient
+    String authDbUser = "root";
+    String authDbPassword = System.getenv("CHAT_DB_PASSWORD"); // Or --auth-db-password; one of them is needed with --auth=required
+    int authThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2); // Password hashing threads (and DB connections)
+    int authQueue = 1024; // Logins that may wait for a hashing thread; more are refused as "busy"
+    int sessionCacheSize = 100_000; // Session tokens remembered for reconnects (least recently used are evicted)
+    int sessionTtlSeconds = 12 * 3600; // How long a session token stays valid
+    long presenceCoalesceMillis = 250; // Joins and leaves within this window go out as one user list update
+    int logBufferLines = 65_536; // Log lines waiting to be written; beyond this they are dropped (and counted)
+    int logTailLines = 1000; // Most recent log lines kept in memory for the console
+    boolean metrics = true; // Blocking mode: counters and latency histograms (JMX and the scrape endpoint)
+    int metricsPort = 9500; // Local port for GET /metrics (127.0.0.1 only); 0 = JMX only
+    String messageLog = "message-log"; // Blocking mode: directory of the message log that reconnects are replayed from; "off" = none
+    int messageLogSegmentMb = 64; // A segment file is closed and a new one started at this size...
+    int messageLogRollMinutes = 60; // ...or this age
+    int messageLogRetentionHours = 24; // Closed segments older than this are deleted
+    int messageLogQueue = 65_536; // Messages waiting for the log writer; beyond this they are not logged (and counted)
+    int replayMax = 1000; // Most missed messages sent to one reconnecting client (the newest ones)
+    String mailbox = "mailbox"; // Blocking mode: directory of the mailboxes that keep private messages and files for offline users; "off" = none
+    int mailboxMaxMessages = 10_000; // Messages and files stored per recipient; 0 = no limit
+    long mailboxMaxBytes = 256L * 1024 * 1024; // Bytes stored per recipient, files included; 0 = no limit
+    int mailboxExpiryHours = 168; // Stored messages and files older than this are deleted; 0 = kept until delivered
+    int mailboxIndex = 10_000; // Mailboxes whose counts are kept in memory; the least recently used are read back from disk
+    int clusterPort = 0; // Blocking mode: port other cluster nodes connect to; 0 = this server runs alone
+    String nodeId = ""; // This node's name in the cluster (default "node-<cluster-port>")
+    String clusterPeers = ""; // host:port of other nodes' cluster ports, comma separated; one reachable node is enough
+    String clusterAdvertise = ""; // host:port other nodes reach this one at (default localhost:<cluster-port>)
+    long gossipMillis = 200; // How often a node gossips its heartbeat and user list version
+    long nodeTimeoutMillis = 2000; // A node not heard from for this long is taken as down and its users removed
+    boolean tcpNoDelay = true; // Client sockets send each flush at once; the writers batch frames themselves, so Nagle only adds delay
+    int socketSendBuffer = 0; // SO_SNDBUF of client sockets in bytes; 0 = OS default (which autotunes)
+    int socketReceiveBuffer = 0; // SO_RCVBUF of client sockets in bytes; 0 = OS default (which autotunes)
+    int writeBatchBytes = 32 * 1024; // Blocking mode: a writer flushes once this much is buffered or its queue runs empty; 0 = every frame
+    long maxMessagesPerSecond = 50; // Per client; a client over it has its reads paused until it is back under; 0 = no limit
+    long messageBurst = 100; // Messages a client may send back to back before the rate applies
+    long maxBytesPerSecond = 16L * 1024 * 1024; // Per client, messages and file data together; 0 = no limit
+    long byteBurst = 4L * 1024 * 1024;
+    int floodDisconnectSeconds = 30; // A client over the message limit for this long without letting up is disconnected; 0 = never
+    int maxUploads = 16; // File uploads relayed at once, server-wide; beyond this chunked uploads are refused, legacy ones wait
+    int compressMinBytes = 512; // Blocking mode: frames from this size on are sent compressed to "deflate" clients; 0 = never offer it
+    int compressLevel = 1; // Deflater level 1-9; higher saves a little more bandwidth for a lot more CPU
+    long pingIntervalMillis = 15_000; // Blocking mode: "heartbeat" clients not heard from for this long are sent a PING; 0 = never
+    long idleTimeoutMillis = 45_000; // ...and are disconnected after this long without a word; also a writer stuck this long; 0 = never
+    long timerTickMillis = 100; // Resolution of the timing wheel that runs handshake deadlines and heartbeats
+    long writeCoalesceMicros = 0; // Blocking mode: how long a writer whose queue ran empty waits for more frames before flushing
+
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (arg.equals("--nio")) { // Short form of --mode=nio
+                config.mode = "nio";
+                continue;
+            }
+            if (arg.equals("--headless")) { // Short form of --console=none
+                config.console = "none";
+                continue;
+            }
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            config.set(key, value);
+        }
+        if (config.auth.equals("required") && config.authDbPassword == null) {
+            throw new IllegalArgumentException("--auth=required needs the database password: set CHAT_DB_PASSWORD or pass --auth-db-password");
+        }
+        return config;
+    }
+
+    private void set(String key, String value) {
+        switch (key) {
+            case "mode":
+                mode = value.toLowerCase(Locale.ROOT);
+                if (!mode.equals("blocking") && !mode.equals("nio")) {
+                    throw new IllegalArgumentException("Unknown mode: " + value);
+                }
+                break;
+            case "console":
+                console = value.toLowerCase(Locale.ROOT);
+                if (!console.equals("swing") && !console.equals("none")) {
+                    throw new IllegalArgumentException("Unknown console: " + value);
+                }
+                break;
+            case "log-buffer":
+                logBufferLines = Math.max(1, Integer.parseInt(value));
+                break;
+            case "log-tail":
+                logTailLines = Math.max(1, Integer.parseInt(value));
+                break;
+            case "metrics":
+                if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off")) {
+                    throw new IllegalArgumentException("Unknown metrics setting: " + value);
+                }
+                metrics = value.equalsIgnoreCase("on");
+                break;
+            case "metrics-port":
+                metricsPort = Integer.parseInt(value);
+                break;
+            case "message-log":
+                messageLog = value;
+                break;
+            case "message-log-segment-mb":
+                messageLogSegmentMb = Math.max(4, Math.min(1024, Integer.parseInt(value))); // Must hold the largest message; one mapping is at most 2 GB
+                break;
+            case "message-log-roll-minutes":
+                messageLogRollMinutes = Math.max(1, Integer.parseInt(value));
+                break;
+            case "message-log-retention-hours":
+                messageLogRetentionHours = Math.max(1, Integer.parseInt(value));
+                break;
+            case "message-log-queue":
+                messageLogQueue = Math.max(1, Integer.parseInt(value));
+                break;
+            case "mailbox":
+                mailbox = value;
+                break;
+            case "mailbox-max-messages":
+                mailboxMaxMessages = Math.max(0, Integer.parseInt(value));
+                break;
+            case "mailbox-max-mb":
+                mailboxMaxBytes = Math.max(0, Long.parseLong(value)) * 1024 * 1024;
+                break;
+            case "mailbox-expiry-hours":
+                mailboxExpiryHours = Math.max(0, Integer.parseInt(value));
+                break;
+            case "mailbox-index":
+                mailboxIndex = Math.max(1, Integer.parseInt(value));
+                break;
+            case "replay-max":
+                replayMax = Math.max(0, Integer.parseInt(value));
+                break;
+            case "cluster-port":
+                clusterPort = Integer.parseInt(value);
+                break;
+            case "node":
+                nodeId = value;
+                break;
+            case "cluster-peers":
+                clusterPeers = value;
+                break;
+            case "cluster-advertise":
+                clusterAdvertise = value;
+                break;
+            case "gossip-ms":
+                gossipMillis = Math.max(10, Long.parseLong(value));
+                break;
+            case "node-timeout-ms":
+                nodeTimeoutMillis = Math.max(100, Long.parseLong(value));
+                break;
+            case "tcp-nodelay":
+                if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off")) {
+                    throw new IllegalArgumentException("Unknown tcp-nodelay setting: " + value);
+                }
+                tcpNoDelay = value.equalsIgnoreCase("on");
+                break;
+            case "socket-send-buffer":
+                socketSendBuffer = Math.max(0, Integer.parseInt(value));
+                break;
+            case "socket-receive-buffer":
+                socketReceiveBuffer = Math.max(0, Integer.parseInt(value));
+                break;
+            case "write-batch-bytes":
+                writeBatchBytes = Math.max(0, Integer.parseInt(value));
+                break;
+            case "write-coalesce-us":
+                writeCoalesceMicros = Math.max(0, Long.parseLong(value));
+                break;
+            case "max-messages-per-s":
+                maxMessagesPerSecond = Math.max(0, Long.parseLong(value));
+                break;
+            case "message-burst":
+                messageBurst = Math.max(1, Long.parseLong(value));
+                break;
+            case "max-bytes-per-s":
+                maxBytesPerSecond = Math.max(0, Long.parseLong(value));
+                break;
+            case "byte-burst":
+                byteBurst = Math.max(FileRelay.CHUNK_SIZE, Long.parseLong(value)); // At least one file chunk
+                break;
+            case "flood-disconnect-s":
+                floodDisconnectSeconds = Math.max(0, Integer.parseInt(value));
+                break;
+            case "max-uploads":
+                maxUploads = Math.max(1, Integer.parseInt(value));
+                break;
+            case "compress-min-bytes":
+                compressMinBytes = Math.max(0, Integer.parseInt(value));
+                break;
+            case "compress-level":
+                compressLevel = Math.max(1, Math.min(9, Integer.parseInt(value)));
+                break;
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "threads":
+                threads = value.toLowerCase(Locale.ROOT);
+                if (!threads.equals("platform") && !threads.equals("virtual")) {
+                    throw new IllegalArgumentException("Unknown thread type: " + value);
+                }
+                break;
+            case "queue-capacity":
+                queueCapacity = Math.max(1, Integer.parseInt(value));
+                break;
+            case "backpressure":
+                backpressure = OutboundQueue.Policy.parse(value); // drop-oldest, disconnect or block
+                break;
+            case "block-timeout-ms":
+                blockTimeoutMillis = Long.parseLong(value);
+                break;
+            case "queue-stats-seconds":
+                queueStatsSeconds = Integer.parseInt(value);
+                break;
+            case "max-file-size":
+                maxFileBytes = Long.parseLong(value);
+                break;
+            case "legacy-file-limit":
+                legacyFileBytes = Long.parseLong(value);
+                break;
+            case "file-window":
+                fileWindowBytes = Math.max(2 * FileRelay.RELAY_CHUNK, Integer.parseInt(value)); // Must fit the largest relayed chunk
+                break;
+            case "file-stall-ms":
+                fileStallMillis = Long.parseLong(value);
+                break;
+            case "spool-dir":
+                spoolDir = value;
+                break;
+            case "accept-backlog":
+                acceptBacklog = Math.max(1, Integer.parseInt(value));
+                break;
+            case "max-pending-handshakes":
+                maxPendingHandshakes = Math.max(1, Integer.parseInt(value));
+                break;
+            case "handshake-timeout-ms":
+                handshakeTimeoutMillis = Math.max(1, Long.parseLong(value));
+                break;
+            case "auth":
+                auth = value.toLowerCase(Locale.ROOT);
+                if (!auth.equals("required") && !auth.equals("off")) {
+                    throw new IllegalArgumentException("Unknown auth setting: " + value);
+                }
+                break;
+            case "auth-db-url":
+                authDbUrl = value;
+                break;
+            case "auth-db-user":
+                authDbUser = value;
+                break;
+            case "auth-db-password":
+                authDbPassword = value;
+                break;
+            case "auth-threads":
+                authThreads = Math.max(1, Integer.parseInt(value));
+                break;
+            case "auth-queue":
+                authQueue = Math.max(1, Integer.parseInt(value));
+                break;
+            case "session-cache":
+                sessionCacheSize = Math.max(1, Integer.parseInt(value));
+                break;
+            case "session-ttl-s":
+                sessionTtlSeconds = Integer.parseInt(value);
+                break;
+            case "ping-interval-ms":
+                pingIntervalMillis = Math.max(0, Long.parseLong(value));
+                break;
+            case "idle-timeout-ms":
+                idleTimeoutMillis = Math.max(0, Long.parseLong(value));
+                break;
+            case "timer-tick-ms":
+                timerTickMillis = Math.max(1, Long.parseLong(value));
+                break;
+            case "presence-coalesce-ms":
+                presenceCoalesceMillis = Math.max(1, Long.parseLong(value));
+                break;
+            case "event-loops":
+                eventLoops = Math.max(1, Integer.parseInt(value));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + key);
+        }
+    }
+
+    // Socket options for an accepted client connection, in either mode
+    void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (socketSendBuffer > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, socketSendBuffer);
+        if (socketReceiveBuffer > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, socketReceiveBuffer);
+        if (idleTimeoutMillis > 0) { // Kernel keepalive probes find dead peers that never announced "heartbeat" (and nio clients)
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (channel.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) { // Otherwise the OS default, usually 2 hours
+                int idleSeconds = (int) Math.max(1, idleTimeoutMillis / 1000);
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, idleSeconds);
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, Math.max(1, idleSeconds / 3));
+                channel.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, 3);
+            }
+        }
+    }
+
+    // SO_RCVBUF has to be on the listening socket already for receive windows over 64 KB; call before bind
+    void configure(ServerSocketChannel serverChannel) throws IOException {
+        if (socketReceiveBuffer > 0) serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, socketReceiveBuffer);
+    }
+}
@@ -0,0 +1,77 @@
+import javax.swing.*; // For BorderFactory, DefaultListModel, JFrame, JList, JScrollPane, JTextArea, Timer
+import java.awt.*; // For BorderLayout, Dimension, Font
+import java.util.*; // For ArrayList, List
+import java.util.List; // java.awt also has a List
+import javax.swing.Timer; // java.util also has a Timer
+import javax.swing.text.*; // For BadLocationException
+
+// Optional Swing window for BroadcastServer (the default unless --console=none or the JVM is headless).
+// It only watches: a Swing timer samples the ServerLog tail and the Presence list a fixed number of times per second,
+// so however busy the server is, the EDT sees at most one small batch per frame and the text area stays bounded.
+class ServerConsole extends JFrame {
+    static final int FRAMES_PER_SECOND = 10;
+
+    private final BroadcastServer server;
+    private final JTextArea logArea = new JTextArea(); // Text area to display server logs
+    private final JList<String> clientList = new JList<>(); // JList to display connected clients
+    private final List<String> newLines = new ArrayList<>();
+    private long logSeq; // ServerLog sequence number up to which logArea is current
+    private long presenceVersion = -1; // Presence version shown in clientList
+
+    ServerConsole(BroadcastServer server) {
+        this.server = server;
+        setTitle("Broadcast Server");
+        setSize(600, 500);
+        setLayout(new BorderLayout());
+        setResizable(false);
+        setDefaultCloseOperation(EXIT_ON_CLOSE);
+
+        JScrollPane clientScroll = new JScrollPane(clientList);
+        clientScroll.setBorder(BorderFactory.createTitledBorder("Connected Clients"));
+        clientScroll.setPreferredSize(new Dimension(200, 0));
+        add(clientScroll, BorderLayout.WEST);
+
+        logArea.setEditable(false);
+        logArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        JScrollPane logScroll = new JScrollPane(logArea);
+        logScroll.setBorder(BorderFactory.createTitledBorder("Server Log"));
+        add(logScroll, BorderLayout.CENTER);
+
+        new Timer(1000 / FRAMES_PER_SECOND, e -> refresh()).start();
+        setVisible(true);
+    }
+
+    // Runs on the EDT once per frame
+    private void refresh() {
+        newLines.clear();
+        logSeq = server.log.tail(logSeq, newLines);
+        if (!newLines.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : newLines) {
+                sb.append(line).append('\n');
+            }
+            logArea.append(sb.toString()); // One document change per frame, not one per line
+            trimLog();
+            logArea.setCaretPosition(logArea.getDocument().getLength()); // Scroll to the bottom of the log area
+        }
+
+        long version = server.presence.version();
+        if (version != presenceVersion) {
+            presenceVersion = version;
+            DefaultListModel<String> model = new DefaultListModel<>();
+            model.addAll(server.presence.names());
+            clientList.setModel(model); // A fresh model is one repaint; editing the old one fires an event per row
+        }
+    }
+
+    // Keeps no more lines than the log tail holds
+    private void trimLog() {
+        int excess = logArea.getLineCount() - server.config.logTailLines;
+        if (excess <= 0) return;
+        try {
+            logArea.getDocument().remove(0, logArea.getLineStartOffset(excess));
+        } catch (BadLocationException e) {
+            logArea.setText(""); // Cannot happen for a line index within getLineCount()
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.*; // For BufferedWriter, IOException, OutputStreamWriter, PrintStream, Writer
+import java.nio.charset.*; // For StandardCharsets
+import java.util.*; // For ArrayList, List
+import java.util.concurrent.*; // For ArrayBlockingQueue, TimeUnit
+import java.util.concurrent.atomic.*; // For LongAdder
+
+// Server log that never makes the calling thread wait: log() puts the line into a bounded ring buffer and returns.
+// One background thread drains it in batches, writes each batch to stdout with a single flush and keeps the last
+// tailLines lines in memory. Nothing here touches Swing; the ServerConsole, if there is one, samples tail() on its own
+// timer. When the buffer is full (the writer cannot keep up) lines are dropped and counted instead of queueing up.
+final class ServerLog {
+    private static final int BATCH = 512; // Lines written per flush at most
+
+    private final ArrayBlockingQueue<String> pending; // The ring buffer between the logging threads and the writer
+    private final String[] tail; // Last lines written, oldest overwritten first
+    private long written; // Lines written so far; also the sequence number of the next one (guarded by tail)
+    private final Writer out;
+    final LongAdder dropped = new LongAdder();
+
+    ServerLog(int bufferLines, int tailLines, PrintStream stream) {
+        this.pending = new ArrayBlockingQueue<>(bufferLines);
+        this.tail = new String[tailLines];
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+        Thread writer = new Thread(this::drain, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void log(String message) {
+        if (!pending.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>(BATCH);
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                String first = pending.poll(1, TimeUnit.SECONDS);
+                long drops = dropped.sum();
+                if (drops > reportedDrops) { // Said once per batch, not once per lost line
+                    batch.add("(" + (drops - reportedDrops) + " log lines dropped, the log could not keep up)");
+                    reportedDrops = drops;
+                }
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, BATCH - 1);
+                }
+                if (batch.isEmpty()) continue;
+                synchronized (tail) {
+                    for (String line : batch) {
+                        tail[(int) (written++ % tail.length)] = line;
+                    }
+                }
+                for (String line : batch) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.flush();
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                batch.clear(); // stdout went away; the in-memory tail still has the lines
+            }
+        }
+    }
+
+    // Adds the lines written after sequence number 'since' (at most the tail) to 'into' and returns the sequence
+    // number to pass next time
+    long tail(long since, List<String> into) {
+        synchronized (tail) {
+            long from = Math.max(since, written - tail.length);
+            for (long seq = from; seq < written; seq++) {
+                into.add(tail[(int) (seq % tail.length)]);
+            }
+            return written;
+        }
+    }
+}
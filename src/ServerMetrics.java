@@ -0,0 +1,253 @@
+import com.sun.net.httpserver.*; // For HttpServer
+import java.io.*; // For FilterInputStream, FilterOutputStream, IOException, InputStream, OutputStream
+import java.lang.management.*; // For ManagementFactory
+import java.net.*; // For InetAddress, InetSocketAddress
+import java.nio.charset.*; // For StandardCharsets
+import java.util.concurrent.*; // For Executors
+import java.util.concurrent.atomic.*; // For LongAdder
+import java.util.function.*; // For IntSupplier
+import javax.management.*; // For JMException, ObjectName
+
+// Counters and histograms for BroadcastServer, cheap enough to leave on: counters are LongAdders (no shared cache
+// line between threads) and latencies go into lock-free Histograms. Readable three ways:
+//   - JMX, as chat:type=BroadcastServer (jconsole, VisualVM, or any JMX agent)
+//   - plain text at http://127.0.0.1:<--metrics-port>/metrics, in the Prometheus exposition format
+//   - appendLog() lines from the stats thread, like the queue stats
+// With --metrics=off the histograms, stream metering, JMX and the endpoint are skipped. The plain counters are
+// still bumped directly by their call sites: an uncontended LongAdder increment costs about as much as checking a flag.
+final class ServerMetrics implements ServerMetricsMBean {
+    final boolean enabled;
+
+    final LongAdder connectionsOpened = new LongAdder(); // Clients admitted
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder messagesIn = new LongAdder(); // Chat and private messages received
+    final LongAdder messagesOut = new LongAdder(); // Frames written to clients, of any kind
+    final LongAdder bytesIn = new LongAdder(); // Everything read from client sockets, file data included
+    final LongAdder bytesOut = new LongAdder(); // Everything written to client sockets, file data included
+    final LongAdder socketWrites = new LongAdder(); // Buffer flushes to client sockets, about one write syscall each (transferTo not counted)
+    final LongAdder noticesOut = new LongAdder(); // Server notices sent with sendText
+    final LongAdder filesRelayed = new LongAdder(); // Uploads delivered in full
+    final LongAdder pingsSent = new LongAdder(); // Heartbeat PINGs to clients that had gone quiet
+    final LongAdder connectionsReaped = new LongAdder(); // Dead connections closed by the heartbeat (idle or stuck writer)
+    final Histogram broadcastNanos = new Histogram(); // Handing one message to every recipient's queue
+    final Histogram broadcastFanout = new Histogram(); // Recipients per broadcast
+    final Histogram deliveryNanos = new Histogram(); // Frame created until written to one recipient's socket
+    final Histogram fileBytes = new Histogram(); // Size of each relayed file
+
+    private final HandshakeMetrics handshakes;
+    private final RateLimits limits;
+    private final IntSupplier pendingHandshakes;
+    private HttpServer http;
+
+    ServerMetrics(boolean enabled, HandshakeMetrics handshakes, RateLimits limits, IntSupplier pendingHandshakes) {
+        this.enabled = enabled;
+        this.handshakes = handshakes;
+        this.limits = limits;
+        this.pendingHandshakes = pendingHandshakes;
+    }
+
+    // Registers the MBean and starts the scrape endpoint (port 0 = no endpoint); returns a line for the server log
+    String start(int port) {
+        if (!enabled) return "Metrics are off";
+        String where;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=BroadcastServer"));
+            where = "JMX chat:type=BroadcastServer";
+        } catch (JMException e) {
+            where = "JMX unavailable (" + e.getMessage() + ")";
+        }
+        if (port > 0) {
+            try {
+                http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0); // Local scrapes only
+                http.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "metrics-http");
+                    t.setDaemon(true);
+                    return t;
+                }));
+                http.start();
+                where += ", http://127.0.0.1:" + port + "/metrics";
+            } catch (IOException e) {
+                where += ", no scrape endpoint (" + e.getMessage() + ")";
+            }
+        }
+        return "Metrics: " + where;
+    }
+
+    void broadcast(long startNanos, int recipients) {
+        if (!enabled) return;
+        broadcastNanos.record(System.nanoTime() - startNanos);
+        broadcastFanout.record(recipients);
+    }
+
+    // Called by a writer thread after the frame is on the wire
+    void written(Frame frame, long bytes) {
+        if (!enabled) return;
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        deliveryNanos.record(System.nanoTime() - frame.createdAt);
+    }
+
+    void fileRelayed(long size) {
+        if (!enabled) return;
+        filesRelayed.increment();
+        fileBytes.record(size);
+    }
+
+    // Counts what a client connection's reader consumes; only wraps the stream when metrics are on
+    InputStream meter(InputStream in) {
+        return enabled ? new MeteredInputStream(in, bytesIn) : in;
+    }
+
+    // Counts the writes a client connection's buffered stream makes to the socket; only wraps when metrics are on
+    OutputStream meter(OutputStream out) {
+        return enabled ? new MeteredOutputStream(out, socketWrites) : out;
+    }
+
+    private static final class MeteredOutputStream extends FilterOutputStream {
+        private final LongAdder writes;
+
+        MeteredOutputStream(OutputStream out, LongAdder writes) {
+            super(out);
+            this.writes = writes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            writes.increment();
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            out.write(buf, off, len); // FilterOutputStream would write it a byte at a time
+            writes.increment();
+        }
+    }
+
+    private static final class MeteredInputStream extends FilterInputStream {
+        private final LongAdder bytes;
+
+        MeteredInputStream(InputStream in, LongAdder bytes) {
+            super(in);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) bytes.increment();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = in.read(buf, off, len);
+            if (n > 0) bytes.add(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) bytes.add(skipped);
+            return skipped;
+        }
+    }
+
+    // Prometheus text format; latencies in seconds, as Prometheus expects
+    String scrape() {
+        StringBuilder sb = new StringBuilder(2048);
+        gauge(sb, "chat_connections", "Clients currently connected", getConnections());
+        counter(sb, "chat_connections_total", "Clients admitted since start", connectionsOpened.sum());
+        counter(sb, "chat_messages_in_total", "Chat and private messages received", messagesIn.sum());
+        counter(sb, "chat_messages_out_total", "Frames written to clients", messagesOut.sum());
+        counter(sb, "chat_bytes_in_total", "Bytes read from clients", bytesIn.sum());
+        counter(sb, "chat_bytes_out_total", "Bytes written to clients", bytesOut.sum());
+        counter(sb, "chat_socket_writes_total", "Writes to client sockets; frames written per socket write shows the batching", socketWrites.sum());
+        counter(sb, "chat_notices_out_total", "Server notices sent", noticesOut.sum());
+        counter(sb, "chat_files_relayed_total", "Uploads delivered in full", filesRelayed.sum());
+        counter(sb, "chat_pings_sent_total", "Heartbeat PINGs sent to quiet clients", pingsSent.sum());
+        counter(sb, "chat_connections_reaped_total", "Dead connections closed after --idle-timeout-ms", connectionsReaped.sum());
+        counter(sb, "chat_handshakes_accepted_total", "Connections accepted", handshakes.accepted.sum());
+        counter(sb, "chat_handshakes_rejected_total", "Connections closed because too many handshakes were pending", handshakes.rejected.sum());
+        counter(sb, "chat_handshakes_timed_out_total", "Handshakes not finished before the deadline", handshakes.timedOut.sum());
+        counter(sb, "chat_handshakes_failed_total", "Logins refused or abandoned", handshakes.failed.sum());
+        counter(sb, "chat_rate_limited_messages_total", "Messages that found their sender over --max-messages-per-s", limits.messageLimited.sum());
+        counter(sb, "chat_rate_limited_reads_total", "Reads that found the client over --max-bytes-per-s", limits.byteLimited.sum());
+        sb.append("# HELP chat_throttled_seconds_total Time client readers spent paused by the rate limits\n");
+        sb.append("# TYPE chat_throttled_seconds_total counter\n");
+        sb.append("chat_throttled_seconds_total ").append(limits.throttledNanos.sum() * 1e-9).append('\n');
+        counter(sb, "chat_flood_disconnects_total", "Clients disconnected for staying over the message limit", limits.floodDisconnects.sum());
+        counter(sb, "chat_uploads_refused_total", "Uploads refused because --max-uploads were running", limits.uploadsRefused.sum());
+        gauge(sb, "chat_handshakes_pending", "Connections still in their handshake", pendingHandshakes.getAsInt());
+        summary(sb, "chat_broadcast_seconds", "Time to queue one message for every recipient", broadcastNanos, 1e-9);
+        summary(sb, "chat_broadcast_fanout", "Recipients per broadcast", broadcastFanout, 1);
+        summary(sb, "chat_delivery_seconds", "Time from a frame being created to it being written to a client", deliveryNanos, 1e-9);
+        summary(sb, "chat_file_size_bytes", "Size of relayed files", fileBytes, 1);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, Histogram h, double scale) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ").append(h.percentile(q) * scale).append('\n');
+        }
+        sb.append(name).append("_sum ").append(h.sum() * scale).append('\n');
+        sb.append(name).append("_count ").append(h.count()).append('\n');
+    }
+
+    // One line for the periodic stats log
+    String report() {
+        return String.format("Metrics: %d connected, %d msgs in, %d frames out, %d KB in, %d KB out, %d socket writes, broadcast p99 %.1f us, delivery p99 %.1f ms",
+                getConnections(), messagesIn.sum(), messagesOut.sum(), bytesIn.sum() / 1024, bytesOut.sum() / 1024, socketWrites.sum(),
+                broadcastNanos.percentile(0.99) / 1e3, deliveryNanos.percentile(0.99) / 1e6);
+    }
+
+    // ServerMetricsMBean
+    @Override public long getConnections() { return connectionsOpened.sum() - connectionsClosed.sum(); }
+    @Override public long getConnectionsTotal() { return connectionsOpened.sum(); }
+    @Override public long getConnectionsReaped() { return connectionsReaped.sum(); }
+    @Override public long getMessagesIn() { return messagesIn.sum(); }
+    @Override public long getMessagesOut() { return messagesOut.sum(); }
+    @Override public long getBytesIn() { return bytesIn.sum(); }
+    @Override public long getBytesOut() { return bytesOut.sum(); }
+    @Override public long getSocketWrites() { return socketWrites.sum(); }
+    @Override public long getNoticesOut() { return noticesOut.sum(); }
+    @Override public long getFilesRelayed() { return filesRelayed.sum(); }
+    @Override public long getFileBytesP50() { return fileBytes.percentile(0.5); }
+    @Override public long getFileBytesMax() { return fileBytes.max(); }
+    @Override public long getBroadcastMicrosP50() { return broadcastNanos.percentile(0.5) / 1000; }
+    @Override public long getBroadcastMicrosP99() { return broadcastNanos.percentile(0.99) / 1000; }
+    @Override public long getDeliveryMicrosP50() { return deliveryNanos.percentile(0.5) / 1000; }
+    @Override public long getDeliveryMicrosP99() { return deliveryNanos.percentile(0.99) / 1000; }
+    @Override public long getHandshakesAccepted() { return handshakes.accepted.sum(); }
+    @Override public long getHandshakesRejected() { return handshakes.rejected.sum(); }
+    @Override public long getHandshakesTimedOut() { return handshakes.timedOut.sum(); }
+    @Override public long getMessagesRateLimited() { return limits.messageLimited.sum(); }
+    @Override public long getReadsRateLimited() { return limits.byteLimited.sum(); }
+    @Override public long getFloodDisconnects() { return limits.floodDisconnects.sum(); }
+    @Override public long getUploadsRefused() { return limits.uploadsRefused.sum(); }
+    @Override public int getHandshakesPending() { return pendingHandshakes.getAsInt(); }
+    @Override public String getScrape() { return scrape(); }
+}
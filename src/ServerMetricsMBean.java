@@ -0,0 +1,28 @@
+// What ServerMetrics shows over JMX; standard MBean interfaces have to be public and named after the class
+public interface ServerMetricsMBean {
+    long getConnections();
+    long getConnectionsTotal();
+    long getConnectionsReaped();
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+    long getSocketWrites();
+    long getNoticesOut();
+    long getFilesRelayed();
+    long getFileBytesP50();
+    long getFileBytesMax();
+    long getBroadcastMicrosP50();
+    long getBroadcastMicrosP99();
+    long getDeliveryMicrosP50();
+    long getDeliveryMicrosP99();
+    long getHandshakesAccepted();
+    long getHandshakesRejected();
+    long getHandshakesTimedOut();
+    int getHandshakesPending();
+    long getMessagesRateLimited();
+    long getReadsRateLimited();
+    long getFloodDisconnects();
+    long getUploadsRefused();
+    String getScrape(); // The same text as the /metrics endpoint
+}
@@ -0,0 +1,72 @@
+import java.security.*; // For SecureRandom
+import java.util.*; // For Base64, Iterator, LinkedHashMap, Map
+
+// Session tokens handed out after a successful password login, so a reconnect can skip the slow password hash.
+// Bounded two ways: entries expire after ttlMillis, and beyond maxEntries the least recently used one is evicted.
+// A miss only costs the client one password login; the cache is never the source of truth.
+final class SessionCache {
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final class Session {
+        final String username;
+        final long expiresAt;
+
+        Session(String username, long expiresAt) {
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Session> sessions; // Access order: the eldest entry is the least recently used
+    private int issuedSincePurge;
+
+    SessionCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > SessionCache.this.maxEntries;
+            }
+        };
+    }
+
+    // 256 random bits; not derived from anything, so a token reveals nothing about the password
+    synchronized String issue(String username) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username, System.currentTimeMillis() + ttlMillis));
+        if (++issuedSincePurge >= 1024) { // Cheap enough when spread over this many logins
+            issuedSincePurge = 0;
+            purgeExpired();
+        }
+        return token;
+    }
+
+    // True if the token was issued to this user and has not expired; a hit is a map lookup, no hashing
+    synchronized boolean validate(String token, String username) {
+        Session session = sessions.get(token);
+        if (session == null) return false;
+        if (session.expiresAt < System.currentTimeMillis()) {
+            sessions.remove(token);
+            return false;
+        }
+        return session.username.equals(username);
+    }
+
+    // Drops expired entries; the LRU bound alone would keep up to maxEntries dead sessions around
+    synchronized void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt < now) it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+}
@@ -1,245 +1,947 @@
-// === SimpleChatClientComboBox.java ===
-
-import javax.swing.*;
-import java.awt.*;
-import java.io.*; // For reading and writing files
-import java.net.*; // For socket communication
-import java.util.logging.*; // To log events like messages sent, received, errors, etc. into a file.
-
-public class SimpleChatClient extends JFrame {
-    Socket socket; // Socket for communication with the server
-    DataOutputStream dataOut; // Output stream to send data to the server
-    DataInputStream dataIn; // Input stream to receive data from the server
-
-    ImageBackgroundPanel messagePanel; // Custom panel with a background image for displaying messages
-    JScrollPane scrollPane;
-    JTextField inputField;
-    JButton sendButton, attachButton;
-    JComboBox<String> userComboBox;
-    boolean isBroadcast = true; // Flag to determine if the message is broadcasted or sent to a specific user
-    String name;
-
-    private static final Logger logger = Logger.getLogger(SimpleChatClient.class.getName()); // Logger to log events like messages sent, received, errors, etc. into a file.
-
-    public SimpleChatClient(String name) {
-        this.name = name;
-        setupLogger(); // Initialize the logger to log events into a file named after the client.
-        setupGUI(); // Set up the GUI components for the chat client
-        connectToServer(); // Connect to the chat server
-        startReading(); // Start a thread to read incoming messages from the server
-    }
-
-    void setupLogger() { //Create a text file like client_Anamika.txt
-        try {
-            FileHandler fh = new FileHandler("client_" + name + ".txt", true);
-            fh.setFormatter(new SimpleFormatter()); // Simple formatter to log messages in a readable format
-            logger.addHandler(fh); // Add the file handler to the logger
-            logger.setUseParentHandlers(false); // Disable console logging to avoid duplicate logs in the console
-        } catch (IOException e) {
-            System.out.println("Logger failed: " + e.getMessage());
-        }
-    }
-
-    void setupGUI() {
-        setTitle("Chat - " + name);
-        setSize(500, 600);
-        setResizable(false);
-        setLayout(new BorderLayout()); // Use BorderLayout for better component arrangement
-
-        messagePanel = new ImageBackgroundPanel("D:\\Java Programs\\SUMMER TRAINING PROGRAMS\\PROJECT MATERIAL\\Chatbox Final\\97c00759d90d786d9b6096d274ad3e07.jpg");
-        scrollPane = new JScrollPane(messagePanel);
-        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED); // Show scrollbar only when needed
-        scrollPane.getVerticalScrollBar().setUnitIncrement(16); // Smooth scrolling
-        scrollPane.setBorder(null);
-        add(scrollPane, BorderLayout.CENTER);
-
-        inputField = new JTextField();
-        inputField.setFont(new Font("Arial", Font.PLAIN, 16));
-
-        sendButton = new JButton("Send");
-        attachButton = new JButton("Attach");
-
-        userComboBox = new JComboBox<>();
-        userComboBox.addItem("Broadcast to All");
-        userComboBox.setSelectedIndex(0);
-        userComboBox.addActionListener(e -> isBroadcast = userComboBox.getSelectedIndex() == 0); // Update isBroadcast flag based on selected user
-
-        JPanel bottomPanel = new JPanel(new BorderLayout());
-        JPanel buttonPanel = new JPanel(new FlowLayout());
-        buttonPanel.add(userComboBox);
-        buttonPanel.add(attachButton);
-        buttonPanel.add(sendButton);
-
-        bottomPanel.add(inputField, BorderLayout.CENTER); // Add input field to the center of the bottom panel
-        bottomPanel.add(buttonPanel, BorderLayout.EAST); // Add button panel to the east of the bottom panel
-        add(bottomPanel, BorderLayout.SOUTH); // Add bottom panel to the south of the main frame
-
-        sendButton.addActionListener(e -> sendTypedMessage());
-        attachButton.addActionListener(e -> sendFile());
-        inputField.addActionListener(e -> sendButton.doClick()); // Send message when Enter is pressed in the input field
-
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-        setVisible(true);
-    }
-
-    void sendTypedMessage() {
-        String text = inputField.getText().trim();
-        if (text.isEmpty()) return;
-
-        String selectedUser = (String) userComboBox.getSelectedItem(); // Get the selected user from the combo box
-        if (!isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All")) {
-            sendPrivateMessage(selectedUser, text);
-        } else {
-            sendMessage(text);
-        }
-        addMessageBubble(text, true); // Add the message bubble to the chat panel
-        inputField.setText(""); // Clear the input field after sending the message
-    }
-
-    void addMessageBubble(String message, boolean isSent) {
-        JPanel bubbleWrapper = new JPanel(new FlowLayout(isSent ? FlowLayout.RIGHT : FlowLayout.LEFT)); // Create a wrapper panel for the message bubble
-        bubbleWrapper.setOpaque(false);
-
-        JTextArea bubbleText = new JTextArea(message);
-        bubbleText.setLineWrap(true); // Text wraps to the next line if it’s too long.
-        bubbleText.setWrapStyleWord(true); // Wraps at word boundaries.
-        bubbleText.setEditable(false); // Make the text area non-editable
-        bubbleText.setFont(new Font("Arial", Font.PLAIN, 14));
-        bubbleText.setBackground(isSent ? new Color(220, 248, 198, 230) : new Color(240, 240, 240, 200)); // Different background color for sent and received messages
-        bubbleText.setBorder(BorderFactory.createEmptyBorder(8, 10, 8, 10)); // Add padding around the text
-        bubbleText.setOpaque(true); // Make the text area opaque to show the background color
-
-        bubbleWrapper.add(bubbleText); // Add the text area to the wrapper panel
-        messagePanel.add(bubbleWrapper); // Add the wrapper panel to the message panel
-        messagePanel.revalidate(); // Revalidate the message panel to update the layout
-        messagePanel.repaint();    // Repaint the message panel to reflect changes
-
-        SwingUtilities.invokeLater(() -> scrollPane.getVerticalScrollBar().setValue(scrollPane.getVerticalScrollBar().getMaximum())); // Scroll to the bottom of the chat panel after adding a new message
-    }
-
-    void connectToServer() {
-        try {
-            socket = new Socket("localhost", 7500); // Connect to the server on localhost at port 7500
-            dataOut = new DataOutputStream(socket.getOutputStream()); // Output stream to send data to the server(from client - server)
-            dataIn = new DataInputStream(socket.getInputStream()); // Input stream to receive data from the server (from server - client)
-            dataOut.writeUTF(name); // Send the client's name to the server
-            dataOut.flush(); // Ensure the data is sent immediately
-            addMessageBubble("Connected", false);
-        } catch (IOException e) {
-            addMessageBubble("Connection failed: " + e.getMessage(), false);
-        }
-    }
-
-    void startReading() {
-        new Thread(() -> {
-            try {
-                while (true) { // Continuously read messages from the server
-                    String type = dataIn.readUTF(); // Read the type of message (text, file, user list, etc.)
-                    if (type.equals("File")) {
-                        String filename = dataIn.readUTF(); // Read the filename of the received file
-                        int size = dataIn.readInt(); // Read the size of the file
-                        byte[] fileBytes = new byte[size];
-                        dataIn.readFully(fileBytes);
-                        FileOutputStream fos = new FileOutputStream("received_" + filename);
-                        fos.write(fileBytes); // Write the received file bytes to a new file
-                        fos.close();
-                        addMessageBubble("Received file: " + filename, false);
-                        logger.info("Received file: " + filename);
-                    } else if (type.startsWith("USER_LIST")) { // If the message is a user list
-                        updateUserList(type); // Update the user list in the combo box
-                    } else {
-                        addMessageBubble(type, false); // Add the received message to the chat panel
-                        logger.info("Message received: " + type); // Log the received message
-                    }
-                }
-            } catch (IOException e) {
-                addMessageBubble("Disconnected.", false);
-                logger.warning("Disconnected: " + e.getMessage());
-            }
-        }).start(); // Start a new thread to read messages from the server
-    }
-
-    void updateUserList(String message) { // Update the user list in the combo box
-        SwingUtilities.invokeLater(() -> {
-            userComboBox.removeAllItems(); // Clear the existing items in the combo box
-            userComboBox.addItem("Broadcast to All");
-            String[] parts = message.split("/"); 
-            for (int i = 1; i < parts.length; i++) { // Start from index 1 to skip the "USER_LIST" part
-                if (!parts[i].equals(name)) {     // Exclude the current user's name from the list
-                    userComboBox.addItem(parts[i]);
-                }
-            }
-        });
-    }
-
-    void sendMessage(String msg) {
-        try {
-            dataOut.writeUTF(msg); // Send the message to the server
-            dataOut.flush(); 
-            logger.info("Sent message: " + msg);
-        } catch (IOException e) {
-            addMessageBubble("Error sending message.", false);
-            logger.warning("Error sending message: " + e.getMessage());
-        }
-    }
-
-    void sendPrivateMessage(String receiver, String msg) {
-        try {
-            dataOut.writeUTF("PRIVATE");
-            dataOut.writeUTF(receiver);
-            dataOut.writeUTF(msg);
-            dataOut.flush();
-            logger.info("Sent private message to " + receiver + ": " + msg);
-        } catch (IOException e) {
-            addMessageBubble("Error sending private message.", false);
-            logger.warning("Error sending private message: " + e.getMessage());
-        }
-    }
-
-    void sendFile() {
-        JFileChooser fileChooser = new JFileChooser(); // Create a file chooser to select files to send
-        if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            try {
-                FileInputStream fis = new FileInputStream(file);
-                byte[] buffer = new byte[(int) file.length()]; // Create a byte array to hold the file data
-                fis.read(buffer); // Read the file into a byte array
-                fis.close();
-
-                String selectedUser = (String) userComboBox.getSelectedItem();
-                if (!isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All")) {
-                    dataOut.writeUTF("PRIVATE_FILE");
-                    dataOut.writeUTF(selectedUser);
-                } else {
-                    dataOut.writeUTF("File");
-                }
-
-                dataOut.writeUTF(file.getName());
-                dataOut.writeInt(buffer.length);
-                dataOut.write(buffer);
-                dataOut.flush();
-
-                addMessageBubble("File sent: " + file.getName(), true);
-                logger.info("File sent: " + file.getName());
-            } catch (IOException e) {
-                addMessageBubble("Error sending file.", false);
-                logger.warning("Error sending file: " + e.getMessage());
-            }
-        }
-    }
-}
-
-class ImageBackgroundPanel extends JPanel {
-    private final Image background;
-
-    public ImageBackgroundPanel(String imagePath) { // Constructor to set the background image
-        this.background = new ImageIcon(imagePath).getImage(); // Load the image from the specified path
-        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));// Use BoxLayout to stack components vertically
-    }
-
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g); // Call the superclass method to ensure proper painting
-        g.drawImage(background, 0, 0, getWidth(), getHeight(), this); // Draw the background image to fill the panel
-    }
-}
+// === SimpleChatClientComboBox.java ===
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.*; // For reading and writing files
+import java.net.*; // For socket communication
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For SocketChannel and FileChannel (zero-copy file transfer)
+import java.nio.file.*; // For StandardOpenOption
+import java.util.*; // For Map, HashMap, LinkedHashMap, LinkedHashSet, Set
+import java.util.concurrent.*; // For ConcurrentHashMap, ExecutorService, Executors
+import java.util.concurrent.atomic.*; // For AtomicLong
+import java.util.zip.*; // For Inflater (compressed frames)
+import java.util.logging.*; // To log events like messages sent, received, errors, etc. into a file.
+
+public class SimpleChatClient extends JFrame {
+    static final int CHUNK_SIZE = 64 * 1024; // Size of each FILE_CHUNK; the server accepts at most 64 KB
+    static final String CAPABILITIES = "chunked-files," + BinaryProtocol.VERSION + ",presence,rooms,resume," + Compression.CAPABILITY + ",heartbeat"; // Sent in CAPS after every login
+    static final int SEND_BUFFER = 8 * 1024; // Every send writes a whole message into this buffer and flushes it as one socket write
+    static final Compression compression = new Compression(512, 6); // Our own long messages; the server compresses what it sends
+    static final int HISTORY = Integer.getInteger("chat.history", 2000); // Messages kept on screen; older ones scroll out for good
+    static final int RECONNECT_ATTEMPTS = 5; // After a dropped connection; each waits twice as long as the one before
+    static final int LOG_BUFFER = 10_000; // Log records that may wait for the disk before more are dropped
+    static final int UPLOAD_THREADS = Integer.getInteger("chat.upload-threads", 2); // Files sent at the same time
+    SocketAddress serverAddress; // Node 'channel' is connected to (reader thread once connected)
+    volatile SocketChannel channel; // Channel behind the socket; uploads go out with FileChannel.transferTo, downloads are read into direct buffers
+    Socket socket; // Socket for communication with the server
+    DataOutputStream dataOut; // Output stream to send data to the server (guarded by sendLock)
+    final Object sendLock = new Object(); // Held while one whole message is written to dataOut; the send thread and the upload threads both send
+    final ExecutorService sends = Executors.newSingleThreadExecutor(TransferManager.daemon("chat-send-")); // See send()
+    final TransferManager transfers = new TransferManager(UPLOAD_THREADS, 2); // File reads and writes, off the EDT and the reader thread
+    DataInputStream dataIn; // Input stream to receive data from the server
+
+    ImageBackgroundPanel background; // Draws the background image behind the message list
+    MessageListModel messages; // The last HISTORY messages; only the rows on screen are painted
+    JList<MessageListModel.Message> messageList;
+    JScrollPane scrollPane;
+    JTextField inputField;
+    JButton sendButton, attachButton;
+    JLabel transferStatus; // Progress of the files on their way; hidden when there are none
+    JComboBox<String> userComboBox;
+    boolean isBroadcast = true; // Flag to determine if the message is broadcasted or sent to a specific user
+    String name;
+    final String sessionToken; // From the server's AUTH_OK; lets a reconnect skip the password check (empty with --auth=off)
+    volatile boolean chunkedFiles; // Set once the server confirms it supports chunked file transfer
+    volatile boolean roomsSupported; // Server confirmed "rooms"; until then /join etc. are sent as plain text
+    volatile boolean heartbeat; // Server confirmed "heartbeat"; a PING from it has to be answered or we get disconnected
+    final Set<String> joinedRooms = new LinkedHashSet<>(); // Rejoined after a reconnect (send thread only)
+    final AtomicLong nextUploadId = new AtomicLong(); // Ids for our own uploads
+    final Set<Long> rejectedUploads = ConcurrentHashMap.newKeySet(); // Uploads the server refused; sendFile stops sending them
+    final Map<Long, TransferManager.Download> downloads = new HashMap<>(); // Incoming chunked files by transfer id (reader thread only)
+    volatile boolean binaryIn; // Server confirmed binary-v1; reader thread switches to binary frames
+    boolean binaryOut; // Our "BINARY" marker is sent; changed on the send thread under sendLock, so upload threads read it under the lock
+    boolean deflateOut; // Server confirmed "deflate", so long messages may go out as COMPRESSED (send thread only)
+    final Inflater inflater = new Inflater(true); // For COMPRESSED frames from the server (reader thread only)
+    final Map<Integer, String> userNames = new HashMap<>(); // User ids from the binary USER_LIST (reader thread only)
+    Map<String, Integer> userIds = new HashMap<>(); // Reverse of userNames; the EDT looks up ids before it hands a send over (EDT only)
+    final BinaryProtocol.Reader payload = new BinaryProtocol.Reader(); // Reused for every incoming binary frame
+    long presenceVersion = -1; // Version of the user list in userNames; -1 until a PRESENCE_SNAPSHOT arrives (reader thread only)
+    static final int RECENT_SEQS = 4096; // Message seqs remembered to drop live messages that a replay also brings
+    long lastSeq; // Newest message log seq seen, from the server's RESUME or a message (reader thread only)
+    volatile long resumeAfter; // lastSeq when the connection dropped; sent in RESUME once the new connection is set up
+    final Set<Long> recentSeqs = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENT_SEQS;
+        }
+    }); // Reader thread only
+
+    private static final Logger logger = Logger.getLogger(SimpleChatClient.class.getName()); // Logger to log events like messages sent, received, errors, etc. into a file.
+
+    // Reason the server gave for refusing a login
+    static class LoginFailedException extends IOException {
+        LoginFailedException(String reason) {
+            super(reason);
+        }
+    }
+
+    // 'channel' has already been logged in with login(); LoginClient does that so it can show a refused password
+    public SimpleChatClient(String name, SocketChannel channel, String sessionToken) {
+        this.name = name;
+        this.sessionToken = sessionToken;
+        setupLogger(); // Initialize the logger to log events into a file named after the client.
+        setupGUI(); // Set up the GUI components for the chat client
+        connectToServer(channel); // Set up the streams and announce our capabilities
+        startReading(); // Start a thread to read incoming messages from the server
+    }
+
+    // Connects to the user's node: the first server in the user's HashRing order that answers, so with a cluster every
+    // user has a home node and, when it is down, always falls over to the same next one (-Dchat.servers=host:port,...)
+    static SocketChannel open(String user) throws IOException {
+        java.util.List<String> servers = Arrays.asList(System.getProperty("chat.servers", "localhost:7500").split(","));
+        IOException failure = null;
+        for (String server : new HashRing<>(servers).owners(user)) {
+            int colon = server.lastIndexOf(':');
+            try {
+                SocketChannel ch = SocketChannel.open(new InetSocketAddress(server.substring(0, colon).trim(), Integer.parseInt(server.substring(colon + 1).trim())));
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true); // Sends are whole messages already; Nagle would only hold them back
+                return ch;
+            } catch (IOException e) {
+                failure = e; // Down; try the next node along the ring
+            }
+        }
+        throw failure;
+    }
+
+    // The login handshake (see Authenticator); returns the session token or throws LoginFailedException
+    static String login(SocketChannel channel, String name, String method, String secret) throws IOException {
+        DataOutputStream out = output(channel);
+        DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+        out.writeUTF(Authenticator.HANDSHAKE);
+        out.writeUTF(name);
+        out.writeUTF(method); // "password" or "token"
+        out.writeUTF(secret);
+        out.flush();
+        String result = in.readUTF();
+        String text = in.readUTF(); // Token or reason
+        if (!result.equals("AUTH_OK")) {
+            throw new LoginFailedException(text);
+        }
+        return text;
+    }
+
+    // Buffered, so that a message made of several fields (PRIVATE, receiver, text) leaves in one packet at the flush
+    static DataOutputStream output(SocketChannel channel) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream(), SEND_BUFFER));
+    }
+
+    void setupLogger() { //Create a text file like client_Anamika.txt
+        try {
+            AsyncLogHandler handler = new AsyncLogHandler("client_" + name + ".txt", LOG_BUFFER); // The reader thread logs every message; it must not wait for the disk
+            logger.addHandler(handler); // Add the file handler to the logger
+            logger.setUseParentHandlers(false); // Disable console logging to avoid duplicate logs in the console
+        } catch (IOException e) {
+            System.out.println("Logger failed: " + e.getMessage());
+        }
+    }
+
+    void setupGUI() {
+        setTitle("Chat - " + name);
+        setSize(500, 600);
+        setResizable(false);
+        setLayout(new BorderLayout()); // Use BorderLayout for better component arrangement
+
+        background = new ImageBackgroundPanel("D:\\Java Programs\\SUMMER TRAINING PROGRAMS\\PROJECT MATERIAL\\Chatbox Final\\97c00759d90d786d9b6096d274ad3e07.jpg");
+        messages = new MessageListModel(HISTORY, this::keepNewestInView);
+        messageList = new JList<>(messages);
+        messageList.setCellRenderer(new MessageCellRenderer());
+        messageList.setOpaque(false); // The background shows through between the bubbles
+        messageList.setFocusable(false);
+        scrollPane = new JScrollPane(messageList);
+        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED); // Show scrollbar only when needed
+        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER); // Long lines wrap instead
+        scrollPane.getVerticalScrollBar().setUnitIncrement(16); // Smooth scrolling
+        scrollPane.setBorder(null);
+        scrollPane.setOpaque(false);
+        scrollPane.getViewport().setOpaque(false);
+        background.add(scrollPane, BorderLayout.CENTER);
+        add(background, BorderLayout.CENTER);
+
+        inputField = new JTextField();
+        inputField.setFont(new Font("Arial", Font.PLAIN, 16));
+
+        sendButton = new JButton("Send");
+        attachButton = new JButton("Attach");
+
+        userComboBox = new JComboBox<>();
+        userComboBox.addItem("Broadcast to All");
+        userComboBox.setSelectedIndex(0);
+        userComboBox.addActionListener(e -> isBroadcast = userComboBox.getSelectedIndex() == 0); // Update isBroadcast flag based on selected user
+
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(userComboBox);
+        buttonPanel.add(attachButton);
+        buttonPanel.add(sendButton);
+
+        transferStatus = new JLabel();
+        transferStatus.setVisible(false);
+        bottomPanel.add(transferStatus, BorderLayout.NORTH);
+        new javax.swing.Timer(250, e -> showTransfers()).start(); // Samples the transfers; they never post to the EDT per chunk
+
+        bottomPanel.add(inputField, BorderLayout.CENTER); // Add input field to the center of the bottom panel
+        bottomPanel.add(buttonPanel, BorderLayout.EAST); // Add button panel to the east of the bottom panel
+        add(bottomPanel, BorderLayout.SOUTH); // Add bottom panel to the south of the main frame
+
+        sendButton.addActionListener(e -> sendTypedMessage());
+        attachButton.addActionListener(e -> sendFile());
+        inputField.addActionListener(e -> sendButton.doClick()); // Send message when Enter is pressed in the input field
+
+        setDefaultCloseOperation(EXIT_ON_CLOSE);
+        setVisible(true);
+    }
+
+    // EDT: one line like "Sending a.pdf 45%   Receiving b.zip 12%"
+    void showTransfers() {
+        StringBuilder text = new StringBuilder();
+        for (TransferManager.Transfer t : transfers.active()) {
+            if (text.length() > 0) text.append("   ");
+            text.append(t.upload ? "Sending " : "Receiving ").append(t.name).append(' ').append(t.percent()).append('%');
+        }
+        transferStatus.setText(text.toString());
+        transferStatus.setVisible(text.length() > 0);
+    }
+
+    void sendTypedMessage() {
+        String text = inputField.getText().trim();
+        if (text.isEmpty()) return;
+        if (roomsSupported && text.startsWith("/") && sendRoomCommand(text)) {
+            inputField.setText("");
+            return;
+        }
+
+        String selectedUser = (String) userComboBox.getSelectedItem(); // Get the selected user from the combo box
+        if (!isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All")) {
+            sendPrivateMessage(selectedUser, text);
+        } else {
+            sendMessage(text);
+        }
+        addMessageBubble(text, true); // Add the message bubble to the chat panel
+        inputField.setText(""); // Clear the input field after sending the message
+    }
+
+    // Any thread; shows up with the next batch (see MessageListModel)
+    void addMessageBubble(String message, boolean isSent) {
+        messages.post(message, isSent);
+    }
+
+    // After each batch of messages: follow the newest one, unless the user has scrolled up to read older ones.
+    // The scroll bar still shows the layout from before the batch here, so it tells where the user was.
+    void keepNewestInView() {
+        BoundedRangeModel bar = scrollPane.getVerticalScrollBar().getModel();
+        if (bar.getValue() + bar.getExtent() >= bar.getMaximum() - 4) {
+            SwingUtilities.invokeLater(() -> messageList.ensureIndexIsVisible(messages.getSize() - 1)); // Once the list has its new height
+        }
+    }
+
+    void connectToServer(SocketChannel loggedIn) {
+        try {
+            channel = loggedIn;
+            serverAddress = channel.getRemoteAddress();
+            socket = channel.socket();
+            dataOut = output(channel); // Output stream to send data to the server(from client - server)
+            dataIn = new DataInputStream(socket.getInputStream()); // Input stream to receive data from the server (from server - client)
+            dataOut.writeUTF("CAPS"); // Announce what this client supports; the server answers with what it supports too
+            dataOut.writeUTF(CAPABILITIES);
+            dataOut.flush(); // Ensure the data is sent immediately
+            addMessageBubble("Connected", false);
+        } catch (IOException e) {
+            addMessageBubble("Connection failed: " + e.getMessage(), false);
+        }
+    }
+
+    // Called on the reader thread after the connection dropped; logs in again with the session token, so the
+    // server answers from its session cache instead of hashing the password again
+    boolean reconnect() {
+        if (sessionToken.isEmpty()) return false; // Only sessions from a checked login (--auth=required) reconnect by themselves
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            try {
+                Thread.sleep(1000L << attempt);
+                SocketChannel ch = open(name);
+                login(ch, name, Authenticator.TOKEN, sessionToken);
+                DataOutputStream out = output(ch);
+                out.writeUTF("CAPS");
+                out.writeUTF(CAPABILITIES);
+                out.flush();
+                for (TransferManager.Download partial : downloads.values()) partial.finish(false, () -> {});
+                downloads.clear(); // Transfers in progress were cut off with the old connection
+                binaryIn = false; // The new connection starts in the legacy protocol again
+                presenceVersion = -1; // Versions belong to the old connection; wait for the new snapshot
+                SocketAddress node = ch.getRemoteAddress();
+                if (!node.equals(serverAddress)) { // Failed over: seqs belong to each node's own log
+                    lastSeq = 0;
+                    recentSeqs.clear();
+                }
+                resumeAfter = lastSeq; // Ask for what we missed once the server confirms "resume"
+                channel = ch;
+                serverAddress = node;
+                socket = ch.socket();
+                dataIn = new DataInputStream(socket.getInputStream());
+                send(() -> { // Under sendLock: not in the middle of an upload's chunk
+                    dataOut = out;
+                    binaryOut = false;
+                    deflateOut = false;
+                });
+                addMessageBubble("Reconnected", false);
+                logger.info("Reconnected with session token");
+                return true;
+            } catch (LoginFailedException e) {
+                addMessageBubble("Reconnect refused: " + e.getMessage(), false);
+                return false; // Expired session; the user has to log in again
+            } catch (IOException e) {
+                logger.warning("Reconnect attempt " + (attempt + 1) + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    void startReading() {
+        new Thread(() -> {
+            do {
+                try {
+                    while (!binaryIn) { // Continuously read messages from the server
+                        readLegacyMessage();
+                    }
+                    while (true) {
+                        readBinaryFrame();
+                    }
+                } catch (IOException e) {
+                    addMessageBubble("Disconnected.", false);
+                    logger.warning("Disconnected: " + e.getMessage());
+                }
+            } while (reconnect());
+        }).start(); // Start a new thread to read messages from the server
+    }
+
+    void readLegacyMessage() throws IOException {
+        String type = dataIn.readUTF(); // Read the type of message (text, file, user list, etc.)
+        if (type.equals("File")) { // Whole file in one frame (servers without chunked-files)
+            String filename = dataIn.readUTF(); // Read the filename of the received file
+            int size = dataIn.readInt(); // Read the size of the file
+            if (size < 0) throw new IOException("Invalid file size " + size);
+            TransferManager.Download download;
+            try {
+                download = transfers.download(filename, size);
+            } catch (IOException | InvalidPathException e) { // Skip its bytes; the connection stays
+                addMessageBubble("Could not save file: " + filename, false);
+                logger.warning("Error creating file for " + filename + ": " + e.getMessage());
+                skipFully(size);
+                return;
+            }
+            download.receive(channel, size); // Buffer by buffer; a disk thread writes them out
+            download.finish(true, () -> downloaded(download, true));
+        } else if (type.equals("FILE_BEGIN")) { // Start of a chunked file; chunks of different files may interleave
+            long id = dataIn.readLong();
+            String sender = dataIn.readUTF();
+            String filename = dataIn.readUTF();
+            beginDownload(id, sender, filename, dataIn.readLong());
+        } else if (type.equals("FILE_CHUNK")) {
+            long id = dataIn.readLong();
+            receiveChunk(id, dataIn.readInt());
+        } else if (type.equals("FILE_END") || type.equals("FILE_ABORT")) {
+            finishDownload(dataIn.readLong(), type.equals("FILE_END"));
+        } else if (type.equals("FILE_REJECT")) { // The server refused one of our uploads
+            long id = dataIn.readLong();
+            uploadRejected(id, dataIn.readUTF());
+        } else if (type.equals("CAPS")) { // Server's answer to our CAPS message
+            java.util.List<String> caps = Arrays.asList(dataIn.readUTF().split(","));
+            chunkedFiles = caps.contains("chunked-files");
+            roomsSupported = caps.contains("rooms");
+            heartbeat = caps.contains("heartbeat");
+            if (caps.contains(BinaryProtocol.VERSION)) { // Everything after this reply is binary-v1
+                binaryIn = true;
+                switchToBinary(); // Queued behind the sends made so far, which still go out in the legacy protocol
+            }
+            boolean deflate = caps.contains(Compression.CAPABILITY);
+            send(() -> deflateOut = deflate);
+            if (roomsSupported) {
+                rejoinRooms(); // After switchToBinary, so the joins use the new protocol
+            }
+            long after = resumeAfter;
+            if (caps.contains("resume") && after > 0) {
+                resumeAfter = 0;
+                requestReplay(after); // After the rejoins, so missed room messages count too
+            }
+        } else if (heartbeat && type.equals("PING")) {
+            sendPong(dataIn.readLong());
+        } else if (type.startsWith("USER_LIST")) { // If the message is a user list
+            String[] parts = type.split("/");
+            updateUserList(Arrays.asList(parts).subList(1, parts.length)); // Skip the "USER_LIST" part
+        } else {
+            showMessage(type);
+        }
+    }
+
+    // One binary-v1 frame: opcode byte, varint payload length, payload (see BinaryProtocol)
+    void readBinaryFrame() throws IOException {
+        int opcode = dataIn.readUnsignedByte();
+        long length = BinaryProtocol.readVarint(dataIn);
+        if (opcode == BinaryProtocol.FILE_CHUNK) { // The chunk data goes straight from the socket to the file
+            long id = BinaryProtocol.readVarint(dataIn);
+            receiveChunk(id, length - BinaryProtocol.varintSize(id));
+            return;
+        }
+        if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD) throw new IOException("Invalid frame length " + length);
+        payload.fill(dataIn, (int) length);
+        if (opcode == BinaryProtocol.COMPRESSED) {
+            readCompressedFrame();
+        } else {
+            handleFrame(opcode);
+        }
+    }
+
+    // The server compresses long messages, user lists and file chunks that shrink enough (see Compression)
+    void readCompressedFrame() throws IOException {
+        byte[] frame = Compression.unpack(inflater, payload, FileRelay.RELAY_CHUNK + BinaryProtocol.MAX_PAYLOAD);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        int opcode = in.readUnsignedByte();
+        long length = BinaryProtocol.readVarint(in);
+        if (opcode == BinaryProtocol.FILE_CHUNK) { // The data is in memory this time, so it is written from there
+            long id = BinaryProtocol.readVarint(in);
+            int offset = frame.length - in.available();
+            TransferManager.Download download = downloads.get(id);
+            if (download != null) download.receive(ByteBuffer.wrap(frame, offset, frame.length - offset));
+            return;
+        }
+        if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD || opcode == BinaryProtocol.COMPRESSED) throw new IOException("Invalid compressed frame");
+        payload.fill(in, (int) length);
+        handleFrame(opcode);
+    }
+
+    // Everything but file chunks and COMPRESSED; the frame's payload is in 'payload'
+    void handleFrame(int opcode) throws IOException {
+        switch (opcode) {
+            case BinaryProtocol.TEXT: {
+                String message = userName((int) payload.varint()) + ": " + payload.string();
+                if (firstSeen()) showMessage(message);
+                break;
+            }
+            case BinaryProtocol.PRIVATE: {
+                String message = "[Private] " + userName((int) payload.varint()) + ": " + payload.string();
+                if (firstSeen()) showMessage(message);
+                break;
+            }
+            case BinaryProtocol.NOTICE:
+                showMessage(payload.string());
+                break;
+            case BinaryProtocol.ROOM_TEXT: {
+                String sender = userName((int) payload.varint());
+                String room = payload.string();
+                String message = "[#" + room + "] " + sender + ": " + payload.string();
+                if (firstSeen()) showMessage(message);
+                break;
+            }
+            case BinaryProtocol.RESUME: // Where our count starts on this connection
+                lastSeq = Math.max(lastSeq, payload.varint());
+                break;
+            case BinaryProtocol.REPLAY: { // A message we missed while disconnected
+                long seq = payload.varint();
+                int kind = (int) payload.varint();
+                String sender = payload.string();
+                String room = payload.string();
+                String body = payload.string();
+                if (!noteSeq(seq)) break;
+                String prefix = kind == BinaryProtocol.PRIVATE ? "[Private] " : kind == BinaryProtocol.ROOM_TEXT ? "[#" + room + "] " : "";
+                showMessage("[missed] " + prefix + sender + ": " + body);
+                break;
+            }
+            case BinaryProtocol.USER_LIST: {
+                int count = (int) payload.varint();
+                java.util.List<String> names = new ArrayList<>(count);
+                userNames.clear();
+                for (int i = 0; i < count; i++) {
+                    int id = (int) payload.varint();
+                    String user = payload.string();
+                    userNames.put(id, user);
+                    names.add(user);
+                }
+                updateUserList(names);
+                break;
+            }
+            case BinaryProtocol.PRESENCE_SNAPSHOT: {
+                presenceVersion = payload.varint();
+                int count = (int) payload.varint();
+                java.util.List<String> names = new ArrayList<>(count);
+                userNames.clear();
+                for (int i = 0; i < count; i++) {
+                    int id = (int) payload.varint();
+                    String user = payload.string();
+                    userNames.put(id, user);
+                    names.add(user);
+                }
+                updateUserList(names);
+                break;
+            }
+            case BinaryProtocol.PRESENCE_DELTA:
+                applyPresenceDelta();
+                break;
+            case BinaryProtocol.FILE_BEGIN: {
+                long id = payload.varint();
+                String sender = userName((int) payload.varint());
+                String filename = payload.string();
+                beginDownload(id, sender, filename, payload.varint());
+                break;
+            }
+            case BinaryProtocol.FILE_END:
+            case BinaryProtocol.FILE_ABORT:
+                finishDownload(payload.varint(), opcode == BinaryProtocol.FILE_END);
+                break;
+            case BinaryProtocol.FILE_REJECT: {
+                long id = payload.varint();
+                uploadRejected(id, payload.string());
+                break;
+            }
+            case BinaryProtocol.PING:
+                sendPong(payload.varint());
+                break;
+            default: // Newer server; frames we do not know are skipped
+                break;
+        }
+    }
+
+    // Applies a PRESENCE_DELTA from payload to userNames and the combo box, following the rules in BinaryProtocol
+    void applyPresenceDelta() throws IOException {
+        long from = payload.varint();
+        long to = payload.varint();
+        if (presenceVersion < 0 || to <= presenceVersion) return; // No snapshot yet, or nothing new in it
+        if (from > presenceVersion) { // Missed a delta (the server dropped it while we were slow); start over
+            presenceVersion = -1;
+            requestPresenceSnapshot();
+            return;
+        }
+        presenceVersion = to;
+        Map<String, Integer> joined = new LinkedHashMap<>(); // Only the changes we did not have yet reach the EDT
+        Map<String, Integer> left = new HashMap<>();
+        for (int i = (int) payload.varint(); i > 0; i--) {
+            int id = (int) payload.varint();
+            String user = payload.string();
+            if (userNames.put(id, user) == null) joined.put(user, id);
+        }
+        for (int i = (int) payload.varint(); i > 0; i--) {
+            int id = (int) payload.varint();
+            String user = userNames.remove(id);
+            if (user != null) left.put(user, id);
+        }
+        if (joined.isEmpty() && left.isEmpty()) return;
+        SwingUtilities.invokeLater(() -> { // A few addItem/removeItem calls instead of rebuilding the whole list
+            for (Map.Entry<String, Integer> e : left.entrySet()) {
+                userIds.remove(e.getKey(), e.getValue()); // Unless a newer login took over the name
+                if (!e.getKey().equals(name)) userComboBox.removeItem(e.getKey());
+            }
+            for (Map.Entry<String, Integer> e : joined.entrySet()) {
+                userIds.put(e.getKey(), e.getValue());
+                if (!e.getKey().equals(name)) userComboBox.addItem(e.getKey());
+            }
+        });
+    }
+
+    // Reads the seq a logged message ends with, if any; false if we already have that message
+    boolean firstSeen() throws IOException {
+        return !payload.hasMore() || noteSeq(payload.varint());
+    }
+
+    boolean noteSeq(long seq) {
+        if (!recentSeqs.add(seq)) return false; // Arrived live and in the replay
+        lastSeq = Math.max(lastSeq, seq);
+        return true;
+    }
+
+    // Runs 'write' under sendLock on the send thread, after every send handed over before it. The EDT and the reader
+    // thread send only through here: an upload holds sendLock while a chunk goes out (a legacy one for the whole
+    // file), and waiting for that on the EDT froze the window.
+    void send(Runnable write) {
+        sends.execute(() -> {
+            synchronized (sendLock) {
+                write.run();
+            }
+        });
+    }
+
+    // Asks for the messages logged after 'after' that were meant for us
+    void requestReplay(long after) {
+        send(() -> {
+            if (!binaryOut) return; // Dropped again meanwhile; the next reconnect asks again
+            try {
+                new BinaryProtocol.Builder(BinaryProtocol.RESUME).varint(after).writeTo(dataOut);
+                dataOut.flush();
+                logger.info("Asked for messages after seq " + after);
+            } catch (IOException e) {
+                logger.warning("Error requesting missed messages: " + e.getMessage());
+            }
+        });
+    }
+
+    // Asks the server for a PRESENCE_SNAPSHOT (an empty one is a request)
+    void requestPresenceSnapshot() {
+        send(() -> {
+            if (!binaryOut) return; // Reconnected meanwhile; the new connection brings its own snapshot
+            try {
+                new BinaryProtocol.Builder(BinaryProtocol.PRESENCE_SNAPSHOT).writeTo(dataOut);
+                dataOut.flush();
+                logger.info("Missed a presence update, asked for the full user list");
+            } catch (IOException e) {
+                logger.warning("Error requesting the user list: " + e.getMessage());
+            }
+        });
+    }
+
+    String userName(int id) {
+        String user = userNames.get(id);
+        return user != null ? user : "#" + id; // Not in the last USER_LIST (e.g. already left)
+    }
+
+    void showMessage(String message) {
+        addMessageBubble(message, false); // Add the received message to the chat panel
+        logger.info("Message received: " + message); // Log the received message
+    }
+
+    void beginDownload(long id, String sender, String filename, long size) {
+        try {
+            downloads.put(id, transfers.download(filename, size));
+        } catch (IOException | InvalidPathException e) { // Left unregistered: its chunks are skipped, the connection stays
+            addMessageBubble("Could not save file from " + sender + ": " + filename, false);
+            logger.warning("Error creating file for " + filename + ": " + e.getMessage());
+            return;
+        }
+        logger.info("Receiving file from " + sender + ": " + filename + " (" + size + " bytes)");
+    }
+
+    void receiveChunk(long id, long length) throws IOException {
+        if (length < 0) throw new IOException("Invalid chunk length " + length);
+        TransferManager.Download download = downloads.get(id);
+        if (download != null) {
+            download.receive(channel, length);
+        } else {
+            skipFully(length); // Not ours to keep (e.g. failed to open the file)
+        }
+    }
+
+    void skipFully(long length) throws IOException {
+        for (long left = length; left > 0; ) {
+            int skipped = dataIn.skipBytes((int) Math.min(left, CHUNK_SIZE));
+            if (skipped <= 0) {
+                dataIn.readByte(); // skipBytes() gives up at the end of what has arrived; this waits, or throws at EOF
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+
+    void finishDownload(long id, boolean complete) {
+        TransferManager.Download download = downloads.remove(id);
+        if (download != null) {
+            download.finish(complete, () -> downloaded(download, complete)); // An incomplete file is deleted
+        }
+    }
+
+    // On the disk thread, once the file is closed
+    void downloaded(TransferManager.Download download, boolean complete) {
+        if (download.failure() != null) {
+            addMessageBubble("Could not save file: " + download.name, false);
+            logger.warning("Error saving " + download.name + ": " + download.failure().getMessage());
+        } else if (complete) {
+            addMessageBubble("Received file: " + download.name, false);
+            logger.info("Received file: " + download.name);
+        } else {
+            addMessageBubble("File transfer cancelled: " + download.name, false); // Sender gave up
+        }
+    }
+
+    void uploadRejected(long id, String reason) {
+        rejectedUploads.add(id);
+        addMessageBubble(reason, false);
+        logger.warning("Upload rejected: " + reason);
+    }
+
+    // Answers the server's heartbeat
+    void sendPong(long token) {
+        send(() -> {
+            try {
+                if (binaryOut) {
+                    new BinaryProtocol.Builder(BinaryProtocol.PONG).varint(token).writeTo(dataOut);
+                } else {
+                    dataOut.writeUTF("PONG");
+                    dataOut.writeLong(token);
+                }
+                dataOut.flush();
+            } catch (IOException e) {
+                logger.warning("Error answering the server's PING: " + e.getMessage());
+            }
+        });
+    }
+
+    // Tells the server that our side switches to binary-v1 too
+    void switchToBinary() {
+        send(() -> {
+            try {
+                dataOut.writeUTF("BINARY");
+                dataOut.flush();
+                binaryOut = true;
+                logger.info("Using " + BinaryProtocol.VERSION);
+            } catch (IOException e) {
+                logger.warning("Error switching to " + BinaryProtocol.VERSION + ": " + e.getMessage());
+            }
+        });
+    }
+
+    void updateUserList(java.util.List<String> users) { // Update the user list in the combo box
+        Map<String, Integer> ids = new HashMap<>();
+        for (Map.Entry<Integer, String> e : userNames.entrySet()) ids.put(e.getValue(), e.getKey());
+        SwingUtilities.invokeLater(() -> {
+            userIds = ids; // Read by the EDT before it hands a send over
+            userComboBox.removeAllItems(); // Clear the existing items in the combo box
+            userComboBox.addItem("Broadcast to All");
+            for (String user : users) {
+                if (!user.equals(name)) {     // Exclude the current user's name from the list
+                    userComboBox.addItem(user);
+                }
+            }
+        });
+    }
+
+    void sendMessage(String msg) {
+        send(() -> {
+            try {
+                if (binaryOut) {
+                    writeFrame(new BinaryProtocol.Builder(BinaryProtocol.TEXT).string(msg)); // A message that reads "File" is just text here
+                } else {
+                    dataOut.writeUTF(msg); // Send the message to the server
+                }
+                dataOut.flush(); 
+                logger.info("Sent message: " + msg);
+            } catch (IOException e) {
+                addMessageBubble("Error sending message.", false);
+                logger.warning("Error sending message: " + e.getMessage());
+            }
+        });
+    }
+
+    // "/join room", "/leave room" and "/room room message"; returns false for anything else, which is sent as chat text
+    boolean sendRoomCommand(String text) {
+        String[] parts = text.split("\\s+", 3);
+        String command = parts[0];
+        if (parts.length < 2 || !(command.equals("/join") || command.equals("/leave") || command.equals("/room"))) return false;
+        if (command.equals("/room") && parts.length < 3) return false;
+        String room = parts[1].startsWith("#") ? parts[1].substring(1) : parts[1];
+        send(() -> {
+            try {
+                if (command.equals("/room")) {
+                    if (binaryOut) {
+                        writeFrame(new BinaryProtocol.Builder(BinaryProtocol.ROOM_TEXT).string(room).string(parts[2]));
+                    } else {
+                        dataOut.writeUTF("ROOM");
+                        dataOut.writeUTF(room);
+                        dataOut.writeUTF(parts[2]);
+                    }
+                    addMessageBubble("[#" + room + "] " + parts[2], true);
+                } else {
+                    boolean join = command.equals("/join");
+                    writeRoomMembership(room, join);
+                    if (join) joinedRooms.add(room); else joinedRooms.remove(room);
+                }
+                dataOut.flush();
+                logger.info("Sent " + command + " " + room);
+            } catch (IOException e) {
+                addMessageBubble("Error sending " + command + ".", false);
+                logger.warning("Error sending " + command + ": " + e.getMessage());
+            }
+        });
+        return true;
+    }
+
+    void writeRoomMembership(String room, boolean join) throws IOException {
+        if (binaryOut) {
+            new BinaryProtocol.Builder(join ? BinaryProtocol.ROOM_JOIN : BinaryProtocol.ROOM_LEAVE).string(room).writeTo(dataOut);
+        } else {
+            dataOut.writeUTF(join ? "JOIN" : "LEAVE");
+            dataOut.writeUTF(room);
+        }
+    }
+
+    // The server forgets room membership with the connection; sent after every CAPS reply
+    void rejoinRooms() {
+        send(() -> {
+            try {
+                for (String room : joinedRooms) {
+                    writeRoomMembership(room, true);
+                }
+                dataOut.flush();
+            } catch (IOException e) {
+                logger.warning("Error rejoining rooms: " + e.getMessage());
+            }
+        });
+    }
+
+    void sendPrivateMessage(String receiver, String msg) {
+        int receiverId = recipientId(receiver); // userIds belongs to the EDT
+        send(() -> {
+            try {
+                if (binaryOut) {
+                    writeFrame(new BinaryProtocol.Builder(BinaryProtocol.PRIVATE).varint(receiverId).string(msg)
+                            .string(receiver)); // The name still reaches them if they have left since the id was listed
+                } else {
+                    dataOut.writeUTF("PRIVATE");
+                    dataOut.writeUTF(receiver);
+                    dataOut.writeUTF(msg);
+                }
+                dataOut.flush();
+                logger.info("Sent private message to " + receiver + ": " + msg);
+            } catch (IOException e) {
+                addMessageBubble("Error sending private message.", false);
+                logger.warning("Error sending private message: " + e.getMessage());
+            }
+        });
+    }
+
+    // A text frame, compressed if the server takes COMPRESSED and the message is long enough for it to pay off
+    void writeFrame(BinaryProtocol.Builder builder) throws IOException {
+        byte[] frame = builder.toBytes();
+        byte[] packed = deflateOut ? compression.pack(frame) : null;
+        dataOut.write(packed != null ? packed : frame);
+    }
+
+    // Id of a user from the last USER_LIST; -1 is never assigned, so the server treats it as an unknown user
+    int recipientId(String receiver) {
+        Integer id = userIds.get(receiver);
+        return id != null ? id : -1;
+    }
+
+    // EDT: picks the file; an upload thread reads and sends it, so the window stays live however big it is
+    void sendFile() {
+        JFileChooser fileChooser = new JFileChooser(); // Create a file chooser to select files to send
+        if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File file = fileChooser.getSelectedFile();
+            String selectedUser = (String) userComboBox.getSelectedItem();
+            String receiver = !isBroadcast && selectedUser != null && !selectedUser.equals("Broadcast to All") ? selectedUser : null;
+            int receiverId = receiver == null ? 0 : recipientId(receiver); // userIds belongs to the EDT
+            boolean chunked = chunkedFiles;
+            transfers.upload(file.getName(), file.length(), progress -> {
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long size = fileChannel.size();
+                    boolean sent = chunked
+                            ? sendFileChunked(fileChannel, size, file.getName(), receiver, receiverId, progress)
+                            : sendFileLegacy(fileChannel, size, file.getName(), receiver, progress);
+                    if (sent) {
+                        addMessageBubble("File sent: " + file.getName(), true);
+                        logger.info("File sent: " + file.getName());
+                    }
+                } catch (IOException e) {
+                    addMessageBubble("Error sending file.", false);
+                    logger.warning("Error sending file: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    // Upload thread: FILE_BEGIN, then fixed-size FILE_CHUNKs, then FILE_END; stops early if the server rejects the
+    // upload. sendLock is taken per chunk, so chat typed meanwhile goes out between two chunks.
+    boolean sendFileChunked(FileChannel fileChannel, long size, String fileName, String receiver, int receiverId,
+                            TransferManager.Transfer progress) throws IOException {
+        long id = nextUploadId.incrementAndGet();
+        synchronized (sendLock) {
+            if (binaryOut) {
+                BinaryProtocol.Builder begin = new BinaryProtocol.Builder(BinaryProtocol.FILE_BEGIN).varint(id)
+                        .varint(receiverId).string(fileName).varint(size); // Recipient 0 means broadcast
+                if (receiver != null) begin.string(receiver); // As for private messages
+                begin.writeTo(dataOut);
+            } else {
+                dataOut.writeUTF("FILE_BEGIN");
+                dataOut.writeLong(id);
+                dataOut.writeUTF(receiver == null ? "" : receiver); // Empty receiver means broadcast
+                dataOut.writeUTF(fileName);
+                dataOut.writeLong(size);
+            }
+        }
+
+        for (long position = 0; position < size && !rejectedUploads.contains(id); ) {
+            int length = (int) Math.min(CHUNK_SIZE, size - position);
+            synchronized (sendLock) {
+                if (binaryOut) {
+                    dataOut.write(new BinaryProtocol.Builder(BinaryProtocol.FILE_CHUNK).varint(id).toBytes(length)); // Header only, the data follows
+                } else {
+                    dataOut.writeUTF("FILE_CHUNK");
+                    dataOut.writeLong(id);
+                    dataOut.writeInt(length);
+                }
+                dataOut.flush();
+                sendFromFile(fileChannel, position, length);
+            }
+            position += length;
+            progress.done.set(position);
+        }
+        boolean rejected = rejectedUploads.remove(id);
+        synchronized (sendLock) {
+            if (binaryOut) {
+                new BinaryProtocol.Builder(rejected ? BinaryProtocol.FILE_ABORT : BinaryProtocol.FILE_END).varint(id).writeTo(dataOut);
+            } else {
+                dataOut.writeUTF(rejected ? "FILE_ABORT" : "FILE_END");
+                dataOut.writeLong(id);
+            }
+            dataOut.flush();
+        }
+        return !rejected;
+    }
+
+    // Upload thread: whole file as one frame with an int size, for servers that did not confirm chunked-files.
+    // Nothing else can be sent until it is through; what the user types meanwhile waits on the send thread.
+    boolean sendFileLegacy(FileChannel fileChannel, long size, String fileName, String receiver,
+                           TransferManager.Transfer progress) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            addMessageBubble("This server cannot receive files larger than 2 GB.", false);
+            return false;
+        }
+        synchronized (sendLock) {
+            if (receiver != null) {
+                dataOut.writeUTF("PRIVATE_FILE");
+                dataOut.writeUTF(receiver);
+            } else {
+                dataOut.writeUTF("File");
+            }
+            dataOut.writeUTF(fileName);
+            dataOut.writeInt((int) size);
+            dataOut.flush();
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                sendFromFile(fileChannel, position, Math.min(CHUNK_SIZE, size - position));
+                progress.done.set(Math.min(size, position + CHUNK_SIZE));
+            }
+        }
+        return true;
+    }
+
+    // FileChannel.transferTo hands the bytes to the socket without copying them through a Java byte[]
+    void sendFromFile(FileChannel fileChannel, long position, long length) throws IOException {
+        long done = 0;
+        while (done < length) {
+            done += fileChannel.transferTo(position + done, length - done, channel);
+        }
+    }
+}
+
+class ImageBackgroundPanel extends JPanel {
+    private final Image background;
+    private Image scaled; // 'background' at the panel's current size; scaling on every paint was most of the paint time
+
+    public ImageBackgroundPanel(String imagePath) { // Constructor to set the background image
+        super(new BorderLayout()); // Holds the message list's scroll pane
+        this.background = new ImageIcon(imagePath).getImage(); // Load the image from the specified path
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g); // Call the superclass method to ensure proper painting
+        if (background.getWidth(null) <= 0 || getWidth() <= 0 || getHeight() <= 0) return; // Image missing or not loaded
+        if (scaled == null || scaled.getWidth(null) != getWidth() || scaled.getHeight(null) != getHeight()) {
+            scaled = getGraphicsConfiguration() != null
+                    ? getGraphicsConfiguration().createCompatibleImage(getWidth(), getHeight())
+                    : new java.awt.image.BufferedImage(getWidth(), getHeight(), java.awt.image.BufferedImage.TYPE_INT_RGB);
+            Graphics2D sg = (Graphics2D) scaled.getGraphics();
+            sg.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR); // Once, so it can be smooth
+            sg.drawImage(background, 0, 0, getWidth(), getHeight(), null);
+            sg.dispose();
+        }
+        g.drawImage(scaled, 0, 0, null); // A plain copy from now on
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.*; // For DataOutputStream, InputStream, IOException
+import java.net.*; // For Socket
+
+// Checks that one throttled receiver does not slow down fan-out to everyone else.
+// Runs LoadTestClient once as a baseline, then again while a client that reads about 1 KB/s is connected.
+// Usage: java SlowConsumerBenchmark [host] [port] [clients] [messagesPerClient]
+// Compare p50/p99 between the two lines; try it with each --backpressure policy.
+public class SlowConsumerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : BroadcastServer.PORT;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+        new LoadTestClient(host, port, clients, messages).run("baseline");
+
+        Socket slow = new Socket();
+        slow.setReceiveBufferSize(4096); // Small window so the server-side socket buffer fills quickly
+        slow.connect(new InetSocketAddress(host, port));
+        DataOutputStream out = new DataOutputStream(slow.getOutputStream());
+        out.writeUTF("slow-reader");
+        out.flush();
+        Thread throttle = new Thread(() -> {
+            try {
+                InputStream in = slow.getInputStream();
+                byte[] buf = new byte[100];
+                while (in.read(buf) >= 0) {
+                    Thread.sleep(100); // About 1 KB per second
+                }
+            } catch (IOException | InterruptedException e) {
+                // Disconnected by the server's backpressure policy, which is also an acceptable outcome
+            }
+        }, "slow-reader");
+        throttle.setDaemon(true);
+        throttle.start();
+
+        new LoadTestClient(host, port, clients, messages).run("with-slow-reader");
+        System.out.println("slow_reader_connected=" + (throttle.isAlive() && !slow.isClosed()));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.*; // For EOFException, IOException
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For FileChannel, ReadableByteChannel, WritableByteChannel
+import java.nio.file.*; // For Files, Path, Paths, StandardOpenOption
+import java.util.concurrent.atomic.*; // For AtomicInteger
+
+// Temp file that holds one upload while FileRelay forwards it, so file data never sits in the Java heap.
+// Data goes socket -> spool with transferFrom and spool -> each recipient socket with transferTo.
+// Reference counted: the relay holds one reference and every queued frame that points into the spool holds another;
+// the file is closed and deleted when the last one is released (a mailbox file is only closed, see open()).
+final class Spool {
+    static final int PROGRESS_BYTES = 1 << 20; // transferTo reports progress after each piece this size, so a slow peer is not mistaken for a dead one
+
+    private final FileChannel file;
+    private final AtomicInteger refs = new AtomicInteger(1); // The creator's reference
+    private long length; // Bytes appended so far; only the uploader's reader thread appends
+
+    private Spool(FileChannel file) {
+        this.file = file;
+    }
+
+    static Spool create(String dir) throws IOException {
+        Path path = Files.createTempFile(Paths.get(dir), "chat-spool-", ".tmp");
+        return new Spool(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)); // Deleted as soon as the channel is closed
+    }
+
+    // A file stored in a Mailbox, sent to its recipient like a spool. Releasing the last reference only closes it: the
+    // mailbox deletes the file once the delivery is confirmed, and keeps it if the connection drops before that.
+    static Spool open(Path path, long length) throws IOException {
+        Spool spool = new Spool(FileChannel.open(path, StandardOpenOption.READ));
+        spool.length = length;
+        return spool;
+    }
+
+    // Copies exactly 'count' bytes from the socket to the end of the spool; returns the offset they start at
+    long append(ReadableByteChannel from, long count) throws IOException {
+        long start = length;
+        long done = 0;
+        while (done < count) {
+            long n = file.transferFrom(from, start + done, count - done);
+            if (n <= 0) throw new EOFException("Connection closed during file upload");
+            done += n;
+        }
+        length += count;
+        return start;
+    }
+
+    // Writes a region of the spool to a recipient's socket; positional, so many writers can share the spool.
+    // 'progress' (may be null) runs after every piece of at most PROGRESS_BYTES that made it out.
+    void transferTo(long position, long count, WritableByteChannel target, Runnable progress) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = file.transferTo(position + done, Math.min(count - done, PROGRESS_BYTES), target);
+            if (n == 0 && position + done >= file.size()) throw new EOFException("Spool is shorter than expected"); // Or it spins forever
+            done += n;
+            if (n > 0 && progress != null) progress.run();
+        }
+    }
+
+    // Reads a region into memory; only for compressing a file chunk, which needs the bytes on the heap anyway
+    byte[] read(long position, int count) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(count);
+        while (buf.hasRemaining()) {
+            if (file.read(buf, position + buf.position()) < 0) throw new EOFException("Spool is shorter than expected");
+        }
+        return buf.array();
+    }
+
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            try {
+                file.close();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.*; // For ByteArrayOutputStream, DataOutputStream, IOException
+import java.net.*; // For InetSocketAddress
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For Selector, SelectionKey, SocketChannel
+import java.util.*; // For Iterator
+
+// Compares BroadcastServer's thread modes with many idle and some active connections.
+// Start the server with --threads=platform, run this, then restart it with --threads=virtual and run it again.
+// Usage: java ThreadModeBenchmark [host] [port] [idleClients] [activeClients] [messagesPerActive] [label]
+// Defaults are 10000 idle and 1000 active clients; raise "ulimit -n" on both sides first.
+public class ThreadModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : BroadcastServer.PORT;
+        int idle = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int active = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int messages = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        String label = args.length > 5 ? args[5] : "run";
+
+        // Idle clients never send after their name, but must keep reading or the server's writes to them block.
+        // One selector drains all of them so the benchmark itself does not need 10k threads.
+        Selector drain = Selector.open();
+        Thread drainer = new Thread(() -> drainLoop(drain), "idle-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        int opened = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < idle; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                ByteArrayOutputStream name = new ByteArrayOutputStream();
+                new DataOutputStream(name).writeUTF("idle" + i);
+                channel.write(ByteBuffer.wrap(name.toByteArray()));
+                channel.configureBlocking(false);
+                drain.wakeup();
+                channel.register(drain, SelectionKey.OP_READ);
+                opened++;
+            } catch (IOException e) {
+                System.err.println("Idle connection " + i + " failed: " + e.getMessage());
+                break;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("label=%s idle_connections=%d idle_connect_per_sec=%.0f%n", label, opened, opened / seconds);
+
+        // With the idle connections still open, measure what the server can do for the active ones
+        new LoadTestClient(host, port, active, messages).run(label + "-active");
+        System.exit(0);
+    }
+
+    private static void drainLoop(Selector selector) {
+        ByteBuffer sink = ByteBuffer.allocateDirect(64 * 1024);
+        while (true) {
+            try {
+                selector.select(100);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    sink.clear();
+                    if (((SocketChannel) key.channel()).read(sink) < 0) {
+                        key.cancel();
+                    }
+                }
+            } catch (IOException e) {
+                // A dropped idle connection only shows up as a lower count in the next run
+            }
+        }
+    }
+}
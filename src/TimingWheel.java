@@ -0,0 +1,147 @@
+import java.util.concurrent.*; // For ConcurrentLinkedQueue, TimeUnit
+import java.util.concurrent.atomic.*; // For AtomicInteger
+import java.util.function.*; // For Consumer
+
+// Hashed timing wheel (Varghese and Lauck): a ring of 'slots' buckets, one tick apart. A timeout lands in the bucket
+// its deadline hashes to, along with how many more turns of the wheel it has to wait. Every tick the one thread
+// visits the next bucket only, so scheduling, cancelling and expiring a timeout are all O(1) whatever the number
+// of timeouts, where a ScheduledThreadPoolExecutor pays O(log n) in its heap for each and keeps a task object per
+// connection queued. Deadlines are rounded up to the next tick, so they fire up to one tick late, never early.
+// Other threads only touch two lock-free queues; the buckets themselves belong to the wheel thread.
+// Tasks run on the wheel thread and must be short: a slow one delays every timeout behind it.
+final class TimingWheel {
+    private final long tickNanos;
+    private final Timeout[] buckets; // Heads of doubly linked lists, one per slot
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>(); // Scheduled since the last tick
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>(); // To unlink on the next tick
+    private final AtomicInteger size = new AtomicInteger(); // Timeouts scheduled and not yet expired or cancelled
+    private final Consumer<Throwable> errors; // Told about tasks that throw; the wheel keeps going
+    private final long start = System.nanoTime(); // Tick k is processed at start + (k + 1) ticks
+    private long tick; // Ticks processed so far; wheel thread only
+
+    // A scheduled task; cancel() is safe from any thread
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline; // System.nanoTime() it is due at
+        private long rounds; // Full turns of the wheel still to wait once in its bucket
+        private int slot = -1; // -1 until the wheel thread has put it in a bucket
+        private Timeout prev, next;
+        private volatile int state; // 0 = scheduled, 1 = cancelled, 2 = expired
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Returns false if it has already run (or been cancelled)
+        boolean cancel() {
+            synchronized (this) {
+                if (state != 0) return false;
+                state = 1;
+            }
+            size.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+    }
+
+    // 'slots' is rounded up to a power of two; one turn of the wheel should cover the usual delay
+    TimingWheel(String name, long tickMillis, int slots, Consumer<Throwable> errors) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int n = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.errors = errors;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        size.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private void run() {
+        while (true) {
+            long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            unlinkCancelled();
+            placeAdded();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.slot >= 0) unlink(timeout); // Otherwise it is still in 'added' and is dropped from there
+        }
+    }
+
+    // Into the bucket of the first tick processed at or after the deadline; one already due runs on this tick
+    private void placeAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state != 0) continue; // Cancelled before it was placed
+            long due = Math.floorDiv(timeout.deadline - start + tickNanos - 1, tickNanos) - 1;
+            long ticks = Math.max(0, due - tick);
+            timeout.rounds = ticks / buckets.length;
+            timeout.slot = (int) ((tick + ticks) & mask);
+            timeout.next = buckets[timeout.slot];
+            if (timeout.next != null) timeout.next.prev = timeout;
+            buckets[timeout.slot] = timeout;
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                boolean due;
+                synchronized (timeout) {
+                    due = timeout.state == 0;
+                    if (due) timeout.state = 2;
+                }
+                if (due) {
+                    size.decrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        errors.accept(t);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.slot < 0) return; // Already unlinked (expired, then cancelled too late)
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.slot = -1;
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.concurrent.atomic.*; // For AtomicLong
+
+// Lock-free token bucket, kept in its "virtual scheduling" form (GCRA): instead of a token count and a refill
+// timer it stores one number, the time at which the bucket would be full again if nothing more were taken.
+// Taking n tokens moves that time n token intervals further; the take conforms as long as it stays within
+// 'burst' intervals of now. One AtomicLong and a CAS, no lock and no background refill thread.
+final class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos; // How far ahead of now the full-again time may run: the bucket size
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2); // Starts full
+
+    TokenBucket(long tokensPerSecond, long burst) {
+        this.nanosPerToken = Math.max(1, 1_000_000_000L / Math.max(1, tokensPerSecond));
+        this.burstNanos = Math.max(1, burst) * nanosPerToken;
+    }
+
+    // Takes the tokens whether or not they are there (a shortfall becomes debt) and returns how long the caller
+    // should wait before going on: 0 if it is within the limit, otherwise the time until the debt is paid off
+    long take(long tokens, long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + tokens * nanosPerToken;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+}
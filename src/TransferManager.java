@@ -0,0 +1,183 @@
+import java.io.*; // For EOFException, IOException, InterruptedIOException
+import java.nio.*; // For ByteBuffer
+import java.nio.channels.*; // For FileChannel, ReadableByteChannel
+import java.nio.file.*; // For Files, Path, StandardOpenOption
+import java.util.*; // For List
+import java.util.concurrent.*; // For ArrayBlockingQueue, ConcurrentLinkedQueue, CopyOnWriteArrayList, ExecutorService, Executors
+import java.util.concurrent.atomic.*; // For AtomicBoolean, AtomicInteger, AtomicLong
+import java.util.function.*; // For Consumer
+
+// SimpleChatClient's file I/O, kept off the EDT and off the reader thread:
+//  - uploads run on a small pool of worker threads, so choosing a file returns at once and the window stays live
+//    while the file goes out in chunks;
+//  - downloads: the reader thread only copies each chunk from the socket into one of a fixed set of buffers and
+//    queues it, and a disk thread writes it out. The reader goes straight back to the next frame, so chat keeps
+//    arriving while a slow disk catches up. Once every buffer waits for the disk the reader waits for one, which
+//    bounds the memory and slows the sender down through TCP instead of holding the whole file.
+// Every transfer counts its bytes for the progress line in the window.
+final class TransferManager {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int BUFFERS = 32; // 2 MB of received data may be waiting for the disk
+
+    private final ExecutorService uploads;
+    private final ExecutorService disk;
+    private final ArrayBlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(BUFFERS); // Free ones
+    private final List<Transfer> active = new CopyOnWriteArrayList<>();
+
+    // One file on its way, for progress
+    static class Transfer {
+        final String name;
+        final long size;
+        final boolean upload;
+        final AtomicLong done = new AtomicLong(); // Bytes sent, or written to disk
+
+        Transfer(String name, long size, boolean upload) {
+            this.name = name;
+            this.size = size;
+            this.upload = upload;
+        }
+
+        int percent() {
+            return size > 0 ? (int) Math.min(100, done.get() * 100 / size) : 100;
+        }
+    }
+
+    // A file being received. The reader thread calls receive() and finish(); the disk work for one download runs in
+    // order, one task at a time, on the disk pool.
+    final class Download extends Transfer {
+        final Path path;
+        private final FileChannel file;
+        private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile IOException failure; // First disk error; later data is dropped
+
+        private Download(Path path, String name, long size) throws IOException {
+            super(name, size, false);
+            this.path = path;
+            this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        // Reads exactly 'length' bytes from 'in' and queues them for the file; waits only while every buffer is taken
+        void receive(ReadableByteChannel in, long length) throws IOException {
+            while (length > 0) {
+                ByteBuffer buffer = takeBuffer();
+                buffer.clear().limit((int) Math.min(length, buffer.capacity()));
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (in.read(buffer) < 0) throw new EOFException("Connection closed during file transfer");
+                    }
+                } catch (IOException e) {
+                    buffers.add(buffer);
+                    throw e;
+                }
+                length -= buffer.limit();
+                buffer.flip();
+                queue(() -> write(buffer));
+            }
+        }
+
+        // Data already in memory (a decompressed chunk); written from where it is
+        void receive(ByteBuffer data) {
+            queue(() -> write(data));
+        }
+
+        // Closes the file once everything queued is on disk, deletes it if it is incomplete, then runs 'after' on
+        // the disk thread; failure() says whether the disk let us down
+        void finish(boolean complete, Runnable after) {
+            queue(() -> {
+                try {
+                    file.close();
+                    if (!complete || failure != null) Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+                active.remove(this);
+                after.run();
+            });
+        }
+
+        IOException failure() {
+            return failure;
+        }
+
+        private void write(ByteBuffer data) {
+            try {
+                if (failure == null) {
+                    int length = data.remaining();
+                    while (data.hasRemaining()) file.write(data);
+                    done.addAndGet(length);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                if (data.isDirect()) buffers.add(data); // Ours; a wrapped chunk is left to the GC
+            }
+        }
+
+        private void queue(Runnable task) {
+            pending.add(task);
+            drain();
+        }
+
+        private void drain() {
+            if (!draining.compareAndSet(false, true)) return; // Already running; it will get to the new task
+            disk.execute(() -> {
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+                draining.set(false);
+                if (!pending.isEmpty()) drain(); // Queued after the poll came up empty
+            });
+        }
+    }
+
+    TransferManager(int uploadThreads, int diskThreads) {
+        this.uploads = Executors.newFixedThreadPool(uploadThreads, daemon("chat-upload-"));
+        this.disk = Executors.newFixedThreadPool(diskThreads, daemon("chat-disk-"));
+        for (int i = 0; i < BUFFERS; i++) {
+            buffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE)); // The socket reads into them without a copy
+        }
+    }
+
+    static ThreadFactory daemon(String prefix) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    Download download(String fileName, long size) throws IOException {
+        Download download = new Download(Paths.get("received_" + fileName), fileName, size);
+        active.add(download);
+        return download;
+    }
+
+    // Runs 'work' on an upload thread; it counts what it has sent in the Transfer, which is shown until it returns
+    void upload(String fileName, long size, Consumer<Transfer> work) {
+        Transfer upload = new Transfer(fileName, size, true);
+        active.add(upload);
+        uploads.execute(() -> {
+            try {
+                work.accept(upload);
+            } finally {
+                active.remove(upload);
+            }
+        });
+    }
+
+    List<Transfer> active() {
+        return active;
+    }
+
+    private ByteBuffer takeBuffer() throws IOException {
+        try {
+            return buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the disk");
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.*; // For BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, File, IOException, InputStream
+import java.net.*; // For InetSocketAddress, Socket, URL
+import java.nio.charset.*; // For StandardCharsets
+import java.util.*; // For ArrayList, Arrays, List, Map, HashMap
+import java.util.concurrent.*; // For Semaphore, TimeUnit
+
+// Socket writes per delivered message and fan-out latency for the blocking server's write settings, at low load
+// and at saturation. Starts a BroadcastServer process per setting (metrics on, so its /metrics endpoint gives the
+// socket write and frame counters), connects legacy clients and measures on the clients:
+//   low load   - one sender, 100 messages/s
+//   saturation - every sender keeps WINDOW messages in flight (a probe receiver hands the permits back)
+// Each message carries its send time, so every receiver records its latency (same host, same clock).
+// Usage: java WriteCoalescingBenchmark [receivers] [senders] [seconds] [firstPort]
+public class WriteCoalescingBenchmark {
+    static final int WINDOW = 64; // Messages in flight per sender at saturation
+    static final String[][] SETTINGS = {
+            {"flush-per-frame,nagle", "--write-batch-bytes=0", "--tcp-nodelay=off"}, // How the server used to write, with Nagle on
+            {"flush-per-frame", "--write-batch-bytes=0"},
+            {"batched"}, // Defaults: flush when the queue runs empty or 32 KB are buffered
+            {"batched,100us-window", "--write-coalesce-us=100"},
+    };
+
+    static volatile Histogram latency = new Histogram(); // Swapped for every phase
+
+    public static void main(String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int firstPort = args.length > 3 ? Integer.parseInt(args[3]) : 7800;
+
+        for (int i = 0; i < SETTINGS.length; i++) {
+            int port = firstPort + i;
+            int metricsPort = firstPort + 100 + i;
+            Process server = startServer(port, metricsPort, Arrays.copyOfRange(SETTINGS[i], 1, SETTINGS[i].length));
+            try {
+                ClusterFailoverCheck.waitForPort("localhost:" + port);
+                Map<String, Semaphore> permits = new HashMap<>();
+                List<Client> senderClients = new ArrayList<>();
+                for (int s = 0; s < senders; s++) {
+                    String name = "sender" + s;
+                    permits.put(name, new Semaphore(WINDOW));
+                    senderClients.add(new Client(port, name, null));
+                }
+                new Client(port, "probe", permits); // Reads like a receiver, and returns the senders' permits
+                for (int r = 0; r < receivers; r++) {
+                    new Client(port, "receiver" + r, null);
+                }
+                Thread.sleep(1000); // Joins settle
+
+                measure(SETTINGS[i][0], "low", metricsPort, seconds, () -> {
+                    Client sender = senderClients.get(0);
+                    Semaphore window = permits.get(sender.name); // Never runs out at this rate; keeps the count right for later
+                    long next = System.nanoTime();
+                    long end = next + seconds * 1_000_000_000L;
+                    while (next < end) {
+                        window.acquire();
+                        sender.send();
+                        next += 10_000_000; // 100 per second
+                        Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+                    }
+                });
+                measure(SETTINGS[i][0], "saturation", metricsPort, seconds, () -> {
+                    long end = System.nanoTime() + seconds * 1_000_000_000L;
+                    List<Thread> threads = new ArrayList<>();
+                    for (Client sender : senderClients) {
+                        Semaphore window = permits.get(sender.name);
+                        Thread t = new Thread(() -> {
+                            try {
+                                while (System.nanoTime() < end) {
+                                    if (window.tryAcquire(100, TimeUnit.MILLISECONDS)) sender.send();
+                                }
+                            } catch (IOException | InterruptedException e) {
+                                // Ends this sender
+                            }
+                        });
+                        t.start();
+                        threads.add(t);
+                    }
+                    for (Thread t : threads) t.join();
+                });
+            } finally {
+                server.destroyForcibly().waitFor();
+            }
+        }
+        System.exit(0);
+    }
+
+    interface Load {
+        void run() throws Exception;
+    }
+
+    static void measure(String setting, String load, int metricsPort, int seconds, Load work) throws Exception {
+        latency = new Histogram();
+        Map<String, Long> before = scrape(metricsPort);
+        work.run();
+        Thread.sleep(500); // Let the last messages arrive
+        Map<String, Long> after = scrape(metricsPort);
+        Histogram h = latency;
+        long frames = after.get("chat_messages_out_total") - before.get("chat_messages_out_total");
+        long writes = after.get("chat_socket_writes_total") - before.get("chat_socket_writes_total");
+        System.out.printf("setting=%s load=%s deliveries_per_s=%.0f socket_writes_per_message=%.3f p50_us=%.0f p99_us=%.0f max_us=%.0f%n",
+                setting, load, h.count() / (double) seconds, frames > 0 ? writes / (double) frames : 0,
+                h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.max() / 1e3);
+    }
+
+    static Process startServer(int port, int metricsPort, String[] extra) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"),
+                "BroadcastServer", "--headless", "--auth=off", "--message-log=off", "--queue-stats-seconds=0",
+                "--port=" + port, "--metrics-port=" + metricsPort, "--queue-capacity=4096", "--max-messages-per-s=0"));
+        command.addAll(Arrays.asList(extra));
+        return new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "write-coalescing-server.log")).start();
+    }
+
+    // The server's counters, from its /metrics endpoint
+    static Map<String, Long> scrape(int metricsPort) throws IOException {
+        Map<String, Long> values = new HashMap<>();
+        try (InputStream in = new URL("http://127.0.0.1:" + metricsPort + "/metrics").openStream()) {
+            for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2 && parts[0].endsWith("_total")) values.put(parts[0], Long.parseLong(parts[1]));
+            }
+        }
+        return values;
+    }
+
+    // A legacy-protocol client whose reader records the latency of every chat message it gets
+    static final class Client {
+        final String name;
+        private final DataOutputStream out;
+
+        Client(int port, String name, Map<String, Semaphore> permits) throws IOException {
+            this.name = name;
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress("localhost", port));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(name);
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        String message = in.readUTF();
+                        int colon = message.indexOf(": ");
+                        if (colon < 0 || message.startsWith("USER_LIST")) continue;
+                        try {
+                            latency.record(System.nanoTime() - Long.parseLong(message.substring(colon + 2)));
+                        } catch (NumberFormatException e) {
+                            continue; // A server notice
+                        }
+                        if (permits != null) {
+                            Semaphore window = permits.get(message.substring(0, colon));
+                            if (window != null) window.release();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Server gone
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send() throws IOException {
+            out.writeUTF(Long.toString(System.nanoTime()));
+            out.flush();
+        }
+    }
+}